@@ -0,0 +1,44 @@
+import java.io.Serializable;
+
+// First object a FileSyncClient sends after connecting: its ID, the paths it wants to sync and
+// the ContentHash scheme it hashes with. The server also accepts a bare client ID String (as sent
+// by FileSyncClientGUI), which means everything.
+//
+// Hashes name content in echo checks, the version store and peer transfers, so a client and a
+// server that hash differently would reject or misfile each other's files. The server turns away
+// a client whose scheme isn't its own, with a String giving the reason in place of the manifest.
+// A ClientHello from before the scheme was sent reads as scheme 1.
+public class ClientHello implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String clientId;
+    private final PathSubscription subscription;
+    private final int hashScheme;
+
+    public ClientHello(String clientId, PathSubscription subscription) {
+        this(clientId, subscription, ContentHash.SCHEME);
+    }
+
+    ClientHello(String clientId, PathSubscription subscription, int hashScheme) {
+        this.clientId = clientId;
+        this.subscription = subscription;
+        this.hashScheme = hashScheme;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public PathSubscription getSubscription() {
+        return subscription != null ? subscription : PathSubscription.ALL;
+    }
+
+    public int getHashScheme() {
+        return hashScheme != 0 ? hashScheme : 1; // Not sent by clients from before the tree hash
+    }
+
+    @Override
+    public String toString() {
+        return "ClientHello{clientId='" + clientId + "', subscription=" + subscription + ", hashScheme=" + getHashScheme() + '}';
+    }
+}
@@ -0,0 +1,62 @@
+// Point-in-time counters for one connected client, as returned by FileSyncServer.getClientStats().
+// Values are cumulative since the client connected; rates come from comparing two samples.
+public class ClientStats {
+    private final String clientId;
+    private final String address;
+    private final long connectedAtMillis;
+    private final int pendingSends;
+    private final long eventsQueued;
+    private final long eventsSent;
+    private final long bytesSent;
+    private final long bytesReceived;
+
+    ClientStats(String clientId, String address, long connectedAtMillis, int pendingSends,
+                long eventsQueued, long eventsSent, long bytesSent, long bytesReceived) {
+        this.clientId = clientId;
+        this.address = address;
+        this.connectedAtMillis = connectedAtMillis;
+        this.pendingSends = pendingSends;
+        this.eventsQueued = eventsQueued;
+        this.eventsSent = eventsSent;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public long getConnectedAtMillis() {
+        return connectedAtMillis;
+    }
+
+    // Frames waiting for or being written to this client's socket
+    public int getPendingSends() {
+        return pendingSends;
+    }
+
+    public long getEventsQueued() {
+        return eventsQueued;
+    }
+
+    public long getEventsSent() {
+        return eventsSent;
+    }
+
+    // Events broadcast to this client that it has not been sent yet
+    public long getLagEvents() {
+        return Math.max(0, eventsQueued - eventsSent);
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.Serializable;
+import java.util.List;
+
+// Node to node in a sharded cluster (see ServerCluster), sent over a peer link:
+//   PATHS      the files the sender's shard holds, on every (re)connect
+//   FORWARD    changes from a client of the sender, for the receiving node's shard to apply
+//   COMMITTED  changes the sender's shard committed, for the receiver's clients
+//   FETCH      a request for a file's content by hash; answered with CONTENT chunks, the last one
+//              marked, or FETCH_FAILED
+public class ClusterMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type { PATHS, FORWARD, COMMITTED, FETCH, CONTENT, FETCH_FAILED }
+
+    // One change to a file or directory. Content events carry their data only when it is small
+    // enough for a single frame and the link isn't backed up; otherwise size is set and the
+    // content is fetched by hash.
+    public static final class Change implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final FileEvent event;
+        private final long size;
+        private final List<String> treeEntries; // Tree events only, see FileEvent.getTreeEntries
+
+        public Change(FileEvent event, long size, List<String> treeEntries) {
+            this.event = event;
+            this.size = size;
+            this.treeEntries = treeEntries;
+        }
+
+        public FileEvent getEvent() {
+            return event;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public List<String> getTreeEntries() {
+            return treeEntries;
+        }
+
+        // Content the receiver has to fetch before it can apply or pass on the change
+        public boolean needsContent() {
+            FileEvent.EventType type = event.getEventType();
+            return (type == FileEvent.EventType.CREATE || type == FileEvent.EventType.MODIFY) && event.getFileData() == null;
+        }
+    }
+
+    private final Type type;
+    private final String nodeId; // Sender
+    private final String originClientId; // FORWARD, COMMITTED: the client the changes came from, if any
+    private final List<Change> changes;
+    private final String requestId; // FETCH and its replies
+    private final String relativePath;
+    private final String contentHash;
+    private final long offset;
+    private final byte[] data;
+    private final boolean last;
+
+    private ClusterMessage(Type type, String nodeId, String originClientId, List<Change> changes, String requestId,
+                           String relativePath, String contentHash, long offset, byte[] data, boolean last) {
+        this.type = type;
+        this.nodeId = nodeId;
+        this.originClientId = originClientId;
+        this.changes = changes;
+        this.requestId = requestId;
+        this.relativePath = relativePath;
+        this.contentHash = contentHash;
+        this.offset = offset;
+        this.data = data;
+        this.last = last;
+    }
+
+    public static ClusterMessage paths(String nodeId, List<Change> files) {
+        return new ClusterMessage(Type.PATHS, nodeId, null, files, null, null, null, 0L, null, false);
+    }
+
+    public static ClusterMessage forward(String nodeId, String originClientId, List<Change> changes) {
+        return new ClusterMessage(Type.FORWARD, nodeId, originClientId, changes, null, null, null, 0L, null, false);
+    }
+
+    public static ClusterMessage committed(String nodeId, String originClientId, List<Change> changes) {
+        return new ClusterMessage(Type.COMMITTED, nodeId, originClientId, changes, null, null, null, 0L, null, false);
+    }
+
+    public static ClusterMessage fetch(String nodeId, String requestId, String relativePath, String contentHash) {
+        return new ClusterMessage(Type.FETCH, nodeId, null, null, requestId, relativePath, contentHash, 0L, null, false);
+    }
+
+    public static ClusterMessage content(String nodeId, String requestId, long offset, byte[] data, boolean last) {
+        return new ClusterMessage(Type.CONTENT, nodeId, null, null, requestId, null, null, offset, data, last);
+    }
+
+    public static ClusterMessage fetchFailed(String nodeId, String requestId) {
+        return new ClusterMessage(Type.FETCH_FAILED, nodeId, null, null, requestId, null, null, 0L, null, false);
+    }
+
+    // The same message with other changes, e.g. ones left without their data
+    ClusterMessage withChanges(List<Change> changes) {
+        return new ClusterMessage(type, nodeId, originClientId, changes, requestId, relativePath, contentHash, offset, data, last);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getOriginClientId() {
+        return originClientId;
+    }
+
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterMessage{type=" + type + ", nodeId='" + nodeId + "'" +
+                (changes != null ? ", changes=" + changes.size() : "") +
+                (requestId != null ? ", requestId='" + requestId + "'" : "") + '}';
+    }
+}
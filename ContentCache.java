@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Size-bounded LRU cache of file content shared by every client writer on the server, weighed by
+// bytes rather than entries. The server keeps encoded frames in it (see EncodedFrame): when one
+// file is broadcast to many clients, or many clients resume the same download after an outage,
+// each chunk is read from disk and serialized once and the same bytes go to every writer.
+//
+// Keys include the content hash (see key()), so an entry is never served for another version of
+// the file and nothing has to be invalidated when a file changes; old versions just age out.
+// Concurrent misses on one key share a single load.
+public class ContentCache {
+    public interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private final Map<String, CompletableFuture<byte[]>> loading = new HashMap<>();
+    private long maxBytes;
+    private long currentBytes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    public ContentCache(long maxBytes, MetricsRegistry metrics, String metricPrefix) {
+        this.maxBytes = maxBytes;
+        this.hits = metrics.counter(metricPrefix + ".hits");
+        this.misses = metrics.counter(metricPrefix + ".misses");
+        this.evictions = metrics.counter(metricPrefix + ".evictions");
+        metrics.gauge(metricPrefix + ".bytes", this::getSizeBytes);
+        metrics.gauge(metricPrefix + ".entries", this::getEntryCount);
+        metrics.gauge(metricPrefix + ".hitRatePercent", this::getHitRatePercent);
+    }
+
+    public static String key(String contentHash, long offset, int length) {
+        return contentHash + ':' + offset + ':' + length;
+    }
+
+    // Returns the cached bytes for key, or loads, caches and returns them. Entries larger than a
+    // quarter of the cache are loaded but not kept, so one huge file can't flush everything else.
+    public byte[] get(String key, Loader loader) throws IOException {
+        CompletableFuture<byte[]> inFlight;
+        CompletableFuture<byte[]> ours = null;
+        synchronized (this) {
+            byte[] cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            inFlight = loading.get(key);
+            if (inFlight == null) {
+                ours = new CompletableFuture<>();
+                loading.put(key, ours);
+                misses.increment();
+            } else {
+                hits.increment(); // Served by another writer's read
+            }
+        }
+        if (ours == null) {
+            return awaitLoad(inFlight);
+        }
+        try {
+            byte[] data = loader.load();
+            synchronized (this) {
+                put(key, data);
+            }
+            ours.complete(data);
+            return data;
+        } catch (IOException | RuntimeException e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                loading.remove(key);
+            }
+        }
+    }
+
+    private static byte[] awaitLoad(CompletableFuture<byte[]> inFlight) throws IOException {
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for cached content");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void put(String key, byte[] data) {
+        if (data.length > maxBytes / 4) {
+            return;
+        }
+        byte[] previous = entries.put(key, data);
+        currentBytes += data.length - (previous != null ? previous.length : 0);
+        evictToFit();
+    }
+
+    private void evictToFit() {
+        Iterator<byte[]> eldest = entries.values().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            currentBytes -= eldest.next().length;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evictToFit();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getHitRatePercent() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : hitCount * 100 / total;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+}
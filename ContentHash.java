@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Content identity shared by the client and the server. Two files with the same
+// hash are treated as the same bytes, which lets both sides drop echoed events.
+//
+// Content of up to LEAF_SIZE bytes is identified by its SHA-256. Larger content is hashed as a
+// tree: the SHA-256 of each LEAF_SIZE block (a leaf), then SHA-512/256 over the leaf hashes in
+// order (the root). Leaves are hashed in parallel on a fork-join pool with a thread per core,
+// so a large file hashes at the speed of all cores rather than one. The root uses a different
+// function from the leaves so that no small file's hash can equal a large file's: the leaf list
+// is itself short enough to be a small file's content. Leaves are the TransferChunk.CHUNK_SIZE
+// blocks whose hashes a PeerOffer carries, so an offer's block hashes can be checked against the
+// file's hash (see ofLeafHashes).
+public final class ContentHash {
+    // Which hash the client and server compute: 1 was a plain SHA-256 of any size, 2 is the tree.
+    // Sent in ClientHello; the server turns away a client that hashes differently (see ClientHello).
+    public static final int SCHEME = 2;
+    public static final int LEAF_SIZE = TransferChunk.CHUNK_SIZE;
+    private static final String ALGORITHM = "SHA-256";
+    private static final String ROOT_ALGORITHM = "SHA-512/256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Leaves read with blocking positional reads, which is why this is not the common pool
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final ThreadLocal<ByteBuffer> LEAF_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(LEAF_SIZE));
+
+    private ContentHash() {
+    }
+
+    public static String of(byte[] data) {
+        return of(data, POOL);
+    }
+
+    static String of(byte[] data, ForkJoinPool pool) {
+        if (data == null || data.length <= LEAF_SIZE) {
+            MessageDigest digest = newDigest(ALGORITHM);
+            if (data != null) {
+                digest.update(data);
+            }
+            return toHex(digest.digest());
+        }
+        byte[][] leaves = new byte[leafCount(data.length)][];
+        pool.invoke(new LeafTask(leaves) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            byte[] hashLeaf(int leaf) {
+                int offset = leaf * LEAF_SIZE;
+                MessageDigest digest = newDigest(ALGORITHM);
+                digest.update(data, offset, Math.min(LEAF_SIZE, data.length - offset));
+                return digest.digest();
+            }
+        });
+        return root(leaves);
+    }
+
+    public static String of(Path file) throws IOException {
+        return of(file, POOL);
+    }
+
+    // Hashes the size the file has when opened, which also picks small or tree hashing. A file
+    // that grows or shrinks meanwhile (still being written) fails rather than getting the hash
+    // of neither its old nor its new content.
+    static String of(Path file, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String hash;
+            if (size <= LEAF_SIZE) {
+                ByteBuffer buffer = readBlock(channel, 0, (int) size);
+                MessageDigest digest = newDigest(ALGORITHM);
+                digest.update(buffer.array(), 0, buffer.limit());
+                hash = toHex(digest.digest());
+            } else {
+                hash = root(leaves(channel, size, pool));
+            }
+            long sizeNow = channel.size();
+            if (sizeNow != size) {
+                throw new IOException("File changed size from " + size + " to " + sizeNow + " bytes while being hashed");
+            }
+            return hash;
+        }
+    }
+
+    // The hash of every LEAF_SIZE block of the first size bytes of channel, in order
+    public static List<String> leafHashes(FileChannel channel, long size) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        for (byte[] leaf : leaves(channel, size, POOL)) {
+            hashes.add(toHex(leaf));
+        }
+        return hashes;
+    }
+
+    // The hash of content larger than LEAF_SIZE with these leaf hashes
+    public static String ofLeafHashes(List<String> leafHashes) {
+        byte[][] leaves = new byte[leafHashes.size()][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = fromHex(leafHashes.get(i));
+        }
+        return root(leaves);
+    }
+
+    private static int leafCount(long size) {
+        return (int) ((size + LEAF_SIZE - 1) / LEAF_SIZE);
+    }
+
+    private static byte[][] leaves(FileChannel channel, long size, ForkJoinPool pool) throws IOException {
+        byte[][] leaves = new byte[leafCount(size)][];
+        LeafTask task = new LeafTask(leaves) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            byte[] hashLeaf(int leaf) throws IOException {
+                long offset = (long) leaf * LEAF_SIZE;
+                ByteBuffer buffer = readBlock(channel, offset, (int) Math.min(LEAF_SIZE, size - offset));
+                MessageDigest digest = newDigest(ALGORITHM);
+                digest.update(buffer.array(), 0, buffer.limit());
+                return digest.digest();
+            }
+        };
+        pool.invoke(task);
+        if (task.failure != null) {
+            throw task.failure;
+        }
+        return leaves;
+    }
+
+    // Exactly length bytes of channel from offset, in this thread's LEAF_SIZE buffer
+    private static ByteBuffer readBlock(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = LEAF_BUFFER.get();
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File shrank to " + (offset + buffer.position()) + " bytes while being hashed");
+            }
+        }
+        return buffer;
+    }
+
+    private static String root(byte[][] leaves) {
+        MessageDigest digest = newDigest(ROOT_ALGORITHM);
+        for (byte[] leaf : leaves) {
+            digest.update(leaf);
+        }
+        return toHex(digest.digest());
+    }
+
+    // Hashes every leaf, splitting the range in halves down to single leaves
+    private abstract static class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final byte[][] leaves;
+        volatile IOException failure; // From whichever leaf failed; the others are then skipped
+
+        LeafTask(byte[][] leaves) {
+            this.leaves = leaves;
+        }
+
+        abstract byte[] hashLeaf(int leaf) throws IOException;
+
+        @Override
+        protected void compute() {
+            hashLeaves(0, leaves.length);
+        }
+
+        private void hashLeaves(int from, int to) {
+            if (failure != null) {
+                return;
+            }
+            if (to - from == 1) {
+                try {
+                    leaves[from] = hashLeaf(from);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    hashLeaves(from, middle);
+                }
+            }, new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    hashLeaves(middle, to);
+                }
+            });
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to ship SHA-256, and has shipped SHA-512/256 since Java 9
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex, i * 2, i * 2 + 2, 16);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Makes a FileSyncServer the edge relay of a branch office. The site's clients connect to the
+// relay as they would to the central server, and the relay connects to the central server once,
+// with the client ID "relay:<id>", on the link a standby uses (see StandbyReplica). Over it the
+// relay keeps a full copy of the central store and passes everything the central server
+// broadcasts on to its own clients, so a change crosses the WAN once per site rather than once
+// per client. Manifests, downloads and resumed transfers are served from the local copy.
+//
+// The central server stays the only place changes are ordered and versioned. Changes from the
+// site's clients go upstream on the same link, with their content kept here in a stash by hash.
+// The central server confirms each one it commits without sending the content back, and the
+// relay commits it from the stash and broadcasts it to its other clients. Changes made while the
+// central server is unreachable wait until the link is back, their content in the stash and only
+// their paths and hashes in memory.
+public class EdgeRelay extends StandbyReplica {
+    public static final String RELAY_ID_PREFIX = "relay:";
+    private static final long ORIGIN_MAX_AGE_MS = 60_000; // How long a change waits for its confirmation to be matched
+    private static final long STASH_MAX_AGE_MS = TimeUnit.HOURS.toMillis(1);
+
+    // A verified upload from a local client, sent upstream chunk by chunk from the stash
+    private static final class Upload {
+        final String transferId = UUID.randomUUID().toString();
+        final String relativePath;
+        final FileEvent.EventType eventType;
+        final long totalSize;
+        final String contentHash;
+
+        Upload(String relativePath, FileEvent.EventType eventType, long totalSize, String contentHash) {
+            this.relativePath = relativePath;
+            this.eventType = eventType;
+            this.totalSize = totalSize;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private static final class Origin {
+        final String clientId;
+        final long timeMillis = System.currentTimeMillis();
+
+        Origin(String clientId) {
+            this.clientId = clientId;
+        }
+    }
+
+    private final Path stashDir;
+    private final BlockingQueue<Object> outgoing = new LinkedBlockingQueue<>(); // FileEvent, FileEventBatch or Upload
+    private volatile Object inFlight; // Taken from outgoing and not yet written upstream
+    private final Map<String, Origin> origins = new ConcurrentHashMap<>(); // By change, see key
+    private final Object linkReady = new Object();
+    private Thread forwarder;
+    private LongAdder forwardedEvents;
+    private LongAdder forwardedBytes;
+
+    // upstream is the host:port of the central server's client port
+    public EdgeRelay(String upstream, String serverFilesDir) {
+        super(RELAY_ID_PREFIX, upstream, 0L);
+        this.stashDir = TransferStore.stateDirectoryFor(serverFilesDir).resolve("relay");
+        stashDir.toFile().mkdirs();
+    }
+
+    @Override
+    boolean acceptsClients() {
+        return true;
+    }
+
+    @Override
+    public void promote() {
+        server.log("An edge relay follows the central server and does not take over from it");
+    }
+
+    @Override
+    void start(FileSyncServer server) {
+        super.start(server);
+        MetricsRegistry metrics = server.getMetrics();
+        forwardedEvents = metrics.counter("server.relay.forwarded.events");
+        forwardedBytes = metrics.counter("server.relay.forwarded.bytes");
+        metrics.gauge("server.relay.queue", outgoing::size);
+        forwarder = new Thread(this::runForwarder, "FileSyncServer-RelayForwarder");
+        forwarder.setDaemon(true);
+        forwarder.start();
+    }
+
+    @Override
+    void close() {
+        super.close();
+        if (forwarder != null) {
+            forwarder.interrupt();
+        }
+    }
+
+    // Sends local clients' changes upstream. Called with the server lock held, so changes leave
+    // in the order the clients' handlers got to it. Content is queued as a reference to the
+    // stash and read back when the change is written, so a long outage holds no file data in
+    // memory.
+    void forward(List<FileEvent> events, String originClientId) {
+        List<FileEvent> queued = new ArrayList<>(events.size());
+        for (FileEvent event : events) {
+            byte[] data = event.getFileData();
+            String contentHash = event.getContentHash();
+            FileEvent toQueue = event;
+            if (data != null) {
+                contentHash = contentHash != null ? contentHash : ContentHash.of(data);
+                try {
+                    toQueue = FileEvent.fromFile(event.getEventType(), event.getRelativePath(), stash(data, contentHash), null, contentHash);
+                } catch (IOException e) {
+                    // Queued with its data; the confirmation then finds no content and the relay resyncs that file
+                    server.log("Error stashing " + event.getRelativePath() + " for upstream: " + e.getMessage());
+                }
+            }
+            queued.add(toQueue);
+            origins.put(key(event.getEventType(), event.getRelativePath(), event.getSourcePath(), contentHash), new Origin(originClientId));
+        }
+        outgoing.add(queued.size() == 1 ? queued.get(0) : new FileEventBatch(queued));
+    }
+
+    // Sends a local client's verified upload upstream, from the stash
+    void forwardUpload(TransferStore.Session session, String originClientId) throws IOException {
+        Path stashed = stashDir.resolve(session.getContentHash());
+        if (Files.exists(stashed)) {
+            session.discard();
+        } else {
+            session.moveTo(stashed);
+        }
+        Upload upload = new Upload(session.getRelativePath(), session.getEventType(), session.getTotalSize(), session.getContentHash());
+        origins.put(key(upload.eventType, upload.relativePath, null, upload.contentHash), new Origin(originClientId));
+        outgoing.add(upload);
+    }
+
+    @Override
+    String originOf(FileEvent event) {
+        Origin origin = origins.remove(key(event.getEventType(), event.getRelativePath(), event.getSourcePath(), event.getContentHash()));
+        return origin != null && System.currentTimeMillis() - origin.timeMillis < ORIGIN_MAX_AGE_MS ? origin.clientId : null;
+    }
+
+    @Override
+    Path takeStash(String contentHash) {
+        Path stashed = stashDir.resolve(contentHash);
+        return Files.isRegularFile(stashed) ? stashed : null;
+    }
+
+    @Override
+    void linked() {
+        pruneStash();
+        synchronized (linkReady) {
+            linkReady.notifyAll();
+        }
+    }
+
+    @Override
+    void statusReceived(TransferStatus status) {
+        if (status.isFailed()) {
+            server.log("Central server did not take upload " + status.getTransferId() + " from this relay");
+        }
+        super.statusReceived(status);
+    }
+
+    // Identifies a change and its confirmation from the central server, which carries the same paths and content
+    private static String key(FileEvent.EventType type, String relativePath, String sourcePath, String contentHash) {
+        if (type == FileEvent.EventType.CREATE || type == FileEvent.EventType.MODIFY) {
+            return "content:" + relativePath + '\0' + contentHash; // The central server may commit a CREATE as either
+        }
+        return type + ":" + relativePath + '\0' + (sourcePath != null ? sourcePath : "");
+    }
+
+    private Path stash(byte[] data, String contentHash) throws IOException {
+        Path stashed = stashDir.resolve(contentHash);
+        if (Files.exists(stashed)) {
+            return stashed;
+        }
+        Path part = stashDir.resolve(UUID.randomUUID() + ".part");
+        Files.write(part, data);
+        try {
+            Files.move(part, stashed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, stashed, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return stashed;
+    }
+
+    // Stashed content is linked into the store when its confirmation arrives; what is left after
+    // an hour was never confirmed (the central server had it already, or refused the change),
+    // unless it is still waiting to go upstream
+    private void pruneStash() {
+        long cutoff = System.currentTimeMillis() - STASH_MAX_AGE_MS;
+        Set<Path> queued = queuedStash();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(stashDir)) {
+            for (Path entry : entries) {
+                if (Files.getLastModifiedTime(entry).toMillis() < cutoff && !queued.contains(entry)) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        } catch (IOException e) {
+            server.log("Error pruning relay stash: " + e.getMessage());
+        }
+        origins.values().removeIf(origin -> System.currentTimeMillis() - origin.timeMillis >= ORIGIN_MAX_AGE_MS);
+    }
+
+    // The stashed content of the changes not yet written upstream
+    private Set<Path> queuedStash() {
+        Set<Path> queued = new HashSet<>();
+        List<Object> changes = new ArrayList<>(outgoing);
+        changes.add(inFlight);
+        for (Object change : changes) {
+            if (change instanceof Upload upload) {
+                queued.add(stashDir.resolve(upload.contentHash));
+            } else if (change instanceof FileEventBatch batch) {
+                batch.getEvents().forEach(event -> addStashed(event, queued));
+            } else if (change instanceof FileEvent event) {
+                addStashed(event, queued);
+            }
+        }
+        return queued;
+    }
+
+    private static void addStashed(FileEvent event, Set<Path> queued) {
+        if (event.getLocalFile() != null) {
+            queued.add(event.getLocalFile());
+        }
+    }
+
+    // Writes queued changes upstream in order. A change that could not be written is sent again
+    // once the link is back; the central server skips content it already has.
+    private void runForwarder() {
+        Object pending = null;
+        try {
+            while (true) {
+                if (pending == null) {
+                    pending = outgoing.take();
+                    inFlight = pending;
+                }
+                try {
+                    if (writeUpstream(pending)) {
+                        pending = null;
+                        inFlight = null;
+                        continue;
+                    }
+                } catch (IOException e) {
+                    server.log("Error forwarding to the central server, retrying once reconnected: " + e.getMessage());
+                }
+                synchronized (linkReady) {
+                    linkReady.wait(1000);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean writeUpstream(Object change) throws IOException {
+        if (!(change instanceof Upload upload)) {
+            List<FileEvent> events = new ArrayList<>();
+            for (FileEvent event : change instanceof FileEventBatch batch ? batch.getEvents() : List.of((FileEvent) change)) {
+                FileEvent withData = withStashedData(event);
+                if (withData != null) {
+                    events.add(withData);
+                }
+            }
+            if (events.isEmpty()) {
+                return true;
+            }
+            if (!send(events.size() == 1 ? events.get(0) : new FileEventBatch(events))) {
+                return false;
+            }
+            for (FileEvent event : events) {
+                forwardedBytes.add(event.getFileData() != null ? event.getFileData().length : 0);
+            }
+            forwardedEvents.add(events.size());
+            return true;
+        }
+        Path stashed = stashDir.resolve(upload.contentHash);
+        if (!Files.isRegularFile(stashed)) {
+            server.log("Stashed upload of " + upload.relativePath + " is gone, not forwarding it");
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(stashed, StandardOpenOption.READ)) {
+            long offset = 0;
+            while (offset < upload.totalSize) {
+                int length = (int) Math.min(TransferChunk.CHUNK_SIZE, upload.totalSize - offset);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Stashed upload of " + upload.relativePath + " is shorter than " + upload.totalSize + " bytes");
+                    }
+                }
+                if (!send(new TransferChunk(upload.transferId, upload.relativePath, upload.eventType, upload.totalSize,
+                        upload.contentHash, 0L, offset, buffer.array()))) {
+                    return false; // Resent from the start; the central server skips what it already committed
+                }
+                forwardedBytes.add(length);
+                offset += length;
+            }
+        }
+        forwardedEvents.increment();
+        return true;
+    }
+
+    // The event as the central server takes it, with content queued by reference read back from
+    // the stash, or null if that content is gone
+    private FileEvent withStashedData(FileEvent event) throws IOException {
+        if (event.getLocalFile() == null) {
+            return event;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(event.getLocalFile());
+        } catch (NoSuchFileException e) {
+            server.log("Stashed content of " + event.getRelativePath() + " is gone, not forwarding it");
+            return null;
+        }
+        return new FileEvent(event.getEventType(), event.getRelativePath(), data, event.getContentHash(), 0L);
+    }
+}
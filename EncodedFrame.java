@@ -0,0 +1,100 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// A frame serialized once and then written as-is to any number of client streams, so a
+// broadcast costs one serialization however many clients receive it.
+//
+// The bytes are what writeObject produces on a fresh ObjectOutputStream, minus the stream
+// header. After reset() a stream's handle table is empty, exactly as on a fresh stream, so once
+// a TC_RESET has gone out the receiver decodes the spliced bytes as if writeObject had been
+// called on that stream. writeTo() always resets first, and receivers need no changes.
+public final class EncodedFrame {
+    private static final int FRAME_OVERHEAD = 1024; // Class descriptors, paths and hashes around the file data
+
+    private final Object frame;
+    private volatile byte[] bytes;
+
+    public EncodedFrame(Object frame) {
+        this.frame = frame;
+    }
+
+    public Object getFrame() {
+        return frame;
+    }
+
+    // Serialized on first use, by whichever client writer gets here first, so the encoding cost
+    // never lands on a thread that holds the server lock
+    public byte[] getBytes() throws IOException {
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            synchronized (this) {
+                encoded = bytes;
+                if (encoded == null) {
+                    encoded = encode(frame);
+                    bytes = encoded;
+                }
+            }
+        }
+        return encoded;
+    }
+
+    public static byte[] encode(Object frame) throws IOException {
+        FrameBuffer buffer = new FrameBuffer(estimatedSize(frame));
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.flush();
+            buffer.reset(); // Drop the stream header
+            out.writeObject(frame);
+            out.flush();
+            return buffer.toByteArray();
+        }
+    }
+
+    // About what the frame takes encoded, or on the heap: its file data plus FRAME_OVERHEAD.
+    // Sizes encode's buffer, and a client's backlog of queued frames.
+    static long estimatedSize(Object frame) {
+        return payloadSize(frame) + FRAME_OVERHEAD;
+    }
+
+    // File data carried by the frame, so the buffer is sized once instead of doubling up to it
+    private static long payloadSize(Object frame) {
+        if (frame instanceof FileEvent event) {
+            return event.getFileData() != null ? event.getFileData().length : 0;
+        } else if (frame instanceof TransferChunk chunk) {
+            return chunk.getData() != null ? chunk.getData().length : 0;
+        } else if (frame instanceof FileEventBatch batch) {
+            long total = 0;
+            for (FileEvent event : batch.getEvents()) {
+                total += payloadSize(event);
+            }
+            return total;
+        }
+        return 0;
+    }
+
+    // Writes encoded bytes to out. raw must be the stream out writes to; out is reset and flushed
+    // first so the bytes start at a frame boundary on a clean handle table, and reset again after:
+    // out never saw the spliced objects, so without that TC_RESET the next frame written through it
+    // would number its back-references differently from the receiver.
+    public static void writeTo(ObjectOutputStream out, OutputStream raw, byte[] encoded) throws IOException {
+        out.reset();
+        out.flush();
+        raw.write(encoded);
+        out.reset();
+        out.flush();
+    }
+
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer(long expectedSize) {
+            super((int) Math.min(expectedSize, Integer.MAX_VALUE - 8));
+        }
+
+        // The buffer itself when it was sized exactly, saving a copy of the whole frame
+        @Override
+        public synchronized byte[] toByteArray() {
+            return count == buf.length ? buf : Arrays.copyOf(buf, count);
+        }
+    }
+}
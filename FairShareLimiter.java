@@ -0,0 +1,84 @@
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+// Shares one TokenBucket between flows (here, client connections) by weight, using start-time
+// fair queueing: each request gets a virtual start tag of max(virtual time, the flow's previous
+// finish tag), and waiting requests are granted bandwidth in tag order. A flow with weight 3
+// gets three times the bytes of a weight-1 flow while both are busy, and a flow that has been
+// idle does not bank credit to burst ahead of the others when it returns.
+//
+// The grant is decided when the bucket has tokens for it rather than when the previous grant
+// completes, so a busy flow has re-queued its next request by then and competes with its
+// proper tag.
+//
+// With no rate set, acquire() returns after one volatile read.
+public class FairShareLimiter {
+    private static final class Request {
+        final double startTag;
+        final long sequence;
+
+        Request(double startTag, long sequence) {
+            this.startTag = startTag;
+            this.sequence = sequence;
+        }
+    }
+
+    private final TokenBucket bucket;
+    private final PriorityQueue<Request> waiting = new PriorityQueue<>(
+            Comparator.<Request>comparingDouble(r -> r.startTag).thenComparingLong(r -> r.sequence));
+    private final Map<Object, Double> finishTags = new HashMap<>();
+    private double virtualTime;
+    private long nextSequence;
+
+    public FairShareLimiter(long bytesPerSecond) {
+        this.bucket = new TokenBucket(bytesPerSecond);
+    }
+
+    public void setRate(long bytesPerSecond) {
+        bucket.setRate(bytesPerSecond);
+    }
+
+    public long getRate() {
+        return bucket.getRate();
+    }
+
+    public void acquire(Object flow, int weight, long bytes) throws InterruptedException {
+        if (!bucket.isLimited()) {
+            return;
+        }
+        synchronized (this) {
+            double startTag = Math.max(virtualTime, finishTags.getOrDefault(flow, 0.0));
+            finishTags.put(flow, startTag + (double) bytes / Math.max(1, weight));
+            Request request = new Request(startTag, nextSequence++);
+            waiting.add(request);
+            try {
+                while (true) {
+                    if (waiting.peek() != request) {
+                        wait();
+                        continue;
+                    }
+                    long waitNanos = bucket.tryAcquire(bytes);
+                    if (waitNanos == 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos); // An earlier-tagged request may arrive meanwhile
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(request);
+                notifyAll();
+                throw e;
+            }
+            waiting.poll();
+            virtualTime = startTag;
+            notifyAll(); // Next head checks the bucket
+        }
+    }
+
+    // Forgets a flow's finish tag once its connection is gone
+    public synchronized void removeFlow(Object flow) {
+        finishTags.remove(flow);
+    }
+}
@@ -1,20 +1,48 @@
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.List;
 
 public class FileEvent implements Serializable {
     private static final long serialVersionUID = 1L;
 
     public enum EventType {
-        CREATE, MODIFY, DELETE
+        CREATE, MODIFY, DELETE,
+        MOVE,       // relativePath is the new path and sourcePath the old one; carries no file data
+        DELETE_TREE, // relativePath is a directory, deleted with everything in it
+        MOVE_TREE   // A directory and everything in it moved from sourcePath to relativePath
     }
 
     private final EventType eventType;
     private final String relativePath;
     private final byte[] fileData;
+    private final String contentHash; // Hash of fileData, null for DELETE or if not computed
+    private final long version;       // Server-assigned version, 0 when sent by a client
+    private final String sourcePath;  // MOVE only: the path the file was moved from
+    private transient long detectedAtNanos; // Sender side only: when the change was first seen (System.nanoTime), 0 if unknown
+    private transient List<String> treeEntries; // Server side only: the paths a tree event covered, for clients that need them one by one
+    private transient Path localFile;          // Sender side only: a large file sent from disk chunk by chunk, with no fileData
+    private transient HashCache.Stat localStat; // What localFile looked like when it was hashed
 
     public FileEvent(EventType eventType, String relativePath, byte[] fileData) {
+        this(eventType, relativePath, fileData, null, 0L);
+    }
+
+    public FileEvent(EventType eventType, String relativePath, byte[] fileData, String contentHash, long version) {
+        this(eventType, relativePath, fileData, contentHash, version, null);
+    }
+
+    private FileEvent(EventType eventType, String relativePath, byte[] fileData, String contentHash, long version, String sourcePath) {
         this.eventType = eventType;
         this.relativePath = relativePath;
         this.fileData = fileData;
+        this.contentHash = contentHash;
+        this.version = version;
+        this.sourcePath = sourcePath;
+    }
+
+    // A rename: the file with contentHash at sourcePath is now at targetPath
+    public static FileEvent move(String sourcePath, String targetPath, String contentHash, long version) {
+        return new FileEvent(EventType.MOVE, targetPath, null, contentHash, version, sourcePath);
     }
 
     public EventType getEventType() {
@@ -29,12 +57,73 @@ public class FileEvent implements Serializable {
         return fileData;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Sender side: a large file to be sent as a resumable transfer, read from disk as it is sent
+    // rather than held in fileData (see FileSyncClient.sendChunkedUpload)
+    static FileEvent fromFile(EventType eventType, String relativePath, Path localFile, HashCache.Stat localStat, String contentHash) {
+        FileEvent event = new FileEvent(eventType, relativePath, null, contentHash, 0L, null);
+        event.localFile = localFile;
+        event.localStat = localStat;
+        return event;
+    }
+
+    Path getLocalFile() {
+        return localFile;
+    }
+
+    HashCache.Stat getLocalStat() {
+        return localStat;
+    }
+
+    // A directory deleted with everything in it
+    public static FileEvent deleteTree(String directory, long version) {
+        return new FileEvent(EventType.DELETE_TREE, directory, null, null, version, null);
+    }
+
+    // A directory moved with everything in it
+    public static FileEvent moveTree(String sourceDirectory, String targetDirectory, long version) {
+        return new FileEvent(EventType.MOVE_TREE, targetDirectory, null, null, version, sourceDirectory);
+    }
+
+    public boolean isTreeEvent() {
+        return eventType == EventType.DELETE_TREE || eventType == EventType.MOVE_TREE;
+    }
+
+    List<String> getTreeEntries() {
+        return treeEntries;
+    }
+
+    void setTreeEntries(List<String> treeEntries) {
+        this.treeEntries = treeEntries;
+    }
+
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    long getDetectedAtNanos() {
+        return detectedAtNanos;
+    }
+
+    void setDetectedAtNanos(long detectedAtNanos) {
+        this.detectedAtNanos = detectedAtNanos;
+    }
+
     @Override
     public String toString() {
         return "FileEvent{" +
                 "eventType=" + eventType +
+                (sourcePath != null ? ", sourcePath='" + sourcePath + "'" : "") +
                 ", relativePath='" + relativePath + "\'" +
-                ", fileSize=" + (fileData != null ? fileData.length + " bytes" : "N/A") +
+                ", fileSize=" + (fileData != null ? fileData.length + " bytes" : localStat != null ? localStat.size + " bytes on disk" : "N/A") +
+                ", version=" + version +
                 '}';
     }
-}
\ No newline at end of file
+}
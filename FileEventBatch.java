@@ -0,0 +1,31 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Several FileEvents sent as one frame: one writeObject and one flush on the sender, one
+// lock acquisition and one broadcast on the server. Events are applied in list order.
+public class FileEventBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<FileEvent> events;
+
+    public FileEventBatch(List<FileEvent> events) {
+        this.events = Collections.unmodifiableList(new ArrayList<>(events));
+    }
+
+    public List<FileEvent> getEvents() {
+        return events;
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FileEventBatch{" +
+                "events=" + events.size() +
+                '}';
+    }
+}
@@ -1,56 +1,223 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet; // Keep: Used in initialSync
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set; // Keep: Used in initialSync
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.UUID; // Added for client ID generation
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
 public class FileSyncClient {
-    private static final String SERVER_HOST = "localhost"; // Make configurable if needed
-    private static final int SERVER_PORT = 8000;           // Make configurable if needed
-    private static final String DIRECTORY = "client_files";    
-    private final Map<String, Long> fileModificationTimes = new HashMap<>(); // Made final
+    private static final String DEFAULT_SERVER_HOST = "localhost";
+    private static final int DEFAULT_SERVER_PORT = 8000;
+    private static final String DEFAULT_DIRECTORY = "client_files";
+    // The peer port is only reachable from this machine unless --peer-bind names the network's interface
+    private static final String DEFAULT_PEER_BIND_ADDRESS = "127.0.0.1";
+    private volatile String serverHost; // The server connected or being connected to, see nextServer
+    private volatile int serverPort;
+    private final List<InetSocketAddress> servers = new ArrayList<>(); // The server first, then its failover servers
+    private int serverIndex;
+    private final String directory;
+    private final TreeMap<String, Long> fileModificationTimes = new TreeMap<>(); // Sorted, so a directory's entries form one range
     private Socket socket;
     private ObjectInputStream input;
     private ObjectOutputStream output;
-    private final BlockingQueue<FileEvent> eventSendQueue = new LinkedBlockingQueue<>();
+    // FIFO of outgoing events. Events that fail to send go back to the head, so per-path order
+    // (e.g. CREATE before DELETE) is preserved across disconnects.
+    private final BlockingDeque<FileEvent> eventSendQueue = new LinkedBlockingDeque<>();
+    private static final int MAX_SEND_BATCH = 64;           // Events written per frame when draining a backlog
+    private static final long MAX_BATCH_BYTES = 8L * 1024 * 1024; // File data per frame; a larger single file goes alone
+    private static final long BATCH_LINGER_MS = 2;          // How long a small batch waits for more events
+    // Initial sync pipeline: file data read but not yet written to the socket is capped at
+    // SEND_WINDOW_BYTES; the scanner runs at most INITIAL_SYNC_PATH_QUEUE_SIZE paths ahead.
+    private static final int SEND_WINDOW_BYTES = 64 * 1024 * 1024;
+    private static final int INITIAL_SYNC_PATH_QUEUE_SIZE = 1024;
+    private static final String END_OF_SCAN = new String("<end-of-scan>"); // Compared by identity
+    private final Semaphore sendWindow = new Semaphore(SEND_WINDOW_BYTES);
+    private final Map<FileEvent, Integer> sendWindowPermits = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final List<Thread> initialSyncThreads = new ArrayList<>();
+    private volatile SyncProgress initialSyncProgress;
+    private volatile Consumer<FileEvent> remoteEventListener; // Notified after a server event is applied locally
+    private static final long INITIAL_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+    private static final long IDLE_CONNECTION_CHECK_MS = 1000;
+    // The sender parks on connectionReady while there is no usable connection
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    private final Condition connectionReady = connectionLock.newCondition();
+    private volatile boolean everConnected = false;         // Reconnects are only attempted after a first successful connect
     private Thread eventSenderThread;
     private volatile boolean running = true; // For controlling loops
     private final Set<String> serverKnownFilesAfterHandshake = new HashSet<>(); // Ensured final
     private final String clientId; // Unique ID for this client instance, now final
-    private volatile boolean initialHandshakeComplete = false; // Controls event sending
+    private volatile PathSubscription subscription = PathSubscription.ALL; // Paths synced in either direction
+    private volatile IgnoreRules ignoreRules = IgnoreRules.NONE; // From .syncignore; ignored paths are never watched, read or sent
+    private volatile boolean initialHandshakeComplete = false; // Controls event sending; change via markConnected/markDisconnected
+    // Last state exchanged with the server per relative path, used to drop echoed local events.
+    // Sorted like fileModificationTimes, so the entries under a directory are one subMap.
+    private final TreeMap<String, SyncState> syncStates = new TreeMap<>();
+    private final WriteSettleScheduler settleScheduler = new WriteSettleScheduler();
+    private final RenameDetector renameDetector = new RenameDetector(RenameDetector.DEFAULT_WINDOW_MS, this::queueDelete, this::isParentDeleted);
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>(); // WatchKey.watchable() goes stale when a directory is renamed
+    // File key of each watched directory by relative path, to recognise a deleted directory when it reappears renamed
+    private final ConcurrentSkipListMap<String, Object> directoryKeys = new ConcurrentSkipListMap<>();
+    private final Set<String> remoteTreeTargets = ConcurrentHashMap.newKeySet(); // Directories a server MOVE_TREE is renaming into place
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsEndpoint metricsEndpoint;
+    private final LongAdder eventsSent = metrics.counter("client.events.sent");
+    private final LongAdder bytesSent = metrics.counter("client.bytes.sent");
+    private final LongAdder sendRetries = metrics.counter("client.send.retries");             // Events put back after a failed send
+    private final LongAdder reconnectAttempts = metrics.counter("client.reconnect.attempts");
+    private final LongAdder reconnectFailures = metrics.counter("client.reconnect.failures");
+    private final LongAdder readRetries = metrics.counter("client.read.retries");             // Settled files that could not be read yet
+    private final LatencyHistogram detectToSendLatency = metrics.histogram("client.detectToSend.nanos");
+    // Files over TransferChunk.CHUNKED_TRANSFER_THRESHOLD are sent and received as resumable
+    // transfers, with their sessions kept in <directory>.filesync across reconnects and restarts
+    private final TransferStore uploadTransfers;
+    private final TransferStore downloadTransfers;
+    private final HashCache hashCache; // Content hashes of local files by key, size and mtime, across restarts
+    private final Map<String, CompletableFuture<Long>> pendingTransferReplies = new ConcurrentHashMap<>();
+    private static final long TRANSFER_REPLY_TIMEOUT_MS = 30000;
+    // The server hashes a whole upload before acknowledging it, so that reply may take this long
+    // on top of TRANSFER_REPLY_TIMEOUT_MS; a slower disk would otherwise time out every attempt
+    private static final long MIN_VERIFY_BYTES_PER_SECOND = 20L * 1024 * 1024;
+    // After the server fails an upload (e.g. its disk is full), the next attempt waits this long,
+    // doubling up to the maximum while it keeps failing
+    private static final long INITIAL_UPLOAD_RETRY_DELAY_MS = 1000;
+    private static final long MAX_UPLOAD_RETRY_DELAY_MS = 60000;
+    private long uploadRetryDelayMs = INITIAL_UPLOAD_RETRY_DELAY_MS; // Sender thread only
+    private static final long ABANDONED_TRANSFER_AGE_MS = TimeUnit.DAYS.toMillis(7);
+    private final LongAdder transfersResumed = metrics.counter("client.transfer.resumed");
+    private final LongAdder renamesDetected = metrics.counter("client.renames.detected");
+    // Large downloads fetched from other clients on the network (see PeerExchange); null unless enabled
+    private volatile PeerExchange peerExchange;
+    private final Set<String> peerDownloads = ConcurrentHashMap.newKeySet(); // Transfer IDs being fetched from peers
+    private final Map<String, String> peerCopies = new ConcurrentHashMap<>(); // Content hash -> synced path last found to hold it
+    private final LongAdder peerFallbacks = metrics.counter("client.peer.fallbacks");
+
+    // What the server last saw for a file: metadata of the local copy at sync time, its content hash,
+    // and the server version (0 if the last sync was our own upload). A null hash marks a tombstone
+    // left by a server-side DELETE so that the resulting local delete event is not sent back.
+    // fileKey identifies the local file (its inode, where available) for rename detection.
+    private static final class SyncState {
+        final long lastModified;
+        final long size;
+        final String contentHash;
+        final long serverVersion;
+        final Object fileKey;
+
+        SyncState(long lastModified, long size, String contentHash, long serverVersion, Object fileKey) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.contentHash = contentHash;
+            this.serverVersion = serverVersion;
+            this.fileKey = fileKey;
+        }
+    }
 
     public FileSyncClient() {
+        this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT, DEFAULT_DIRECTORY);
+    }
+
+    public FileSyncClient(String serverHost, int serverPort, String directory) {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.servers.add(InetSocketAddress.createUnresolved(serverHost, serverPort));
+        this.directory = directory;
         this.clientId = UUID.randomUUID().toString(); // Initialize unique client ID
+        metrics.gauge("client.sendQueue.depth", eventSendQueue::size);
+        metrics.gauge("client.settle.pending", settleScheduler::getPendingCount);
+        metrics.gauge("client.renames.pendingDeletes", renameDetector::getPendingCount);
+        metrics.gauge("client.sendWindow.availableBytes", sendWindow::availablePermits);
+        metrics.gauge("client.connected", () -> initialHandshakeComplete ? 1 : 0);
         System.out.println("FileSyncClient initialized with ID: " + this.clientId); // Log client ID
-        File dirToWatch = new File(DIRECTORY);
+        File dirToWatch = new File(directory);
         if (!dirToWatch.exists()) {
             if (dirToWatch.mkdirs()) {
-                System.out.println("Created directory: " + DIRECTORY);
+                System.out.println("Created directory: " + directory);
             } else {
-                System.err.println("Failed to create directory: " + DIRECTORY);
+                System.err.println("Failed to create directory: " + directory);
             }
         }
+        Path stateDirectory = TransferStore.stateDirectoryFor(directory);
+        uploadTransfers = new TransferStore(stateDirectory.resolve("uploads"));
+        downloadTransfers = new TransferStore(stateDirectory.resolve("downloads"));
+        uploadTransfers.prune(ABANDONED_TRANSFER_AGE_MS, ABANDONED_TRANSFER_AGE_MS);
+        downloadTransfers.prune(ABANDONED_TRANSFER_AGE_MS, ABANDONED_TRANSFER_AGE_MS);
+        hashCache = new HashCache(stateDirectory.resolve("hashes"), metrics);
+        loadIgnoreRules();
         initializeFileMap();
         startEventSenderThread(); // Start sender thread during construction
     }
 
-    private void initializeFileMap() {
-        File dirToWatch = new File(DIRECTORY);
+    private void loadIgnoreRules() {
+        try {
+            ignoreRules = IgnoreRules.load(Paths.get(directory));
+        } catch (IOException e) {
+            System.err.println("Could not read " + IgnoreRules.FILE_NAME + ", nothing will be ignored: " + e.getMessage());
+            ignoreRules = IgnoreRules.NONE;
+        }
+    }
+
+    // Called when .syncignore changes: stops tracking what is now ignored and starts watching
+    // directories that no longer are. Files in those are picked up when they next change.
+    private void reloadIgnoreRules(Path watchPath, WatchService watchService) {
+        loadIgnoreRules();
+        System.out.println("Reloaded " + IgnoreRules.FILE_NAME + (ignoreRules.isEmpty() ? ", nothing is ignored" : ""));
+        synchronized (fileModificationTimes) {
+            fileModificationTimes.keySet().removeIf(path -> ignoreRules.isIgnored(path, false));
+        }
+        try {
+            registerAll(watchPath, watchService);
+        } catch (IOException e) {
+            System.err.println("Error registering directories after " + IgnoreRules.FILE_NAME + " change: " + e.getMessage());
+        }
+    }
+
+    // A local path this client uploads and tracks
+    private boolean isSyncedPath(String relativePath) {
+        return subscription.matches(relativePath) && !ignoreRules.isIgnored(relativePath, false);
+    }
+
+    void initializeFileMap() {
+        File dirToWatch = new File(directory);
         scanDirectory(dirToWatch, ""); // Populate fileModificationTimes
     }
 
@@ -73,7 +240,11 @@ public class FileSyncClient {
             
             for (File file : files) {
                 String relativeFilePath = currentPath.isEmpty() ? file.getName() : currentPath + "/" + file.getName();
-                if (file.isDirectory()) {
+                boolean isDirectory = file.isDirectory();
+                if (ignoreRules.matches(relativeFilePath, isDirectory)) {
+                    continue; // Ignored directories are not descended into
+                }
+                if (isDirectory) {
                     directoryQueue.add(file);
                     pathQueue.add(relativeFilePath);
                 } else {
@@ -86,37 +257,39 @@ public class FileSyncClient {
     }
 
     private void startEventSenderThread() {
-        eventSenderThread = new Thread(this::runEventSenderLoop);
+        eventSenderThread = new Thread(this::runEventSenderLoop, "FileSyncClient-EventSender-" + clientId);
         eventSenderThread.setDaemon(true); // Allow JVM to exit if this is the only thread
         eventSenderThread.start();
     }
     
     public void connect() throws IOException {
-        initialHandshakeComplete = false; // Reset flag at the start of connection attempt
+        markDisconnected(); // Reset flag at the start of connection attempt
         try {
             socket = new Socket();
+            SocketSettings.configure(socket);
             // Set timeouts for socket operations
             // Connect with a timeout (e.g., 5 seconds)
-            socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT), 5000);
+            socket.connect(new InetSocketAddress(serverHost, serverPort), 5000);
             // Set a read timeout for subsequent operations (e.g., 10 seconds)
             socket.setSoTimeout(10000);
 
-            System.out.println("Client [" + this.clientId + "]: Socket connected to " + SERVER_HOST + ":" + SERVER_PORT);
+            System.out.println("Client [" + this.clientId + "]: Socket connected to " + serverHost + ":" + serverPort);
 
             // Initialize streams: OOS first, then OIS.
             // It's crucial to flush OOS after creation if the other side creates OIS after its OOS.
-            output = new ObjectOutputStream(socket.getOutputStream());
+            output = new ObjectOutputStream(new BufferedOutputStream(
+                    new CountingOutputStream(socket.getOutputStream(), bytesSent), SocketSettings.STREAM_BUFFER_SIZE));
             output.flush(); // Send the stream header
             System.out.println("Client [" + this.clientId + "]: ObjectOutputStream created and flushed.");
 
-            input = new ObjectInputStream(socket.getInputStream());
+            input = new ObjectInputStream(new BufferedInputStream(socket.getInputStream(), SocketSettings.STREAM_BUFFER_SIZE));
             System.out.println("Client [" + this.clientId + "]: ObjectInputStream created.");
             // At this point, the server should have also created its OOS and OIS.
             // Server is now waiting to read the client ID.
 
             // Send client ID to the server
             System.out.println("Client [" + this.clientId + "]: Sending client ID to server...");
-            output.writeObject(this.clientId);
+            output.writeObject(new ClientHello(this.clientId, subscription));
             output.flush(); // Ensure the client ID is sent immediately
             System.out.println("Client [" + this.clientId + "]: Client ID sent. Waiting for server file manifest...");
 
@@ -132,15 +305,23 @@ public class FileSyncClient {
                 }
                 System.out.println("Client [" + this.clientId + "]: Received initial file manifest from server. " +
                                    serverKnownFilesAfterHandshake.size() + " files known by server.");
+            } else if (serverResponse instanceof String reason) {
+                System.err.println("Client [" + this.clientId + "]: Server refused the connection: " + reason);
+                closeConnection();
+                throw new IOException("Server refused the connection: " + reason);
             } else {
                 String responseType = (serverResponse != null) ? serverResponse.getClass().getName() : "null";
                 System.err.println("Client [" + this.clientId + "]: Received unexpected object type from server for manifest: " + responseType);
-                closeClientResources(); // Clean up
+                closeConnection(); // Clean up
                 throw new IOException("Unexpected response from server during handshake (manifest was type " + responseType + ").");
             }
 
-            initialHandshakeComplete = true; // Mark handshake as complete
+            socket.setSoTimeout(0); // Handshake done; the listener blocks until the server pushes something
             System.out.println("Client [" + this.clientId + "]: Connected to server and initial handshake complete.");
+            startServerListenerThread();
+            markConnected(); // Wakes the event sender
+            advertiseToPeers();
+            resumeDownloads();
 
             // Perform initial synchronization based on the received manifest
             initialSync();
@@ -149,91 +330,403 @@ public class FileSyncClient {
             String effectiveClientId = (this.clientId != null) ? this.clientId : "UNINITIALIZED_ID";
             System.err.println("Client [" + effectiveClientId + "] connection or handshake error: " + e.getClass().getSimpleName() + " - " + e.getMessage());
             
-            closeClientResources(); // Ensure resources are cleaned up on failed connection
+            closeConnection(); // Ensure resources are cleaned up on failed connection
             // Rethrow to allow calling code to handle the failed connection attempt
             throw new IOException("Failed to connect or complete handshake with server: " + e.getMessage(), e);
         }
     }
 
+    private void markConnected() {
+        connectionLock.lock();
+        try {
+            initialHandshakeComplete = true;
+            everConnected = true;
+            connectionReady.signalAll();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    private void markDisconnected() {
+        connectionLock.lock();
+        try {
+            initialHandshakeComplete = false;
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    // Parks the sender until a handshake completes. After the first successful connect the sender
+    // also drives reconnection itself, backing off exponentially between attempts, so a server
+    // outage costs one connection attempt per back-off period instead of a busy loop.
+    private void awaitConnection() throws InterruptedException {
+        long reconnectDelayMs = INITIAL_RECONNECT_DELAY_MS;
+        while (running && !initialHandshakeComplete) {
+            if (everConnected) {
+                reconnectAttempts.increment();
+                if (tryReconnect()) {
+                    return;
+                }
+                reconnectFailures.increment();
+                nextServer();
+                System.err.println("Event sender (Client ID: [" + this.clientId + "]): Reconnect failed, " +
+                                   eventSendQueue.size() + " event(s) pending. Next attempt in " + reconnectDelayMs + " ms.");
+            }
+            connectionLock.lock();
+            try {
+                if (running && !initialHandshakeComplete) {
+                    connectionReady.await(reconnectDelayMs, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                connectionLock.unlock();
+            }
+            reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        }
+    }
+
+    // Adds queued events to the batch until the event or byte budget is reached. A small batch
+    // lingers briefly for more events so a burst of saves goes out as one frame.
+    private void fillBatch(List<FileEvent> batch, long batchBytes) throws InterruptedException {
+        long lingerDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_LINGER_MS);
+        while (batch.size() < MAX_SEND_BATCH && batchBytes < MAX_BATCH_BYTES) {
+            FileEvent next = eventSendQueue.pollFirst();
+            if (next == null) {
+                long remaining = lingerDeadline - System.nanoTime();
+                if (remaining <= 0) break;
+                next = eventSendQueue.pollFirst(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) break;
+            }
+            if (isChunkedUpload(next) || batchBytes + eventDataSize(next) > MAX_BATCH_BYTES) {
+                eventSendQueue.putFirst(next); // Starts the next frame
+                break;
+            }
+            batch.add(next);
+            batchBytes += eventDataSize(next);
+        }
+    }
+
+    private static long eventDataSize(FileEvent event) {
+        if (event.getFileData() != null) {
+            return event.getFileData().length;
+        }
+        return event.getLocalStat() != null ? event.getLocalStat().size : 0L;
+    }
+
+    private static boolean isChunkedUpload(FileEvent event) {
+        return TransferChunk.isChunked(eventDataSize(event));
+    }
+
     private void runEventSenderLoop() {
+        List<FileEvent> batch = new ArrayList<>(MAX_SEND_BATCH);
         while (running && !Thread.currentThread().isInterrupted()) {
             try {
-                FileEvent event = eventSendQueue.take(); // Blocks until an event is available
-                
-                if (!initialHandshakeComplete) {
-                    System.out.println("Event sender (Client ID: [" + this.clientId + "]): Initial handshake not complete. Re-queueing event: " + event.getRelativePath());
-                    eventSendQueue.put(event); // Put it back at the end of the queue
-                    try {
-                        Thread.sleep(200); // Wait a bit before trying to process queue again
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        System.out.println("Event sender sleep interrupted while waiting for handshake.");
-                        break;
+                awaitConnection();
+                if (!running) break;
+
+                // Bounded wait so a connection dropped while idle is noticed and re-established
+                FileEvent first = eventSendQueue.pollFirst(IDLE_CONNECTION_CHECK_MS, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                boolean sent;
+                if (isChunkedUpload(first)) {
+                    sent = sendChunkedUpload(first);
+                } else {
+                    fillBatch(batch, eventDataSize(first));
+                    sent = sendBatch(batch);
+                }
+
+                if (!sent) {
+                    // Put the whole batch back at the head in its original order and wait for a new connection
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        eventSendQueue.putFirst(batch.get(i));
                     }
-                    continue; // Skip to next iteration to re-check handshake status
+                    sendRetries.add(batch.size());
+                    System.err.println("Event sender (Client ID: [" + this.clientId + "]): Send failed, " + batch.size() + " event(s) kept for retry after reconnect.");
                 }
-                
-                System.out.println("Event sender (Client ID: [" + this.clientId + "]) processing event: " + event.getEventType() + " for " + event.getRelativePath());
-                performActualSend(event);
+                batch.clear();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt(); // Preserve interrupt status
                 System.out.println("Event sender thread interrupted, stopping.");
                 break; 
             } catch (Exception e) { // Catch unexpected errors in the loop
                  System.err.println("Unexpected error in event sender loop: " + e.getMessage());
-                 // Depending on error, might need to pause or attempt recovery
+                 batch.clear();
             }
         }
         System.out.println("Event sender thread has finished.");
     }
 
+    // Initial sync runs as a bounded pipeline on its own threads:
+    //   scan (walk the watched directory) -> bounded path queue -> hash/read -> send queue, gated by the send window.
+    // Only the files inside the send window are held in memory, however large the tree is, and the
+    // caller (connect, or tryReconnect on the sender thread) returns immediately.
     private void initialSync() {
-        System.out.println("Performing initial synchronization...");
-        Set<String> localFilePaths;
-        synchronized (fileModificationTimes) { // Synchronize access to fileModificationTimes
-            localFilePaths = new HashSet<>(fileModificationTimes.keySet());
+        cancelInitialSync();
+        Set<String> serverManifest;
+        synchronized (serverKnownFilesAfterHandshake) {
+            serverManifest = new HashSet<>(serverKnownFilesAfterHandshake);
         }
-        
-        // serverKnownFilesAfterHandshake is initialized as new HashSet<>() and populated by connect/tryReconnect.
-        System.out.println("Initial sync: Comparing " + localFilePaths.size() + " local files against " + 
-                           serverKnownFilesAfterHandshake.size() + 
-                           " server-known files (from manifest).");
-
-        int filesQueued = 0;
-        for (String localFilePath : localFilePaths) {
-            if (!running) break; // Check running flag
-
-            // Send file only if it's not in the server's known files manifest.
-            if (!serverKnownFilesAfterHandshake.contains(localFilePath)) {
-                File file = new File(DIRECTORY + File.separator + localFilePath);
-                if (file.exists() && file.isFile()) {
+        System.out.println("Performing initial synchronization against " + serverManifest.size() + " server-known files (from manifest)...");
+
+        SyncProgress progress = new SyncProgress();
+        initialSyncProgress = progress;
+        BlockingQueue<String> pathQueue = new ArrayBlockingQueue<>(INITIAL_SYNC_PATH_QUEUE_SIZE);
+        Thread scanner = new Thread(() -> runInitialSyncScan(serverManifest, pathQueue, progress), "FileSyncClient-InitialSyncScan");
+        Thread reader = new Thread(() -> runInitialSyncReader(pathQueue, progress), "FileSyncClient-InitialSyncReader");
+        synchronized (initialSyncThreads) {
+            initialSyncThreads.add(scanner);
+            initialSyncThreads.add(reader);
+        }
+        for (Thread t : List.of(scanner, reader)) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // Stops a pipeline left over from a previous connection
+    private void cancelInitialSync() {
+        synchronized (initialSyncThreads) {
+            for (Thread t : initialSyncThreads) {
+                t.interrupt();
+            }
+            initialSyncThreads.clear();
+        }
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    // Publishes this client's metrics over JMX and, if httpPort >= 0, as text on
+    // http://localhost:<httpPort>/metrics. Stopped by shutdown().
+    public void startMetricsEndpoint(int httpPort) throws IOException {
+        metricsEndpoint = MetricsEndpoint.start(metrics, "FileSync:type=Client,id=" + clientId, httpPort);
+        if (metricsEndpoint.getHttpPort() >= 0) {
+            System.out.println("Client [" + this.clientId + "]: Metrics available at http://localhost:" + metricsEndpoint.getHttpPort() + "/metrics");
+        }
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    // Serves the large files this client holds to other clients on port (0 picks a free one) of
+    // bindAddress, the interface facing them, and fetches large downloads from them where the server
+    // offers it; takes effect from the next connect
+    public synchronized void enablePeerTransfers(String bindAddress, int port) throws IOException {
+        if (peerExchange == null) {
+            peerExchange = new PeerExchange(clientId, InetAddress.getByName(bindAddress), port, this::readPeerBlock, metrics);
+            System.out.println("Client [" + this.clientId + "]: Serving peers on " + peerExchange.getAddress().getHostAddress() + ":" + peerExchange.getPort());
+        }
+    }
+
+    public int getPeerPort() {
+        PeerExchange peers = peerExchange;
+        return peers != null ? peers.getPort() : -1;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    int getTrackedFileCount() {
+        synchronized (fileModificationTimes) {
+            return fileModificationTimes.size();
+        }
+    }
+
+    // Hook for harnesses and embedding code to observe when a server event has landed locally
+    void setRemoteEventListener(Consumer<FileEvent> listener) {
+        this.remoteEventListener = listener;
+    }
+
+    private void notifyRemoteEventListener(FileEvent fe) {
+        Consumer<FileEvent> listener = remoteEventListener;
+        if (listener != null) {
+            listener.accept(fe);
+        }
+    }
+
+    // Paths to sync; takes effect from the next connect, when it is sent to the server
+    public void setSubscription(PathSubscription subscription) {
+        this.subscription = subscription != null ? subscription : PathSubscription.ALL;
+    }
+
+    public PathSubscription getSubscription() {
+        return subscription;
+    }
+
+    // A standby of the server (see StandbyReplica) to try when the server can't be reached. Each
+    // failed reconnect moves on to the next server in the list, wrapping around.
+    public synchronized void addFailoverServer(String host, int port) {
+        servers.add(InetSocketAddress.createUnresolved(host, port));
+    }
+
+    private synchronized void nextServer() {
+        if (servers.size() < 2) {
+            return;
+        }
+        serverIndex = (serverIndex + 1) % servers.size();
+        InetSocketAddress next = servers.get(serverIndex);
+        serverHost = next.getHostString();
+        serverPort = next.getPort();
+        System.out.println("Client [" + this.clientId + "]: Trying server " + serverHost + ":" + serverPort + " next.");
+    }
+
+    public SyncProgress getInitialSyncProgress() {
+        return initialSyncProgress;
+    }
+
+    // Stage 1: walk the tree and hand every path the server doesn't know to the reader.
+    // put() blocks while the reader is behind, so the scan never runs far ahead.
+    private void runInitialSyncScan(Set<String> serverManifest, BlockingQueue<String> pathQueue, SyncProgress progress) {
+        Path root = Paths.get(directory);
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root) && ignoreRules.matches(root.relativize(dir).toString().replace(File.separatorChar, '/'), true)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!running || Thread.currentThread().isInterrupted()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (!attrs.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (ignoreRules.matches(relativePath, false)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    progress.fileScanned();
+                    if (!subscription.matches(relativePath)) {
+                        progress.fileSkipped(); // Not selected for sync
+                        return FileVisitResult.CONTINUE;
+                    }
+                    synchronized (fileModificationTimes) {
+                        fileModificationTimes.putIfAbsent(relativePath, attrs.lastModifiedTime().toMillis());
+                    }
+                    if (serverManifest.contains(relativePath)) {
+                        knownFromCache(relativePath, file, attrs);
+                        progress.fileSkipped(); // Present in server manifest
+                        return FileVisitResult.CONTINUE;
+                    }
                     try {
-                        byte[] fileData = Files.readAllBytes(file.toPath());
-                        FileEvent event = new FileEvent(FileEvent.EventType.CREATE, localFilePath, fileData);
-                        eventSendQueue.put(event); // Queue for sending
-                        System.out.println("Queued initial sync (client-unique) for " + localFilePath);
-                        filesQueued++;
-                    } catch (IOException e) {
-                        System.err.println("Error reading file for initial sync " + localFilePath + ": " + e.getMessage());
+                        pathQueue.put(relativePath);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
-                        System.err.println("Initial sync interrupted while queuing event for " + localFilePath);
-                        break; 
+                        return FileVisitResult.TERMINATE;
                     }
+                    return FileVisitResult.CONTINUE;
                 }
-            } else {
-                System.out.println("Skipping initial sync for " + localFilePath + " (present in server manifest).");
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    System.err.println("Initial sync: could not scan " + file + ": " + exc.getMessage());
+                    progress.fileFailed();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Initial sync: error scanning " + root.toAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            try {
+                pathQueue.put(END_OF_SCAN);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
-        if (running) {
-            System.out.println("Initial synchronization file queuing completed. Queued " + filesQueued + " client-unique file(s).");
-        } else {
+    }
+
+    // Stages 2-4: drop files already synced (by metadata, then by hash), reserve send-window space,
+    // read, and queue. Blocking on the window is what keeps memory bounded.
+    private void runInitialSyncReader(BlockingQueue<String> pathQueue, SyncProgress progress) {
+        try {
+            while (running) {
+                String relativePath = pathQueue.take();
+                if (relativePath == END_OF_SCAN) break;
+                Path fullPath = Paths.get(directory, relativePath);
+                if (!Files.isRegularFile(fullPath)) {
+                    progress.fileSkipped();
+                    continue;
+                }
+                if (matchesLastSyncedMetadata(relativePath, fullPath)) {
+                    progress.fileSkipped(); // Unchanged since last sync
+                    continue;
+                }
+                try {
+                    if (hasSyncedHash(relativePath)) {
+                        // Metadata moved but content may not have (e.g. touched); hashing streams, it doesn't buffer the file
+                        String currentHash = hashCache.hash(fullPath, relativePath);
+                        if (matchesLastSyncedHash(relativePath, currentHash)) {
+                            recordSynced(relativePath, fullPath, currentHash, -1L);
+                            progress.fileSkipped();
+                            continue;
+                        }
+                    }
+                    HashCache.Stat stat = HashCache.stat(fullPath);
+                    if (TransferChunk.isChunked(stat.size)) {
+                        // Sent from disk chunk by chunk, so it is never held in memory and takes no window space
+                        String contentHash = hashCache.hash(fullPath, relativePath, stat);
+                        eventSendQueue.put(FileEvent.fromFile(FileEvent.EventType.CREATE, relativePath, fullPath, stat, contentHash));
+                        recordSynced(relativePath, fullPath, contentHash, 0L);
+                        progress.fileQueued(stat.size);
+                        System.out.println("Queued initial sync (client-unique) for " + relativePath);
+                        continue;
+                    }
+                    int permits = acquireSendWindow(stat.size);
+                    byte[] fileData;
+                    try {
+                        fileData = Files.readAllBytes(fullPath);
+                    } catch (IOException e) {
+                        sendWindow.release(permits);
+                        throw e;
+                    }
+                    String contentHash = ContentHash.of(fileData);
+                    hashCache.record(relativePath, fullPath, stat, contentHash);
+                    FileEvent event = new FileEvent(FileEvent.EventType.CREATE, relativePath, fileData, contentHash, 0L);
+                    sendWindowPermits.put(event, permits);
+                    eventSendQueue.put(event); // Queue for sending
+                    recordSynced(relativePath, fullPath, contentHash, 0L);
+                    progress.fileQueued(fileData.length);
+                    System.out.println("Queued initial sync (client-unique) for " + relativePath);
+                } catch (IOException e) {
+                    progress.fileFailed();
+                    System.err.println("Error reading file for initial sync " + relativePath + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             System.out.println("Initial synchronization interrupted.");
         }
+        progress.finish();
+        System.out.println("Initial synchronization pipeline finished: " + progress);
+    }
+
+    // Reserves window space for a file of the given size. A file larger than the whole window
+    // takes all of it, so it is sent alone rather than never.
+    private int acquireSendWindow(long size) throws InterruptedException {
+        int permits = (int) Math.max(1, Math.min(size, SEND_WINDOW_BYTES));
+        sendWindow.acquire(permits);
+        return permits;
+    }
+
+    private void releaseSendWindow(List<FileEvent> sentEvents) {
+        for (FileEvent event : sentEvents) {
+            Integer permits = sendWindowPermits.remove(event);
+            if (permits != null) {
+                sendWindow.release(permits);
+            }
+        }
     }
 
     public void startWatching() {
-        Path watchPath = Paths.get(DIRECTORY);
+        Path watchPath = Paths.get(directory);
         try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
             registerAll(watchPath, watchService);
             System.out.println("Watching directory: " + watchPath.toAbsolutePath());
@@ -255,7 +748,7 @@ public class FileSyncClient {
                     break; 
                 }
                 
-                Path dir = (Path) key.watchable();
+                Path dir = watchedDirectories.getOrDefault(key, (Path) key.watchable());
                 
                 for (WatchEvent<?> event : key.pollEvents()) {
                     if (!running) break;
@@ -270,12 +763,21 @@ public class FileSyncClient {
                     Path fullPath = dir.resolve(fileName);
                     Path relativePath = watchPath.relativize(fullPath);
                     String pathString = relativePath.toString().replace("\\\\", "/");
+
+                    if (pathString.equals(IgnoreRules.FILE_NAME)) {
+                        reloadIgnoreRules(watchPath, watchService); // Then synced like any other file
+                    }
                     
                     if (Files.isDirectory(fullPath, LinkOption.NOFOLLOW_LINKS)) {
-                        if (kind == ENTRY_CREATE) {
+                        if (kind == ENTRY_CREATE && !ignoreRules.isIgnored(pathString, true)) {
                             System.out.println("Directory created: " + pathString);
                             try {
+                                // Renamed into place by a server MOVE_TREE, or renamed here: the files are known already
+                                boolean known = remoteTreeTargets.remove(pathString) || sendAsTreeMove(fullPath, pathString);
                                 registerAll(fullPath, watchService); // Register new directory
+                                if (!known) {
+                                    createEventsForExistingFiles(watchPath, fullPath);
+                                }
                             } catch (IOException e) {
                                 System.err.println("Error registering new directory " + fullPath + ": " + e.getMessage());
                             }
@@ -286,8 +788,10 @@ public class FileSyncClient {
                     if (kind == ENTRY_CREATE) {
                         handleCreateEvent(fullPath, pathString);
                     } else if (kind == ENTRY_MODIFY) {
-                        // WatchService MODIFY events can be unreliable. Poller is preferred.
-                        System.out.println("WatchService detected MODIFY for: " + pathString + ". Poller will primarily handle actual content changes.");
+                        // The settle scheduler coalesces the burst of MODIFY events a save produces, and
+                        // echoes of server writes are dropped by the synced-state checks. The poller
+                        // remains a fallback for changes the WatchService misses.
+                        handleModifyEvent(fullPath, pathString);
                     } else if (kind == ENTRY_DELETE) {
                         handleDeleteEvent(pathString);
                     }
@@ -296,8 +800,13 @@ public class FileSyncClient {
                 
                 boolean valid = key.reset();
                 if (!valid) {
-                    System.err.println("WatchKey no longer valid for: " + dir + ". Directory might be deleted or inaccessible.");
-                    break; 
+                    watchedDirectories.remove(key);
+                    if (dir.equals(watchPath)) {
+                        System.err.println("WatchKey no longer valid for: " + dir + ". Directory might be deleted or inaccessible.");
+                        break;
+                    }
+                    // A subdirectory was deleted (or emptied and removed after a move); keep watching the rest
+                    System.out.println("Stopped watching deleted directory: " + dir);
                 }
             }
         } catch (IOException e) {
@@ -308,13 +817,41 @@ public class FileSyncClient {
         }
     }
 
+    // Files written into a new directory before it was registered produce no watch events;
+    // pick them up here (the settle scheduler de-duplicates any that do get an event).
+    private void createEventsForExistingFiles(Path watchPath, Path newDirectory) throws IOException {
+        Files.walkFileTree(newDirectory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                boolean ignored = ignoreRules.matches(watchPath.relativize(dir).toString().replace(File.separatorChar, '/'), true);
+                return ignored ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    handleCreateEvent(file, watchPath.relativize(file).toString().replace(File.separatorChar, '/'));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Ignored directories are skipped with everything below them, so they produce no watch events
     private void registerAll(Path start, WatchService watchService) throws IOException {
+        Path root = Paths.get(directory);
         Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root) && ignoreRules.matches(root.relativize(dir).toString().replace(File.separatorChar, '/'), true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
                 // Only register if 'running' is true, to avoid issues during shutdown
                 if (running) {
-                    dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                    if (!dir.equals(root) && attrs.fileKey() != null) {
+                        directoryKeys.put(root.relativize(dir).toString().replace(File.separatorChar, '/'), attrs.fileKey());
+                    }
                 } else {
                     return FileVisitResult.TERMINATE;
                 }
@@ -327,211 +864,803 @@ public class FileSyncClient {
         try {
             while (running && !Thread.currentThread().isInterrupted()) {
                 Thread.sleep(2000); // Polling interval (e.g., 2 seconds)
-                
-                Map<String, Long> fileMapSnapshot;
+                pollOnce();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Polling thread interrupted.");
+        }
+        System.out.println("Polling for modifications stopped.");
+    }
+
+    // One pass over every tracked file; returns the number of files checked
+    int pollOnce() {
+        Map<String, Long> fileMapSnapshot;
+        synchronized (fileModificationTimes) {
+            fileMapSnapshot = new HashMap<>(fileModificationTimes);
+        }
+
+        int checked = 0;
+        for (Map.Entry<String, Long> entry : fileMapSnapshot.entrySet()) {
+            if (!running) break; 
+            String filePath = entry.getKey();
+            long lastKnownModifiedTime = entry.getValue();
+            File file = new File(directory + File.separator + filePath);
+            checked++;
+            
+            if (file.exists() && file.isFile()) {
+                long currentModifiedTime = file.lastModified();
+                // Any change counts: a save within a second of the last synced one is still a save,
+                // and a spurious change is dropped after settling by the content hash check
+                if (currentModifiedTime != lastKnownModifiedTime) {
+                    synchronized (fileModificationTimes) {
+                        // Re-check if still in map, as WatchService might have handled a delete
+                        if(fileModificationTimes.containsKey(filePath)) {
+                            fileModificationTimes.put(filePath, currentModifiedTime);
+                        } else {
+                            continue; // File was deleted and removed from map
+                        }
+                    }
+                    System.out.println("Poller detected MODIFY for: " + filePath);
+                    handleModifyEvent(file.toPath(), filePath);
+                }
+            } else {
+                // File doesn't exist. Deletion is primarily handled by WatchService.
+                // If it was in fileModificationTimes, WatchService should have (or will)
+                // trigger handleDeleteEvent which removes it.
+                // If somehow missed, it will be pruned on next full scan/resync.
+            }
+        }
+        hashCache.saveIfDue(fileMapSnapshot.keySet());
+        return checked;
+    }
+
+    // Create and modify events only register the path with the settle scheduler; the file is read
+    // once it has stopped changing, on the scheduler thread, so the watch/poll loops never block.
+    private void handleCreateEvent(Path fullPath, String relativePath) {
+        if (!isSyncedPath(relativePath)) {
+            return;
+        }
+        if (matchesLastSyncedMetadata(relativePath, fullPath)) {
+            System.out.println("Dropping create event for " + relativePath + ", file matches last synced state (echo).");
+            return;
+        }
+        long detectedAtNanos = System.nanoTime();
+        if (sendAsMove(fullPath, relativePath, null, detectedAtNanos)) {
+            return; // A renamed file, recognised by its file key without reading it
+        }
+        settleScheduler.schedule(relativePath, fullPath,
+                (path, rel) -> sendSettledFile(path, rel, FileEvent.EventType.CREATE, detectedAtNanos));
+    }
+
+    private void handleModifyEvent(Path fullPath, String relativePath) {
+        if (!isSyncedPath(relativePath)) {
+            return;
+        }
+        if (matchesLastSyncedMetadata(relativePath, fullPath)) {
+            System.out.println("Dropping modify event for " + relativePath + ", file matches last synced state (echo).");
+            return;
+        }
+        long detectedAtNanos = System.nanoTime();
+        settleScheduler.schedule(relativePath, fullPath,
+                (path, rel) -> sendSettledFile(path, rel, FileEvent.EventType.MODIFY, detectedAtNanos));
+    }
+
+    // Returns false if the file could not be read yet, so the scheduler checks it again later
+    private boolean sendSettledFile(Path fullPath, String relativePath, FileEvent.EventType eventType, long detectedAtNanos) {
+        if (!Files.exists(fullPath)) {
+            System.out.println("File " + relativePath + " no longer exists after " + eventType + " event (possibly deleted quickly).");
+            return true;
+        }
+        try {
+            long lastModified = fullPath.toFile().lastModified();
+            if (eventType == FileEvent.EventType.CREATE) {
                 synchronized (fileModificationTimes) {
-                    fileMapSnapshot = new HashMap<>(fileModificationTimes);
+                    if (fileModificationTimes.getOrDefault(relativePath, -1L) >= lastModified) {
+                        System.out.println("Skipping create event for " + relativePath + ", already processed or newer version known.");
+                        return true;
+                    }
+                }
+            }
+            if (matchesLastSyncedMetadata(relativePath, fullPath)) {
+                System.out.println("Dropping " + eventType + " event for " + relativePath + ", file matches last synced state (echo).");
+                return true;
+            }
+            if (eventType == FileEvent.EventType.CREATE && sendAsMove(fullPath, relativePath, null, detectedAtNanos)) {
+                return true; // The delete of the old path arrived after the create
+            }
+            HashCache.Stat stat = HashCache.stat(fullPath);
+            String cachedHash = hashCache.lookup(relativePath, stat);
+            if (cachedHash != null && matchesLastSyncedHash(relativePath, cachedHash)) {
+                // Metadata moved back to a state already hashed (e.g. a file restored with its mtime)
+                synchronized (fileModificationTimes) {
+                    fileModificationTimes.put(relativePath, lastModified);
+                }
+                System.out.println("Dropping " + eventType + " event for " + relativePath + ", cached hash matches last synced hash.");
+                recordSynced(relativePath, fullPath, cachedHash, -1L);
+                return true;
+            }
+
+            byte[] fileData = null;
+            String contentHash;
+            if (TransferChunk.isChunked(stat.size)) {
+                // Read again from disk chunk by chunk when it is sent (see sendChunkedUpload)
+                contentHash = hashCache.hash(fullPath, relativePath, stat);
+                System.out.println("Hashed settled file " + relativePath + " (" + stat.size + " bytes, " + eventType + " event)");
+            } else {
+                fileData = Files.readAllBytes(fullPath);
+                System.out.println("Read settled file " + relativePath + " (" + fileData.length + " bytes, " + eventType + " event)");
+                contentHash = ContentHash.of(fileData);
+                hashCache.record(relativePath, fullPath, stat, contentHash);
+            }
+            synchronized (fileModificationTimes) {
+                fileModificationTimes.put(relativePath, lastModified);
+            }
+            if (matchesLastSyncedHash(relativePath, contentHash)) {
+                System.out.println("Dropping " + eventType + " event for " + relativePath + ", content matches last synced hash.");
+                recordSynced(relativePath, fullPath, contentHash, -1L);
+                return true;
+            }
+            if (eventType == FileEvent.EventType.CREATE && sendAsMove(fullPath, relativePath, contentHash, detectedAtNanos)) {
+                return true; // Same content as a file just deleted
+            }
+            FileEvent event = fileData != null ? new FileEvent(eventType, relativePath, fileData, contentHash, 0L)
+                    : FileEvent.fromFile(eventType, relativePath, fullPath, stat, contentHash);
+            event.setDetectedAtNanos(detectedAtNanos);
+            System.out.println("Queueing " + eventType + " event for: " + relativePath);
+            eventSendQueue.put(event);
+            recordSynced(relativePath, fullPath, contentHash, -1L);
+            return true;
+        } catch (IOException e) {
+            readRetries.increment();
+            System.err.println("IOException reading " + relativePath + " for " + eventType + " event, will retry: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while queueing " + eventType + " event for " + relativePath);
+            return true;
+        }
+    }
+    
+    private void handleDeleteEvent(String relativePath) {
+        if (!isSyncedPath(relativePath)) {
+            return;
+        }
+        settleScheduler.cancel(relativePath);
+        boolean held;
+        synchronized (syncStates) {
+            SyncState state = syncStates.get(relativePath);
+            if (state != null && state.contentHash == null) {
+                // Tombstone: this delete was applied from the server, don't send it back
+                syncStates.remove(relativePath);
+                synchronized (fileModificationTimes) {
+                    fileModificationTimes.remove(relativePath);
+                }
+                System.out.println("Dropping delete event for " + relativePath + ", deletion came from the server (echo).");
+                return;
+            }
+            syncStates.remove(relativePath);
+            if (state != null) {
+                // Held briefly in case the file reappears elsewhere, which makes this a rename
+                renameDetector.deleted(relativePath, state.fileKey, state.size, state.lastModified, state.contentHash);
+                held = true;
+            } else {
+                held = holdDeletedDirectory(relativePath);
+            }
+        }
+        synchronized (fileModificationTimes) {
+            fileModificationTimes.remove(relativePath);
+        }
+        if (!held) {
+            queueDelete(relativePath);
+        }
+    }
+
+    // A deleted (or renamed) directory only produces an event for itself, so the synced files still
+    // recorded under it are held together with it, along with the deletes of its files already
+    // held. Unless it reappears renamed (see sendAsTreeMove) it goes out as one DELETE_TREE, or file
+    // by file if this client does not sync all of it. Returns false if nothing was held: the path
+    // was not a known directory and nothing synced was under it. Caller holds syncStates.
+    private boolean holdDeletedDirectory(String relativePath) {
+        if (renameDetector.isBelowHeldDirectory(relativePath)) {
+            return true; // Its directory went first and covers it
+        }
+        SortedMap<String, SyncState> below = syncStates.subMap(relativePath + "/", relativePath + "0"); // '0' follows '/'
+        List<RenameDetector.Candidate> contents = new ArrayList<>();
+        for (Map.Entry<String, SyncState> entry : below.entrySet()) {
+            SyncState state = entry.getValue();
+            if (state.contentHash != null) {
+                contents.add(new RenameDetector.Candidate(entry.getKey(), state.fileKey, state.size, state.lastModified, state.contentHash));
+            }
+        }
+        if (!below.isEmpty()) {
+            synchronized (fileModificationTimes) {
+                fileModificationTimes.keySet().removeAll(below.keySet());
+            }
+            below.clear();
+        }
+        Object directoryKey = directoryKeys.remove(relativePath);
+        directoryKeys.subMap(relativePath + "/", relativePath + "0").clear();
+        return renameDetector.deletedDirectory(relativePath, directoryKey, subscription.coversTree(relativePath), contents);
+    }
+
+    // Whether the directory a held delete was in is gone as well, so its own delete event is still to come
+    private boolean isParentDeleted(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        return slash > 0 && !Files.isDirectory(Paths.get(directory, relativePath.substring(0, slash)));
+    }
+
+    private void queueDelete(String relativePath) {
+        queueDelete(relativePath, false);
+    }
+
+    // Called directly, or by the rename detector for a delete that turned out not to be a rename
+    private void queueDelete(String relativePath, boolean tree) {
+        try {
+            System.out.println((tree ? "Directory deleted: " : "File deleted: ") + relativePath);
+            FileEvent event = tree ? FileEvent.deleteTree(relativePath, 0L) : new FileEvent(FileEvent.EventType.DELETE, relativePath, null);
+            event.setDetectedAtNanos(System.nanoTime());
+            eventSendQueue.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("InterruptedException queueing delete of " + relativePath + ": " + e.getMessage());
+        }
+    }
+
+    // Sends a newly created directory as one MOVE_TREE if it is a directory deleted moments ago under
+    // another path (same file key). The synced state of its files moves along without reading them.
+    // Files deleted on their own before the directory moved are still sent as deletes, first.
+    private boolean sendAsTreeMove(Path fullPath, String relativePath) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(fullPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return false;
+        }
+        RenameDetector.Candidate source = renameDetector.claimTree(attrs.fileKey());
+        if (source == null) {
+            return false;
+        }
+        String sourcePath = source.getPath();
+        boolean asOneEvent = subscription.coversTree(sourcePath) && subscription.coversTree(relativePath) &&
+                !ignoreRules.isIgnored(relativePath, true);
+        List<FileEvent> events = new ArrayList<>();
+        for (RenameDetector.Candidate file : source.getFiles()) {
+            String targetPath = relativePath + file.getPath().substring(sourcePath.length());
+            if (file.isDeletedSeparately() || !isSyncedPath(targetPath)) {
+                events.add(new FileEvent(FileEvent.EventType.DELETE, file.getPath(), null));
+                continue;
+            }
+            synchronized (syncStates) {
+                syncStates.put(targetPath, new SyncState(file.getLastModified(), file.getSize(), file.getContentHash(), 0L, file.getFileKey()));
+            }
+            synchronized (fileModificationTimes) {
+                fileModificationTimes.put(targetPath, file.getLastModified());
+            }
+            if (!asOneEvent) {
+                events.add(FileEvent.move(file.getPath(), targetPath, file.getContentHash(), 0L));
+            }
+        }
+        if (asOneEvent) {
+            events.add(FileEvent.moveTree(sourcePath, relativePath, 0L));
+        }
+        renamesDetected.increment();
+        System.out.println("Detected rename of directory " + sourcePath + " to " + relativePath + " (" + source.getFiles().size() + " files)");
+        try {
+            for (FileEvent event : events) {
+                event.setDetectedAtNanos(System.nanoTime());
+                eventSendQueue.put(event);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    // Sends a newly created file as a MOVE if it is a file deleted moments ago under another path.
+    // contentHash is null before the file has been read.
+    private boolean sendAsMove(Path fullPath, String relativePath, String contentHash, long detectedAtNanos) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(fullPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return false; // Gone again; its delete event follows
+        }
+        RenameDetector.Candidate source = renameDetector.claim(attrs.fileKey(), attrs.size(), attrs.lastModifiedTime().toMillis(), contentHash);
+        if (source == null) {
+            return false;
+        }
+        settleScheduler.cancel(relativePath);
+        synchronized (fileModificationTimes) {
+            fileModificationTimes.put(relativePath, attrs.lastModifiedTime().toMillis());
+        }
+        recordSynced(relativePath, fullPath, source.getContentHash(), -1L);
+        if (source.getPath().equals(relativePath)) {
+            System.out.println("Dropping delete and create of " + relativePath + ", content is unchanged.");
+            return true;
+        }
+        renamesDetected.increment();
+        System.out.println("Detected rename of " + source.getPath() + " to " + relativePath);
+        FileEvent event = FileEvent.move(source.getPath(), relativePath, source.getContentHash(), 0L);
+        event.setDetectedAtNanos(detectedAtNanos);
+        try {
+            eventSendQueue.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    // Writes the batch as one frame with a single flush. Returns false if the connection is unusable; the caller
+    // then keeps the events. Resending a batch that partly arrived is safe because the server drops
+    // content it already has (see FileSyncServer.handleFileEvent).
+    private synchronized boolean sendBatch(List<FileEvent> batch) {
+        if (!running) {
+            System.out.println("Not sending " + batch.size() + " event(s), client is shutting down.");
+            return true;
+        }
+        for (FileEvent event : batch) {
+            System.out.println("Sending event to server: " + event.getEventType() + " for " + event.getRelativePath());
+        }
+        if (!writeToServer(batch.size() == 1 ? batch.get(0) : new FileEventBatch(batch))) {
+            return false;
+        }
+        recordSent(batch);
+        System.out.println("Successfully sent " + batch.size() + " event(s).");
+        return true;
+    }
+
+    // Writes one frame with a single flush; false (with the connection closed) if that failed
+    private synchronized boolean writeToServer(Object frame) {
+        if (!initialHandshakeComplete || socket == null || socket.isClosed() || output == null) {
+            markDisconnected();
+            return false;
+        }
+        try {
+            output.writeObject(frame);
+            output.flush();
+            output.reset(); // Drop the stream's back-references so sent file data can be collected
+            return true;
+        } catch (IOException e) {
+            System.err.println("IOException during send of " + frame + ": " + e.getMessage());
+            closeConnection();
+            return false;
+        }
+    }
+
+    private void recordSent(List<FileEvent> events) {
+        releaseSendWindow(events);
+        long sentAtNanos = System.nanoTime();
+        for (FileEvent event : events) {
+            if (event.getDetectedAtNanos() != 0) {
+                detectToSendLatency.record(sentAtNanos - event.getDetectedAtNanos());
+            }
+        }
+        eventsSent.add(events.size());
+    }
+
+    // Sends a large file as a resumable transfer. The session is persisted before the first chunk,
+    // so when a connection (or this process) dies part way, the next attempt asks the server how
+    // many bytes it committed and sends only the rest. The event counts as sent once the server
+    // confirms it verified and committed the file. Returns false to have the event retried.
+    //
+    // A file queued from disk (FileEvent.fromFile) is read a chunk at a time through a
+    // MappedFileReader into one reused buffer. If it changed since it was hashed, the transfer is
+    // dropped: the change is on its way as an event of its own.
+    private boolean sendChunkedUpload(FileEvent event) throws InterruptedException {
+        if (!running) {
+            return true;
+        }
+        String relativePath = event.getRelativePath();
+        byte[] data = event.getFileData();
+        long totalSize = eventDataSize(event);
+        if (data == null && !unchangedSinceHashed(event)) {
+            resendChanged(event);
+            return true;
+        }
+        TransferStore.Session session = uploadTransfers.findByContent(relativePath, event.getContentHash());
+        long offset = 0;
+        if (session != null) {
+            // A complete upload is verified before the server answers
+            Long committed = awaitTransferReply(session.getTransferId(), new TransferQuery(session.getTransferId()), commitTimeoutMs(totalSize));
+            if (committed == null) {
+                return false;
+            }
+            if (committed == TransferStatus.FAILED) {
+                System.err.println("Client [" + this.clientId + "]: Server refused to resume transfer of " + relativePath + ", starting over.");
+                session.discard();
+                awaitUploadRetry();
+                return false;
+            }
+            if (committed >= totalSize) {
+                System.out.println("Client [" + this.clientId + "]: Server already committed " + relativePath + ".");
+                session.discard();
+                recordSent(List.of(event));
+                return true;
+            }
+            offset = Math.max(0, committed);
+            if (offset > 0) {
+                transfersResumed.increment();
+            }
+        } else {
+            try {
+                session = uploadTransfers.open(UUID.randomUUID().toString(), relativePath, event.getEventType(),
+                        totalSize, event.getContentHash(), 0L);
+            } catch (IOException e) {
+                System.err.println("Client [" + this.clientId + "]: Cannot record transfer for " + relativePath + ", sending it whole: " + e.getMessage());
+                return sendWhole(event);
+            }
+        }
+        String transferId = session.getTransferId();
+        System.out.println("Sending " + event.getEventType() + " for " + relativePath + " (" + totalSize + " bytes) as transfer " +
+                           transferId + (offset > 0 ? ", resuming at byte " + offset : ""));
+        byte[] buffer = new byte[TransferChunk.CHUNK_SIZE]; // Written out before the next chunk is read into it
+        try (MappedFileReader reader = data == null ? new MappedFileReader(event.getLocalFile(), totalSize) : null) {
+            while (offset < totalSize) {
+                int length = (int) Math.min(TransferChunk.CHUNK_SIZE, totalSize - offset);
+                byte[] chunkData = length == buffer.length ? buffer : new byte[length];
+                if (reader != null) {
+                    reader.read(offset, chunkData, length);
+                } else {
+                    System.arraycopy(data, (int) offset, chunkData, 0, length);
                 }
-                
-                for (Map.Entry<String, Long> entry : fileMapSnapshot.entrySet()) {
-                    if (!running) break; 
-                    String filePath = entry.getKey();
-                    long lastKnownModifiedTime = entry.getValue();
-                    File file = new File(DIRECTORY + File.separator + filePath);
-                    
-                    if (file.exists() && file.isFile()) {
-                        long currentModifiedTime = file.lastModified();
-                        // Add a small threshold to avoid reacting to minor timestamp fluctuations
-                        if (currentModifiedTime > (lastKnownModifiedTime + 1000L)) { 
-                            synchronized (fileModificationTimes) {
-                                // Re-check if still in map, as WatchService might have handled a delete
-                                if(fileModificationTimes.containsKey(filePath)) {
-                                    fileModificationTimes.put(filePath, currentModifiedTime);
-                                } else {
-                                    continue; // File was deleted and removed from map
-                                }
-                            }
-                            System.out.println("Poller detected MODIFY for: " + filePath);
-                            handleModifyEvent(file.toPath(), filePath);
-                        }
-                    } else {
-                        // File doesn't exist. Deletion is primarily handled by WatchService.
-                        // If it was in fileModificationTimes, WatchService should have (or will)
-                        // trigger handleDeleteEvent which removes it.
-                        // If somehow missed, it will be pruned on next full scan/resync.
+                TransferChunk chunk = new TransferChunk(transferId, relativePath, event.getEventType(), totalSize,
+                        event.getContentHash(), 0L, offset, chunkData);
+                if (offset + length < totalSize) {
+                    if (!writeToServer(chunk)) {
+                        return false;
+                    }
+                } else {
+                    if (reader != null && !unchangedSinceHashed(event)) {
+                        session.discard(); // The server drops the partial transfer once it goes stale
+                        resendChanged(event);
+                        return true;
+                    }
+                    // The server acknowledges the last chunk after verifying and committing the file
+                    Long committed = awaitTransferReply(transferId, chunk, commitTimeoutMs(totalSize));
+                    if (committed == null) {
+                        return false;
+                    }
+                    if (committed == TransferStatus.FAILED) {
+                        System.err.println("Client [" + this.clientId + "]: Server rejected transfer of " + relativePath + ", sending it again.");
+                        session.discard();
+                        awaitUploadRetry();
+                        return false;
+                    }
+                    if (committed < totalSize) {
+                        return false; // Realigned; the retry resumes from the server's offset
                     }
                 }
+                offset += length;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            System.out.println("Polling thread interrupted.");
+        } catch (IOException e) {
+            System.err.println("Client [" + this.clientId + "]: Error reading " + relativePath + " while sending it: " + e.getMessage());
+            session.discard();
+            resendChanged(event);
+            return true;
         }
-        System.out.println("Polling for modifications stopped.");
+        session.discard();
+        recordSent(List.of(event));
+        uploadRetryDelayMs = INITIAL_UPLOAD_RETRY_DELAY_MS;
+        System.out.println("Successfully sent " + relativePath + " as transfer " + transferId + ".");
+        return true;
     }
 
-    private void handleCreateEvent(Path fullPath, String relativePath) {
-        final int MAX_RETRIES = 5;
-        final long RETRY_DELAY_MS = 100; // Reduced base delay for quicker initial retries
-
-        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-            try {
-                // Brief pause for file system to stabilize, especially for larger files or slower systems
-                Thread.sleep(RETRY_DELAY_MS * (attempt + 1)); // Increase delay slightly with each attempt
+    // How long to wait for the reply to an upload's last chunk, which comes once the server has
+    // hashed all totalSize bytes
+    private static long commitTimeoutMs(long totalSize) {
+        return TRANSFER_REPLY_TIMEOUT_MS + totalSize * 1000 / MIN_VERIFY_BYTES_PER_SECOND;
+    }
 
-                if (!Files.exists(fullPath)) {
-                    System.out.println("File " + relativePath + " no longer exists after create event (possibly deleted quickly). Attempt: " + (attempt + 1));
-                    return; // File was deleted, no point in retrying
-                }
+    // Waits before an upload the server failed is tried again. It stays at the head of the queue,
+    // since the events behind it may depend on it, so what failed it would otherwise be hit again
+    // at once, over and over.
+    private void awaitUploadRetry() throws InterruptedException {
+        System.err.println("Client [" + this.clientId + "]: Retrying the upload in " + uploadRetryDelayMs + " ms.");
+        Thread.sleep(uploadRetryDelayMs);
+        uploadRetryDelayMs = Math.min(uploadRetryDelayMs * 2, MAX_UPLOAD_RETRY_DELAY_MS);
+    }
 
-                long lastModified = fullPath.toFile().lastModified();
-                synchronized(fileModificationTimes) {
-                    if (fileModificationTimes.getOrDefault(relativePath, -1L) >= lastModified && attempt == 0) {
-                        // Only skip on the first attempt if already processed to allow retries for access issues
-                        System.out.println("Skipping create event for " + relativePath + ", already processed or newer version known.");
-                        return;
-                    }
-                }
+    // Whether a file queued from disk still looks as it did when it was hashed
+    private boolean unchangedSinceHashed(FileEvent event) {
+        try {
+            return HashCache.stat(event.getLocalFile()).sameFile(event.getLocalStat());
+        } catch (IOException e) {
+            return false; // Gone
+        }
+    }
 
-                System.out.println("Attempt " + (attempt + 1) + " to read file " + relativePath + " (create event)");
-                byte[] fileData = Files.readAllBytes(fullPath); // Attempt to read the file
+    // A file queued from disk changed before it could be sent. What it was queued as never reached
+    // the server, so its sync state is dropped (the change is not an echo) and it settles again.
+    private void resendChanged(FileEvent event) {
+        String relativePath = event.getRelativePath();
+        System.out.println("Client [" + this.clientId + "]: " + relativePath + " changed since it was queued, sending its newer state instead.");
+        synchronized (syncStates) {
+            syncStates.remove(relativePath);
+        }
+        if (Files.exists(event.getLocalFile())) {
+            handleModifyEvent(event.getLocalFile(), relativePath);
+        }
+    }
 
-                // If read is successful, process the event
-                System.out.println("Successfully read file " + relativePath + " on attempt " + (attempt + 1));
-                FileEvent event = new FileEvent(FileEvent.EventType.CREATE, relativePath, fileData);
-                System.out.println("Queueing CREATE event for: " + relativePath); // Added log
-                eventSendQueue.put(event);
-                synchronized (fileModificationTimes) {
-                    fileModificationTimes.put(relativePath, lastModified);
+    // Without a transfer session: the file as one event, read into memory if it was queued from disk
+    private boolean sendWhole(FileEvent event) {
+        if (event.getFileData() == null) {
+            try {
+                byte[] fileData = Files.readAllBytes(event.getLocalFile());
+                if (!event.getContentHash().equals(ContentHash.of(fileData))) {
+                    resendChanged(event);
+                    return true;
                 }
-                return; // Successfully processed, exit the retry loop
-
+                event = new FileEvent(event.getEventType(), event.getRelativePath(), fileData, event.getContentHash(), 0L);
             } catch (IOException e) {
-                System.err.println("IOException in handleCreateEvent for " + relativePath + " (attempt " + (attempt + 1) + "/" + MAX_RETRIES + "): " + e.getMessage());
-                if (attempt >= MAX_RETRIES - 1) {
-                    System.err.println("Failed to process create event for " + relativePath + " after " + MAX_RETRIES + " attempts.");
-                }
-                // Wait before retrying, unless it's the last attempt
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                System.err.println("InterruptedException in handleCreateEvent for " + relativePath + ": " + e.getMessage());
-                return; // Exit if interrupted
+                System.err.println("Client [" + this.clientId + "]: Error reading " + event.getRelativePath() + ", dropping it: " + e.getMessage());
+                return true;
             }
         }
+        return sendBatch(List.of(event));
     }
-    
-    private void handleModifyEvent(Path fullPath, String relativePath) {
+
+    // Writes a request and waits, outside the client lock, for the server's TransferStatus reply.
+    // Null if the connection failed or no reply came within timeoutMs.
+    private Long awaitTransferReply(String transferId, Object request, long timeoutMs) throws InterruptedException {
+        CompletableFuture<Long> reply = new CompletableFuture<>();
+        pendingTransferReplies.put(transferId, reply);
         try {
-             Thread.sleep(100); 
-            if (!Files.exists(fullPath)) {
-                 System.out.println("File " + relativePath + " no longer exists after modify event.");
-                return;
+            if (!writeToServer(request)) {
+                return null;
             }
-            System.out.println("File modified: " + relativePath);
-            byte[] fileData = Files.readAllBytes(fullPath);
-            FileEvent event = new FileEvent(FileEvent.EventType.MODIFY, relativePath, fileData);
-            eventSendQueue.put(event);
-            // fileModificationTimes is updated by the poller or create handler
-        } catch (IOException e) {
-            System.err.println("IOException in handleModifyEvent for " + relativePath + ": " + e.getMessage());
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            System.err.println("InterruptedException in handleModifyEvent for " + relativePath + ": " + e.getMessage());
+            return reply.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            System.err.println("Client [" + this.clientId + "]: No reply for transfer " + transferId + ": " + e);
+            return null;
+        } finally {
+            pendingTransferReplies.remove(transferId, reply);
         }
     }
-    
-    private void handleDeleteEvent(String relativePath) {
+
+    // Tells the server which downloads were cut off and how far they got; sent after every
+    // handshake, even when empty, since it is also how the server learns we take TransferChunks
+    private void resumeDownloads() {
+        List<ResumeDownloads.Entry> entries = new ArrayList<>();
+        for (TransferStore.Session session : downloadTransfers.getSessions()) {
+            if (peerDownloads.contains(session.getTransferId())) {
+                continue; // Asked of the server if the peers can't finish it
+            }
+            entries.add(new ResumeDownloads.Entry(session.getTransferId(), session.getRelativePath(),
+                    session.getContentHash(), session.getCommittedBytes()));
+            System.out.println("Client [" + this.clientId + "]: Resuming download of " + session.getRelativePath() +
+                               " at byte " + session.getCommittedBytes());
+        }
+        transfersResumed.add(entries.size());
+        writeToServer(new ResumeDownloads(entries));
+    }
+
+    // Appends a chunk of a large file from the server. The local file is only replaced once every
+    // byte has arrived and the content hash matches.
+    private void receiveTransferChunk(TransferChunk chunk) {
+        String relativePath = chunk.getRelativePath();
         try {
-            System.out.println("File deleted: " + relativePath);
-            FileEvent event = new FileEvent(FileEvent.EventType.DELETE, relativePath, null);
-            eventSendQueue.put(event);
-            synchronized (fileModificationTimes) {
-                 fileModificationTimes.remove(relativePath);
+            TransferStore.Session session = downloadTransfers.get(chunk.getTransferId());
+            if (session == null) {
+                if (chunk.getOffset() > 0) {
+                    System.err.println("Client [" + this.clientId + "]: Ignoring chunk of unknown transfer " + chunk.getTransferId() + " for " + relativePath);
+                    return;
+                }
+                downloadTransfers.discardForPath(relativePath); // Superseded by this version
+                session = downloadTransfers.open(chunk.getTransferId(), relativePath, chunk.getEventType(),
+                        chunk.getTotalSize(), chunk.getContentHash(), chunk.getVersion());
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            System.err.println("InterruptedException in handleDeleteEvent for " + relativePath + ": " + e.getMessage());
+            if (session.write(chunk.getOffset(), chunk.getData()) < 0) {
+                System.err.println("Client [" + this.clientId + "]: Chunk of " + relativePath + " at byte " + chunk.getOffset() +
+                                   " is past the " + session.getCommittedBytes() + " bytes received, discarding transfer.");
+                session.discard();
+                return;
+            }
+            if (session.isComplete()) {
+                completeDownload(session);
+            }
+        } catch (IOException e) {
+            System.err.println("Client [" + this.clientId + "]: Error writing chunk of " + relativePath + ": " + e.getMessage());
         }
     }
 
-    private synchronized void performActualSend(FileEvent event) {
-        if (!running) {
-            System.out.println("Not sending event, client is shutting down: " + event.getRelativePath());
+    private void completeDownload(TransferStore.Session session) throws IOException {
+        String relativePath = session.getRelativePath();
+        if (!session.verify()) {
+            // Ask for the whole file again; the server refuses if it has changed since
+            System.err.println("Client [" + this.clientId + "]: Download of " + relativePath + " failed its hash check, requesting it again.");
+            session.discard();
+            writeToServer(new ResumeDownloads(List.of(new ResumeDownloads.Entry(session.getTransferId(), relativePath,
+                    session.getContentHash(), 0L))));
+            return;
+        }
+        Path localFile = Paths.get(directory, relativePath);
+        session.moveTo(localFile);
+        long newTimestamp = localFile.toFile().lastModified();
+        synchronized (fileModificationTimes) {
+            fileModificationTimes.put(relativePath, newTimestamp);
+        }
+        recordSynced(relativePath, localFile, session.getContentHash(), session.getVersion());
+        hashCache.recordWritten(relativePath, localFile, session.getContentHash());
+        System.out.println("Applied server " + session.getEventType() + " to " + relativePath + " (" + session.getTotalSize() +
+                           " bytes, transfer " + session.getTransferId() + "). New local timestamp: " + newTimestamp);
+        PeerExchange peers = peerExchange;
+        if (peers != null) {
+            // Now a peer holding all of it rather than one still fetching
+            writeToServer(PeerMessage.advertise(peers.getPort(), List.of(new PeerMessage.Holding(relativePath, session.getContentHash()))));
+        }
+        notifyRemoteEventListener(new FileEvent(session.getEventType(), relativePath, null, session.getContentHash(), session.getVersion()));
+    }
+
+    // Tells the server our peer port and the large files we hold, so it can point other clients
+    // needing them at us
+    private void advertiseToPeers() {
+        PeerExchange peers = peerExchange;
+        if (peers == null) {
             return;
         }
+        List<PeerMessage.Holding> holdings = new ArrayList<>();
+        synchronized (syncStates) {
+            for (Map.Entry<String, SyncState> entry : syncStates.entrySet()) {
+                SyncState state = entry.getValue();
+                if (state.contentHash != null && TransferChunk.isChunked(state.size)) {
+                    holdings.add(new PeerMessage.Holding(entry.getKey(), state.contentHash));
+                }
+            }
+        }
+        writeToServer(PeerMessage.advertise(peers.getPort(), holdings));
+    }
 
-        // If handshake is not complete, event should have been re-queued by runEventSenderLoop.
-        // However, as a safeguard, especially if called from elsewhere or if state changes rapidly:
-        if (!initialHandshakeComplete) {
-            System.err.println("PerformActualSend (Client ID: [" + this.clientId + "]): Safeguard: Handshake not complete. Re-queueing event: " + event.getRelativePath());
+    // The server would rather we fetched this file from other clients. Runs on its own thread,
+    // since it can take a while; whatever the peers can't supply is then asked of the server.
+    private void receivePeerOffer(PeerOffer offer) {
+        String relativePath = offer.getRelativePath();
+        PeerExchange peers = peerExchange;
+        TransferStore.Session session;
+        try {
+            downloadTransfers.discardForPath(relativePath); // Superseded by this version
+            session = downloadTransfers.open(offer.getTransferId(), relativePath, offer.getEventType(),
+                    offer.getTotalSize(), offer.getContentHash(), offer.getVersion());
+        } catch (IOException e) {
+            System.err.println("Client [" + this.clientId + "]: Error starting download of " + relativePath + ": " + e.getMessage());
+            return;
+        }
+        if (peers == null) {
+            downloadFromServer(session);
+            return;
+        }
+        if (!ContentHash.ofLeafHashes(offer.getBlockHashes()).equals(offer.getContentHash())) {
+            // Blocks are checked against these, so they have to add up to the file's hash
+            System.err.println("Client [" + this.clientId + "]: Block hashes offered for " + relativePath + " don't match its hash, downloading from the server.");
+            downloadFromServer(session);
+            return;
+        }
+        System.out.println("Client [" + this.clientId + "]: Fetching " + relativePath + " (" + offer.getTotalSize() + " bytes) from peers " + offer.getPeers());
+        peerDownloads.add(session.getTransferId());
+        Thread fetch = new Thread(() -> {
             try {
-                eventSendQueue.put(event);
+                peers.fetch(offer, session);
+            } catch (IOException e) {
+                System.err.println("Client [" + this.clientId + "]: Error fetching " + relativePath + " from peers: " + e.getMessage());
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                System.err.println("Interrupted while re-queueing event in performActualSend safeguard: " + event.getRelativePath());
+            } finally {
+                peerDownloads.remove(session.getTransferId());
             }
-            return;
+            if (downloadTransfers.get(session.getTransferId()) != session) {
+                return; // Superseded, or shutting down
+            }
+            try {
+                if (session.isComplete()) {
+                    completeDownload(session);
+                } else {
+                    downloadFromServer(session);
+                }
+            } catch (IOException e) {
+                System.err.println("Client [" + this.clientId + "]: Error completing download of " + relativePath + ": " + e.getMessage());
+            }
+        }, "FileSyncClient-PeerDownload");
+        fetch.setDaemon(true);
+        fetch.start();
+    }
+
+    private void downloadFromServer(TransferStore.Session session) {
+        if (session.getCommittedBytes() < session.getTotalSize() && peerExchange != null) {
+            peerFallbacks.increment();
+            System.out.println("Client [" + this.clientId + "]: Peers could not supply " + session.getRelativePath() + " past byte " +
+                               session.getCommittedBytes() + ", asking the server for the rest.");
         }
+        writeToServer(new ResumeDownloads(List.of(new ResumeDownloads.Entry(session.getTransferId(), session.getRelativePath(),
+                session.getContentHash(), session.getCommittedBytes()))));
+    }
 
-        if (socket == null || socket.isClosed() || output == null) {
-            System.err.println("Cannot send event (Client ID: [" + this.clientId + "]), socket or output stream is not available. Attempting to reconnect...");
-            if (!tryReconnect()) { 
-                System.err.println("Failed to reconnect. Event for " + event.getRelativePath() + " will be lost if not re-queued or handled otherwise.");
-                return;
-            } else {
-                System.out.println("Reconnected. Re-queueing event for " + event.getRelativePath());
-                try {
-                    eventSendQueue.put(event); // Re-queue the event to try with the new connection
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    System.err.println("Interrupted while re-queueing event after reconnect: " + event.getRelativePath());
+    // For PeerExchange: a block of content we hold, from a download in progress or a synced file
+    private byte[] readPeerBlock(String contentHash, long offset, int length) throws IOException {
+        for (TransferStore.Session session : downloadTransfers.getSessions()) {
+            if (session.getContentHash().equals(contentHash)) {
+                byte[] data = session.read(offset, length);
+                if (data != null) {
+                    return data;
                 }
-                return; // Exit and let the sender loop pick it up again
             }
         }
-        
-        try {
-            System.out.println("Attempting to send event to server: " + event.getEventType() + " for " + event.getRelativePath());
-            output.writeObject(event);
-            output.flush();
-            System.out.println("Successfully sent event: " + event.getEventType() + " for " + event.getRelativePath());
-        } catch (IOException e) {
-            System.err.println("IOException during send for " + event.getRelativePath() + ": " + e.getMessage());
-            closeClientResources(); 
-            System.err.println("Attempting to reconnect after send failure...");
-            if (!tryReconnect()) {
-                System.err.println("Failed to reconnect after send failure. Event for " + event.getRelativePath() + " may be lost.");
-            } else {
-                System.out.println("Reconnected successfully after send failure. Re-queueing event: " + event.getRelativePath());
-                try {
-                    eventSendQueue.put(event); // Re-queue the event
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    System.err.println("Interrupted while re-queueing event after send failure and reconnect: " + event.getRelativePath());
+        Path local = localCopyOf(contentHash);
+        if (local == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(local, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+            return buffer.array();
+        }
+    }
+
+    // A synced file that still has this content, going by its metadata (the peer checks the hash)
+    private Path localCopyOf(String contentHash) {
+        String known = peerCopies.get(contentHash);
+        if (known != null && matchesLastSyncedHash(known, contentHash) && matchesLastSyncedMetadata(known, Paths.get(directory, known))) {
+            return Paths.get(directory, known);
+        }
+        List<String> candidates = new ArrayList<>();
+        synchronized (syncStates) {
+            for (Map.Entry<String, SyncState> entry : syncStates.entrySet()) {
+                if (contentHash.equals(entry.getValue().contentHash)) {
+                    candidates.add(entry.getKey());
                 }
             }
-        } 
+        }
+        for (String relativePath : candidates) {
+            if (matchesLastSyncedMetadata(relativePath, Paths.get(directory, relativePath))) {
+                peerCopies.put(contentHash, relativePath);
+                return Paths.get(directory, relativePath);
+            }
+        }
+        peerCopies.remove(contentHash);
+        return null;
+    }
+
+    private void handleTransferStatus(TransferStatus status) {
+        CompletableFuture<Long> reply = pendingTransferReplies.remove(status.getTransferId());
+        if (reply != null) {
+            reply.complete(status.getCommittedBytes());
+            return;
+        }
+        TransferStore.Session download = downloadTransfers.get(status.getTransferId());
+        if (download != null && status.isFailed()) {
+            System.out.println("Client [" + this.clientId + "]: Server can no longer send " + download.getRelativePath() +
+                               " (transfer " + status.getTransferId() + "), discarding partial download.");
+            download.discard();
+        }
     }
     
     private synchronized boolean tryReconnect() {
         if (!running) return false;
-        System.out.println("Client ID: [" + this.clientId + "]: Closing existing client resources before attempting reconnect...");
-        closeClientResources(); // This will set initialHandshakeComplete = false
-        // initialHandshakeComplete = false; // Explicitly set again for clarity, though closeClientResources does it
+        System.out.println("Client ID: [" + this.clientId + "]: Closing existing connection before attempting reconnect...");
+        closeConnection(); // This will set initialHandshakeComplete = false
+        boolean manifestReceived = false;
 
         try {
             System.out.println("Client ID: [" + this.clientId + "]: Attempting to reconnect to server...");
             socket = new Socket();
-            socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT), 5000);
+            SocketSettings.configure(socket);
+            socket.connect(new InetSocketAddress(serverHost, serverPort), 5000);
+            socket.setSoTimeout(10000); // Bound the handshake; reset to 0 once the manifest arrives
             System.out.println("Client ID: [" + this.clientId + "]: Reconnect: Socket connection established.");
 
             System.out.println("Client ID: [" + this.clientId + "]: Reconnect: Creating ObjectOutputStream...");
-            output = new ObjectOutputStream(socket.getOutputStream());
+            output = new ObjectOutputStream(new BufferedOutputStream(
+                    new CountingOutputStream(socket.getOutputStream(), bytesSent), SocketSettings.STREAM_BUFFER_SIZE));
             output.flush();
             System.out.println("Client ID: [" + this.clientId + "]: Reconnect: ObjectOutputStream created and flushed.");
 
             try {
                 System.out.println("Client ID: [" + this.clientId + "]: Reconnect: PREPARING to write client ID object to server...");
-                output.writeObject(this.clientId);
+                output.writeObject(new ClientHello(this.clientId, subscription));
                 System.out.println("Client ID: [" + this.clientId + "]: Reconnect: Client ID object WRITTEN to OOS (pre-flush).");
 
                 System.out.println("Client ID: [" + this.clientId + "]: Reconnect: PREPARING to flush OOS after writing client ID...");
@@ -544,7 +1673,7 @@ public class FileSyncClient {
             }
 
             System.out.println("Client ID: [" + this.clientId + "]: Reconnect: Creating ObjectInputStream...");
-            input = new ObjectInputStream(socket.getInputStream());
+            input = new ObjectInputStream(new BufferedInputStream(socket.getInputStream(), SocketSettings.STREAM_BUFFER_SIZE));
             System.out.println("Client ID: [" + this.clientId + "]: Reconnect: ObjectInputStream created.");
 
             System.out.println("Client ID: [" + this.clientId + "]: Reconnect: Streams established. Attempting to read initial messages from server (server manifest)...");
@@ -565,62 +1694,68 @@ public class FileSyncClient {
                             System.out.println("Client (reconnect): Processing initial FileEvent for: " + fe.getRelativePath() + " Type: " + fe.getEventType());
                             processInitialFileEvent(fe);
                         }
-                        case java.util.List<?> serverObjectList -> {
+                        case java.util.Collection<?> serverObjectList -> { // The server sends its manifest as a Set
                             try {
                                 @SuppressWarnings("unchecked")
-                                java.util.List<String> serverFileList = (java.util.List<String>) serverObjectList;
+                                java.util.Collection<String> serverFileList = (java.util.Collection<String>) serverObjectList;
                                 serverKnownFilesAfterHandshake.addAll(serverFileList);
                                 System.out.println("Client ID: [" + this.clientId + "]: Reconnect: Received initial file list manifest. Count: " + serverKnownFilesAfterHandshake.size());
                                 initialHandshakeCompletedThisAttempt = true;
-                                this.initialHandshakeComplete = true; // Handshake fully complete on reconnect
+                                manifestReceived = true; // Handshake fully complete on reconnect
                             } catch (ClassCastException cce) {
-                                System.err.println("Client ID: [" + this.clientId + "]: Reconnect: Received java.util.List, but it was not List<String>. Manifest ignored. " + cce.getMessage());
+                                System.err.println("Client ID: [" + this.clientId + "]: Reconnect: Received a collection, but it was not of String. Manifest ignored. " + cce.getMessage());
                                 initialHandshakeCompletedThisAttempt = true;
-                                this.initialHandshakeComplete = false;
                             }
                         }
+                        case String reason -> {
+                            System.err.println("Client ID: [" + this.clientId + "]: Reconnect: Server refused the connection: " + reason);
+                            initialHandshakeCompletedThisAttempt = true; // Without a manifest, so the reconnect fails
+                        }
                         default -> {
                             System.err.println("Client ID: [" + this.clientId + "]: Reconnect: Received unexpected initial object type from server: " + serverMessage.getClass().getName() + ". Stopping initial read.");
                             initialHandshakeCompletedThisAttempt = true;
-                            this.initialHandshakeComplete = false;
                         }
                     }
                 }
             } catch (ClassNotFoundException e) {
                 System.err.println("Client ID: [" + this.clientId + "]: Reconnect: Error reading initial messages - ClassNotFoundException: " + e.getMessage());
-                closeClientResources();
+                closeConnection();
                 return false;
             } catch (EOFException e) {
                 System.err.println("Client ID: [" + this.clientId + "]: Reconnect: EOFException while reading initial messages from server. " + e.getMessage());
                 initialHandshakeCompletedThisAttempt = true; // Assume handshake ended or failed
-                this.initialHandshakeComplete = false;
             } catch (IOException e) {
                 System.err.println("Client ID: [" + this.clientId + "]: Reconnect: Error reading initial messages from server - IOException: " + e.getMessage());
-                closeClientResources(); // Close resources on error, also sets initialHandshakeComplete = false
+                closeConnection(); // Close resources on error, also sets initialHandshakeComplete = false
                 return false; // Reconnect failed
             }
             System.out.println("Client ID: [" + this.clientId + "]: Reconnect: Finished processing initial messages from server.");
 
-            if (this.initialHandshakeComplete) { // Check the instance flag
+            if (manifestReceived) {
+                 socket.setSoTimeout(0);
                  System.out.println("Client ID: [" + this.clientId + "]: Reconnected successfully to server.");
+                 startServerListenerThread();
+                 markConnected();
+                 advertiseToPeers();
+                 resumeDownloads();
                  initialSync(); // Perform initial sync after successful reconnect and handshake
                  return true;
             } else {
                 System.err.println("Client ID: [" + this.clientId + "]: Reconnect: Handshake not completed after establishing streams.");
-                closeClientResources();
+                closeConnection();
                 return false;
             }
 
         } catch (IOException e) {
             System.err.println("Client ID: [" + this.clientId + "]: Reconnect failed: " + e.getMessage());
-            closeClientResources();
+            closeConnection();
             return false;
         }
     }
 
     private void processInitialFileEvent(FileEvent fe) {
         String relativePath = fe.getRelativePath();
-        File localFile = new File(DIRECTORY, relativePath);
+        File localFile = new File(directory, relativePath);
 
         System.out.println("Processing initial server event: " + fe.getEventType() + " for " + relativePath);
 
@@ -644,11 +1779,21 @@ public class FileSyncClient {
                     synchronized (fileModificationTimes) {
                         fileModificationTimes.put(relativePath, newTimestamp);
                     }
+                    String contentHash = fe.getContentHash() != null ? fe.getContentHash() : ContentHash.of(fe.getFileData());
+                    recordSynced(relativePath, localFile.toPath(), contentHash, fe.getVersion());
+                    hashCache.recordWritten(relativePath, localFile.toPath(), contentHash);
                     System.out.println("Applied server " + fe.getEventType() + " to " + relativePath + ". New local timestamp: " + newTimestamp);
+                    notifyRemoteEventListener(fe);
                 }
+                case MOVE -> applyServerMove(fe);
+                case MOVE_TREE -> applyServerTreeMove(fe);
+                case DELETE_TREE -> applyServerTreeDelete(fe);
                 case DELETE -> {
                     if (localFile.exists()) {
-                        boolean wasDeleted = localFile.delete(); // Explicitly assign to satisfy linter
+                        synchronized (syncStates) {
+                            syncStates.put(relativePath, new SyncState(0L, 0L, null, fe.getVersion(), null)); // Tombstone
+                        }
+                        boolean wasDeleted = localFile.isDirectory() ? deleteEmptyTree(localFile.toPath()) : localFile.delete();
                         if (wasDeleted) {
                             System.out.println("Deleted local file " + relativePath + " as per server event.");
                         } else {
@@ -660,6 +1805,7 @@ public class FileSyncClient {
                     synchronized (fileModificationTimes) {
                         fileModificationTimes.remove(relativePath);
                     }
+                    notifyRemoteEventListener(fe);
                 }
             }
         } catch (IOException e) {
@@ -667,14 +1813,326 @@ public class FileSyncClient {
         }
     }
 
+    // Deletes a directory that holds no files, only (possibly nested) empty directories, as one left
+    // behind by moving its files elsewhere. Returns false and deletes nothing otherwise.
+    static boolean deleteEmptyTree(Path directory) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        try (java.util.stream.Stream<Path> entries = Files.walk(directory)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                if (!Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    return false;
+                }
+                directories.add(entry);
+            }
+        }
+        Collections.reverse(directories); // Deepest first
+        for (Path entry : directories) {
+            Files.deleteIfExists(entry);
+        }
+        return true;
+    }
+
+    // Moves a directory with everything in it: one rename unless the target already exists, in
+    // which case the files are moved into it one by one (replacing existing ones) and the emptied
+    // source is removed.
+    static void moveTree(Path source, Path target) throws IOException {
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (AtomicMoveNotSupportedException e) {
+                // Falls back to moving file by file, which also works across file systems
+            }
+        }
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.move(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        deleteEmptyTree(source);
+    }
+
+    // Applies a server MOVE_TREE by renaming the local directory, moving the synced state of
+    // everything under it along so the resulting watch events are recognised as echoes. If there
+    // is no local copy there is nothing to move; as with other server changes this client missed,
+    // the files are not fetched.
+    private void applyServerTreeMove(FileEvent fe) throws IOException {
+        String sourcePath = fe.getSourcePath();
+        String targetPath = fe.getRelativePath();
+        Path source = Paths.get(directory, sourcePath);
+        Path target = Paths.get(directory, targetPath);
+        if (!Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+            System.out.println("Local directory " + sourcePath + " for server MOVE_TREE is absent, nothing to move.");
+            notifyRemoteEventListener(fe);
+            return;
+        }
+        boolean merge = Files.exists(target, LinkOption.NOFOLLOW_LINKS); // Then each file gets its own watch events
+        synchronized (syncStates) {
+            SortedMap<String, SyncState> below = syncStates.subMap(sourcePath + "/", sourcePath + "0");
+            Map<String, SyncState> moved = new HashMap<>(below);
+            below.clear();
+            for (Map.Entry<String, SyncState> entry : moved.entrySet()) {
+                syncStates.put(targetPath + entry.getKey().substring(sourcePath.length()), entry.getValue());
+                if (merge || entry.getValue().contentHash == null) {
+                    // Tombstones stay too: the delete event they wait for may name either path
+                    syncStates.put(entry.getKey(), new SyncState(0L, 0L, null, fe.getVersion(), null));
+                }
+            }
+            syncStates.put(sourcePath, new SyncState(0L, 0L, null, fe.getVersion(), null)); // Tombstone
+        }
+        synchronized (fileModificationTimes) {
+            SortedMap<String, Long> below = fileModificationTimes.subMap(sourcePath + "/", sourcePath + "0");
+            Map<String, Long> moved = new HashMap<>(below);
+            below.clear();
+            for (Map.Entry<String, Long> entry : moved.entrySet()) {
+                fileModificationTimes.put(targetPath + entry.getKey().substring(sourcePath.length()), entry.getValue());
+            }
+        }
+        directoryKeys.remove(sourcePath);
+        directoryKeys.subMap(sourcePath + "/", sourcePath + "0").clear();
+        if (!merge) {
+            remoteTreeTargets.add(targetPath);
+        }
+        Files.createDirectories(target.getParent());
+        moveTree(source, target);
+        System.out.println("Applied server MOVE_TREE of " + sourcePath + " to " + targetPath);
+        notifyRemoteEventListener(fe);
+    }
+
+    // Applies a server DELETE_TREE to what this client syncs: the synced files under the directory
+    // go, then every directory left empty. Ignored files and files outside the subscription stay,
+    // and so do the directories holding them.
+    private void applyServerTreeDelete(FileEvent fe) throws IOException {
+        String directoryPath = fe.getRelativePath();
+        Path root = Paths.get(directory);
+        Path tree = root.resolve(directoryPath);
+        if (!Files.isDirectory(tree, LinkOption.NOFOLLOW_LINKS)) {
+            System.out.println("Local directory " + directoryPath + " for server DELETE_TREE already absent.");
+            notifyRemoteEventListener(fe);
+            return;
+        }
+        List<Path> directories = new ArrayList<>();
+        int[] deletedFiles = {0};
+        Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                directories.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+                if (!isSyncedPath(relativePath)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                settleScheduler.cancel(relativePath);
+                synchronized (syncStates) {
+                    syncStates.put(relativePath, new SyncState(0L, 0L, null, fe.getVersion(), null)); // Tombstone
+                }
+                synchronized (fileModificationTimes) {
+                    fileModificationTimes.remove(relativePath);
+                }
+                Files.deleteIfExists(file);
+                deletedFiles[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.reverse(directories); // Deepest first
+        int keptDirectories = 0;
+        for (Path dir : directories) {
+            String relativePath = root.relativize(dir).toString().replace(File.separatorChar, '/');
+            try (java.util.stream.Stream<Path> entries = Files.list(dir)) {
+                if (entries.findAny().isPresent()) {
+                    keptDirectories++;
+                    continue;
+                }
+            }
+            synchronized (syncStates) {
+                syncStates.put(relativePath, new SyncState(0L, 0L, null, fe.getVersion(), null)); // Tombstone
+            }
+            directoryKeys.remove(relativePath);
+            Files.deleteIfExists(dir);
+        }
+        System.out.println("Applied server DELETE_TREE of " + directoryPath + ": " + deletedFiles[0] + " files deleted" +
+                (keptDirectories > 0 ? ", " + keptDirectories + " directories kept for files not synced here" : ""));
+        notifyRemoteEventListener(fe);
+    }
+
+    // Renames the local copy. If it is missing or differs from what was moved, the file is
+    // requested from the server instead, as a download starting at byte 0.
+    private void applyServerMove(FileEvent fe) throws IOException {
+        String sourcePath = fe.getSourcePath();
+        String targetPath = fe.getRelativePath();
+        Path source = Paths.get(directory, sourcePath);
+        Path target = Paths.get(directory, targetPath);
+        boolean sourceMatches = Files.isRegularFile(source) && (matchesLastSyncedMetadata(sourcePath, source)
+                ? matchesLastSyncedHash(sourcePath, fe.getContentHash())
+                : fe.getContentHash().equals(hashCache.hash(source, sourcePath)));
+        if (!sourceMatches) {
+            System.out.println("Cannot apply server MOVE of " + sourcePath + " locally, requesting " + targetPath + " from the server.");
+            writeToServer(new ResumeDownloads(List.of(new ResumeDownloads.Entry(UUID.randomUUID().toString(), targetPath,
+                    fe.getContentHash(), 0L))));
+            return;
+        }
+        synchronized (syncStates) {
+            syncStates.put(sourcePath, new SyncState(0L, 0L, null, fe.getVersion(), null)); // Tombstone
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        synchronized (fileModificationTimes) {
+            fileModificationTimes.remove(sourcePath);
+            fileModificationTimes.put(targetPath, target.toFile().lastModified());
+        }
+        recordSynced(targetPath, target, fe.getContentHash(), fe.getVersion());
+        System.out.println("Applied server MOVE of " + sourcePath + " to " + targetPath);
+        notifyRemoteEventListener(fe);
+    }
+
+    // Metadata-only echo check: true if size and mtime are exactly what we recorded when the file
+    // was last synced, so the event can be dropped without reading the file.
+    private boolean matchesLastSyncedMetadata(String relativePath, Path fullPath) {
+        SyncState state;
+        synchronized (syncStates) {
+            state = syncStates.get(relativePath);
+        }
+        if (state == null || state.contentHash == null) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(fullPath, BasicFileAttributes.class);
+            return attrs.size() == state.size && attrs.lastModifiedTime().toMillis() == state.lastModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // A file the server already has, found unchanged since this client last hashed it (possibly
+    // before a restart): it is recorded as synced with that hash, as a synced file would be, so
+    // echo checks and rename detection work for it without reading it. Costs the stat walk made anyway.
+    private void knownFromCache(String relativePath, Path fullPath, BasicFileAttributes attrs) {
+        if (hasSyncedHash(relativePath)) {
+            return;
+        }
+        String contentHash = hashCache.lookup(relativePath, HashCache.stat(attrs));
+        if (contentHash != null) {
+            recordSynced(relativePath, fullPath, contentHash, -1L);
+        }
+    }
+
+    private boolean hasSyncedHash(String relativePath) {
+        synchronized (syncStates) {
+            SyncState state = syncStates.get(relativePath);
+            return state != null && state.contentHash != null;
+        }
+    }
+
+    private boolean matchesLastSyncedHash(String relativePath, String contentHash) {
+        synchronized (syncStates) {
+            SyncState state = syncStates.get(relativePath);
+            return state != null && contentHash.equals(state.contentHash);
+        }
+    }
+
+    // Records the file's current metadata together with the hash the server now holds.
+    // A negative serverVersion keeps the previously known version (local uploads don't learn a new one).
+    private void recordSynced(String relativePath, Path fullPath, String contentHash, long serverVersion) {
+        long lastModified = -1L;
+        long size = -1L;
+        Object fileKey = null;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(fullPath, BasicFileAttributes.class);
+            lastModified = attrs.lastModifiedTime().toMillis();
+            size = attrs.size();
+            fileKey = attrs.fileKey();
+        } catch (IOException e) {
+            // Leave metadata unset; only the hash check will match
+        }
+        synchronized (syncStates) {
+            SyncState previous = syncStates.get(relativePath);
+            long version = serverVersion >= 0 ? serverVersion : (previous != null ? previous.serverVersion : 0L);
+            syncStates.put(relativePath, new SyncState(lastModified, size, contentHash, version, fileKey));
+        }
+    }
+
+    private void startServerListenerThread() {
+        final ObjectInputStream listenerInput = input;
+        Thread listenerThread = new Thread(() -> runServerListenerLoop(listenerInput));
+        listenerThread.setName("FileSyncClient-ServerListener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    // Applies events broadcast by the server for the lifetime of one connection
+    private void runServerListenerLoop(ObjectInputStream in) {
+        System.out.println("Client [" + this.clientId + "]: Listening for server events.");
+        while (running && in != null) {
+            try {
+                Object message = in.readObject();
+                if (message instanceof FileEvent fe) {
+                    processInitialFileEvent(fe);
+                } else if (message instanceof FileEventBatch batch) {
+                    for (FileEvent fe : batch.getEvents()) {
+                        processInitialFileEvent(fe);
+                    }
+                } else if (message instanceof TransferChunk chunk) {
+                    receiveTransferChunk(chunk);
+                } else if (message instanceof TransferStatus status) {
+                    handleTransferStatus(status);
+                } else if (message instanceof PeerOffer offer) {
+                    receivePeerOffer(offer);
+                } else if (message instanceof PeerMessage grant && grant.getType() == PeerMessage.Type.GRANT) {
+                    PeerExchange peers = peerExchange;
+                    if (peers != null) {
+                        peers.grant(grant.getToken(), grant.getContentHash());
+                    }
+                } else if (message instanceof Set) {
+                    // The server repeats its manifest once the handler starts its read loop; nothing to do
+                    System.out.println("Client [" + this.clientId + "]: Ignoring repeated server manifest.");
+                } else {
+                    String type = (message != null) ? message.getClass().getName() : "null";
+                    System.err.println("Client [" + this.clientId + "]: Received unexpected object from server: " + type);
+                }
+            } catch (EOFException | SocketException e) {
+                System.out.println("Client [" + this.clientId + "]: Server listener stopped: " + e.getMessage());
+                break;
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Client [" + this.clientId + "]: Error reading from server: " + e.getClass().getSimpleName() + " - " + e.getMessage());
+                break;
+            }
+        }
+        synchronized (this) {
+            if (running && in == input) {
+                closeConnection(); // Connection is gone; the event sender will reconnect
+            }
+        }
+        System.out.println("Client [" + this.clientId + "]: Server listener thread has finished.");
+    }
+
+    // Full stop: ends all loops and releases the connection
     public synchronized void closeClientResources() {
         System.out.println("Client ID: [" + this.clientId + "]: Closing client resources...");
-        this.initialHandshakeComplete = false; // Critical: reset handshake flag
-        running = false; // Signal all loops to stop, though for connect/reconnect this might be too broad if only closing streams
-                       // For now, this matches existing logic for a full stop.
-                       // If only streams are meant to be closed for a reconnect, 'running' should be handled differently.
+        running = false; // Signal all loops to stop
 
-        if (eventSenderThread != null && eventSenderThread.isAlive()) {
+        connectionLock.lock();
+        try {
+            connectionReady.signalAll(); // Release a sender parked waiting for a connection
+        } finally {
+            connectionLock.unlock();
+        }
+        if (eventSenderThread != null && eventSenderThread.isAlive() && eventSenderThread != Thread.currentThread()) {
             eventSenderThread.interrupt();
             System.out.println("Client ID: [" + this.clientId + "]: Event sender thread interrupted.");
             try {
@@ -685,6 +2143,17 @@ public class FileSyncClient {
             }
         }
 
+        closeConnection();
+        System.out.println("Client ID: [" + this.clientId + "]: Client resources closed.");
+    }
+
+    // Tears down the socket and streams only; the client keeps running and the sender reconnects
+    private synchronized void closeConnection() {
+        markDisconnected(); // Critical: reset handshake flag
+        for (CompletableFuture<Long> reply : pendingTransferReplies.values()) {
+            reply.complete(null); // No reply is coming on this connection
+        }
+
         try {
             if (input != null) {
                 input.close();
@@ -717,12 +2186,21 @@ public class FileSyncClient {
         } finally {
             socket = null;
         }
-        System.out.println("Client ID: [" + this.clientId + "]: Client resources closed.");
     }
 
     public void shutdown() {
         System.out.println("Shutting down FileSyncClient...");
         running = false; // Signal all loops to stop
+        settleScheduler.shutdown();
+        renameDetector.shutdown();
+        cancelInitialSync();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        if (peerExchange != null) {
+            peerExchange.close();
+        }
+        hashCache.save();
 
         if (eventSenderThread != null) {
             eventSenderThread.interrupt(); // Interrupt the sender thread (it handles InterruptedException)
@@ -753,9 +2231,70 @@ public class FileSyncClient {
     }
 
     // Main method for basic standalone testing
+    // Usage: java FileSyncClient [--include=PATTERN]... [--exclude=PATTERN]... [--failover=HOST:PORT]... [--peer-port=PORT]
+    //                           [--peer-bind=ADDRESS]
+    //                           [host] [port] [directory] [metricsPort]
     public static void main(String[] args) {
-        FileSyncClient client = new FileSyncClient();
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        List<String> failovers = new ArrayList<>();
+        List<String> positional = new ArrayList<>();
+        int peerPort = -1;
+        String peerBind = DEFAULT_PEER_BIND_ADDRESS;
+        for (String arg : args) {
+            if (arg.startsWith("--include=")) {
+                includes.add(arg.substring("--include=".length()));
+            } else if (arg.startsWith("--exclude=")) {
+                excludes.add(arg.substring("--exclude=".length()));
+            } else if (arg.startsWith("--failover=")) {
+                failovers.add(arg.substring("--failover=".length()));
+            } else if (arg.startsWith("--peer-port=")) {
+                try {
+                    peerPort = Integer.parseInt(arg.substring("--peer-port=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid peer port: " + arg + ". Peer transfers disabled.");
+                }
+            } else if (arg.startsWith("--peer-bind=")) {
+                peerBind = arg.substring("--peer-bind=".length());
+            } else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[0]);
+        String host = args.length > 0 ? args[0] : DEFAULT_SERVER_HOST;
+        int port = DEFAULT_SERVER_PORT;
+        if (args.length > 1) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid port number: " + args[1] + ". Using default port " + DEFAULT_SERVER_PORT);
+            }
+        }
+        String dir = args.length > 2 ? args[2] : DEFAULT_DIRECTORY;
+        FileSyncClient client = new FileSyncClient(host, port, dir);
+        client.setSubscription(new PathSubscription(includes, excludes));
+        for (String failover : failovers) {
+            int colon = failover.lastIndexOf(':');
+            try {
+                client.addFailoverServer(failover.substring(0, colon), Integer.parseInt(failover.substring(colon + 1)));
+            } catch (RuntimeException e) {
+                System.err.println("Invalid failover server: " + failover + ". Expected host:port.");
+            }
+        }
         try {
+            int metricsPort = -1;
+            if (args.length > 3) {
+                try {
+                    metricsPort = Integer.parseInt(args[3]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid metrics port: " + args[3] + ". Metrics HTTP endpoint disabled.");
+                }
+            }
+            client.startMetricsEndpoint(metricsPort);
+            if (peerPort >= 0) {
+                client.enablePeerTransfers(peerBind, peerPort);
+            }
+
             // Attempt to connect to the server
             client.connect(); 
             
@@ -766,7 +2305,7 @@ public class FileSyncClient {
             // watchThread.setDaemon(false); // If true, JVM exits if only daemon threads are running
             watchThread.start();
 
-            System.out.println("FileSyncClient started. Watching directory: " + DIRECTORY);
+            System.out.println("FileSyncClient started. Watching directory: " + client.directory);
             System.out.println("Press Ctrl+C in the console to initiate shutdown.");
 
             // Add a shutdown hook for graceful termination on Ctrl+C
@@ -29,6 +29,7 @@ public class FileSyncClientGUI extends JFrame {
     private boolean connected = false;
     private Thread watchThread;
     private ScheduledExecutorService pollingExecutor; // Added for managing polling
+    private final WriteSettleScheduler settleScheduler = new WriteSettleScheduler();
     private String clientId; // Unique ID for this client GUI instance
     private final Set<String> serverKnownFilesAfterHandshake = new HashSet<>(); // To store files known by server after handshake
 
@@ -467,13 +468,15 @@ public class FileSyncClientGUI extends JFrame {
         // No need for an outer loop or Thread.sleep(1000) here
         // No need to catch InterruptedException here as the executor handles it
         
-        // Create a copy of the keys to avoid ConcurrentModificationException if an event modifies the map
-        // though with single-threaded polling and SwingUtilities.invokeLater for modifications, it might be less of an issue.
-        Set<String> filePathsSnapshot = new HashSet<>(fileModificationTimes.keySet());
+        // Work from a copy: the settle scheduler, watch thread and EDT all update the map
+        Map<String, Long> snapshot;
+        synchronized (fileModificationTimes) {
+            snapshot = new HashMap<>(fileModificationTimes);
+        }
 
-        for (String filePathKey : filePathsSnapshot) { // filePathKey is normalized with '/'
-            Long lastModifiedTime = fileModificationTimes.get(filePathKey);
-            if (lastModifiedTime == null) continue; // Should not happen if snapshot is from keys
+        for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+            String filePathKey = entry.getKey(); // Normalized with '/'
+            long lastModifiedTime = entry.getValue();
 
             // Construct file path using system-dependent separator for File object
             File file = new File(watchDir, filePathKey.replace('/', File.separatorChar));
@@ -493,130 +496,59 @@ public class FileSyncClientGUI extends JFrame {
         }
     }
 
+    // Create/modify only hand the path to the settle scheduler; it is read once writes have stopped,
+    // so neither the watch thread nor the EDT (poller callbacks) sleep waiting for the writer.
     private void handleCreateEvent(Path fullPath, String relativePath) {
-        byte[] fileData = null;
-        int maxRetries = 5; // Increased max retries
-        long initialDelayMs = 100; // Initial delay
-        long currentDelayMs = initialDelayMs;
-
-        for (int attempt = 1; attempt <= maxRetries; attempt++) {
-            try {
-                fileData = Files.readAllBytes(fullPath);
-                addLogEntry("Successfully read file " + relativePath + " (create event) on attempt " + attempt);
-                break; // Success
-            } catch (IOException e) {
-                addLogEntry("Attempt " + attempt + "/" + maxRetries + " to read file " + relativePath +
-                            " (create event) failed: " + e.getMessage());
-                if (attempt < maxRetries) {
-                    try {
-                        Thread.sleep(currentDelayMs);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        addLogEntry("File read retry for " + relativePath + " interrupted. Aborting create event.");
-                        return;
-                    }
-                    currentDelayMs *= 2; // Exponential backoff
-                } else {
-                    addLogEntry("Failed to read file " + relativePath + " (create event) after " +
-                                maxRetries + " attempts. Error: " + e.getMessage());
-                    // Optionally, update UI or take other actions for persistent failure
-                    return; // Give up after max retries
-                }
-            }
-        }
-
-        if (fileData == null) {
-            addLogEntry("Could not read file data for create event after " + maxRetries + " retries: " + relativePath + ". Event not sent.");
-            return;
-        }
-
-        try {
-            addLogEntry("File created: " + relativePath + ". Preparing to send event.");
-            FileEvent event = new FileEvent(FileEvent.EventType.CREATE, relativePath, fileData);
-            sendEventToServer(event); // Send event only after successful read
-            // Update modification time only after successful send
-            fileModificationTimes.put(relativePath, fullPath.toFile().lastModified());
-            SwingUtilities.invokeLater(this::refreshFileList);
-            addLogEntry("Create event for " + relativePath + " sent and processed successfully.");
-        } catch (Exception e) { // Catch any other unexpected errors from sending or map update
-            addLogEntry("Unexpected error after reading file, during create event processing for: " +
-                        relativePath + " - " + e.getMessage());
-        }
+        settleScheduler.schedule(relativePath, fullPath,
+                (path, rel) -> sendSettledFile(path, rel, FileEvent.EventType.CREATE));
     }
 
     private void handleModifyEvent(Path fullPath, String relativePath) {
-        byte[] fileData = null;
-        int maxRetries = 5; // Increased max retries
-        long initialDelayMs = 100; // Initial delay
-        long currentDelayMs = initialDelayMs;
-
-        // It's crucial to get the modification time *before* attempting to read.
-        // If the read takes time, the file might be modified again.
-        long lastKnownModTime = fullPath.toFile().lastModified();
-
-        for (int attempt = 1; attempt <= maxRetries; attempt++) {
-            try {
-                fileData = Files.readAllBytes(fullPath);
-                addLogEntry("Successfully read file " + relativePath + " (modify event) on attempt " + attempt);
-                break; // Success
-            } catch (IOException e) {
-                addLogEntry("Attempt " + attempt + "/" + maxRetries + " to read file " + relativePath +
-                            " (modify event) failed: " + e.getMessage());
-                if (attempt < maxRetries) {
-                    try {
-                        Thread.sleep(currentDelayMs);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        addLogEntry("File read retry for " + relativePath + " interrupted. Aborting modify event.");
-                        return;
-                    }
-                    currentDelayMs *= 2; // Exponential backoff
-                } else {
-                    addLogEntry("Failed to read file " + relativePath + " (modify event) after " +
-                                maxRetries + " attempts. Error: " + e.getMessage());
-                    // Optionally, update UI or take other actions for persistent failure
-                    return; // Give up after max retries
-                }
-            }
-        }
+        settleScheduler.schedule(relativePath, fullPath,
+                (path, rel) -> sendSettledFile(path, rel, FileEvent.EventType.MODIFY));
+    }
 
-        if (fileData == null) {
-            addLogEntry("Could not read file data for modify event after " + maxRetries + " retries: " + relativePath + ". Event not sent.");
-            return;
+    // Returns false when the read fails so the scheduler retries later
+    private boolean sendSettledFile(Path fullPath, String relativePath, FileEvent.EventType eventType) {
+        if (!Files.exists(fullPath)) {
+            addLogEntry("File " + relativePath + " no longer exists, " + eventType + " event not sent.");
+            return true;
         }
-        
-        // Check if the file was modified again *during* our read attempts.
-        // This is a simple check; more sophisticated checks might involve checksums if necessary.
-        if (fullPath.toFile().lastModified() > lastKnownModTime) {
-            addLogEntry("File " + relativePath + " was modified again during read attempts. Re-queueing modify event.");
-            // Potentially re-trigger or re-queue the event handling for this file.
-            // For simplicity here, we'll just log and proceed, but in a real-world scenario,
-            // you might want to re-initiate the handleModifyEvent or add it to a queue.
-            // For now, we will proceed with the data we read, but log this occurrence.
+        // Capture the modification time before reading; a later change re-arms the scheduler
+        long lastKnownModTime = fullPath.toFile().lastModified();
+        byte[] fileData;
+        try {
+            fileData = Files.readAllBytes(fullPath);
+        } catch (IOException e) {
+            addLogEntry("Reading " + relativePath + " (" + eventType + " event) failed, will retry: " + e.getMessage());
+            return false;
         }
 
-
         try {
-            addLogEntry("File modified: " + relativePath + ". Preparing to send event.");
-            FileEvent event = new FileEvent(FileEvent.EventType.MODIFY, relativePath, fileData);
+            addLogEntry("File " + (eventType == FileEvent.EventType.CREATE ? "created" : "modified") + ": " + relativePath + ". Preparing to send event.");
+            FileEvent event = new FileEvent(eventType, relativePath, fileData, ContentHash.of(fileData), 0L);
             sendEventToServer(event); // Send event only after successful read
-            // Update modification time with the time captured *before* the read attempts,
-            // or with the latest if you decide to re-read.
-            fileModificationTimes.put(relativePath, lastKnownModTime); // Using the time from before read attempts
+            synchronized (fileModificationTimes) { // Runs on the settle scheduler's thread
+                fileModificationTimes.put(relativePath, lastKnownModTime);
+            }
             SwingUtilities.invokeLater(this::refreshFileList);
-            addLogEntry("Modify event for " + relativePath + " sent and processed successfully.");
-        } catch (Exception e) { // Catch any other unexpected errors
-            addLogEntry("Unexpected error after reading file, during modify event processing for: " +
+            addLogEntry(eventType + " event for " + relativePath + " sent and processed successfully.");
+        } catch (Exception e) { // Catch any other unexpected errors from sending or map update
+            addLogEntry("Unexpected error after reading file, during " + eventType + " event processing for: " +
                         relativePath + " - " + e.getMessage());
         }
+        return true;
     }
     
     private void handleDeleteEvent(String relativePath) {
+        settleScheduler.cancel(relativePath);
         try {
             addLogEntry("File deleted: " + relativePath);
             FileEvent event = new FileEvent(FileEvent.EventType.DELETE, relativePath, null);
             sendEventToServer(event);
-            fileModificationTimes.remove(relativePath);
+            synchronized (fileModificationTimes) {
+                fileModificationTimes.remove(relativePath);
+            }
             SwingUtilities.invokeLater(this::refreshFileList);
         } catch (Exception e) { // Catch any other unexpected errors from sendEventToServer or map removal
             addLogEntry("Unexpected error handling delete event for file: " + relativePath + " - " + e.getMessage());
@@ -1,167 +1,2001 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class FileSyncServer {
     public static final int DEFAULT_PORT = 8000; // Made public for GUI access
     public static final String SERVER_FILES_DIR = "server_files"; // Made public for GUI access
+    public static final long DEFAULT_CONTENT_CACHE_BYTES = 64L * 1024 * 1024;
     private final int port;
-    private ServerSocket serverSocket;
+    private final String serverFilesDir;
+    private volatile ServerSocket serverSocket;
     private final ExecutorService clientHandlerPool;
     // private final Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet(); // Replaced by clientHandlersById
     private final Map<String, ClientHandler> clientHandlersById = new ConcurrentHashMap<>();
+    private final SubscriptionIndex<ClientHandler> subscriptions = new SubscriptionIndex<>(); // Who gets which paths
+    // Last committed content hash and version per relative path, guarded by the server lock (handleFileEvent)
+    private final Map<String, String> fileHashes = new HashMap<>();
+    private final Map<String, Long> fileVersions = new HashMap<>();
     private FileSyncServerGUI gui; // Optional GUI
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private volatile int metricsHttpPort = -1; // -1: metrics over JMX only
+    private MetricsEndpoint metricsEndpoint;
+    // Bytes on the wire across all client connections
+    private final LongAdder bytesReceived = metrics.counter("server.bytes.received");
+    private final LongAdder bytesSent = metrics.counter("server.bytes.sent");
+    private final Map<FileEvent.EventType, LongAdder> eventsReceived = new EnumMap<>(FileEvent.EventType.class);
+    private final LatencyHistogram handleFileEventLatency = metrics.histogram("server.handleFileEvent.nanos");
+    private final LatencyHistogram handleFileEventBatchLatency = metrics.histogram("server.handleFileEventBatch.nanos");
+    private final LatencyHistogram handshakeLatency = metrics.histogram("server.handshake.nanos");
+    private final SlowOperationLog slowOperations = new SlowOperationLog(20, 60_000);
+    // Bandwidth limits in bytes per second, 0 = unlimited. The global limits are shared between
+    // clients by weight; the per-client limits cap each connection on top of that.
+    private final FairShareLimiter uploadLimiter = new FairShareLimiter(0);
+    private final FairShareLimiter downloadLimiter = new FairShareLimiter(0);
+    private volatile long clientUploadLimit = 0;
+    private volatile long clientDownloadLimit = 0;
+    // Large uploads in progress, kept next to server_files so an interrupted upload resumes after a restart
+    private final TransferStore uploadTransfers;
+    private static final long ABANDONED_TRANSFER_AGE_MS = TimeUnit.DAYS.toMillis(7);
+    private static final long COMMITTED_TRANSFER_AGE_MS = TimeUnit.DAYS.toMillis(1); // How long a client can still ask about a finished upload
+    private static final long TRANSFER_PRUNE_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+    private final LongAdder transferChunksReceived = metrics.counter("server.transfer.chunks.received");
+    private final LongAdder transfersResumed = metrics.counter("server.transfer.resumed");
+    private final LongAdder transfersFailed = metrics.counter("server.transfer.failed");
+    // File content read for broadcasts and resumed downloads, shared by all client writers
+    private final ContentCache contentCache = new ContentCache(DEFAULT_CONTENT_CACHE_BYTES, metrics, "server.cache");
+    private final Path stagingDir; // New file contents are written here, then moved into server_files
+    // Every committed version, hard-linked rather than copied, and named snapshots of server_files
+    private final VersionStore versions;
+    private volatile VersionStore.RetentionPolicy retentionPolicy = VersionStore.RetentionPolicy.DEFAULT;
+    private final ScheduledExecutorService versionMaintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "FileSyncServer-Versions");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder versionsRecorded = metrics.counter("server.versions.recorded");
+    private volatile ServerCluster cluster; // Null unless this server is one node of a sharded cluster
+    private final LongAdder clusterForwarded = metrics.counter("server.cluster.forwarded");
+    private final LongAdder clusterReceived = metrics.counter("server.cluster.committed.received");
+    private volatile StandbyReplica standby; // Non-null if this server follows a primary (until promoted) or is a relay
+    private volatile EdgeRelay relay; // Non-null if this server is the edge relay of a central server
+    private volatile String nodeSecret; // Shared with the servers this one links with (see NodeAuth); null if none
+    private final Set<ClientHandler> standbys = ConcurrentHashMap.newKeySet(); // Standbys following this server
+    private final Set<ClientHandler> relays = ConcurrentHashMap.newKeySet(); // Edge relays following this server
+    private final TransferStore replicaTransfers; // Large files arriving from the primary or central server
+    public static final long DEFAULT_MAX_REPLICATION_LAG_MS = 10_000;
+    private volatile long maxReplicationLagMillis = DEFAULT_MAX_REPLICATION_LAG_MS;
+    private final LongAdder replicationThrottled = metrics.counter("server.replication.throttled");
+    private final LongAdder replicationDropped = metrics.counter("server.replication.dropped");
+    // Clients holding or fetching each large file's current content, by path (see PeerExchange)
+    private final Map<String, PeerSwarm> peerSwarms = new ConcurrentHashMap<>();
+    private static final int MAX_OFFERED_PEERS = 8;
+    private final LongAdder peerOffers = metrics.counter("server.peer.offers");
+    private final LongAdder peerOfferedBytes = metrics.counter("server.peer.offered.bytes");
+    // Frames queued for one client, estimated in heap bytes. A client whose backlog would pass this
+    // is disconnected rather than left to grow the server's heap without bound.
+    public static final long DEFAULT_MAX_CLIENT_BACKLOG_BYTES = 64L * 1024 * 1024;
+    private volatile long maxClientBacklogBytes = DEFAULT_MAX_CLIENT_BACKLOG_BYTES;
+    private final LongAdder clientsDroppedLagging = metrics.counter("server.clients.dropped.lagging");
+    // Paths whose changes a dropped client never got, by client ID, with the last event type for
+    // each; sent again as the paths' current state when that client reconnects (see resendMissed)
+    private final Map<String, Map<String, FileEvent.EventType>> missedByClient = new ConcurrentHashMap<>();
+    // Handlers of clients dropped for lagging, by client ID. They stay subscribed until the client
+    // is back, so what it misses while away is recorded too rather than sent.
+    private final Map<String, ClientHandler> droppedLagging = new ConcurrentHashMap<>();
 
     public FileSyncServer(int port) {
+        this(port, SERVER_FILES_DIR);
+    }
+
+    public FileSyncServer(int port, String serverFilesDir) {
         this.port = port;
-        File serverDir = new File(SERVER_FILES_DIR);
+        this.serverFilesDir = serverFilesDir;
+        File serverDir = new File(serverFilesDir);
         if (!serverDir.exists()) {
             serverDir.mkdirs();
         }
-        this.clientHandlerPool = Executors.newCachedThreadPool();
+        for (FileEvent.EventType type : FileEvent.EventType.values()) {
+            eventsReceived.put(type, metrics.counter("server.events." + type));
+        }
+        metrics.gauge("server.clients.connected", clientHandlersById::size);
+        metrics.gauge("server.replication.standbys", standbys::size);
+        metrics.gauge("server.replication.relays", relays::size);
+        metrics.gauge("server.replication.lag.millis", () -> {
+            long lag = 0;
+            for (ClientHandler handler : standbys) {
+                lag = Math.max(lag, handler.standbyProgress.lagMillis());
+            }
+            return lag;
+        });
+        metrics.gauge("server.replication.lag.frames", () -> {
+            long frames = 0;
+            for (ClientHandler handler : standbys) {
+                frames = Math.max(frames, handler.standbyProgress.pendingFrames());
+            }
+            return frames;
+        });
+        this.uploadTransfers = new TransferStore(TransferStore.stateDirectoryFor(serverFilesDir).resolve("transfers"));
+        uploadTransfers.prune(ABANDONED_TRANSFER_AGE_MS, COMMITTED_TRANSFER_AGE_MS);
+        this.replicaTransfers = new TransferStore(TransferStore.stateDirectoryFor(serverFilesDir).resolve("replica"));
+        this.stagingDir = TransferStore.stateDirectoryFor(serverFilesDir).resolve("staging");
+        stagingDir.toFile().mkdirs();
+        this.versions = new VersionStore(TransferStore.stateDirectoryFor(serverFilesDir).resolve("versions"));
+        fileVersions.putAll(versions.latestVersions()); // Versions keep counting up across restarts
+        AtomicInteger handlerThreadCount = new AtomicInteger();
+        this.clientHandlerPool = Executors.newCachedThreadPool(r ->
+                new Thread(r, "FileSyncServer-ClientHandler-" + handlerThreadCount.incrementAndGet()));
+    }
+
+    public void setGui(FileSyncServerGUI gui) {
+        this.gui = gui;
+    }
+
+    // Makes this server one node of a sharded cluster (see ServerCluster), set before start()
+    public void setCluster(ServerCluster cluster) {
+        this.cluster = cluster;
+    }
+
+    public ServerCluster getCluster() {
+        return cluster;
+    }
+
+    // Makes this server a standby that follows a primary (see StandbyReplica), set before start()
+    public void setStandby(StandbyReplica standby) {
+        this.standby = standby;
+    }
+
+    public StandbyReplica getStandby() {
+        return standby;
+    }
+
+    // Makes this server the edge relay of a central server (see EdgeRelay), set before start()
+    public void setRelay(EdgeRelay relay) {
+        this.relay = relay;
+        this.standby = relay;
+    }
+
+    public EdgeRelay getRelay() {
+        return relay;
+    }
+
+    // Standby: stops following the primary and starts accepting clients
+    public void promote() {
+        StandbyReplica standby = this.standby;
+        if (standby != null) {
+            standby.promote();
+        }
+    }
+
+    // The secret cluster nodes, standbys and relays prove they share with this server (see
+    // NodeAuth), set before start(). Without one, standbys and relays are turned away.
+    public void setNodeSecret(String secret) {
+        this.nodeSecret = secret;
+    }
+
+    String getNodeSecret() {
+        return nodeSecret;
+    }
+
+    // Primary: how far an in-sync standby may fall behind before clients' changes are held back
+    public void setMaxReplicationLag(long millis) {
+        this.maxReplicationLagMillis = millis;
+    }
+
+    // How many bytes of frames may wait for one client before it is disconnected as lagging
+    public void setMaxClientBacklog(long bytes) {
+        this.maxClientBacklogBytes = bytes;
+    }
+
+    // HTTP port for the plain-text metrics endpoint, set before start(). 0 picks a free port.
+    public void setMetricsHttpPort(int metricsHttpPort) {
+        this.metricsHttpPort = metricsHttpPort;
+    }
+
+    void log(String message) {
+        if (gui != null) {
+            gui.addLogEntry(message);
+        } else {
+            System.out.println(message);
+        }
+    }
+
+    public void start() {
+        try {
+            serverSocket = new ServerSocket(port);
+            log("Server started on port: " + port);
+            log("Server files directory: " + new File(serverFilesDir).getAbsolutePath());
+            startMetricsEndpoint();
+            startVersionMaintenance();
+            if (cluster != null) {
+                cluster.start(this);
+                log("Cluster node " + cluster.getNodeId() + " of " + cluster.getNodes());
+            }
+            if (relay != null) {
+                relay.start(this);
+                log("Edge relay of " + relay.getPrimary());
+            } else if (standby != null) {
+                standby.start(this);
+                log("Standby of " + standby.getPrimary() + ", clients are turned away until it takes over");
+            }
+
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    // Client ID will be read by the ClientHandler itself.
+                    // Initial log before ID is known can be minimal or done in ClientHandler.
+                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
+                    clientHandlerPool.submit(clientHandler);
+                } catch (SocketException se) { // More specific exception
+                    if (serverSocket.isClosed()) {
+                        log("Server socket closed, stopping accepting new clients.");
+                    } else {
+                        log("SocketException while accepting client connection: " + se.getMessage());
+                    }
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        log("Server socket closed, stopping accepting new clients (IOException).");
+                    } else {
+                        log("IOException accepting client connection: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log("Could not start server on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private void startMetricsEndpoint() {
+        try {
+            metricsEndpoint = MetricsEndpoint.start(metrics, "FileSync:type=Server,port=" + serverSocket.getLocalPort(), metricsHttpPort);
+            if (metricsEndpoint.getHttpPort() >= 0) {
+                log("Metrics available at http://localhost:" + metricsEndpoint.getHttpPort() + "/metrics");
+            }
+        } catch (IOException e) {
+            log("Could not start metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    // Records the files that have no history yet in the background, then prunes once a day. Upload
+    // sessions are pruned hourly, so ones abandoned by clients that never come back don't pile up
+    // between restarts.
+    private void startVersionMaintenance() {
+        versionMaintenance.execute(() -> {
+            try {
+                int recorded = versions.baseline(Paths.get(serverFilesDir));
+                if (recorded > 0) {
+                    log("Recorded " + recorded + " existing files in version history.");
+                }
+            } catch (IOException e) {
+                log("Error recording existing files in version history: " + e.getMessage());
+            }
+        });
+        versionMaintenance.scheduleWithFixedDelay(this::pruneVersions, 1, 1, TimeUnit.DAYS);
+        versionMaintenance.scheduleWithFixedDelay(() -> uploadTransfers.prune(ABANDONED_TRANSFER_AGE_MS, COMMITTED_TRANSFER_AGE_MS),
+                TRANSFER_PRUNE_INTERVAL_MS, TRANSFER_PRUNE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        log("Stopping server...");
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+            metricsEndpoint = null;
+        }
+        versionMaintenance.shutdownNow();
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (standby != null) {
+            standby.close();
+        }
+        clientHandlerPool.shutdown();
+        try {
+            if (!clientHandlerPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                clientHandlerPool.shutdownNow();
+            }
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+            for (ClientHandler handler : clientHandlersById.values()) { // Iterate over map values
+                handler.closeConnection();
+            }
+            clientHandlersById.clear(); // Clear the map
+            subscriptions.clear();
+            versions.close();
+            log("Server stopped.");
+        } catch (IOException e) {
+            log("Error closing server socket: " + e.getMessage());
+        } catch (InterruptedException e) {
+            log("Server stop interrupted: " + e.getMessage());
+            clientHandlerPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void removeClient(ClientHandler clientHandler) {
+        if (clientHandler.peerNodeId != null) {
+            uploadLimiter.removeFlow(clientHandler);
+            downloadLimiter.removeFlow(clientHandler);
+            log("Cluster node " + clientHandler.peerNodeId + " disconnected");
+            return;
+        }
+        if (clientHandler.getClientId() != null) {
+            if (clientHandlersById.remove(clientHandler.getClientId(), clientHandler)) { // More specific removal
+                metrics.removeGauge(clientHandler.pendingSendsMetricName());
+            }
+            if (!droppedLagging.containsValue(clientHandler)) {
+                subscriptions.remove(clientHandler);
+            }
+            if (standbys.remove(clientHandler)) {
+                log("Standby " + clientHandler.getClientId() + " disconnected");
+            }
+            if (relays.remove(clientHandler)) {
+                log("Edge relay " + clientHandler.getClientId() + " disconnected");
+            }
+            if (clientHandler.peerPort > 0) {
+                for (PeerSwarm swarm : peerSwarms.values()) {
+                    swarm.remove(clientHandler);
+                }
+            }
+            uploadLimiter.removeFlow(clientHandler);
+            downloadLimiter.removeFlow(clientHandler);
+            log("Client disconnected and removed: " + clientHandler.getClientAddress() + " (ID: " + clientHandler.getClientId() + ")");
+        } else {
+            // This case should be less common if ID is established early or client is always added with an ID.
+            log("Client disconnected and removed: " + clientHandler.getClientAddress() + " (ID not available or not yet set in map)");
+        }
+    }
+
+    synchronized void handleFileEvent(FileEvent event, ClientHandler sourceHandler) {
+        long startNanos = System.nanoTime();
+        if (forwardToOwners(List.of(event), sourceHandler).isEmpty()) {
+            return; // Another node's shard, or a relay's central server
+        }
+        FileEvent committed = applyFileEvent(event, sourceHandler, sourceHandler.getClientId());
+        if (committed != null) {
+            broadcastEvents(List.of(committed), sourceHandler); // Broadcast after successful local write/delete
+            publishCommitted(List.of(committed), sourceHandler.getClientId());
+            confirmToRelay(List.of(committed), sourceHandler);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        handleFileEventLatency.record(elapsedNanos);
+        slowOperations.record("handleFileEvent", event.getRelativePath(), elapsedNanos);
+    }
+
+    // Applies a whole batch under one acquisition of the server lock and broadcasts the events
+    // that were committed as a single frame, preserving their order.
+    synchronized void handleFileEventBatch(FileEventBatch batch, ClientHandler sourceHandler) {
+        long startNanos = System.nanoTime();
+        log("Received batch of " + batch.size() + " events from " + describeSource(sourceHandler));
+        List<FileEvent> committedEvents = new ArrayList<>(batch.size());
+        for (FileEvent event : forwardToOwners(batch.getEvents(), sourceHandler)) {
+            FileEvent committed = applyFileEvent(event, sourceHandler, sourceHandler.getClientId());
+            if (committed != null) {
+                committedEvents.add(committed);
+            }
+        }
+        if (!committedEvents.isEmpty()) {
+            broadcastEvents(committedEvents, sourceHandler);
+            publishCommitted(committedEvents, sourceHandler.getClientId());
+            confirmToRelay(committedEvents, sourceHandler);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        handleFileEventBatchLatency.record(elapsedNanos);
+        slowOperations.record("handleFileEventBatch", batch, elapsedNanos);
+    }
+
+    // Writes the event to server_files and returns the event to broadcast (carrying the new
+    // version), or null if nothing changed or the event could not be applied. originClientId is
+    // the client the event came from, here or through another cluster node.
+    private FileEvent applyFileEvent(FileEvent event, ClientHandler sourceHandler, String originClientId) {
+        String relativePathFromClient = event.getRelativePath();
+        String relativePath = relativePathFromClient.replace('/', File.separatorChar);
+        String fullPath = serverFilesDir + File.separator + relativePath;
+        File file = new File(fullPath);
+
+        eventsReceived.get(event.getEventType()).increment();
+        log("Received event: " + event.getEventType() + " for " + relativePathFromClient +
+            " (normalized to " + relativePath + ") from " + describeSource(sourceHandler));
+        if (!isInsideServerFiles(relativePathFromClient) || (event.getSourcePath() != null && !isInsideServerFiles(event.getSourcePath()))) {
+            log("Rejected " + event.getEventType() + " for " + relativePathFromClient + " from " + describeSource(sourceHandler) +
+                ", it names a path outside " + serverFilesDir);
+            return null;
+        }
+
+        try {
+            FileEvent.EventType eventType = event.getEventType();
+            if (eventType == FileEvent.EventType.CREATE || eventType == FileEvent.EventType.MODIFY) {
+                byte[] data = event.getFileData();
+                String contentHash = data != null || event.getContentHash() == null ? ContentHash.of(data) : event.getContentHash();
+                if (event.getContentHash() != null && !event.getContentHash().equals(contentHash)) {
+                    // The hash names the content in the version store and to peers, so it is checked, never taken on trust
+                    log("Rejected " + eventType + " for " + relativePath + ", its content does not match its hash.");
+                    return null;
+                }
+                if (contentHash.equals(fileHashes.get(relativePathFromClient)) && file.exists()) {
+                    // Same bytes as the last commit (typically a client echoing a file it just received)
+                    log("Content unchanged for " + relativePath + ", skipping write and broadcast.");
+                    return null;
+                }
+                File parentDir = file.getParentFile();
+                if (parentDir != null && !parentDir.exists()) {
+                    if (!parentDir.mkdirs()) {
+                        log("Error creating parent directories for " + fullPath);
+                        return null;
+                    }
+                }
+                preserveUntracked(relativePathFromClient, file.toPath());
+                writeCommittedFile(file.toPath(), event.getFileData());
+                long version = fileVersions.merge(relativePathFromClient, 1L, Long::sum);
+                fileHashes.put(relativePathFromClient, contentHash);
+                recordCommit(relativePathFromClient, file.toPath(), version, contentHash);
+                log("File " + (eventType == FileEvent.EventType.CREATE ? "created" : "modified") + ": " + relativePath + " (version " + version + ")");
+                return new FileEvent(eventType, relativePathFromClient, event.getFileData(), contentHash, version);
+            } else if (eventType == FileEvent.EventType.DELETE) {
+                if (file.exists()) {
+                    if (file.isFile()) {
+                        preserveUntracked(relativePathFromClient, file.toPath());
+                    }
+                    // A directory goes only once its files are gone (deleted or moved out of it)
+                    if (file.isDirectory() ? FileSyncClient.deleteEmptyTree(file.toPath()) : Files.deleteIfExists(file.toPath())) {
+                        long version = fileVersions.merge(relativePathFromClient, 1L, Long::sum);
+                        fileHashes.remove(relativePathFromClient);
+                        recordDelete(relativePathFromClient, version);
+                        log("File deleted: " + relativePath);
+                        return new FileEvent(eventType, relativePathFromClient, null, null, version);
+                    } else {
+                        log("Error deleting file: " + relativePath);
+                    }
+                } else {
+                    log("File to delete not found: " + relativePath);
+                }
+            } else if ((eventType == FileEvent.EventType.MOVE || eventType == FileEvent.EventType.MOVE_TREE) &&
+                    cluster != null && !cluster.owns(event.getRelativePath())) {
+                return moveToOtherShard(event, originClientId);
+            } else if (eventType == FileEvent.EventType.MOVE) {
+                return applyMove(event);
+            } else if (eventType == FileEvent.EventType.DELETE_TREE) {
+                return applyTreeDelete(event);
+            } else if (eventType == FileEvent.EventType.MOVE_TREE) {
+                return applyTreeMove(event);
+            }
+        } catch (IOException e) {
+            log("Error processing file event for " + relativePath + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    // Appends a chunk of a large upload. Chunks are written outside the server lock; only the
+    // final commit of a completed upload takes it. A session belongs to the client that opened
+    // it: chunks for another client's session are refused and leave it alone.
+    void handleTransferChunk(TransferChunk chunk, ClientHandler sourceHandler) {
+        long startNanos = System.nanoTime();
+        transferChunksReceived.increment();
+        String owner = sourceHandler.getClientId();
+        long committedSize = uploadTransfers.committedSize(chunk.getTransferId(), owner);
+        if (committedSize >= 0) {
+            // Sent again by a client that lost our acknowledgement
+            sourceHandler.sendTransferStatus(new TransferStatus(chunk.getTransferId(), committedSize));
+            return;
+        }
+        TransferStore.Session session;
+        long committedBytes;
+        try {
+            resolveInside(chunk.getRelativePath());
+            session = uploadTransfers.open(chunk.getTransferId(), owner, chunk.getRelativePath(), chunk.getEventType(),
+                    chunk.getTotalSize(), chunk.getContentHash(), 0L);
+            committedBytes = session.write(chunk.getOffset(), chunk.getData());
+        } catch (IOException e) {
+            log("Error writing chunk of " + chunk.getRelativePath() + " from " + describeSource(sourceHandler) + ": " + e.getMessage());
+            TransferStore.Session failed = uploadTransfers.get(chunk.getTransferId(), owner);
+            if (failed != null) {
+                failed.discard();
+            }
+            transfersFailed.increment();
+            sourceHandler.sendTransferStatus(new TransferStatus(chunk.getTransferId(), TransferStatus.FAILED));
+            return;
+        }
+        if (committedBytes < 0) {
+            // A gap: the client is ahead of what we have, tell it where to continue from
+            log("Chunk at offset " + chunk.getOffset() + " of " + chunk.getRelativePath() + " is past committed offset " +
+                session.getCommittedBytes() + ", realigning " + describeSource(sourceHandler));
+            sourceHandler.sendTransferStatus(new TransferStatus(chunk.getTransferId(), session.getCommittedBytes()));
+            return;
+        }
+        if (session.isComplete()) {
+            completeUpload(session, sourceHandler);
+        }
+        slowOperations.record("handleTransferChunk", chunk.getRelativePath(), System.nanoTime() - startNanos);
+    }
+
+    // Tells a reconnecting client how much of an upload we already hold. A session that was
+    // complete but never committed (e.g. the server stopped in between) is committed now, and
+    // one that was committed is reported as all there.
+    void handleTransferQuery(TransferQuery query, ClientHandler sourceHandler) {
+        String owner = sourceHandler.getClientId();
+        long committedSize = uploadTransfers.committedSize(query.getTransferId(), owner);
+        if (committedSize >= 0) {
+            sourceHandler.sendTransferStatus(new TransferStatus(query.getTransferId(), committedSize));
+            return;
+        }
+        TransferStore.Session session = uploadTransfers.get(query.getTransferId());
+        if (session != null && !session.isOwnedBy(owner)) {
+            log("Refusing query from " + describeSource(sourceHandler) + " for another client's upload of " + session.getRelativePath());
+            sourceHandler.sendTransferStatus(new TransferStatus(query.getTransferId(), TransferStatus.FAILED));
+            return;
+        }
+        if (session != null && session.isComplete()) {
+            completeUpload(session, sourceHandler);
+            return;
+        }
+        long committedBytes = session != null ? session.getCommittedBytes() : 0L;
+        if (committedBytes > 0) {
+            transfersResumed.increment();
+            log("Resuming upload of " + session.getRelativePath() + " from " + describeSource(sourceHandler) + " at byte " + committedBytes);
+        }
+        sourceHandler.sendTransferStatus(new TransferStatus(query.getTransferId(), committedBytes));
+    }
+
+    // A client serving peers: where, and which large files it holds
+    void handlePeerMessage(PeerMessage message, ClientHandler handler) {
+        if (message.getType() != PeerMessage.Type.ADVERTISE) {
+            log("Unexpected " + message + " from " + describeSource(handler));
+            return;
+        }
+        handler.peerPort = message.getPort();
+        int held = 0;
+        for (PeerMessage.Holding holding : message.getHoldings()) {
+            String contentHash;
+            synchronized (this) {
+                contentHash = fileHashes.get(holding.getRelativePath());
+            }
+            if (holding.getContentHash().equals(contentHash)) {
+                PeerSwarm swarm = peerSwarm(holding.getRelativePath(), contentHash);
+                swarm.fetchers.remove(handler);
+                swarm.holders.add(handler);
+                held++;
+            }
+        }
+        log(describeSource(handler) + " serves peers on port " + handler.peerPort + ", holding " + held + " current files");
+    }
+
+    private PeerSwarm peerSwarm(String relativePath, String contentHash) {
+        return peerSwarms.compute(relativePath, (path, swarm) ->
+                swarm != null && swarm.contentHash.equals(contentHash) ? swarm : new PeerSwarm(contentHash));
+    }
+
+    // Called by a client's writer before it streams a large file: if other clients serving peers
+    // hold or are fetching the same content, the client gets a PeerOffer to fetch it from them
+    // instead. Null to stream it as usual, which is also what a client gets when it asks for the
+    // file after an offer (the peers could not supply it).
+    private PeerOffer peerOffer(OutgoingTransfer transfer, ClientHandler handler, FileChannel channel) throws IOException {
+        if (handler.peerPort <= 0 || transfer.startOffset > 0 || !TransferChunk.isChunked(transfer.totalSize)) {
+            return null;
+        }
+        PeerSwarm swarm = peerSwarm(transfer.relativePath, transfer.contentHash);
+        if (swarm.holders.contains(handler) || !swarm.fetchers.add(handler)) {
+            return null;
+        }
+        List<ClientHandler> offered = new ArrayList<>();
+        swarm.addPeers(swarm.holders, handler, offered); // Those with all of it first
+        swarm.addPeers(swarm.fetchers, handler, offered);
+        if (offered.isEmpty()) {
+            return null; // The first to fetch it; it serves what it has to those after it
+        }
+        // The peers serve this content to whoever shows the token, so only this client can use them
+        String token = UUID.randomUUID().toString();
+        List<PeerOffer.Peer> peers = new ArrayList<>();
+        for (ClientHandler peer : offered) {
+            peer.sendFrame(PeerMessage.grant(token, transfer.contentHash), "peer grant for " + transfer.relativePath);
+            peers.add(new PeerOffer.Peer(peer.clientSocket.getInetAddress().getHostAddress(), peer.peerPort));
+        }
+        peerOffers.increment();
+        peerOfferedBytes.add(transfer.totalSize);
+        return new PeerOffer(transfer.transferId, transfer.relativePath, transfer.eventType, transfer.totalSize,
+                transfer.contentHash, transfer.version, swarm.blockHashes(channel, transfer.totalSize), peers, token);
+    }
+
+    // Streams the rest of each partial download the client still holds, as long as it is for
+    // the file's current content; otherwise the client is told to drop it.
+    void resumeDownloads(ResumeDownloads request, ClientHandler handler) {
+        for (ResumeDownloads.Entry entry : request.getEntries()) {
+            String relativePath = entry.getRelativePath();
+            if (entry.getContentHash().equals(currentContentHash(relativePath))) {
+                long version;
+                synchronized (this) {
+                    version = fileVersions.getOrDefault(relativePath, 0L);
+                }
+                transfersResumed.increment();
+                log("Resuming download of " + relativePath + " to " + describeSource(handler) + " at byte " + entry.getOffset());
+                handler.sendFrame(new OutgoingTransfer(entry.getTransferId(), FileEvent.EventType.MODIFY, relativePath,
+                        sizeOf(relativePath), entry.getContentHash(), version, entry.getOffset()), "resumed transfer of " + relativePath);
+            } else {
+                log("Cannot resume download of " + relativePath + " to " + describeSource(handler) + ", file has changed.");
+                handler.sendTransferStatus(new TransferStatus(entry.getTransferId(), TransferStatus.FAILED));
+            }
+        }
+    }
+
+    // Verifies and commits a complete upload, then records it so that the client can still learn
+    // it went through if the acknowledgement is lost. Only the first caller does this: verifying
+    // hashes the whole file, and a client that asks again meanwhile is answered once it is done.
+    private void completeUpload(TransferStore.Session session, ClientHandler sourceHandler) {
+        if (!session.claimCompletion()) {
+            return;
+        }
+        boolean verified;
+        try {
+            verified = session.verify();
+        } catch (IOException e) {
+            log("Error verifying upload of " + session.getRelativePath() + ": " + e.getMessage());
+            verified = false;
+        }
+        if (!verified) {
+            log("Upload of " + session.getRelativePath() + " from " + describeSource(sourceHandler) + " failed its hash check, discarding.");
+            session.discard();
+            transfersFailed.increment();
+            sourceHandler.sendTransferStatus(new TransferStatus(session.getTransferId(), TransferStatus.FAILED));
+            return;
+        }
+        if (!commitUpload(session, sourceHandler)) {
+            transfersFailed.increment();
+            sourceHandler.sendTransferStatus(new TransferStatus(session.getTransferId(), TransferStatus.FAILED));
+            return;
+        }
+        uploadTransfers.recordCommitted(session);
+        sourceHandler.sendTransferStatus(new TransferStatus(session.getTransferId(), session.getTotalSize()));
+    }
+
+    // The chunked counterpart of applyFileEvent: moves the verified part file into place. False if
+    // it could not be kept (e.g. the disk is full), in which case the session is discarded.
+    private synchronized boolean commitUpload(TransferStore.Session session, ClientHandler sourceHandler) {
+        String relativePathFromClient = session.getRelativePath();
+        String relativePath = relativePathFromClient.replace('/', File.separatorChar);
+        File file = new File(serverFilesDir + File.separator + relativePath);
+        FileEvent.EventType eventType = session.getEventType();
+
+        eventsReceived.get(eventType).increment();
+        log("Received transfer: " + eventType + " for " + relativePathFromClient + " (" + session.getTotalSize() +
+            " bytes) from " + describeSource(sourceHandler));
+        EdgeRelay relay = this.relay;
+        if (relay != null && sourceHandler != null) {
+            // Committed when the central server confirms it (see applyReplicated)
+            try {
+                relay.forwardUpload(session, sourceHandler.getClientId());
+            } catch (IOException e) {
+                log("Error keeping transfer of " + relativePathFromClient + " for the central server: " + e.getMessage());
+                session.discard();
+                return false;
+            }
+            return true;
+        }
+        if (cluster != null && !cluster.owns(relativePathFromClient)) {
+            // Another node's shard: keep the verified file where that node fetches it from
+            try {
+                session.moveTo(cluster.cachePath(session.getContentHash()));
+            } catch (IOException e) {
+                log("Error keeping transfer of " + relativePathFromClient + " for its cluster node: " + e.getMessage());
+                session.discard();
+                return false;
+            }
+            forwardToOwners(List.of(new FileEvent(eventType, relativePathFromClient, null, session.getContentHash(), 0L)), sourceHandler);
+            return true;
+        }
+        if (session.getContentHash().equals(fileHashes.get(relativePathFromClient)) && file.exists()) {
+            log("Content unchanged for " + relativePath + ", skipping write and broadcast.");
+            session.discard();
+            return true;
+        }
+        try {
+            preserveUntracked(relativePathFromClient, file.toPath());
+            session.moveTo(file.toPath());
+        } catch (IOException e) {
+            log("Error committing transfer for " + relativePath + ": " + e.getMessage());
+            session.discard();
+            return false;
+        }
+        long version = fileVersions.merge(relativePathFromClient, 1L, Long::sum);
+        fileHashes.put(relativePathFromClient, session.getContentHash());
+        recordCommit(relativePathFromClient, file.toPath(), version, session.getContentHash());
+        log("File " + (eventType == FileEvent.EventType.CREATE ? "created" : "modified") + ": " + relativePath + " (version " + version + ")");
+        broadcastFrame(new OutgoingTransfer(UUID.randomUUID().toString(), eventType, relativePathFromClient,
+                session.getTotalSize(), session.getContentHash(), version, 0L), eventType + " for " + relativePathFromClient,
+                sourceHandler, subscriptions.match(relativePathFromClient));
+        if (sourceHandler != null && sourceHandler.peerPort > 0) {
+            peerSwarm(relativePathFromClient, session.getContentHash()).holders.add(sourceHandler);
+        }
+        FileEvent committed = new FileEvent(eventType, relativePathFromClient, null, session.getContentHash(), version);
+        publishCommitted(List.of(committed), sourceHandler != null ? sourceHandler.getClientId() : null);
+        confirmToRelay(List.of(committed), sourceHandler);
+        return true;
+    }
+
+    // In a cluster, hands the events for other nodes' shards to their owners and returns the ones
+    // for this node's shard, in order. Without a cluster that is all of them; on an edge relay
+    // it is none, they all go to the central server.
+    private List<FileEvent> forwardToOwners(List<FileEvent> events, ClientHandler sourceHandler) {
+        EdgeRelay relay = this.relay;
+        if (relay != null) {
+            relay.forward(events, sourceHandler.getClientId());
+            return List.of();
+        }
+        ServerCluster cluster = this.cluster;
+        if (cluster == null) {
+            return events;
+        }
+        List<FileEvent> local = new ArrayList<>(events.size());
+        Map<String, List<ClusterMessage.Change>> changesByOwner = new LinkedHashMap<>();
+        for (FileEvent event : events) {
+            String owner = cluster.ownerOf(event);
+            if (owner.equals(cluster.getNodeId())) {
+                local.add(event);
+            } else {
+                long size = event.getFileData() != null ? event.getFileData().length : 0L;
+                changesByOwner.computeIfAbsent(owner, o -> new ArrayList<>()).add(new ClusterMessage.Change(event, size, null));
+            }
+        }
+        for (Map.Entry<String, List<ClusterMessage.Change>> entry : changesByOwner.entrySet()) {
+            log("Forwarding " + entry.getValue().size() + " events from " + describeSource(sourceHandler) + " to cluster node " + entry.getKey());
+            cluster.forward(entry.getKey(), sourceHandler.getClientId(), entry.getValue());
+            clusterForwarded.add(entry.getValue().size());
+        }
+        return local;
+    }
+
+    // Tells the other cluster nodes about changes committed to this node's shard. Content too
+    // large for one frame is left out; nodes fetch it when one of their clients needs it.
+    private void publishCommitted(List<FileEvent> events, String originClientId) {
+        ServerCluster cluster = this.cluster;
+        if (cluster == null || events.isEmpty()) {
+            return;
+        }
+        List<ClusterMessage.Change> changes = new ArrayList<>(events.size());
+        for (FileEvent event : events) {
+            byte[] data = event.getFileData();
+            if (data != null && TransferChunk.isChunked(data.length)) {
+                event = new FileEvent(event.getEventType(), event.getRelativePath(), null, event.getContentHash(), event.getVersion());
+            }
+            FileEvent.EventType type = event.getEventType();
+            boolean content = type == FileEvent.EventType.CREATE || type == FileEvent.EventType.MODIFY || type == FileEvent.EventType.MOVE;
+            long size = data != null ? data.length : content ? sizeOf(event.getRelativePath()) : 0L;
+            changes.add(new ClusterMessage.Change(event, size, event.getTreeEntries()));
+        }
+        cluster.publish(originClientId, changes);
+    }
+
+    // The broadcast leaves out the client a change came from, but an edge relay still has to commit
+    // it for its own clients. It gets it back without the content, which it has already.
+    private void confirmToRelay(List<FileEvent> committed, ClientHandler sourceHandler) {
+        if (sourceHandler == null || !relays.contains(sourceHandler)) {
+            return;
+        }
+        List<FileEvent> confirmations = new ArrayList<>(committed.size());
+        for (FileEvent event : committed) {
+            if (event.getFileData() != null) {
+                event = new FileEvent(event.getEventType(), event.getRelativePath(), null, event.getContentHash(), event.getVersion());
+            }
+            confirmations.add(event);
+        }
+        sourceHandler.sendFrame(confirmations.size() == 1 ? confirmations.get(0) : new FileEventBatch(confirmations),
+                "confirmation of " + confirmations.size() + " events");
+    }
+
+    // Passes changes another node committed to its shard on to this node's subscribed clients,
+    // except the client they came from
+    synchronized void deliverCommitted(ClusterMessage message) {
+        List<FileEvent> events = new ArrayList<>(message.getChanges().size());
+        for (ClusterMessage.Change change : message.getChanges()) {
+            FileEvent event = change.getEvent();
+            if (change.getTreeEntries() != null) {
+                event.setTreeEntries(change.getTreeEntries());
+            }
+            events.add(event);
+        }
+        clusterReceived.add(events.size());
+        ClientHandler origin = message.getOriginClientId() != null ? clientHandlersById.get(message.getOriginClientId()) : null;
+        broadcastEvents(events, origin);
+    }
+
+    // Applies changes another node forwarded for this node's shard, as if its client had sent
+    // them here. Content not carried in the message is fetched from that node first, outside the
+    // server lock. Runs on one thread per sending node, so its changes are applied in order.
+    void applyForwarded(ClusterMessage message) {
+        Map<ClusterMessage.Change, Path> contents = new HashMap<>();
+        for (ClusterMessage.Change change : message.getChanges()) {
+            if (change.needsContent()) {
+                FileEvent event = change.getEvent();
+                try {
+                    contents.put(change, cluster.fetch(message.getNodeId(), event.getRelativePath(), event.getContentHash()));
+                } catch (IOException e) {
+                    log("Cannot apply forwarded " + event.getEventType() + " for " + event.getRelativePath() + ": " + e.getMessage());
+                }
+            }
+        }
+        commitForwarded(message, contents);
+    }
+
+    private synchronized void commitForwarded(ClusterMessage message, Map<ClusterMessage.Change, Path> contents) {
+        List<FileEvent> committed = new ArrayList<>();
+        for (ClusterMessage.Change change : message.getChanges()) {
+            FileEvent result;
+            if (change.needsContent()) {
+                Path content = contents.get(change);
+                result = content != null ? commitFetched(change.getEvent(), content) : null;
+            } else {
+                result = applyFileEvent(change.getEvent(), null, message.getOriginClientId());
+            }
+            if (result != null) {
+                committed.add(result);
+            }
+        }
+        if (!committed.isEmpty()) {
+            broadcastEvents(committed, null); // The client it came from is on the other node
+            publishCommitted(committed, message.getOriginClientId());
+        }
+    }
+
+    // Commits content fetched from another node: a large upload it received for this shard, or a
+    // file moved here from its shard. On an edge relay, content a local client sent upstream.
+    // The fetched file is linked into place, not copied.
+    private FileEvent commitFetched(FileEvent event, Path content) {
+        String relativePath = event.getRelativePath();
+        Path file = Paths.get(serverFilesDir, relativePath.replace('/', File.separatorChar));
+        eventsReceived.get(event.getEventType()).increment();
+        if (event.getContentHash().equals(fileHashes.get(relativePath)) && Files.exists(file)) {
+            log("Content unchanged for " + relativePath + ", skipping write and broadcast.");
+            return null;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            preserveUntracked(relativePath, file);
+            Path staged = stagingDir.resolve(UUID.randomUUID() + ".cluster");
+            try {
+                ServerCluster.linkOrCopy(content, staged);
+                moveIntoPlace(staged, file);
+            } finally {
+                Files.deleteIfExists(staged);
+            }
+        } catch (IOException e) {
+            log("Error committing fetched " + relativePath + ": " + e.getMessage());
+            return null;
+        }
+        long version = fileVersions.merge(relativePath, 1L, Long::sum);
+        fileHashes.put(relativePath, event.getContentHash());
+        recordCommit(relativePath, file, version, event.getContentHash());
+        log("File " + (event.getEventType() == FileEvent.EventType.CREATE ? "created" : "modified") + ": " + relativePath +
+                " (version " + version + ", fetched)");
+        return new FileEvent(event.getEventType(), relativePath, null, event.getContentHash(), version);
+    }
+
+    // A move into another node's shard. That node gets the content as a CREATE per file, fetched
+    // from here by hash, and the source is deleted here, so clients see a delete and a create
+    // rather than a move. Refused like applyMove if the source is gone or has changed.
+    private FileEvent moveToOtherShard(FileEvent event, String originClientId) throws IOException {
+        String sourcePath = event.getSourcePath();
+        String targetPath = event.getRelativePath();
+        String owner = cluster.ownerOf(targetPath);
+        Path source = resolveInside(sourcePath);
+        List<ClusterMessage.Change> creates = new ArrayList<>();
+        if (event.getEventType() == FileEvent.EventType.MOVE) {
+            String contentHash = Files.isRegularFile(source) ? currentContentHash(sourcePath) : null;
+            if (contentHash == null || (event.getContentHash() != null && !event.getContentHash().equals(contentHash))) {
+                log("Source of move " + sourcePath + " not found or changed, ignoring move to " + targetPath);
+                return null;
+            }
+            cluster.stash(source, contentHash);
+            creates.add(new ClusterMessage.Change(new FileEvent(FileEvent.EventType.CREATE, targetPath, null, contentHash, 0L),
+                    Files.size(source), null));
+        } else {
+            if (!Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+                log("Source of directory move not found: " + sourcePath + ", ignoring move to " + targetPath);
+                return null;
+            }
+            List<Path> files = new ArrayList<>();
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    files.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            for (Path file : files) {
+                String entry = source.relativize(file).toString().replace(File.separatorChar, '/');
+                String contentHash = currentContentHash(sourcePath + "/" + entry);
+                if (contentHash != null) {
+                    cluster.stash(file, contentHash);
+                    creates.add(new ClusterMessage.Change(new FileEvent(FileEvent.EventType.CREATE, targetPath + "/" + entry,
+                            null, contentHash, 0L), Files.size(file), null));
+                }
+            }
+        }
+        log("Moving " + sourcePath + " to " + targetPath + " on cluster node " + owner + " (" + creates.size() + " files)");
+        cluster.forward(owner, originClientId, creates);
+        clusterForwarded.add(creates.size());
+        FileEvent delete = event.getEventType() == FileEvent.EventType.MOVE
+                ? new FileEvent(FileEvent.EventType.DELETE, sourcePath, null, null, 0L)
+                : FileEvent.deleteTree(sourcePath, 0L);
+        return applyFileEvent(delete, null, originClientId);
+    }
+
+    // This shard's files with their hashes where known, for the other nodes' indexes
+    List<ClusterMessage.Change> clusterPaths() {
+        Set<String> paths = new HashSet<>();
+        collectFilePathsRecursively(new File(serverFilesDir), "", paths);
+        List<ClusterMessage.Change> files = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            String relativePath = path.replace(File.separatorChar, '/');
+            if (!cluster.owns(relativePath)) {
+                continue;
+            }
+            String contentHash;
+            long version;
+            synchronized (this) {
+                contentHash = fileHashes.get(relativePath);
+                version = fileVersions.getOrDefault(relativePath, 0L);
+            }
+            if (contentHash == null) {
+                contentHash = versions.latestContentHash(relativePath);
+            }
+            files.add(new ClusterMessage.Change(new FileEvent(FileEvent.EventType.CREATE, relativePath, null, contentHash, version),
+                    new File(serverFilesDir, path).length(), null));
+        }
+        return files;
+    }
+
+    // Size of the committed file, which in a cluster may be in another node's shard
+    private long sizeOf(String relativePath) {
+        ServerCluster cluster = this.cluster;
+        if (cluster != null && !cluster.owns(relativePath)) {
+            ServerCluster.RemoteFile remote = cluster.remoteFile(relativePath);
+            return remote != null ? remote.size : 0L;
+        }
+        return new File(serverFilesDir, relativePath.replace('/', File.separatorChar)).length();
+    }
+
+    // Primary: starts replicating to a standby or edge relay that just connected. Under the server
+    // lock, so the manifest is exactly the state that the frames queued after it build on.
+    private synchronized void registerFollower(ClientHandler handler, boolean relay) {
+        Set<String> paths = new TreeSet<>();
+        collectFilePathsRecursively(new File(serverFilesDir), "", paths);
+        List<ReplicationMessage.Entry> files = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            String relativePath = path.replace(File.separatorChar, '/');
+            files.add(new ReplicationMessage.Entry(relativePath, fileHashes.get(relativePath), fileVersions.getOrDefault(relativePath, 0L)));
+        }
+        handler.standbyProgress = new StandbyReplica.Progress();
+        handler.supportsMoves = true;
+        handler.supportsTransfers = true;
+        handler.streamsInitialized = true;
+        ClientHandler replaced = clientHandlersById.put(handler.getClientId(), handler);
+        if (replaced != null) {
+            subscriptions.remove(replaced);
+            standbys.remove(replaced);
+            relays.remove(replaced);
+        }
+        subscriptions.add(handler, PathSubscription.ALL);
+        (relay ? relays : standbys).add(handler); // A relay's lag holds back no one else's changes
+        handler.sendFrame(ReplicationMessage.manifest(files), "manifest of " + files.size() + " files");
+        log((relay ? "Edge relay " : "Standby ") + handler.getClientId() + " connected from " + handler.getClientAddress() +
+                ", sent manifest of " + files.size() + " files");
+    }
+
+    void handleReplication(ReplicationMessage message, ClientHandler standbyHandler) {
+        switch (message.getType()) {
+            case ACK -> standbyHandler.standbyProgress.acked(message.getSequence());
+            case FETCH -> serveReplicaFetch(message.getEntries(), standbyHandler);
+            default -> log("Unexpected " + message + " from " + standbyHandler.getClientId());
+        }
+    }
+
+    // Primary: sends a standby the current content of the files it asked for, except those it
+    // turns out to hold already (it had no hash to compare with)
+    private void serveReplicaFetch(List<ReplicationMessage.Entry> files, ClientHandler standbyHandler) {
+        int sent = 0;
+        for (ReplicationMessage.Entry entry : files) {
+            String relativePath = entry.getRelativePath();
+            String contentHash = currentContentHash(relativePath);
+            if (contentHash == null || contentHash.equals(entry.getContentHash())) {
+                continue;
+            }
+            long version;
+            synchronized (this) {
+                version = fileVersions.getOrDefault(relativePath, 0L);
+            }
+            standbyHandler.sendFrame(new OutgoingTransfer(UUID.randomUUID().toString(), FileEvent.EventType.MODIFY, relativePath,
+                    sizeOf(relativePath), contentHash, version, 0L), "copy of " + relativePath);
+            sent++;
+        }
+        standbyHandler.standbyProgress.endCatchUp();
+        log("Sending " + standbyHandler.getClientId() + " " + sent + " of the " + files.size() + " files it asked for");
+    }
+
+    // Records the paths of frames a lagging client was dropped with, for resendMissed
+    private void recordMissed(String clientId, Map<String, FileEvent.EventType> missed) {
+        if (!missed.isEmpty()) {
+            missedByClient.merge(clientId, missed, (earlier, later) -> {
+                earlier.putAll(later);
+                return earlier;
+            });
+        }
+    }
+
+    // A client that was dropped for lagging gets the current state of every path whose change it
+    // missed: the file if the server has one, otherwise the delete. Under the server lock, so no
+    // commit to those paths falls between what is read here and what is broadcast after.
+    synchronized void resendMissed(ClientHandler handler) {
+        Map<String, FileEvent.EventType> missed = missedByClient.remove(handler.getClientId());
+        if (missed == null) {
+            return;
+        }
+        log("Sending " + handler.getClientId() + " the current state of " + missed.size() + " paths it missed while lagging");
+        for (Map.Entry<String, FileEvent.EventType> entry : missed.entrySet()) {
+            String relativePath = entry.getKey();
+            long version = fileVersions.getOrDefault(relativePath, 0L);
+            String contentHash = currentContentHash(relativePath);
+            if (contentHash != null) {
+                handler.sendFrame(new OutgoingTransfer(UUID.randomUUID().toString(), FileEvent.EventType.MODIFY, relativePath,
+                        sizeOf(relativePath), contentHash, version, 0L), "missed change to " + relativePath);
+            } else if (!new File(serverFilesDir, relativePath.replace('/', File.separatorChar)).isDirectory()) {
+                FileEvent.EventType type = entry.getValue() == FileEvent.EventType.DELETE_TREE
+                        ? FileEvent.EventType.DELETE_TREE : FileEvent.EventType.DELETE;
+                handler.sendFileEvent(new FileEvent(type, relativePath, null, null, version));
+            }
+        }
+    }
+
+    // Primary: holds a client's next change back while an in-sync standby is more than the
+    // maximum lag behind, so it never falls further behind than that. A standby that does not
+    // catch up within that time is disconnected; it reconciles with the manifest when it reconnects.
+    void awaitStandbys() {
+        for (ClientHandler handler : standbys) {
+            StandbyReplica.Progress progress = handler.standbyProgress;
+            if (!progress.inSync() || progress.lagMillis() <= maxReplicationLagMillis) {
+                continue;
+            }
+            replicationThrottled.increment();
+            try {
+                if (progress.await(maxReplicationLagMillis)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (standbys.remove(handler)) {
+                replicationDropped.increment();
+                log("Standby " + handler.getClientId() + " is more than " + maxReplicationLagMillis + " ms behind, disconnecting it");
+                handler.closeConnection();
+            }
+        }
+    }
+
+    // Standby: makes this store match the primary's manifest, ahead of the changes the primary
+    // committed after it. Files the primary doesn't have are deleted and files take the primary's
+    // versions. Returns the files whose content differs or is unknown, with the hash held here if
+    // any, for the primary to send.
+    synchronized List<ReplicationMessage.Entry> reconcileReplica(List<ReplicationMessage.Entry> manifest) {
+        Set<String> primaryPaths = new HashSet<>();
+        List<ReplicationMessage.Entry> missing = new ArrayList<>();
+        for (ReplicationMessage.Entry entry : manifest) {
+            String relativePath = entry.getRelativePath();
+            primaryPaths.add(relativePath);
+            String contentHash = currentContentHash(relativePath);
+            fileVersions.put(relativePath, entry.getVersion());
+            if (contentHash == null || !contentHash.equals(entry.getContentHash())) {
+                missing.add(new ReplicationMessage.Entry(relativePath, contentHash, entry.getVersion()));
+            }
+        }
+        Set<String> paths = new TreeSet<>();
+        collectFilePathsRecursively(new File(serverFilesDir), "", paths);
+        List<FileEvent> deleted = new ArrayList<>();
+        for (String path : paths) {
+            String relativePath = path.replace(File.separatorChar, '/');
+            if (!primaryPaths.contains(relativePath)) {
+                FileEvent applied = applyFileEvent(new FileEvent(FileEvent.EventType.DELETE, relativePath, null, null, 0L), null, null);
+                if (applied != null) {
+                    deleted.add(applied);
+                }
+            }
+        }
+        if (!deleted.isEmpty()) {
+            broadcastEvents(deleted, null); // An edge relay's clients; a standby has none
+        }
+        return missing;
+    }
+
+    // Standby: applies a change the primary committed, under the primary's version so that clients
+    // failing over find the versions they synced. False if the change does not fit this store (the
+    // source of a move is missing or different), which calls for a resync. An edge relay also
+    // passes the change on to its clients; the central server's confirmations of its own clients'
+    // changes carry no content, which the relay has stashed.
+    synchronized boolean applyReplicated(FileEvent event) {
+        String relativePath = event.getRelativePath();
+        FileEvent.EventType type = event.getEventType();
+        boolean confirmation = (type == FileEvent.EventType.CREATE || type == FileEvent.EventType.MODIFY) && event.getFileData() == null;
+        Path stashed = confirmation ? standby.takeStash(event.getContentHash()) : null;
+        if (confirmation && stashed == null && !event.getContentHash().equals(fileHashes.get(relativePath))) {
+            log("Change to " + relativePath + " came without its content, resyncing");
+            return false;
+        }
+        fileVersions.put(relativePath, event.getVersion() - 1);
+        FileEvent applied = stashed != null ? commitFetched(event, stashed) : confirmation ? null : applyFileEvent(event, null, null);
+        fileVersions.put(relativePath, event.getVersion());
+        if (applied != null) {
+            String originClientId = standby.originOf(event);
+            broadcastEvents(List.of(applied), originClientId != null ? clientHandlersById.get(originClientId) : null);
+            return true;
+        }
+        Path target = Paths.get(serverFilesDir, relativePath.replace('/', File.separatorChar));
+        return switch (event.getEventType()) {
+            case CREATE, MODIFY -> event.getContentHash() == null || event.getContentHash().equals(fileHashes.get(relativePath));
+            case DELETE, DELETE_TREE -> !Files.exists(target, LinkOption.NOFOLLOW_LINKS);
+            case MOVE, MOVE_TREE -> false;
+        };
+    }
+
+    // Standby: the chunked counterpart of applyReplicated
+    boolean applyReplicatedChunk(TransferChunk chunk) {
+        String relativePath = chunk.getRelativePath();
+        TransferStore.Session session;
+        try {
+            session = replicaTransfers.open(chunk.getTransferId(), relativePath, chunk.getEventType(),
+                    chunk.getTotalSize(), chunk.getContentHash(), chunk.getVersion());
+            if (session.write(chunk.getOffset(), chunk.getData()) < 0) {
+                log("Chunk of " + relativePath + " from the primary is past committed offset " + session.getCommittedBytes());
+                session.discard();
+                return false;
+            }
+            if (!session.isComplete()) {
+                return true;
+            }
+            if (!session.verify()) {
+                log("Copy of " + relativePath + " from the primary failed its hash check, discarding.");
+                session.discard();
+                return false;
+            }
+        } catch (IOException e) {
+            log("Error writing chunk of " + relativePath + " from the primary: " + e.getMessage());
+            discardReplicaTransfer(chunk.getTransferId());
+            return false;
+        }
+        synchronized (this) {
+            fileVersions.put(relativePath, session.getVersion() - 1);
+            commitUpload(session, null);
+            fileVersions.put(relativePath, session.getVersion());
+            return session.getContentHash().equals(fileHashes.get(relativePath));
+        }
+    }
+
+    void discardReplicaTransfer(String transferId) {
+        TransferStore.Session session = replicaTransfers.get(transferId);
+        if (session != null) {
+            session.discard();
+        }
+    }
+
+    // Standby: copies from the primary that a dropped link left unfinished
+    void discardReplicaTransfers() {
+        for (TransferStore.Session session : replicaTransfers.getSessions()) {
+            session.discard();
+        }
+    }
+
+    // Whether relativePath, as a client sent it, names something below server_files: not empty or
+    // absolute, without empty, "." or ".." segments, and still inside once resolved. Clients are not
+    // authenticated, so every path they send is checked before it reaches the file system.
+    static boolean isSafeRelativePath(String relativePath) {
+        if (relativePath == null || relativePath.isEmpty() || relativePath.indexOf('\0') >= 0) {
+            return false;
+        }
+        for (String segment : relativePath.split("[/\\\\]", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        try {
+            return Paths.get(relativePath).getRoot() == null; // Not absolute, nor rooted like "\\x" or "C:x" on Windows
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    private Path serverFilesRoot() {
+        return Paths.get(serverFilesDir).toAbsolutePath().normalize();
+    }
+
+    private boolean isInsideServerFiles(String relativePath) {
+        try {
+            resolveInside(relativePath);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // relativePath below server_files; an IOException rather than a path outside it
+    private Path resolveInside(String relativePath) throws IOException {
+        Path root = serverFilesRoot();
+        if (isSafeRelativePath(relativePath)) {
+            Path path = root.resolve(relativePath.replace('/', File.separatorChar)).normalize();
+            if (path.startsWith(root) && !path.equals(root)) {
+                return path;
+            }
+        }
+        throw new IOException("Path outside " + serverFilesDir + ": " + relativePath);
+    }
+
+    // A rename on the server: the file is moved, not rewritten, and the broadcast carries no data.
+    // Refused if the source is gone or no longer has the content the client moved.
+    private FileEvent applyMove(FileEvent event) throws IOException {
+        String sourcePath = event.getSourcePath();
+        String targetPath = event.getRelativePath();
+        File source = resolveInside(sourcePath).toFile();
+        File target = resolveInside(targetPath).toFile();
+        if (!source.isFile()) {
+            log("Source of move not found: " + sourcePath + ", ignoring move to " + targetPath);
+            return null;
+        }
+        String contentHash = currentContentHash(sourcePath);
+        if (event.getContentHash() != null && !event.getContentHash().equals(contentHash)) {
+            log("Source of move " + sourcePath + " has changed on the server, ignoring move to " + targetPath);
+            return null;
+        }
+        Files.createDirectories(target.toPath().getParent());
+        preserveUntracked(sourcePath, source.toPath());
+        preserveUntracked(targetPath, target.toPath());
+        moveIntoPlace(source.toPath(), target.toPath());
+        recordDelete(sourcePath, fileVersions.merge(sourcePath, 1L, Long::sum));
+        fileHashes.remove(sourcePath);
+        long version = fileVersions.merge(targetPath, 1L, Long::sum);
+        fileHashes.put(targetPath, contentHash);
+        recordCommit(targetPath, target.toPath(), version, contentHash);
+        log("File moved: " + sourcePath + " -> " + targetPath + " (version " + version + ")");
+        return FileEvent.move(sourcePath, targetPath, contentHash, version);
+    }
+
+    // Deletes a directory with everything in it in one pass. The returned event's tree entries list
+    // the deleted files and then the directories, deepest first, for clients that need them one by one.
+    private FileEvent applyTreeDelete(FileEvent event) throws IOException {
+        String directoryPath = event.getRelativePath();
+        Path root = serverFilesRoot();
+        Path directory = resolveInside(directoryPath);
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            log("Directory to delete not found: " + directoryPath);
+            return null;
+        }
+        List<String> files = new ArrayList<>();
+        List<String> directories = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+                preserveUntracked(relativePath, file);
+                Files.delete(file);
+                recordDelete(relativePath, fileVersions.merge(relativePath, 1L, Long::sum));
+                fileHashes.remove(relativePath);
+                files.add(relativePath);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                directories.add(root.relativize(dir).toString().replace(File.separatorChar, '/'));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        long version = fileVersions.merge(directoryPath, 1L, Long::sum);
+        files.addAll(directories);
+        log("Directory deleted: " + directoryPath + " (" + (files.size() - directories.size()) + " files)");
+        FileEvent deleted = FileEvent.deleteTree(directoryPath, version);
+        deleted.setTreeEntries(files);
+        return deleted;
+    }
+
+    // Moves a directory with everything in it, as one rename where the file system allows, and
+    // carries the versions and hashes of its files over to their new paths. Merges into the target
+    // if one exists. The returned event's tree entries are the moved files' paths below the directory.
+    private FileEvent applyTreeMove(FileEvent event) throws IOException {
+        String sourcePath = event.getSourcePath();
+        String targetPath = event.getRelativePath();
+        Path source = resolveInside(sourcePath);
+        Path target = resolveInside(targetPath);
+        if (!Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+            log("Source of directory move not found: " + sourcePath + ", ignoring move to " + targetPath);
+            return null;
+        }
+        if (PathSubscription.hasPrefix(targetPath, sourcePath)) {
+            log("Cannot move directory " + sourcePath + " into itself (" + targetPath + ")");
+            return null;
+        }
+        List<String> entries = new ArrayList<>();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String entry = source.relativize(file).toString().replace(File.separatorChar, '/');
+                entries.add(entry);
+                preserveUntracked(sourcePath + "/" + entry, file);
+                preserveUntracked(targetPath + "/" + entry, target.resolve(source.relativize(file)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Files.createDirectories(target.getParent());
+        FileSyncClient.moveTree(source, target);
+        for (String entry : entries) {
+            String from = sourcePath + "/" + entry;
+            String to = targetPath + "/" + entry;
+            String storedHash = versions.latestContentHash(from); // The moved file is that object, so no read
+            recordDelete(from, fileVersions.merge(from, 1L, Long::sum));
+            String contentHash = fileHashes.remove(from);
+            if (contentHash != null) {
+                fileHashes.put(to, contentHash);
+            } else {
+                fileHashes.remove(to); // Not hashed yet; computed from the moved file when needed
+            }
+            long version = fileVersions.merge(to, 1L, Long::sum);
+            if (storedHash != null) {
+                recordCommit(to, target.resolve(entry.replace('/', File.separatorChar)), version, storedHash);
+            }
+        }
+        fileVersions.merge(sourcePath, 1L, Long::sum);
+        long version = fileVersions.merge(targetPath, 1L, Long::sum);
+        log("Directory moved: " + sourcePath + " -> " + targetPath + " (" + entries.size() + " files, version " + version + ")");
+        FileEvent moved = FileEvent.moveTree(sourcePath, targetPath, version);
+        moved.setTreeEntries(entries);
+        return moved;
+    }
+
+    // Replaces the file by moving a fully written copy into place rather than rewriting it, so a
+    // writer that already opened the previous version (openCommittedFile) keeps reading it
+    private void writeCommittedFile(Path target, byte[] data) throws IOException {
+        Path staged = Files.createTempFile(stagingDir, "commit", ".tmp");
+        try {
+            Files.write(staged, data);
+            moveIntoPlace(staged, target);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Keeps the current content of a file that is about to be replaced, moved or deleted if it is
+    // not in the version history yet (it predates the history and the baseline hasn't reached it).
+    // Files with history need nothing: their current version is already stored.
+    private void preserveUntracked(String relativePath, Path file) {
+        if (versions.hasHistory(relativePath) || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try {
+            String contentHash = versions.preserve(file);
+            versions.recordCommit(relativePath, fileVersions.getOrDefault(relativePath, 0L), contentHash, Files.size(file));
+        } catch (IOException e) {
+            log("Error keeping the previous version of " + relativePath + ": " + e.getMessage());
+        }
+    }
+
+    // Links the committed file into the version store; history is best effort and never fails a commit
+    private void recordCommit(String relativePath, Path file, long version, String contentHash) {
+        try {
+            versions.store(file, contentHash);
+            versions.recordCommit(relativePath, version, contentHash, Files.size(file));
+            versionsRecorded.increment();
+        } catch (IOException e) {
+            log("Error recording version " + version + " of " + relativePath + ": " + e.getMessage());
+        }
+    }
+
+    private void recordDelete(String relativePath, long version) {
+        try {
+            versions.recordDelete(relativePath, version);
+        } catch (IOException e) {
+            log("Error recording delete of " + relativePath + ": " + e.getMessage());
+        }
+    }
+
+    // Opens the committed file if it still has the given content, or returns null. Commits
+    // replace files by moving a new one into place, so the channel keeps reading this version
+    // even if a newer one is committed meanwhile; that is what makes caching what is read from
+    // it under contentHash safe.
+    private FileChannel openCommittedFile(String relativePath, String contentHash) throws IOException {
+        ServerCluster cluster = this.cluster;
+        if (cluster != null && !cluster.owns(relativePath)) {
+            // Another node's shard: fetched from it (or its cached copy) without the server lock
+            return cluster.open(relativePath, contentHash);
+        }
+        return openLocalFile(relativePath, contentHash);
+    }
+
+    // For another cluster node fetching content by hash; null if the file no longer has it
+    FileChannel openForPeer(String relativePath, String contentHash) throws IOException {
+        return contentHash != null && Files.isRegularFile(Paths.get(serverFilesDir, relativePath.replace('/', File.separatorChar)))
+                ? openLocalFile(relativePath, contentHash) : null;
+    }
+
+    private synchronized FileChannel openLocalFile(String relativePath, String contentHash) throws IOException {
+        if (!contentHash.equals(currentContentHash(relativePath))) {
+            return null;
+        }
+        return FileChannel.open(Paths.get(serverFilesDir, relativePath.replace('/', File.separatorChar)), StandardOpenOption.READ);
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File ended at byte " + (position + buffer.position()) + ", expected " + (position + length));
+            }
+        }
+        return buffer.array();
+    }
+
+    // Hash of the committed file, computed from disk for files not written since the server started
+    private synchronized String currentContentHash(String relativePath) {
+        if (cluster != null && !cluster.owns(relativePath)) {
+            ServerCluster.RemoteFile remote = cluster.remoteFile(relativePath);
+            return remote != null ? remote.contentHash : null;
+        }
+        String hash = fileHashes.get(relativePath);
+        if (hash == null) {
+            File file = new File(serverFilesDir, relativePath.replace('/', File.separatorChar));
+            if (file.isFile()) {
+                try {
+                    hash = ContentHash.of(file.toPath());
+                    fileHashes.put(relativePath, hash);
+                } catch (IOException e) {
+                    log("Error hashing " + relativePath + ": " + e.getMessage());
+                }
+            }
+        }
+        return hash;
+    }
+
+    // Broadcasts committed events in order. Each client gets the events for the paths it subscribes
+    // to, in a form it understands (see routeMove), with large files as resumable transfers read
+    // from disk rather than in-memory frames. Consecutive events go out as one batch frame, and
+    // clients receiving the same sequence (usually all of them) share the frames.
+    private void broadcastEvents(List<FileEvent> events, ClientHandler sourceHandler) {
+        Map<ClientHandler, List<Object>> itemsByHandler = new LinkedHashMap<>();
+        for (FileEvent event : events) {
+            if (event.getEventType() == FileEvent.EventType.MOVE) {
+                routeMove(event, sourceHandler, itemsByHandler, null);
+                continue;
+            }
+            if (event.isTreeEvent()) {
+                routeTree(event, sourceHandler, itemsByHandler);
+                continue;
+            }
+            Object item = event;
+            byte[] data = event.getFileData();
+            boolean content = event.getEventType() == FileEvent.EventType.CREATE || event.getEventType() == FileEvent.EventType.MODIFY;
+            if (content && (data == null || TransferChunk.isChunked(data.length))) {
+                // Large, or committed without its data in memory (from a cluster node): read from disk
+                item = new OutgoingTransfer(UUID.randomUUID().toString(), event.getEventType(), event.getRelativePath(),
+                        data != null ? data.length : sizeOf(event.getRelativePath()), event.getContentHash(), event.getVersion(), 0L);
+            }
+            for (ClientHandler handler : subscriptions.match(event.getRelativePath())) {
+                if (handler != sourceHandler) {
+                    itemsByHandler.computeIfAbsent(handler, h -> new ArrayList<>()).add(item);
+                }
+            }
+        }
+        Map<List<Object>, List<ClientHandler>> handlersByItems = new LinkedHashMap<>();
+        for (Map.Entry<ClientHandler, List<Object>> entry : itemsByHandler.entrySet()) {
+            handlersByItems.computeIfAbsent(entry.getValue(), items -> new ArrayList<>()).add(entry.getKey());
+        }
+        for (Map.Entry<List<Object>, List<ClientHandler>> entry : handlersByItems.entrySet()) {
+            List<FileEvent> run = new ArrayList<>();
+            for (Object item : entry.getKey()) {
+                if (item instanceof FileEvent event) {
+                    run.add(event);
+                } else {
+                    broadcastRun(run, sourceHandler, entry.getValue());
+                    OutgoingTransfer transfer = (OutgoingTransfer) item;
+                    broadcastFrame(transfer, transfer.eventType + " for " + transfer.relativePath, sourceHandler, entry.getValue());
+                }
+            }
+            broadcastRun(run, sourceHandler, entry.getValue());
+        }
+    }
+
+    private void broadcastRun(List<FileEvent> run, ClientHandler sourceHandler, List<ClientHandler> recipients) {
+        if (run.size() == 1) {
+            FileEvent event = run.get(0);
+            broadcastFrame(event, event.getEventType() + " for " + event.getRelativePath(), sourceHandler, recipients);
+        } else if (!run.isEmpty()) {
+            broadcastFrame(new FileEventBatch(new ArrayList<>(run)), run.size() + " events", sourceHandler, recipients);
+        }
+        run.clear();
+    }
+
+    // A MOVE goes as is to clients that see both paths and understand it. The others get what the
+    // move means for them: a DELETE of the old path if they see it, and the file's content under
+    // the new path if they see that. Called with the server lock held, right after the move.
+    // A non-null only restricts the recipients to those handlers.
+    private void routeMove(FileEvent move, ClientHandler sourceHandler, Map<ClientHandler, List<Object>> itemsByHandler,
+                           Set<ClientHandler> only) {
+        Set<ClientHandler> seeSource = subscriptions.match(move.getSourcePath());
+        Set<ClientHandler> seeTarget = subscriptions.match(move.getRelativePath());
+        Set<ClientHandler> recipients = new LinkedHashSet<>(seeSource);
+        recipients.addAll(seeTarget);
+        FileEvent delete = null;   // Built on first use and shared, so clients getting the same items still share frames
+        OutgoingTransfer content = null;
+        for (ClientHandler handler : recipients) {
+            if (handler == sourceHandler || (only != null && !only.contains(handler))) {
+                continue;
+            }
+            List<Object> items = itemsByHandler.computeIfAbsent(handler, h -> new ArrayList<>());
+            boolean source = seeSource.contains(handler);
+            boolean target = seeTarget.contains(handler);
+            if (source && target && handler.supportsMoves) {
+                items.add(move);
+                continue;
+            }
+            if (source) {
+                if (delete == null) {
+                    delete = new FileEvent(FileEvent.EventType.DELETE, move.getSourcePath(), null, null,
+                            fileVersions.getOrDefault(move.getSourcePath(), 0L));
+                }
+                items.add(delete);
+            }
+            if (target) {
+                if (content == null) {
+                    long size = sizeOf(move.getRelativePath());
+                    content = new OutgoingTransfer(UUID.randomUUID().toString(), FileEvent.EventType.CREATE, move.getRelativePath(),
+                            size, move.getContentHash(), move.getVersion(), 0L);
+                }
+                items.add(content);
+            }
+        }
+    }
+
+    // A tree event goes as is to clients that understand it, which apply a DELETE_TREE to the part
+    // of the tree they sync themselves; a MOVE_TREE only if they sync all of both trees. The others
+    // get it spelled out from the tree entries: a DELETE per file and directory, or a MOVE per file
+    // routed like any other (see routeMove). Called with the server lock held, right after the change.
+    private void routeTree(FileEvent event, ClientHandler sourceHandler, Map<ClientHandler, List<Object>> itemsByHandler) {
+        String directory = event.getRelativePath();
+        boolean move = event.getEventType() == FileEvent.EventType.MOVE_TREE;
+        Set<ClientHandler> recipients = new LinkedHashSet<>(subscriptions.matchTree(directory));
+        if (move) {
+            recipients.addAll(subscriptions.matchTree(event.getSourcePath()));
+        }
+        Set<ClientHandler> fileByFile = new LinkedHashSet<>();
+        for (ClientHandler handler : recipients) {
+            if (handler == sourceHandler) {
+                continue;
+            }
+            PathSubscription subscription = handler.subscription;
+            if (handler.supportsMoves && (!move || (subscription.coversTree(event.getSourcePath()) && subscription.coversTree(directory)))) {
+                itemsByHandler.computeIfAbsent(handler, h -> new ArrayList<>()).add(event);
+            } else {
+                fileByFile.add(handler);
+            }
+        }
+        if (fileByFile.isEmpty()) {
+            return;
+        }
+        for (String entry : event.getTreeEntries()) {
+            if (move) {
+                String targetPath = directory + "/" + entry;
+                FileEvent fileMove = FileEvent.move(event.getSourcePath() + "/" + entry, targetPath,
+                        currentContentHash(targetPath), fileVersions.getOrDefault(targetPath, 0L));
+                routeMove(fileMove, sourceHandler, itemsByHandler, fileByFile);
+                continue;
+            }
+            FileEvent delete = new FileEvent(FileEvent.EventType.DELETE, entry, null, null, fileVersions.getOrDefault(entry, 0L));
+            for (ClientHandler handler : fileByFile) {
+                if (handler.subscription.matches(entry)) {
+                    itemsByHandler.computeIfAbsent(handler, h -> new ArrayList<>()).add(delete);
+                }
+            }
+        }
+    }
+
+    // Sends the frame to the subscribed recipients other than the source. A null sourceHandler
+    // means the event originated on the server itself. With several recipients they all get the
+    // same EncodedFrame, so the frame is serialized once rather than once per client.
+    private void broadcastFrame(Object frame, String description, ClientHandler sourceHandler, Collection<ClientHandler> recipients) {
+        String sourceId = sourceHandler != null ? sourceHandler.getClientId() : null;
+        List<ClientHandler> targets = new ArrayList<>(recipients.size());
+        for (ClientHandler handler : recipients) {
+            if (handler != sourceHandler && handler.getClientId() != null && !handler.getClientId().equals(sourceId)) {
+                targets.add(handler);
+            } else if (handler.getClientId() == null) {
+                log("Skipping broadcast to handler " + handler.getClientAddress() + " as Client ID is null.");
+            }
+        }
+        Object shared = frame instanceof OutgoingTransfer || targets.size() < 2 ? frame : new EncodedFrame(frame);
+        for (ClientHandler handler : targets) {
+            handler.sendFrame(shared, description);
+        }
+    }
+
+    private static String describeSource(ClientHandler sourceHandler) {
+        if (sourceHandler == null) {
+            return "server";
+        }
+        return sourceHandler.getClientAddress() + " (ID: " + (sourceHandler.getClientId() != null ? sourceHandler.getClientId() : "N/A") + ")";
+    }
+
+    // The bound port (useful when started on port 0), or -1 before start() has bound the socket
+    public int getLocalPort() {
+        ServerSocket socket = serverSocket;
+        return socket != null ? socket.getLocalPort() : -1;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    // Total upload bandwidth (client to server) shared by all clients; takes effect immediately
+    public void setGlobalUploadLimit(long bytesPerSecond) {
+        uploadLimiter.setRate(bytesPerSecond);
+        log("Global upload limit set to " + describeLimit(bytesPerSecond));
+    }
+
+    // Total broadcast bandwidth (server to clients) shared by all clients
+    public void setGlobalDownloadLimit(long bytesPerSecond) {
+        downloadLimiter.setRate(bytesPerSecond);
+        log("Global download limit set to " + describeLimit(bytesPerSecond));
+    }
+
+    public long getGlobalUploadLimit() {
+        return uploadLimiter.getRate();
+    }
+
+    public long getGlobalDownloadLimit() {
+        return downloadLimiter.getRate();
+    }
+
+    // Default per-client limits, applied to connected clients and to those that connect later
+    public void setClientLimits(long uploadBytesPerSecond, long downloadBytesPerSecond) {
+        clientUploadLimit = uploadBytesPerSecond;
+        clientDownloadLimit = downloadBytesPerSecond;
+        for (ClientHandler handler : clientHandlersById.values()) {
+            handler.uploadBucket.setRate(uploadBytesPerSecond);
+            handler.downloadBucket.setRate(downloadBytesPerSecond);
+        }
+        log("Per-client limits set to " + describeLimit(uploadBytesPerSecond) + " up, " + describeLimit(downloadBytesPerSecond) + " down");
+    }
+
+    public long getClientUploadLimit() {
+        return clientUploadLimit;
+    }
+
+    public long getClientDownloadLimit() {
+        return clientDownloadLimit;
+    }
+
+    // Overrides the limits for one connected client until it disconnects. Returns false if no such client.
+    public boolean setClientLimits(String clientId, long uploadBytesPerSecond, long downloadBytesPerSecond) {
+        ClientHandler handler = clientHandlersById.get(clientId);
+        if (handler == null) {
+            return false;
+        }
+        handler.uploadBucket.setRate(uploadBytesPerSecond);
+        handler.downloadBucket.setRate(downloadBytesPerSecond);
+        log("Limits for client " + clientId + " set to " + describeLimit(uploadBytesPerSecond) + " up, " + describeLimit(downloadBytesPerSecond) + " down");
+        return true;
+    }
+
+    // Relative share of the global limits while clients compete for them (default 1)
+    public boolean setClientWeight(String clientId, int weight) {
+        ClientHandler handler = clientHandlersById.get(clientId);
+        if (handler == null || weight < 1) {
+            return false;
+        }
+        handler.weight = weight;
+        log("Bandwidth weight for client " + clientId + " set to " + weight);
+        return true;
+    }
+
+    private static String describeLimit(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? bytesPerSecond + " B/s" : "unlimited";
+    }
+
+    // Slowest recent event handling, broadcasts and handshakes
+    public List<SlowOperationLog.Entry> getSlowOperations() {
+        return slowOperations.getSlowest();
+    }
+
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> stats = new ArrayList<>();
+        for (ClientHandler handler : clientHandlersById.values()) {
+            stats.add(handler.getStats());
+        }
+        return stats;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public String getServerFilesDir() {
+        return serverFilesDir;
+    }
+
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    // Memory for cached file content, DEFAULT_CONTENT_CACHE_BYTES unless set; 0 disables the cache
+    public void setContentCacheSize(long bytes) {
+        contentCache.setMaxBytes(bytes);
+        log("Content cache size set to " + bytes + " bytes");
+    }
+
+    // Saves the current state of server_files under the given name. Files not in the history yet
+    // are recorded first; after that only metadata is written, whatever the size of the files.
+    public int createSnapshot(String name) throws IOException {
+        versions.baseline(Paths.get(serverFilesDir));
+        int files = versions.createSnapshot(name);
+        log("Snapshot " + name + " created (" + files + " files)");
+        return files;
+    }
+
+    public List<String> listSnapshots() throws IOException {
+        return versions.listSnapshots();
     }
 
-    public void setGui(FileSyncServerGUI gui) {
-        this.gui = gui;
+    public boolean deleteSnapshot(String name) throws IOException {
+        return versions.deleteSnapshot(name);
     }
 
-    private void log(String message) {
-        if (gui != null) {
-            gui.addLogEntry(message);
-        } else {
-            System.out.println(message);
-        }
+    // Oldest first
+    public List<VersionStore.Version> getHistory(String relativePath) {
+        return versions.getHistory(relativePath);
     }
 
-    public void start() {
-        try {
-            serverSocket = new ServerSocket(port);
-            log("Server started on port: " + port);
-            log("Server files directory: " + new File(SERVER_FILES_DIR).getAbsolutePath());
+    public void setRetentionPolicy(VersionStore.RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+        log("Version retention: " + retentionPolicy);
+    }
 
-            while (!serverSocket.isClosed()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    // Client ID will be read by the ClientHandler itself.
-                    // Initial log before ID is known can be minimal or done in ClientHandler.
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    clientHandlerPool.submit(clientHandler);
-                } catch (SocketException se) { // More specific exception
-                    if (serverSocket.isClosed()) {
-                        log("Server socket closed, stopping accepting new clients.");
-                    } else {
-                        log("SocketException while accepting client connection: " + se.getMessage());
-                    }
-                } catch (IOException e) {
-                    if (serverSocket.isClosed()) {
-                        log("Server socket closed, stopping accepting new clients (IOException).");
-                    } else {
-                        log("IOException accepting client connection: " + e.getMessage());
-                    }
-                }
-            }
+    // Drops the versions the retention policy no longer keeps. Runs daily on its own.
+    public int pruneVersions() {
+        try {
+            int deleted = versions.prune(retentionPolicy);
+            log("Pruned version history (" + retentionPolicy + "): " + deleted + " stored versions deleted");
+            return deleted;
         } catch (IOException e) {
-            log("Could not start server on port " + port + ": " + e.getMessage());
+            log("Error pruning version history: " + e.getMessage());
+            return 0;
         }
     }
 
-    public void stop() {
-        log("Stopping server...");
-        clientHandlerPool.shutdown();
-        try {
-            if (!clientHandlerPool.awaitTermination(5, TimeUnit.SECONDS)) {
-                clientHandlerPool.shutdownNow();
-            }
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+    // Puts a file back as it was at the given version of its history, which deletes it if that
+    // version was a delete. Clients get it like any other commit. Returns false if the version is
+    // unknown or is what the file already has.
+    public synchronized boolean restoreVersion(String relativePath, long version) throws IOException {
+        VersionStore.Version entry = versions.getVersion(relativePath, version);
+        if (entry == null) {
+            log("No version " + version + " of " + relativePath + " in the history");
+            return false;
+        }
+        List<FileEvent> deletes = new ArrayList<>();
+        boolean restored = restore(relativePath, entry.getContentHash(), deletes);
+        broadcastEvents(deletes, null);
+        publishCommitted(deletes, null);
+        if (restored) {
+            log("Restored " + relativePath + " to version " + version);
+        }
+        return restored;
+    }
+
+    // Puts server_files, or the part of it under prefix ("" for all of it), back as it was when the
+    // snapshot was taken: files are restored and files added since are deleted. Returns the number
+    // of files changed.
+    public synchronized int restoreSnapshot(String name, String prefix) throws IOException {
+        Map<String, String> manifest = versions.readSnapshot(name);
+        Set<String> current = new TreeSet<>();
+        File base = new File(serverFilesDir, prefix.replace('/', File.separatorChar));
+        if (base.isDirectory()) {
+            Set<String> below = new HashSet<>();
+            collectFilePathsRecursively(base, "", below);
+            for (String path : below) {
+                current.add((prefix.isEmpty() ? "" : prefix + "/") + path.replace(File.separatorChar, '/'));
             }
-            for (ClientHandler handler : clientHandlersById.values()) { // Iterate over map values
-                handler.closeConnection();
+        } else if (base.isFile()) {
+            current.add(prefix);
+        }
+        List<FileEvent> deletes = new ArrayList<>();
+        int changed = 0;
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            if (PathSubscription.hasPrefix(entry.getKey(), prefix)) {
+                current.remove(entry.getKey());
+                changed += restoreLogged(entry.getKey(), entry.getValue(), deletes);
             }
-            clientHandlersById.clear(); // Clear the map
-            log("Server stopped.");
-        } catch (IOException e) {
-            log("Error closing server socket: " + e.getMessage());
-        } catch (InterruptedException e) {
-            log("Server stop interrupted: " + e.getMessage());
-            clientHandlerPool.shutdownNow();
-            Thread.currentThread().interrupt();
         }
+        for (String added : current) {
+            changed += restoreLogged(added, null, deletes);
+        }
+        broadcastEvents(deletes, null);
+        publishCommitted(deletes, null);
+        log("Restored snapshot " + name + (prefix.isEmpty() ? "" : " under " + prefix) + ": " + changed + " files changed");
+        return changed;
     }
 
-    void removeClient(ClientHandler clientHandler) {
-        if (clientHandler.getClientId() != null) {
-            clientHandlersById.remove(clientHandler.getClientId(), clientHandler); // More specific removal
-            log("Client disconnected and removed: " + clientHandler.getClientAddress() + " (ID: " + clientHandler.getClientId() + ")");
-        } else {
-            // This case should be less common if ID is established early or client is always added with an ID.
-            log("Client disconnected and removed: " + clientHandler.getClientAddress() + " (ID not available or not yet set in map)");
+    private int restoreLogged(String relativePath, String contentHash, List<FileEvent> deletes) {
+        try {
+            return restore(relativePath, contentHash, deletes) ? 1 : 0;
+        } catch (IOException e) {
+            log("Error restoring " + relativePath + ": " + e.getMessage());
+            return 0;
         }
     }
 
-    synchronized void handleFileEvent(FileEvent event, ClientHandler sourceHandler) {
-        String relativePathFromClient = event.getRelativePath();
-        String relativePath = relativePathFromClient.replace('/', File.separatorChar);
-        String fullPath = SERVER_FILES_DIR + File.separator + relativePath;
-        File file = new File(fullPath);
-
-        log("Received event: " + event.getEventType() + " for " + relativePathFromClient +
-            " (normalized to " + relativePath + ") from " + sourceHandler.getClientAddress() +
-            " (ID: " + (sourceHandler.getClientId() != null ? sourceHandler.getClientId() : "N/A") + ")");
-
-        try {
-            FileEvent.EventType eventType = event.getEventType();
-            if (eventType == FileEvent.EventType.CREATE || eventType == FileEvent.EventType.MODIFY) {
-                File parentDir = file.getParentFile();
-                if (parentDir != null && !parentDir.exists()) {
-                    if (!parentDir.mkdirs()) {
-                        log("Error creating parent directories for " + fullPath);
-                        return;
-                    }
-                }
-                Files.write(file.toPath(), event.getFileData(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                log("File " + (eventType == FileEvent.EventType.CREATE ? "created" : "modified") + ": " + relativePath);
-                broadcastEvent(event, sourceHandler); // Broadcast after successful local write
-            } else if (eventType == FileEvent.EventType.DELETE) {
-                if (file.exists()) {
-                    if (Files.deleteIfExists(file.toPath())) {
-                        log("File deleted: " + relativePath);
-                        broadcastEvent(event, sourceHandler); // Broadcast after successful local delete
-                    } else {
-                        log("Error deleting file: " + relativePath);
-                    }
-                } else {
-                    log("File to delete not found: " + relativePath);
-                }
+    // Links the stored content into place (or deletes the file if contentHash is null) as a new
+    // version. Content is broadcast right away as a transfer read from disk; deletes are collected
+    // for the caller to broadcast. Called with the server lock held.
+    private boolean restore(String relativePath, String contentHash, List<FileEvent> deletes) throws IOException {
+        Path file = Paths.get(serverFilesDir, relativePath.replace('/', File.separatorChar));
+        boolean exists = Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS);
+        if (contentHash == null) {
+            if (!exists) {
+                return false;
             }
-        } catch (IOException e) {
-            log("Error processing file event for " + relativePath + ": " + e.getMessage());
+            preserveUntracked(relativePath, file);
+            Files.delete(file);
+            long version = fileVersions.merge(relativePath, 1L, Long::sum);
+            fileHashes.remove(relativePath);
+            recordDelete(relativePath, version);
+            deletes.add(new FileEvent(FileEvent.EventType.DELETE, relativePath, null, null, version));
+            return true;
+        }
+        if (exists && contentHash.equals(currentContentHash(relativePath))) {
+            return false;
+        }
+        preserveUntracked(relativePath, file);
+        Files.createDirectories(file.getParent());
+        Path staged = stagingDir.resolve(UUID.randomUUID() + ".restore");
+        try {
+            versions.linkTo(contentHash, staged);
+            moveIntoPlace(staged, file);
+        } finally {
+            Files.deleteIfExists(staged);
         }
+        long version = fileVersions.merge(relativePath, 1L, Long::sum);
+        fileHashes.put(relativePath, contentHash);
+        recordCommit(relativePath, file, version, contentHash);
+        FileEvent.EventType eventType = exists ? FileEvent.EventType.MODIFY : FileEvent.EventType.CREATE;
+        broadcastFrame(new OutgoingTransfer(UUID.randomUUID().toString(), eventType, relativePath, Files.size(file),
+                contentHash, version, 0L), eventType + " for " + relativePath, null, subscriptions.match(relativePath));
+        publishCommitted(List.of(new FileEvent(eventType, relativePath, null, contentHash, version)), null);
+        return true;
     }
 
-    private void broadcastEvent(FileEvent event, ClientHandler sourceHandler) {
-        for (ClientHandler handler : clientHandlersById.values()) {
-            if (handler != sourceHandler && handler.getClientId() != null && !handler.getClientId().equals(sourceHandler.getClientId())) {
-                handler.sendFileEvent(event);
-            } else if (handler == sourceHandler) {
-            } else if (handler.getClientId() == null) {
-                log("Skipping broadcast to handler " + handler.getClientAddress() + " as Client ID is null.");
+    // Paths are relative to currentDir's root, joined with File.separator
+    static void collectFilePathsRecursively(File currentDir, String relativePath, Set<String> filePaths) {
+        File[] files = currentDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String newRelativePath = relativePath.isEmpty() ? file.getName() : relativePath + File.separator + file.getName();
+                if (file.isDirectory()) {
+                    collectFilePathsRecursively(file, newRelativePath, filePaths);
+                } else {
+                    filePaths.add(newRelativePath);
+                }
             }
         }
     }
 
+    // java FileSyncServer [port] [metricsPort] [--dir server_files] [--cluster host:port,... [--node host:port]]
+    //                    [--standby-of host:port [--takeover-after seconds]] [--max-lag millis]
+    //                    [--relay-for host:port] [--max-backlog bytes]
+    // --cluster lists every node of a sharded cluster, this one included; --node says which one
+    // this is (by default the one with this port). --standby-of makes this server follow a primary
+    // and take over once it has been unreachable for --takeover-after seconds (30; 0 never).
+    // --max-lag bounds how far this server's own standbys may fall behind. --relay-for makes this
+    // server the edge relay of the central server at host:port. --max-backlog is how many bytes of
+    // frames may wait for one client before it is disconnected as lagging (64 MB).
     public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        String serverFilesDir = SERVER_FILES_DIR;
+        String clusterNodes = null;
+        String nodeId = null;
+        String primary = null;
+        String central = null;
+        long takeoverAfterSeconds = 30;
+        long maxLagMillis = DEFAULT_MAX_REPLICATION_LAG_MS;
+        long maxBacklogBytes = DEFAULT_MAX_CLIENT_BACKLOG_BYTES;
+        String secretFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--dir") && i + 1 < args.length) {
+                serverFilesDir = args[++i];
+            } else if (args[i].equals("--cluster") && i + 1 < args.length) {
+                clusterNodes = args[++i];
+            } else if (args[i].equals("--node") && i + 1 < args.length) {
+                nodeId = args[++i];
+            } else if (args[i].equals("--standby-of") && i + 1 < args.length) {
+                primary = args[++i];
+            } else if (args[i].equals("--relay-for") && i + 1 < args.length) {
+                central = args[++i];
+            } else if (args[i].equals("--takeover-after") && i + 1 < args.length) {
+                takeoverAfterSeconds = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--max-lag") && i + 1 < args.length) {
+                maxLagMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--max-backlog") && i + 1 < args.length) {
+                maxBacklogBytes = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--secret-file") && i + 1 < args.length) {
+                secretFile = args[++i];
+            } else {
+                positional.add(args[i]);
+            }
+        }
         int portArg = DEFAULT_PORT;
-        if (args.length > 0) {
+        if (positional.size() > 0) {
+            try {
+                portArg = Integer.parseInt(positional.get(0));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid port number: " + positional.get(0) + ". Using default port " + DEFAULT_PORT);
+            }
+        }
+        FileSyncServer server = new FileSyncServer(portArg, serverFilesDir);
+        if (secretFile != null) {
+            try {
+                server.setNodeSecret(NodeAuth.readSecret(Paths.get(secretFile)));
+            } catch (IOException e) {
+                System.err.println("Cannot read --secret-file " + secretFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (positional.size() > 1) {
             try {
-                portArg = Integer.parseInt(args[0]);
+                server.setMetricsHttpPort(Integer.parseInt(positional.get(1)));
             } catch (NumberFormatException e) {
-                System.err.println("Invalid port number: " + args[0] + ". Using default port " + DEFAULT_PORT);
+                System.err.println("Invalid metrics port: " + positional.get(1) + ". Metrics HTTP endpoint disabled.");
+            }
+        }
+        if (clusterNodes != null) {
+            List<String> nodes = ServerCluster.parseNodes(clusterNodes);
+            if (nodeId == null) {
+                for (String node : nodes) {
+                    if (node.endsWith(":" + portArg)) {
+                        nodeId = node;
+                    }
+                }
+            }
+            server.setCluster(new ServerCluster(nodeId != null ? nodeId : "localhost:" + portArg, nodes, serverFilesDir));
+        }
+        if (primary != null) {
+            if (clusterNodes != null) {
+                System.err.println("A cluster node cannot be a standby; ignoring --standby-of " + primary);
+            } else {
+                server.setStandby(new StandbyReplica(primary, TimeUnit.SECONDS.toMillis(takeoverAfterSeconds)));
+            }
+        }
+        if (central != null) {
+            if (clusterNodes != null || primary != null) {
+                System.err.println("A cluster node or standby cannot be an edge relay; ignoring --relay-for " + central);
+            } else {
+                server.setRelay(new EdgeRelay(central, serverFilesDir));
             }
         }
-        FileSyncServer server = new FileSyncServer(portArg);
+        server.setMaxReplicationLag(maxLagMillis);
+        server.setMaxClientBacklog(maxBacklogBytes);
         server.start();
     }
 
@@ -170,41 +2004,164 @@ public class FileSyncServer {
         private final FileSyncServer server;
         private ObjectInputStream input;
         private ObjectOutputStream output;
+        private OutputStream rawOutput; // The stream under output, for writing EncodedFrames
         private final String clientAddress;
         private volatile boolean streamsInitialized = false;
         private String clientId; // Unique ID for this client connection
+        private volatile PathSubscription subscription = PathSubscription.ALL;
         private final Object outputLock = new Object(); // Dedicated lock for output stream operations
+        // Broadcasts are queued and written by this client's writer thread, so a slow or throttled
+        // client never holds up handleFileEvent (which broadcasts under the server lock). The queue
+        // is bounded by queuedBytes rather than by blocking: a sender that waited here would hold
+        // the server lock, and every other client with it, to the pace of the slowest.
+        private final BlockingQueue<OutboundFrame> outboundQueue = new LinkedBlockingQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong(); // Estimated heap held by the frames in outboundQueue
+        private volatile OutboundFrame writing; // The frame the writer has taken off the queue, until it is written
+        // Peer grants, written ahead of outboundQueue: the client a grant is for asks this peer for
+        // blocks right away, while a large transfer queued here may take minutes to go out
+        private final Queue<OutboundFrame> urgentFrames = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean lagging = new AtomicBoolean(); // Set once this client is dropped for its backlog
+        private final TokenBucket uploadBucket;
+        private final TokenBucket downloadBucket;
+        private volatile int weight = 1;
+        private volatile boolean supportsTransfers = false; // Set once the client sends ResumeDownloads
+        private volatile boolean supportsMoves = false;     // Set for clients that handshake with a ClientHello
+        private volatile String peerNodeId; // Set if this is another cluster node's link rather than a client
+        private volatile StandbyReplica.Progress standbyProgress; // Set if this is a standby or edge relay following this server
+        private volatile int peerPort; // Where the client serves blocks to other clients, 0 if it doesn't
+        private final AtomicInteger pendingSends = new AtomicInteger(); // Frames waiting for or being written to this client
+        private final LongAdder eventsQueued = new LongAdder();   // Events handed to sendFrame
+        private final LongAdder eventsSent = new LongAdder();     // ... and written to the socket
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final long connectedAtMillis = System.currentTimeMillis();
 
         public ClientHandler(Socket socket, FileSyncServer server) {
             this.clientSocket = socket;
             this.server = server;
             this.clientAddress = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            this.uploadBucket = new TokenBucket(server.clientUploadLimit);
+            this.downloadBucket = new TokenBucket(server.clientDownloadLimit);
+        }
+
+        private void throttleUpload(int bytes) throws InterruptedException {
+            uploadBucket.acquire(bytes);
+            server.uploadLimiter.acquire(this, weight, bytes);
+        }
+
+        private void throttleDownload(int bytes) throws InterruptedException {
+            downloadBucket.acquire(bytes);
+            server.downloadLimiter.acquire(this, weight, bytes);
         }
 
         public String getClientId() {
             return clientId;
         }
 
+        ClientStats getStats() {
+            return new ClientStats(clientId, clientAddress, connectedAtMillis, pendingSends.get(),
+                    eventsQueued.sum(), eventsSent.sum(), bytesSent.sum(), bytesReceived.sum());
+        }
+
+        String pendingSendsMetricName() {
+            return "server.handler." + clientId + ".pendingSends";
+        }
+
         private boolean initializeStreamsAndReadClientId() {
+            long handshakeStartNanos = System.nanoTime();
             try {
                 // Set a timeout for reading the client ID and initial handshake on the server side
                 clientSocket.setSoTimeout(20000); // 20 seconds server-side timeout for handshake
 
                 server.log("ClientHandler for " + clientAddress + ": Initializing streams. Creating OOS...");
-                output = new ObjectOutputStream(clientSocket.getOutputStream());
+                SocketSettings.configure(clientSocket);
+                rawOutput = new BufferedOutputStream(new ThrottledOutputStream(
+                        new CountingOutputStream(new CountingOutputStream(clientSocket.getOutputStream(), server.bytesSent), bytesSent),
+                        this::throttleDownload), SocketSettings.STREAM_BUFFER_SIZE);
+                output = new ObjectOutputStream(rawOutput);
                 output.flush(); // Important to flush after creating OOS
                 server.log("ClientHandler for " + clientAddress + ": Server OOS created and flushed. Creating OIS...");
 
-                input = new ObjectInputStream(clientSocket.getInputStream());
+                input = new ObjectInputStream(new BufferedInputStream(new ThrottledInputStream(
+                        new CountingInputStream(new CountingInputStream(clientSocket.getInputStream(), server.bytesReceived), bytesReceived),
+                        this::throttleUpload), SocketSettings.STREAM_BUFFER_SIZE));
                 server.log("ClientHandler for " + clientAddress + ": Server OIS created.");
 
                 server.log("ClientHandler for " + clientAddress + ": Attempting to read Client ID object (timeout: 20s)...");
-                this.clientId = (String) input.readObject(); // Read client ID
-                server.log("ClientHandler for " + clientAddress + " (ID: " + this.clientId + "): Client ID received: " + this.clientId);
+                Object hello = input.readObject(); // Client ID, or a ClientHello with the paths it subscribes to
+                if (hello instanceof ClientHello clientHello) {
+                    this.clientId = clientHello.getClientId();
+                    this.subscription = clientHello.getSubscription();
+                    this.supportsMoves = true;
+                    if (clientHello.getHashScheme() != ContentHash.SCHEME) {
+                        // Its hashes wouldn't match ours, so every large file it sent would be rejected
+                        String reason = "content hash scheme " + clientHello.getHashScheme() + " is not this server's scheme " +
+                                ContentHash.SCHEME + "; upgrade the client and server together";
+                        server.log("Turning away " + clientAddress + " (ID: " + clientId + "): " + reason);
+                        writeFrame(reason);
+                        closeConnection();
+                        return false;
+                    }
+                } else {
+                    this.clientId = (String) hello;
+                }
+                server.log("ClientHandler for " + clientAddress + " (ID: " + this.clientId + "): Client ID received: " + this.clientId +
+                        (subscription.isEverything() ? "" : ", subscribed to " + subscription));
+                StandbyReplica standby = server.standby;
+                if (standby != null && !standby.acceptsClients()) {
+                    server.log("Turning away " + clientAddress + " (ID: " + clientId + "), this server is a standby of " + standby.getPrimary());
+                    closeConnection();
+                    return false;
+                }
+                boolean relay = clientId.startsWith(EdgeRelay.RELAY_ID_PREFIX);
+                if (relay || clientId.startsWith(StandbyReplica.STANDBY_ID_PREFIX)) {
+                    if (server.cluster != null || server.relay != null) {
+                        server.log("Turning away " + clientId + ", a cluster node or edge relay cannot be followed");
+                        closeConnection();
+                        return false;
+                    }
+                    if (!authenticateServerLink(false)) {
+                        closeConnection();
+                        return false;
+                    }
+                    // Gets a manifest of its own and then every broadcast, followed by marks (see sendFrame)
+                    clientSocket.setSoTimeout(0);
+                    server.registerFollower(this, relay);
+                    return true;
+                }
+                if (server.cluster != null && clientId.startsWith(ServerCluster.PEER_ID_PREFIX)) {
+                    String nodeId = clientId.substring(ServerCluster.PEER_ID_PREFIX.length());
+                    // Without a secret, the address it connects from is all that vouches for it
+                    if (!server.cluster.isMember(nodeId) ||
+                            (server.nodeSecret == null && !server.cluster.isMemberAt(nodeId, clientSocket.getInetAddress()))) {
+                        server.log("Turning away " + clientId + " from " + clientAddress + ", not a member of the cluster at that address");
+                        closeConnection();
+                        return false;
+                    }
+                    if (!authenticateServerLink(true)) {
+                        closeConnection();
+                        return false;
+                    }
+                    // Another node's link: it only sends ClusterMessages and gets no broadcasts or manifest
+                    peerNodeId = nodeId;
+                    streamsInitialized = true;
+                    clientSocket.setSoTimeout(0);
+                    server.log("Cluster node " + peerNodeId + " connected from " + clientAddress);
+                    return true;
+                }
 
                 // Successfully read client ID, now add to server's map
                 // This should be done before sending manifest, so server knows about client
-                server.clientHandlersById.put(this.clientId, this);
+                ClientHandler replaced = server.clientHandlersById.put(this.clientId, this);
+                if (replaced != null) {
+                    server.subscriptions.remove(replaced); // Same client reconnecting before its old handler noticed
+                }
+                ClientHandler dropped = server.droppedLagging.remove(this.clientId);
+                if (dropped != null) {
+                    server.subscriptions.remove(dropped); // Recorded what it missed until now; resendMissed sends that
+                }
+                server.subscriptions.add(this, subscription);
+                server.metrics.gauge(pendingSendsMetricName(), pendingSends::get);
                 server.log("ClientHandler for " + clientAddress + " (ID: " + this.clientId + ") added to server's active handlers.");
 
                 streamsInitialized = true; // Mark streams as initialized AFTER ID is read and handler is registered
@@ -215,6 +2172,9 @@ public class FileSyncServer {
 
                 // Reset timeout for general operations (0 means infinite timeout)
                 clientSocket.setSoTimeout(0); 
+                long handshakeNanos = System.nanoTime() - handshakeStartNanos;
+                server.handshakeLatency.record(handshakeNanos);
+                server.slowOperations.record("handshake", clientAddress, handshakeNanos);
                 return true;
             } catch (SocketTimeoutException e) {
                 server.log("ClientHandler for " + clientAddress + ": SocketTimeoutException during handshake. Client may not have sent ID or responded in time (20s). " + e.getMessage());
@@ -232,24 +2192,275 @@ public class FileSyncServer {
             }
         }
 
+        // Challenges a link claiming to be another server to prove it holds the server's secret
+        // (see NodeAuth). A cluster node may go without when the server has none, as its address
+        // has been checked against the cluster's members instead.
+        private boolean authenticateServerLink(boolean clusterNode) throws IOException, ClassNotFoundException {
+            String challenge = NodeAuth.newChallenge();
+            output.writeObject(challenge);
+            output.flush();
+            Object response = input.readObject();
+            String secret = server.nodeSecret;
+            if (secret == null) {
+                if (clusterNode) {
+                    return true;
+                }
+                server.log("Turning away " + clientId + " from " + clientAddress + ", standbys and relays need a --secret-file on both servers");
+                return false;
+            }
+            if (!NodeAuth.verify(secret, challenge, clientId, response)) {
+                server.log("Turning away " + clientId + " from " + clientAddress + ", it failed to prove it holds this server's secret");
+                return false;
+            }
+            return true;
+        }
+
         public String getClientAddress() {
             return clientAddress;
         }
 
         public void sendFileEvent(FileEvent event) {
+            sendFrame(event, event.getEventType() + " for " + event.getRelativePath());
+        }
+
+        // Queues a FileEvent or FileEventBatch for the writer thread, which sends it with one flush
+        public void sendFrame(Object frame, String description) {
+            Object content = frame instanceof EncodedFrame encoded ? encoded.getFrame() : frame;
+            if (lagging.get()) {
+                dropLagging(content, queuedBytes.get()); // Dropped, or on its way out; only note what it misses
+                return;
+            }
             if (!streamsInitialized || output == null) {
-                server.log("Cannot send event to " + clientAddress + " (ID: " + clientId + "), streams not initialized or output is null.");
+                server.log("Cannot send " + description + " to " + clientAddress + " (ID: " + clientId + "), streams not initialized or output is null.");
                 return;
             }
-            try {
-                server.log("Attempting to send event " + event.getEventType() + " for " + event.getRelativePath() + " to " + clientAddress + " (ID: " + clientId + ")");
-                synchronized (outputLock) { // Use the final lock object
-                    output.writeObject(event);
-                    output.flush();
+            int eventCount = content instanceof FileEventBatch batch ? batch.size()
+                    : content instanceof TransferStatus || content instanceof ReplicationMessage || content instanceof PeerMessage ? 0 : 1;
+            long bytes = EncodedFrame.estimatedSize(content);
+            if (!reserve(bytes, content)) {
+                return;
+            }
+            eventsQueued.add(eventCount);
+            if (content instanceof PeerMessage) {
+                // Written between the chunks of a transfer under way, or when the marker comes up
+                pendingSends.incrementAndGet();
+                urgentFrames.add(new OutboundFrame(frame, description, eventCount, bytes));
+                outboundQueue.add(new OutboundFrame(OutboundFrame.URGENT, description, 0, 0));
+                return;
+            }
+            StandbyReplica.Progress progress = standbyProgress;
+            if (progress == null || content instanceof ReplicationMessage) {
+                pendingSends.incrementAndGet();
+                outboundQueue.add(new OutboundFrame(frame, description, eventCount, bytes));
+                return;
+            }
+            synchronized (progress) { // Marks are numbered in queue order
+                long now = System.currentTimeMillis();
+                pendingSends.addAndGet(2);
+                outboundQueue.add(new OutboundFrame(frame, description, eventCount, bytes));
+                outboundQueue.add(new OutboundFrame(ReplicationMessage.mark(progress.mark(now), now), "replication mark", 0, 0));
+            }
+        }
+
+        // Counts a frame's bytes against the backlog limit, or drops the client if they would take
+        // it past the limit. A frame larger than the limit on its own still goes to an idle client.
+        private boolean reserve(long bytes, Object content) {
+            long backlog = queuedBytes.addAndGet(bytes);
+            if (backlog <= server.maxClientBacklogBytes || backlog == bytes) {
+                return true;
+            }
+            queuedBytes.addAndGet(-bytes);
+            dropLagging(content, backlog);
+            return false;
+        }
+
+        // Disconnects a client too far behind to catch up. Closing the socket fails the writer's
+        // and reader's pending I/O, and they clean up as for any lost connection; closeConnection
+        // itself could block flushing to a client that isn't reading. A plain client is sent the
+        // current state of whatever it missed, up to when it reconnects; a standby or relay
+        // reconciles with the manifest it gets on reconnecting, as after any disconnect.
+        private void dropLagging(Object refused, long backlog) {
+            boolean first = lagging.compareAndSet(false, true);
+            if (peerNodeId == null && standbyProgress == null && clientId != null) {
+                Map<String, FileEvent.EventType> missed = new LinkedHashMap<>();
+                collectPaths(refused, missed);
+                if (first) {
+                    collectPaths(writing, missed);
+                    for (OutboundFrame queued : outboundQueue) {
+                        collectPaths(queued, missed);
+                    }
+                    collectPaths(writing, missed); // Taken off the queue while it was being read
                 }
-                server.log("Successfully sent event " + event.getEventType() + " for " + event.getRelativePath() + " to " + clientAddress + " (ID: " + clientId + ")");
+                server.recordMissed(clientId, missed);
+                if (first) {
+                    server.droppedLagging.put(clientId, this);
+                }
+            }
+            if (!first) {
+                return;
+            }
+            server.clientsDroppedLagging.increment();
+            server.log("Client " + clientAddress + " (ID: " + clientId + ") has " + backlog + " bytes of frames queued, more than " +
+                    server.maxClientBacklogBytes + ", disconnecting it");
+            try {
+                clientSocket.close();
             } catch (IOException e) {
-                server.log("Error sending event to client " + clientAddress + " (ID: " + clientId + ") (" + event.getEventType() + " for " + event.getRelativePath() + "): " + e.getMessage());
+                // Closed already
+            }
+        }
+
+        private static void collectPaths(OutboundFrame queued, Map<String, FileEvent.EventType> paths) {
+            if (queued != null && queued != OutboundFrame.CLOSE) {
+                collectPaths(queued.frame, paths);
+            }
+        }
+
+        // The paths whose changes frame carries, with the type of each change
+        private static void collectPaths(Object frame, Map<String, FileEvent.EventType> paths) {
+            if (frame instanceof EncodedFrame encoded) {
+                collectPaths(encoded.getFrame(), paths);
+            } else if (frame instanceof FileEventBatch batch) {
+                for (FileEvent event : batch.getEvents()) {
+                    collectPaths(event, paths);
+                }
+            } else if (frame instanceof FileEvent event) {
+                if (event.getEventType() == FileEvent.EventType.MOVE) {
+                    paths.put(event.getSourcePath(), FileEvent.EventType.DELETE);
+                }
+                paths.put(event.getRelativePath(), event.getEventType());
+            } else if (frame instanceof OutgoingTransfer transfer) {
+                paths.put(transfer.relativePath, transfer.eventType);
+            }
+        }
+
+        void sendTransferStatus(TransferStatus status) {
+            sendFrame(status, "transfer status " + status.getCommittedBytes() + " for " + status.getTransferId());
+        }
+
+        private void runWriterLoop() {
+            try {
+                while (true) {
+                    OutboundFrame next = standbyProgress != null
+                            ? outboundQueue.poll(StandbyReplica.HEARTBEAT_MS, TimeUnit.MILLISECONDS) : outboundQueue.take();
+                    if (next == null) {
+                        // An idle standby hears from us anyway, so it can tell a quiet primary from a dead one
+                        pendingSends.incrementAndGet();
+                        next = new OutboundFrame(ReplicationMessage.heartbeat(), "heartbeat", 0, 0);
+                    }
+                    if (next == OutboundFrame.CLOSE) {
+                        break;
+                    }
+                    writing = next;
+                    try {
+                        server.log("Attempting to send " + next.description + " to " + clientAddress + " (ID: " + clientId + ")");
+                        if (next.frame == OutboundFrame.URGENT) {
+                            writeUrgentFrames(); // Unless they went out during a transfer already
+                        } else if (next.frame instanceof OutgoingTransfer transfer) {
+                            writeTransfer(transfer);
+                        } else if (next.frame instanceof EncodedFrame encoded) {
+                            writeEncoded(encoded.getBytes());
+                        } else {
+                            writeFrame(next.frame);
+                        }
+                        eventsSent.add(next.eventCount);
+                        server.slowOperations.record("sendFrame", next.description, System.nanoTime() - next.queuedAtNanos);
+                        server.log("Successfully sent " + next.description + " to " + clientAddress + " (ID: " + clientId + ")");
+                    } catch (IOException e) {
+                        server.log("Error sending " + next.description + " to client " + clientAddress + " (ID: " + clientId + "): " + e.getMessage());
+                        closeConnection(); // Also ends the reader loop
+                        break;
+                    } finally {
+                        writing = null;
+                        queuedBytes.addAndGet(-next.bytes);
+                        pendingSends.decrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pendingSends.addAndGet(-outboundQueue.size());
+                outboundQueue.clear();
+                urgentFrames.clear();
+                queuedBytes.set(0);
+            }
+        }
+
+        private void writeFrame(Object frame) throws IOException {
+            synchronized (outputLock) { // Use the final lock object
+                if (output == null) {
+                    throw new IOException("Stream closed");
+                }
+                output.writeObject(frame);
+                output.flush();
+                output.reset(); // Don't keep back-references to every broadcast file's data
+            }
+        }
+
+        private void writeUrgentFrames() throws IOException {
+            OutboundFrame urgent;
+            while ((urgent = urgentFrames.poll()) != null) {
+                writeFrame(urgent.frame);
+                queuedBytes.addAndGet(-urgent.bytes);
+            }
+        }
+
+        private void writeEncoded(byte[] encoded) throws IOException {
+            synchronized (outputLock) {
+                if (output == null) {
+                    throw new IOException("Stream closed");
+                }
+                EncodedFrame.writeTo(output, rawOutput, encoded);
+            }
+        }
+
+        // Sends a committed file: chunk by chunk from transfer.startOffset to clients that can
+        // resume, as a single FileEvent to those that can't (the GUI client) and when it is small
+        // enough not to need a transfer (the content of a MOVE, see routeMove). Content comes from
+        // the server's cache, so a file going to many clients is read from disk once.
+        private void writeTransfer(OutgoingTransfer transfer) throws IOException {
+            FileChannel channel = server.openCommittedFile(transfer.relativePath, transfer.contentHash);
+            if (channel == null) {
+                // Overwritten since; the newer commit is broadcast on its own
+                server.log("Skipping transfer of " + transfer.relativePath + " to " + clientAddress + " (ID: " + clientId + "), file has changed.");
+                if (transfer.startOffset > 0) {
+                    writeFrame(new TransferStatus(transfer.transferId, TransferStatus.FAILED));
+                }
+                return;
+            }
+            try (channel) {
+                PeerOffer offer = supportsTransfers ? server.peerOffer(transfer, this, channel) : null;
+                if (offer != null) {
+                    server.log("Offering " + transfer.relativePath + " to " + clientAddress + " (ID: " + clientId + ") from peers " + offer.getPeers());
+                    writeFrame(offer);
+                    return;
+                }
+                if (!supportsTransfers || (!TransferChunk.isChunked(transfer.totalSize) && transfer.startOffset == 0)) {
+                    int size = (int) transfer.totalSize;
+                    writeEncoded(server.contentCache.get(transfer.frameKey(false, 0, size), () -> EncodedFrame.encode(
+                            new FileEvent(transfer.eventType, transfer.relativePath, readFully(channel, 0, size),
+                                    transfer.contentHash, transfer.version))));
+                    return;
+                }
+                long offset = transfer.startOffset;
+                while (offset < transfer.totalSize) {
+                    // Chunk boundaries stay aligned after a resume, so resumed transfers share cache entries
+                    int length = (int) Math.min(TransferChunk.CHUNK_SIZE - offset % TransferChunk.CHUNK_SIZE, transfer.totalSize - offset);
+                    long chunkOffset = offset;
+                    byte[] encoded;
+                    try {
+                        encoded = server.contentCache.get(transfer.frameKey(true, chunkOffset, length), () -> EncodedFrame.encode(
+                                new TransferChunk(transfer.transferId, transfer.relativePath, transfer.eventType, transfer.totalSize,
+                                        transfer.contentHash, transfer.version, chunkOffset, readFully(channel, chunkOffset, length))));
+                    } catch (EOFException e) {
+                        // Shorter than committed; the client drops the partial copy
+                        server.log("Transfer of " + transfer.relativePath + " ended early: " + e.getMessage());
+                        writeFrame(new TransferStatus(transfer.transferId, TransferStatus.FAILED));
+                        return;
+                    }
+                    writeUrgentFrames();
+                    writeEncoded(encoded);
+                    offset += length;
+                }
             }
         }
 
@@ -268,15 +2479,39 @@ public class FileSyncServer {
             server.log("ClientHandler for [" + clientAddress + "] (ID: [" + currentId + "]) proceeding after successful init.");
 
             try {
-                sendExistingFilesToClient();
+                if (peerNodeId == null && standbyProgress == null) {
+                    sendExistingFilesToClient();
+                    server.resendMissed(this);
+                }
+                Thread writer = new Thread(this::runWriterLoop, "FileSyncServer-ClientWriter-" + clientAddress);
+                writer.setDaemon(true);
+                writer.start();
 
                 while (streamsInitialized && !clientSocket.isClosed() && clientSocket.isConnected()) {
                     server.log("ClientHandler for [" + clientAddress + "] (ID: [" + clientId + "]) waiting to read object...");
                     Object obj = input.readObject();
                     if (obj != null) {
                         server.log("ClientHandler for " + clientAddress + " (ID: " + clientId + ") received object of type: " + obj.getClass().getName());
+                        if (obj instanceof FileEvent || obj instanceof FileEventBatch || obj instanceof TransferChunk) {
+                            server.awaitStandbys();
+                        }
                         if (obj instanceof FileEvent fileEvent) { // instanceof pattern
                             server.handleFileEvent(fileEvent, this);
+                        } else if (obj instanceof FileEventBatch batch) {
+                            server.handleFileEventBatch(batch, this);
+                        } else if (obj instanceof TransferChunk chunk) {
+                            server.handleTransferChunk(chunk, this);
+                        } else if (obj instanceof TransferQuery query) {
+                            server.handleTransferQuery(query, this);
+                        } else if (obj instanceof ResumeDownloads resume) {
+                            supportsTransfers = true;
+                            server.resumeDownloads(resume, this);
+                        } else if (obj instanceof ClusterMessage message && peerNodeId != null) {
+                            server.cluster.receive(message);
+                        } else if (obj instanceof ReplicationMessage message && standbyProgress != null) {
+                            server.handleReplication(message, this);
+                        } else if (obj instanceof PeerMessage message) {
+                            server.handlePeerMessage(message, this);
                         } else {
                             server.log("Received unknown object type from " + clientAddress + " (ID: " + clientId + "): " + obj.getClass().getName());
                         }
@@ -311,7 +2546,15 @@ public class FileSyncServer {
 
             // Changed from List<String> to Set<String>
             Set<String> filePaths = new HashSet<>(); 
-            collectFilePathsRecursively(new File(server.SERVER_FILES_DIR), "", filePaths);
+            collectFilePathsRecursively(new File(server.serverFilesDir), "", filePaths);
+            if (server.cluster != null) {
+                for (String path : server.cluster.remotePaths()) { // The other nodes' shards
+                    filePaths.add(path.replace('/', File.separatorChar));
+                }
+            }
+            if (!subscription.isEverything()) {
+                filePaths.removeIf(path -> !subscription.matches(path));
+            }
 
             server.log("Attempting to send file manifest (" + filePaths.size() + " paths) to client " + clientDesc);
             try {
@@ -326,21 +2569,6 @@ public class FileSyncServer {
             }
         }
 
-        // Changed parameter from List<String> to Set<String>
-        private void collectFilePathsRecursively(File currentDir, String relativePath, Set<String> filePaths) {
-            File[] files = currentDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    String newRelativePath = relativePath.isEmpty() ? file.getName() : relativePath + File.separator + file.getName();
-                    if (file.isDirectory()) {
-                        collectFilePathsRecursively(file, newRelativePath, filePaths);
-                    } else {
-                        filePaths.add(newRelativePath);
-                    }
-                }
-            }
-        }
-
         public void closeConnection() {
             String logClientId = (this.clientId != null) ? this.clientId : "N/A_at_close";
             if (!streamsInitialized && clientSocket != null && clientSocket.isClosed() && output == null && input == null) {
@@ -349,6 +2577,7 @@ public class FileSyncServer {
             server.log("Closing connection for client [" + clientAddress + "] (ID: [" + logClientId + "]) (Streams initialized: " + streamsInitialized + ", Socket closed: " + (clientSocket == null ? "null" : clientSocket.isClosed()) + ")");
             
             streamsInitialized = false; // Mark streams as unusable immediately
+            outboundQueue.add(OutboundFrame.CLOSE); // Stops the writer once it is done with the current frame
 
             try {
                 if (output != null) {
@@ -375,4 +2604,90 @@ public class FileSyncServer {
             }
         }
     }
+
+    // A committed file queued for one client's writer, which reads it from disk when its turn
+    // comes instead of holding the whole file in memory while it waits
+    // The clients serving peers that hold one file's content, or are fetching it and hold a prefix
+    private static final class PeerSwarm {
+        final String contentHash;
+        final Set<ClientHandler> holders = ConcurrentHashMap.newKeySet();
+        final Set<ClientHandler> fetchers = ConcurrentHashMap.newKeySet();
+        private List<String> blockHashes; // Computed for the first offer
+
+        PeerSwarm(String contentHash) {
+            this.contentHash = contentHash;
+        }
+
+        void remove(ClientHandler handler) {
+            holders.remove(handler);
+            fetchers.remove(handler);
+        }
+
+        void addPeers(Set<ClientHandler> members, ClientHandler exclude, List<ClientHandler> peers) {
+            List<ClientHandler> shuffled = new ArrayList<>(members);
+            Collections.shuffle(shuffled);
+            for (ClientHandler member : shuffled) {
+                if (peers.size() >= MAX_OFFERED_PEERS) {
+                    return;
+                }
+                if (member != exclude && member.peerPort > 0 && !peers.contains(member)) {
+                    peers.add(member);
+                }
+            }
+        }
+
+        // The hash of each TransferChunk.CHUNK_SIZE block, which the fetching clients check peers' blocks against
+        synchronized List<String> blockHashes(FileChannel channel, long totalSize) throws IOException {
+            if (blockHashes == null) {
+                blockHashes = ContentHash.leafHashes(channel, totalSize); // The leaves of the file's tree hash
+            }
+            return blockHashes;
+        }
+    }
+
+    private static final class OutgoingTransfer {
+        final String transferId;
+        final FileEvent.EventType eventType;
+        final String relativePath;
+        final long totalSize;
+        final String contentHash;
+        final long version;
+        final long startOffset;
+
+        OutgoingTransfer(String transferId, FileEvent.EventType eventType, String relativePath, long totalSize,
+                         String contentHash, long version, long startOffset) {
+            this.transferId = transferId;
+            this.eventType = eventType;
+            this.relativePath = relativePath;
+            this.totalSize = totalSize;
+            this.contentHash = contentHash;
+            this.version = version;
+            this.startOffset = startOffset;
+        }
+
+        // Cache key for the encoded frame carrying [offset, offset + length) of this file, as a
+        // TransferChunk or (chunked == false) a whole FileEvent. It covers every field the frame holds.
+        String frameKey(boolean chunked, long offset, int length) {
+            return (chunked ? transferId : "event") + ':' + eventType + ':' + version + ':' + relativePath + ':' +
+                    ContentCache.key(contentHash, offset, length);
+        }
+    }
+
+    private static final class OutboundFrame {
+        static final OutboundFrame CLOSE = new OutboundFrame(null, "close", 0, 0);
+        static final Object URGENT = new Object(); // The frame of a marker that has the writer send urgentFrames
+
+        final Object frame;
+        final String description;
+        final int eventCount;
+        final long bytes; // Counted in the handler's queuedBytes until written
+        final long queuedAtNanos = System.nanoTime();
+
+        OutboundFrame(Object frame, String description, int eventCount, long bytes) {
+            this.frame = frame;
+            this.description = description;
+            this.eventCount = eventCount;
+            this.bytes = bytes;
+        }
+    }
 }
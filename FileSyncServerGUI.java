@@ -2,6 +2,7 @@ import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import javax.swing.*;
@@ -11,15 +12,18 @@ public class FileSyncServerGUI extends JFrame {
     private JTextArea logArea;
     private JButton startButton;
     private JButton stopButton;
+    private JButton snapshotButton;
+    private JButton restoreButton;
     private JTextField portField;
     private JLabel statusLabel;
+    private ServerPerformancePanel performancePanel;
     private FileSyncServer server;
     private Thread serverThread;
     private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
 
     public FileSyncServerGUI() {
         setTitle("File Sync Server");
-        setSize(600, 400);
+        setSize(800, 600);
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE); // Correct constant
         setLocationRelativeTo(null);
 
@@ -53,6 +57,16 @@ public class FileSyncServerGUI extends JFrame {
         stopButton.addActionListener(e -> stopServer());
         stopButton.setEnabled(false);
         controlPanel.add(stopButton);
+
+        snapshotButton = new JButton("Snapshot...");
+        snapshotButton.addActionListener(e -> createSnapshot());
+        snapshotButton.setEnabled(false);
+        controlPanel.add(snapshotButton);
+
+        restoreButton = new JButton("Restore...");
+        restoreButton.addActionListener(e -> restore());
+        restoreButton.setEnabled(false);
+        controlPanel.add(restoreButton);
         mainPanel.add(controlPanel, BorderLayout.NORTH);
 
         // Log Area
@@ -60,7 +74,14 @@ public class FileSyncServerGUI extends JFrame {
         logArea.setEditable(false);
         logArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12)); // Correct Font usage
         JScrollPane scrollPane = new JScrollPane(logArea);
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
+
+        // Performance dashboard, refreshed while the server runs
+        performancePanel = new ServerPerformancePanel();
+
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Log", scrollPane);
+        tabs.addTab("Performance", performancePanel);
+        mainPanel.add(tabs, BorderLayout.CENTER);
 
         // Status Label
         statusLabel = new JLabel("Server not running.");
@@ -84,14 +105,18 @@ public class FileSyncServerGUI extends JFrame {
 
         serverThread = new Thread(server::start);
         serverThread.start();
+        performancePanel.setServer(server);
 
         startButton.setEnabled(false);
         stopButton.setEnabled(true);
+        snapshotButton.setEnabled(true);
+        restoreButton.setEnabled(true);
         portField.setEnabled(false);
         statusLabel.setText("Server running on port " + port + ". Files in: " + new File(FileSyncServer.SERVER_FILES_DIR).getAbsolutePath());
     }
 
     private void stopServer() {
+        performancePanel.setServer(null);
         if (server != null) {
             server.stop(); // This will also close the server socket and stop the thread
         }
@@ -108,11 +133,70 @@ public class FileSyncServerGUI extends JFrame {
 
         startButton.setEnabled(true);
         stopButton.setEnabled(false);
+        snapshotButton.setEnabled(false);
+        restoreButton.setEnabled(false);
         portField.setEnabled(true);
         statusLabel.setText("Server stopped.");
         addLogEntry("Server has been stopped by GUI action.");
     }
 
+    private void createSnapshot() {
+        String name = JOptionPane.showInputDialog(this, "Snapshot name:",
+                "snapshot-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+        if (name == null || name.trim().isEmpty()) {
+            return;
+        }
+        FileSyncServer target = server;
+        runVersionTask(() -> target.createSnapshot(name.trim()));
+    }
+
+    // Restores a file to a version number from its history, or a file or directory ("" for all of
+    // server_files) to a snapshot
+    private void restore() {
+        FileSyncServer target = server;
+        String snapshots;
+        try {
+            snapshots = String.join(", ", target.listSnapshots());
+        } catch (IOException e) {
+            snapshots = "";
+        }
+        String path = JOptionPane.showInputDialog(this, "File or directory to restore (empty for everything):", "");
+        if (path == null) {
+            return;
+        }
+        String from = JOptionPane.showInputDialog(this, "Snapshot name" + (snapshots.isEmpty() ? "" : " (" + snapshots + ")") +
+                "\nor version number of the file:");
+        if (from == null || from.trim().isEmpty()) {
+            return;
+        }
+        String relativePath = path.trim().replace('\\', '/');
+        String source = from.trim();
+        if (source.matches("\\d+")) {
+            runVersionTask(() -> target.restoreVersion(relativePath, Long.parseLong(source)));
+        } else {
+            runVersionTask(() -> target.restoreSnapshot(source, relativePath));
+        }
+    }
+
+    private interface VersionTask {
+        Object run() throws IOException;
+    }
+
+    // Off the event thread: a snapshot may first record files that have no history yet
+    private void runVersionTask(VersionTask task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                addLogEntry("Error: " + e.getMessage());
+                SwingUtilities.invokeLater(() ->
+                        JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE));
+            }
+        }, "FileSyncServerGUI-Versions");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     public void addLogEntry(String message) {
         String timestamp = timeFormat.format(new Date());
         SwingUtilities.invokeLater(() -> {
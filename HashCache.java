@@ -0,0 +1,262 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Content hashes of a client's local files, kept across restarts in <directory>.filesync/hashes so
+// that a file is read and hashed once per change rather than once per scan. An entry is valid
+// while the file's key (its inode, where available), size and mtime in nanoseconds are what they
+// were when it was hashed; any difference and the file is hashed again. Entries are found by path,
+// or by file key for a file that was renamed since.
+//
+// A write that lands in the same mtime tick as the read that hashed the file leaves the mtime
+// unchanged, so an entry is only trusted once its mtime is older than the read by more than the
+// filesystem's timestamp granularity (see isRacy). Until then the file is hashed each time.
+public class HashCache {
+    // v2: ContentHash became a tree hash for content over one leaf, so v1 hashes of large files are stale
+    private static final String HEADER = "# filesync hash cache v2: hash, size, mtime ns, hashed at ns, file key, path";
+    private static final long FINE_RACY_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // mtimes with sub-second parts
+    private static final long COARSE_RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);     // FAT and other whole-second mtimes
+    private static final long SAVE_INTERVAL_MS = 30_000;
+
+    // What a stat of the file returned, and when it was taken
+    static final class Stat {
+        final String fileKey; // Null where the filesystem has none
+        final long size;
+        final long mtimeNanos;
+        final long takenAtNanos; // Wall clock, epoch nanoseconds
+
+        Stat(String fileKey, long size, long mtimeNanos, long takenAtNanos) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.mtimeNanos = mtimeNanos;
+            this.takenAtNanos = takenAtNanos;
+        }
+
+        boolean sameFile(Stat other) {
+            return size == other.size && mtimeNanos == other.mtimeNanos && Objects.equals(fileKey, other.fileKey);
+        }
+    }
+
+    private static final class Entry {
+        final String relativePath;
+        final Stat stat; // takenAtNanos is when the hashed read started
+        final String contentHash;
+
+        Entry(String relativePath, Stat stat, String contentHash) {
+            this.relativePath = relativePath;
+            this.stat = stat;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> byPath = new HashMap<>();
+    private final Map<String, Entry> byFileKey = new HashMap<>();
+    private boolean dirty;
+    private long lastSaveMillis = System.currentTimeMillis();
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder hashedBytes;
+
+    public HashCache(Path file, MetricsRegistry metrics) {
+        this.file = file;
+        this.hits = metrics.counter("client.hashCache.hits");
+        this.misses = metrics.counter("client.hashCache.misses");
+        this.hashedBytes = metrics.counter("client.hashCache.hashed.bytes");
+        metrics.gauge("client.hashCache.entries", this::size);
+        load();
+    }
+
+    public static Stat stat(Path file) throws IOException {
+        return stat(Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    // From attributes just read, e.g. by a tree walk
+    public static Stat stat(BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        return new Stat(fileKey != null ? fileKey.toString() : null, attrs.size(),
+                attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+    }
+
+    // The hash of the file as stat found it, or null if it has to be read
+    public synchronized String lookup(String relativePath, Stat stat) {
+        Entry entry = byPath.get(relativePath);
+        if (entry == null || !entry.stat.sameFile(stat)) {
+            entry = stat.fileKey != null ? byFileKey.get(stat.fileKey) : null; // Renamed since it was hashed?
+        }
+        if (entry == null || !entry.stat.sameFile(stat) || isRacy(entry.stat)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.contentHash;
+    }
+
+    // The file's hash, from the cache if it hasn't changed since it was last hashed, otherwise
+    // read (streamed, not buffered) and remembered
+    public String hash(Path fullPath, String relativePath) throws IOException {
+        return hash(fullPath, relativePath, stat(fullPath));
+    }
+
+    // As hash, for a file the caller has just taken before from
+    public String hash(Path fullPath, String relativePath, Stat before) throws IOException {
+        String cached = lookup(relativePath, before);
+        if (cached != null) {
+            return cached;
+        }
+        String contentHash = ContentHash.of(fullPath);
+        hashedBytes.add(before.size);
+        record(relativePath, fullPath, before, contentHash);
+        return contentHash;
+    }
+
+    // Remembers the hash of content read from the file after before was taken, if the file still
+    // looks the same now (it wasn't written to while being read)
+    public void record(String relativePath, Path fullPath, Stat before, String contentHash) {
+        Stat now;
+        try {
+            now = stat(fullPath);
+        } catch (IOException e) {
+            return;
+        }
+        if (now.sameFile(before)) {
+            put(new Entry(relativePath, before, contentHash));
+        }
+    }
+
+    // Remembers the hash of content this client has just written to the file itself (a download)
+    public void recordWritten(String relativePath, Path fullPath, String contentHash) {
+        try {
+            Stat written = stat(fullPath);
+            // Taken as hashed a full window after the write, so the entry is trusted at once: any
+            // later write to the file is someone else's, just as the client's sync state assumes
+            put(new Entry(relativePath, new Stat(written.fileKey, written.size, written.mtimeNanos,
+                    Math.max(written.takenAtNanos, written.mtimeNanos + COARSE_RACY_WINDOW_NANOS + 1)), contentHash));
+        } catch (IOException e) {
+            // Hashed again when next needed
+        }
+    }
+
+    public synchronized void remove(String relativePath) {
+        Entry entry = byPath.remove(relativePath);
+        if (entry != null) {
+            if (entry.stat.fileKey != null && byFileKey.get(entry.stat.fileKey) == entry) {
+                byFileKey.remove(entry.stat.fileKey);
+            }
+            dirty = true;
+        }
+    }
+
+    private void retainAll(Set<String> tracked) {
+        for (String relativePath : byPath.keySet().toArray(new String[0])) {
+            if (!tracked.contains(relativePath)) {
+                remove(relativePath);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return byPath.size();
+    }
+
+    // Saves if anything changed and SAVE_INTERVAL_MS has passed since the last save, first
+    // dropping the entries of paths not in tracked (deleted, or now ignored)
+    public synchronized void saveIfDue(Set<String> tracked) {
+        if (!dirty || System.currentTimeMillis() - lastSaveMillis < SAVE_INTERVAL_MS) {
+            return;
+        }
+        retainAll(tracked);
+        save();
+    }
+
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(HEADER);
+                out.newLine();
+                for (Entry entry : byPath.values()) {
+                    Stat stat = entry.stat;
+                    out.write(entry.contentHash + '\t' + stat.size + '\t' + stat.mtimeNanos + '\t' + stat.takenAtNanos + '\t' +
+                            (stat.fileKey != null ? stat.fileKey : "-") + '\t' + entry.relativePath);
+                    out.newLine();
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty = false;
+            lastSaveMillis = System.currentTimeMillis();
+        } catch (IOException e) {
+            System.err.println("HashCache: Error saving " + file + ", files will be hashed again after a restart: " + e.getMessage());
+        }
+    }
+
+    private synchronized void put(Entry entry) {
+        if (entry.relativePath.indexOf('\t') >= 0 || entry.relativePath.indexOf('\n') >= 0 ||
+                (entry.stat.fileKey != null && entry.stat.fileKey.indexOf('\t') >= 0) || isRacy(entry.stat)) {
+            return; // Can't be saved on one line, or would not be trusted anyway
+        }
+        remove(entry.relativePath);
+        byPath.put(entry.relativePath, entry);
+        if (entry.stat.fileKey != null) {
+            byFileKey.put(entry.stat.fileKey, entry);
+        }
+        dirty = true;
+    }
+
+    // True if the file may have been written to in the mtime tick it was hashed in
+    private static boolean isRacy(Stat hashed) {
+        long window = hashed.mtimeNanos % TimeUnit.SECONDS.toNanos(1) != 0 ? FINE_RACY_WINDOW_NANOS : COARSE_RACY_WINDOW_NANOS;
+        return hashed.mtimeNanos >= hashed.takenAtNanos - window;
+    }
+
+    // A missing or unreadable cache only costs hashing everything once
+    private void load() {
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+                System.err.println("HashCache: " + file + " is from another version, starting empty");
+                return;
+            }
+            for (String line : lines) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 6);
+                if (fields.length < 6) {
+                    continue;
+                }
+                Stat stat = new Stat(fields[4].equals("-") ? null : fields[4], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                put(new Entry(fields[5], stat, fields[0]));
+            }
+        } catch (NoSuchFileException e) {
+            // First run
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("HashCache: Could not read " + file + ", starting empty: " + e.getMessage());
+            byPath.clear();
+            byFileKey.clear();
+        }
+        dirty = false;
+    }
+}
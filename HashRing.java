@@ -0,0 +1,73 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hashing of keys onto nodes. Each node is placed on a ring of 64-bit positions at a
+// number of virtual points, and a key belongs to the first node at or after its own position
+// (wrapping around). Adding or removing a node therefore only moves the keys between it and its
+// neighbours, about 1/n of them, and the virtual points keep the shares even.
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> nodes = new ArrayList<>();
+    private final int virtualNodes;
+
+    public HashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        for (String node : nodes) {
+            add(node);
+        }
+    }
+
+    public synchronized void add(String node) {
+        if (nodes.contains(node)) {
+            return;
+        }
+        nodes.add(node);
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(position(node + "#" + i), node);
+        }
+    }
+
+    public synchronized void remove(String node) {
+        if (nodes.remove(node)) {
+            ring.values().removeIf(node::equals);
+        }
+    }
+
+    public synchronized String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("No nodes in the ring");
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(position(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public synchronized List<String> getNodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    // The first 8 bytes of the key's SHA-256, which spreads similar keys ("a/1", "a/2") evenly
+    static long position(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            long position = 0;
+            for (int i = 0; i < 8; i++) {
+                position = (position << 8) | (digest[i] & 0xFF);
+            }
+            return position;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
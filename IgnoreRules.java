@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Paths a client leaves alone, read from a .syncignore file at the root of its directory. The
+// syntax is that of .gitignore: one pattern per line, '#' comments, '!' to re-include, a trailing
+// '/' for directories only, and a pattern containing a '/' anchored at the root while one without
+// matches a name at any depth. As in git, nothing below an ignored directory can be re-included.
+//
+// Rules are compiled once: plain names become string comparisons and only wildcard patterns
+// become regexes (see PathSubscription.compileGlob).
+public class IgnoreRules {
+    public static final String FILE_NAME = ".syncignore";
+    public static final IgnoreRules NONE = new IgnoreRules(List.of());
+
+    private static final class Rule {
+        final boolean negated;
+        final boolean directoryOnly;
+        final boolean anchored;   // Matched against the whole relative path rather than the last segment
+        final String literal;     // Set when the pattern has no wildcards
+        final Pattern glob;
+
+        Rule(boolean negated, boolean directoryOnly, boolean anchored, String pattern) {
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            this.literal = PathSubscription.isGlob(pattern) ? null : pattern;
+            this.glob = literal == null ? PathSubscription.compileGlob(pattern) : null;
+        }
+
+        boolean matches(String relativePath, String name, boolean isDirectory) {
+            if (directoryOnly && !isDirectory) {
+                return false;
+            }
+            String subject = anchored ? relativePath : name;
+            return literal != null ? literal.equals(subject) : glob.matcher(subject).matches();
+        }
+    }
+
+    private final List<Rule> rules;
+
+    private IgnoreRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    // The rules in root/.syncignore, or NONE if there is no such file
+    public static IgnoreRules load(Path root) throws IOException {
+        Path file = root.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return NONE;
+        }
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    public static IgnoreRules parse(List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        for (String line : lines) {
+            String pattern = stripTrailingSpaces(line);
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                continue;
+            }
+            boolean negated = false;
+            if (pattern.startsWith("!")) {
+                negated = true;
+                pattern = pattern.substring(1);
+            } else if (pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            while (pattern.endsWith("/")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.indexOf('/') >= 0;
+            while (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            rules.add(new Rule(negated, directoryOnly, anchored, pattern.replace("\\ ", " ")));
+        }
+        return new IgnoreRules(rules);
+    }
+
+    // Trailing spaces are dropped unless escaped with a backslash
+    private static String stripTrailingSpaces(String line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && !(end > 1 && line.charAt(end - 2) == '\\')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    // Whether the path is ignored, by its own rules or because a directory above it is. Tree
+    // walks that skip ignored directories only need matches() for what they visit.
+    public boolean isIgnored(String relativePath, boolean isDirectory) {
+        if (rules.isEmpty()) {
+            return false;
+        }
+        for (int slash = relativePath.indexOf('/'); slash >= 0; slash = relativePath.indexOf('/', slash + 1)) {
+            if (matches(relativePath.substring(0, slash), true)) {
+                return true;
+            }
+        }
+        return matches(relativePath, isDirectory);
+    }
+
+    // Whether the path's own last matching rule ignores it; later rules override earlier ones
+    public boolean matches(String relativePath, boolean isDirectory) {
+        if (rules.isEmpty()) {
+            return false;
+        }
+        String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            Rule rule = rules.get(i);
+            if (rule.matches(relativePath, name, isDirectory)) {
+                return !rule.negated;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads a large file region by region through memory-mapped windows, so a client can send it as
+// TransferChunks without holding the whole file on the heap. Each region is copied once, from
+// the page cache into the caller's array, which the caller can reuse from chunk to chunk. A
+// plain read into a heap buffer copies twice, through a temporary direct buffer.
+//
+// Windows are WINDOW_SIZE and mapped as they are reached; the JVM unmaps them once they are
+// collected. A file cut short under a mapping faults on access, which the JVM reports as an
+// InternalError; read turns that into an IOException like any other failed read.
+public class MappedFileReader implements Closeable {
+    static final long WINDOW_SIZE = 64L * 1024 * 1024; // A multiple of TransferChunk.CHUNK_SIZE, so chunks don't straddle windows
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    // size is the length the file had when it was hashed; a file that is shorter now has changed
+    public MappedFileReader(Path file, long size) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = size;
+        if (channel.size() < size) {
+            channel.close();
+            throw new IOException(file + " is shorter than the " + size + " bytes it was hashed at");
+        }
+    }
+
+    // Copies length bytes of the file at offset into into[0, length)
+    public void read(long offset, byte[] into, int length) throws IOException {
+        if (offset < 0 || offset + length > size) {
+            throw new IllegalArgumentException("Region [" + offset + ", " + (offset + length) + ") is outside " + size + " bytes");
+        }
+        int done = 0;
+        while (done < length) {
+            long position = offset + done;
+            if (window == null || position < windowStart || position >= windowStart + window.capacity()) {
+                windowStart = position - position % WINDOW_SIZE;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+            }
+            int n = (int) Math.min(length - done, windowStart + window.capacity() - position);
+            try {
+                window.get((int) (position - windowStart), into, done, n);
+            } catch (InternalError e) {
+                throw new IOException("File was truncated while being read", e);
+            }
+            done += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,160 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Publishes a MetricsRegistry as a read-only JMX MBean and, optionally, as plain text over HTTP
+// on the loopback interface (GET /metrics). Both read the registry on demand; nothing is
+// collected in the background.
+public class MetricsEndpoint {
+    private final ObjectName objectName;
+    private final HttpServer httpServer;
+    private final ExecutorService httpExecutor;
+
+    private MetricsEndpoint(ObjectName objectName, HttpServer httpServer, ExecutorService httpExecutor) {
+        this.objectName = objectName;
+        this.httpServer = httpServer;
+        this.httpExecutor = httpExecutor;
+    }
+
+    // jmxName is an ObjectName such as "FileSync:type=Server,port=8000". httpPort < 0 disables
+    // the HTTP endpoint; 0 picks a free port (see getHttpPort()).
+    public static MetricsEndpoint start(MetricsRegistry registry, String jmxName, int httpPort) throws IOException {
+        ObjectName objectName = null;
+        try {
+            objectName = new ObjectName(jmxName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new RegistryMBean(registry), objectName);
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean " + jmxName + ": " + e.getMessage());
+            objectName = null;
+        }
+
+        HttpServer httpServer = null;
+        ExecutorService httpExecutor = null;
+        if (httpPort >= 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            httpServer.createContext("/metrics", exchange -> writeMetrics(exchange, registry));
+            httpExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "FileSync-MetricsHttp");
+                thread.setDaemon(true);
+                return thread;
+            });
+            httpServer.setExecutor(httpExecutor);
+            httpServer.start();
+        }
+        return new MetricsEndpoint(objectName, httpServer, httpExecutor);
+    }
+
+    private static void writeMetrics(HttpExchange exchange, MetricsRegistry registry) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // The bound HTTP port, or -1 if HTTP is disabled
+    public int getHttpPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : -1;
+    }
+
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdown();
+        }
+        if (objectName != null) {
+            try {
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                System.err.println("Could not unregister metrics MBean " + objectName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Each flattened metric is a read-only Long attribute. The attribute set follows the registry,
+    // so per-client gauges appear and disappear as clients connect and leave.
+    private static final class RegistryMBean implements DynamicMBean {
+        private final MetricsRegistry registry;
+
+        RegistryMBean(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = registry.snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> snapshot = registry.snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                Long value = snapshot.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metric attributes are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : registry.snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "FileSync metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Proof that a link claiming to be another server (a cluster node, standby or edge relay) is one.
+// Those links get the server's whole store and can commit changes for clients, so their client
+// IDs are not taken on trust. After reading such an ID the server sends a random challenge, and
+// the other server replies with the HMAC-SHA256 of the challenge and its ID under the secret both
+// were started with (--secret-file). Without a secret it replies with an empty string, which only
+// a cluster node connecting from a member's address gets away with (see ServerCluster.isMemberAt).
+public final class NodeAuth {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_BYTES = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private NodeAuth() {
+    }
+
+    // Whether clientId is one a server links with to another
+    static boolean isServerLink(String clientId) {
+        return clientId.startsWith(ServerCluster.PEER_ID_PREFIX) || clientId.startsWith(StandbyReplica.STANDBY_ID_PREFIX) ||
+                clientId.startsWith(EdgeRelay.RELAY_ID_PREFIX);
+    }
+
+    static String newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        return ContentHash.toHex(challenge);
+    }
+
+    // What linkId answers to challenge with secret, which may be null
+    static String respond(String secret, String challenge, String linkId) {
+        if (secret == null) {
+            return "";
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            mac.update(challenge.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(linkId.getBytes(StandardCharsets.UTF_8));
+            return ContentHash.toHex(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            // Every JRE is required to ship HmacSHA256
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    static boolean verify(String secret, String challenge, String linkId, Object response) {
+        return secret != null && response instanceof String answer && MessageDigest.isEqual(
+                respond(secret, challenge, linkId).getBytes(StandardCharsets.UTF_8), answer.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The secret in file: its first line, which must not be empty
+    public static String readSecret(Path file) throws IOException {
+        String secret = Files.readString(file, StandardCharsets.UTF_8).lines().findFirst().orElse("").strip();
+        if (secret.isEmpty()) {
+            throw new IOException("No secret in " + file);
+        }
+        return secret;
+    }
+
+    // The linking side: reads the server's challenge and returns the answer to send back
+    static String answer(Object challenge, String secret, String linkId) throws IOException {
+        if (!(challenge instanceof String text)) {
+            throw new IOException("Expected an authentication challenge, got " + (challenge != null ? challenge.getClass().getName() : "null"));
+        }
+        return respond(secret, text, linkId);
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Which paths a client syncs: a path is included if it matches any include pattern (or there are
+// none) and no exclude pattern. Patterns are relative paths with '/' separators, either a plain
+// prefix ("projects/alpha" covers that file or directory and everything below it) or a glob
+// ("docs/**/*.md"): '*' and '?' stay within one path segment, '**' spans segments.
+public class PathSubscription implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final PathSubscription ALL = new PathSubscription(List.of(), List.of());
+
+    private final List<String> includes;
+    private final List<String> excludes;
+    private transient volatile List<Pattern> includeGlobs; // Compiled on first use, also after deserialization
+    private transient volatile List<Pattern> excludeGlobs;
+
+    public PathSubscription(List<String> includes, List<String> excludes) {
+        this.includes = Collections.unmodifiableList(normalize(includes));
+        this.excludes = Collections.unmodifiableList(normalize(excludes));
+    }
+
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    public boolean isEverything() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    public boolean matches(String relativePath) {
+        return (includes.isEmpty() || isIncluded(relativePath)) && !isExcluded(relativePath);
+    }
+
+    boolean isIncluded(String relativePath) {
+        return matchesAny(includes, includeGlobs(), relativePath);
+    }
+
+    boolean isExcluded(String relativePath) {
+        return matchesAny(excludes, excludeGlobs(), relativePath);
+    }
+
+    // Whether every path under the directory is included, so an operation on the whole tree can be
+    // applied as one. Conservative: glob includes never cover, and any glob exclude or plain exclude
+    // reaching into the tree breaks it.
+    public boolean coversTree(String directory) {
+        boolean included = includes.isEmpty();
+        for (String include : includes) {
+            if (!isGlob(include) && hasPrefix(directory, include)) {
+                included = true;
+            }
+        }
+        if (!included) {
+            return false;
+        }
+        for (String exclude : excludes) {
+            if (isGlob(exclude) || hasPrefix(exclude, directory) || hasPrefix(directory, exclude)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether a plain exclude covers the directory, so nothing under it is included
+    boolean excludesTree(String directory) {
+        for (String exclude : excludes) {
+            if (!isGlob(exclude) && hasPrefix(directory, exclude)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(List<String> patterns, List<Pattern> globs, String relativePath) {
+        for (int i = 0; i < patterns.size(); i++) {
+            Pattern glob = globs.get(i);
+            if (glob != null ? glob.matcher(relativePath).matches() : hasPrefix(relativePath, patterns.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Prefix on a segment boundary: "a/b" covers "a/b" and "a/b/c", not "a/bc"
+    static boolean hasPrefix(String relativePath, String prefix) {
+        return prefix.isEmpty() || relativePath.equals(prefix) ||
+                (relativePath.startsWith(prefix) && relativePath.charAt(prefix.length()) == '/');
+    }
+
+    static boolean isGlob(String pattern) {
+        return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0 || pattern.indexOf('[') >= 0;
+    }
+
+    // The directory part of a pattern before its first wildcard segment, which every match lies
+    // under: "docs/**/*.md" -> "docs", "*.md" -> ""
+    static String literalPrefix(String pattern) {
+        if (!isGlob(pattern)) {
+            return pattern;
+        }
+        int firstWildcard = pattern.length();
+        for (char c : new char[]{'*', '?', '['}) {
+            int i = pattern.indexOf(c);
+            if (i >= 0) {
+                firstWildcard = Math.min(firstWildcard, i);
+            }
+        }
+        int slash = pattern.lastIndexOf('/', firstWildcard);
+        return slash < 0 ? "" : pattern.substring(0, slash);
+    }
+
+    // Glob to regex. '*' and '?' don't cross '/', "**/" matches zero or more whole segments, a
+    // trailing "/**" everything below, [...] is a character class as in the shell, and a backslash
+    // makes the character after it literal.
+    static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else {
+                        regex.append(".*");
+                        i += 1;
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[') {
+                int close = glob.indexOf(']', i + 2);
+                if (close < 0) {
+                    regex.append("\\[");
+                } else {
+                    String body = glob.substring(i + 1, close);
+                    if (body.startsWith("!")) {
+                        body = "^" + body.substring(1);
+                    }
+                    regex.append('[').append(body.replace("\\", "\\\\")).append(']');
+                    i = close;
+                }
+            } else if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            } else if ("\\.^$+{}()|".indexOf(c) >= 0) {
+                regex.append('\\').append(c);
+            } else {
+                regex.append(c);
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private List<Pattern> includeGlobs() {
+        if (includeGlobs == null) {
+            includeGlobs = compileAll(includes);
+        }
+        return includeGlobs;
+    }
+
+    private List<Pattern> excludeGlobs() {
+        if (excludeGlobs == null) {
+            excludeGlobs = compileAll(excludes);
+        }
+        return excludeGlobs;
+    }
+
+    // Null entries for plain prefixes
+    private static List<Pattern> compileAll(List<String> patterns) {
+        List<Pattern> compiled = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            compiled.add(isGlob(pattern) ? compileGlob(pattern) : null);
+        }
+        return compiled;
+    }
+
+    private static List<String> normalize(List<String> patterns) {
+        List<String> normalized = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            String p = pattern.trim().replace('\\', '/');
+            while (p.startsWith("/")) {
+                p = p.substring(1);
+            }
+            while (p.endsWith("/")) {
+                p = p.substring(0, p.length() - 1);
+            }
+            normalized.add(p);
+        }
+        return normalized;
+    }
+
+    @Override
+    public String toString() {
+        return isEverything() ? "everything" : "include " + includes + " exclude " + excludes;
+    }
+}
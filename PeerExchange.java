@@ -0,0 +1,327 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// A FileSyncClient's side of peer-assisted transfers. When many clients on one network need the
+// same large file, the server sends each of them a PeerOffer rather than the file: the hash of
+// every block and the other clients that hold the content or are fetching it too. Clients then
+// fetch the blocks from each other, so the server sends the file about once rather than once per
+// client. The server only coordinates; it never relays blocks.
+//
+// Each client serves the blocks it holds on its peer port: from a synced file with that content,
+// or from the part of a download it has received so far. Peers are asked for blocks by content
+// hash, and every block is checked against the hash in the server's offer before it is written,
+// so a peer can slow a download down but not corrupt it. A block that no peer supplies within
+// STALL_MS is left to the server, which sends the rest of the file from there.
+//
+// The peer port listens on one address, the interface facing the other clients, and serves
+// nobody it wasn't told about: with each PeerOffer the server grants the offered peers a token for
+// that content, and a GET without a granted token for the content gets no data. What a peer sends
+// is read through PEER_FILTER, so a stream carrying anything but PeerMessages is dropped before
+// any other class is instantiated from it.
+public class PeerExchange {
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final int BLOCKS_IN_FLIGHT = 4;       // Per download, spread over the peers
+    private static final long STALL_MS = 10000;          // How long to wait for some peer to have a block
+    private static final long RETRY_DELAY_MS = 200;
+    private static final long GRANT_IDLE_MS = 10 * 60 * 1000; // A grant unused for this long is dropped
+    // GETs and BLOCKs only: a PeerMessage, its Type, and at most a block of data in a byte array
+    static final ObjectInputFilter PEER_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=3;maxarray=" + TransferChunk.CHUNK_SIZE + ";PeerMessage;PeerMessage$Type;java.lang.Enum;!*");
+
+    // Where a client's peer port finds content, by hash; null if not held (or not all of the range yet)
+    interface BlockSource {
+        byte[] readBlock(String contentHash, long offset, int length) throws IOException;
+    }
+
+    // One connection to a peer, used by one block fetch at a time
+    private static final class PeerLink {
+        final PeerOffer.Peer peer;
+        private Socket socket;
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+        private boolean failed;
+
+        PeerLink(PeerOffer.Peer peer) {
+            this.peer = peer;
+        }
+
+        // The block, or null if the peer doesn't hold it (yet)
+        synchronized byte[] get(String token, String contentHash, long offset, int length) throws IOException {
+            if (failed) {
+                throw new IOException("Peer " + peer + " failed earlier");
+            }
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    SocketSettings.configure(socket);
+                    socket.connect(new InetSocketAddress(peer.getHost(), peer.getPort()), CONNECT_TIMEOUT_MS);
+                    socket.setSoTimeout(READ_TIMEOUT_MS);
+                    out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), SocketSettings.STREAM_BUFFER_SIZE));
+                    out.flush();
+                    in = filtered(socket.getInputStream());
+                }
+                out.writeObject(PeerMessage.get(token, contentHash, offset, length));
+                out.flush();
+                out.reset();
+                PeerMessage reply = (PeerMessage) in.readObject();
+                return reply.getData();
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                fail();
+                throw new IOException("Peer " + peer + ": " + e.getMessage(), e);
+            }
+        }
+
+        synchronized void fail() {
+            failed = true;
+            close();
+        }
+
+        synchronized boolean isFailed() {
+            return failed;
+        }
+
+        synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    // Content a client may be served, by the token the server granted for it
+    private static final class Grant {
+        final String contentHash;
+        volatile long lastUsedMillis = System.currentTimeMillis();
+
+        Grant(String contentHash) {
+            this.contentHash = contentHash;
+        }
+    }
+
+    private final String clientId;
+    private final BlockSource source;
+    private final Map<String, Grant> grants = new ConcurrentHashMap<>();
+    private final ServerSocket serverSocket;
+    private final ExecutorService servers;
+    private final ExecutorService fetchers;
+    private final LongAdder fetchedBytes;
+    private final LongAdder servedBytes;
+    private final LongAdder rejectedBlocks;
+    private final LongAdder refusedRequests;
+
+    // Opens the peer port (0 picks a free one) on bindAddress only
+    PeerExchange(String clientId, InetAddress bindAddress, int port, BlockSource source, MetricsRegistry metrics) throws IOException {
+        this.clientId = clientId;
+        this.source = source;
+        this.serverSocket = new ServerSocket(port, 0, bindAddress);
+        AtomicInteger threads = new AtomicInteger();
+        this.servers = Executors.newCachedThreadPool(r -> daemon(r, "FileSyncClient-PeerServer-" + threads.incrementAndGet()));
+        this.fetchers = Executors.newCachedThreadPool(r -> daemon(r, "FileSyncClient-PeerFetch-" + threads.incrementAndGet()));
+        this.fetchedBytes = metrics.counter("client.peer.fetched.bytes");
+        this.servedBytes = metrics.counter("client.peer.served.bytes");
+        this.rejectedBlocks = metrics.counter("client.peer.rejected");
+        this.refusedRequests = metrics.counter("client.peer.refused");
+        servers.execute(this::acceptLoop);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    InetAddress getAddress() {
+        return serverSocket.getInetAddress();
+    }
+
+    private static ObjectInputStream filtered(InputStream stream) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(stream, SocketSettings.STREAM_BUFFER_SIZE));
+        in.setObjectInputFilter(PEER_FILTER);
+        return in;
+    }
+
+    // From the server: serve the content with contentHash to whoever presents token
+    void grant(String token, String contentHash) {
+        long now = System.currentTimeMillis();
+        grants.values().removeIf(grant -> now - grant.lastUsedMillis > GRANT_IDLE_MS);
+        grants.put(token, new Grant(contentHash));
+    }
+
+    private boolean isGranted(String token, String contentHash) {
+        Grant grant = token != null ? grants.get(token) : null;
+        if (grant == null || !grant.contentHash.equals(contentHash)) {
+            return false;
+        }
+        grant.lastUsedMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        servers.shutdownNow();
+        fetchers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket peer = serverSocket.accept();
+                servers.execute(() -> serve(peer));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Client [" + clientId + "]: Error accepting peer connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Answers one peer's GETs until it hangs up
+    private void serve(Socket peer) {
+        try (peer) {
+            SocketSettings.configure(peer);
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(peer.getOutputStream(), SocketSettings.STREAM_BUFFER_SIZE));
+            out.flush();
+            ObjectInputStream in = filtered(peer.getInputStream());
+            while (true) {
+                PeerMessage request = (PeerMessage) in.readObject();
+                if (request.getType() != PeerMessage.Type.GET || request.getLength() <= 0 || request.getLength() > TransferChunk.CHUNK_SIZE) {
+                    return;
+                }
+                byte[] data = null;
+                if (!isGranted(request.getToken(), request.getContentHash())) {
+                    refusedRequests.increment(); // Or the grant is still on its way; the peer asks again shortly
+                } else {
+                    try {
+                        data = source.readBlock(request.getContentHash(), request.getOffset(), request.getLength());
+                    } catch (IOException e) {
+                        // Changed or moved meanwhile; the peer asks someone else
+                    }
+                }
+                out.writeObject(PeerMessage.block(request.getContentHash(), request.getOffset(), data));
+                out.flush();
+                out.reset();
+                if (data != null) {
+                    servedBytes.add(data.length);
+                }
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // The peer is done or gone
+        }
+    }
+
+    // Fetches the offered content from peers into session, in order and BLOCKS_IN_FLIGHT blocks at
+    // a time. Returns once the session is complete or some block could not be had from any peer;
+    // the caller then asks the server for the rest.
+    void fetch(PeerOffer offer, TransferStore.Session session) throws IOException, InterruptedException {
+        List<PeerLink> links = new ArrayList<>();
+        for (PeerOffer.Peer peer : offer.getPeers()) {
+            links.add(new PeerLink(peer));
+        }
+        Collections.shuffle(links); // So the clients offered the same peers don't all start on the same one
+        List<String> blockHashes = offer.getBlockHashes();
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        int nextBlock = (int) (session.getCommittedBytes() / TransferChunk.CHUNK_SIZE);
+        int writeBlock = nextBlock;
+        try {
+            while (writeBlock < blockHashes.size()) {
+                while (nextBlock < blockHashes.size() && inFlight.size() < BLOCKS_IN_FLIGHT) {
+                    int block = nextBlock++;
+                    inFlight.add(fetchers.submit(() -> fetchBlock(offer, block, links)));
+                }
+                byte[] data;
+                try {
+                    data = inFlight.poll().get();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                }
+                if (data == null) {
+                    return; // No peer has it; the server sends the rest
+                }
+                session.write((long) writeBlock * TransferChunk.CHUNK_SIZE, data);
+                writeBlock++;
+            }
+        } finally {
+            for (Future<byte[]> pending : inFlight) {
+                pending.cancel(true);
+            }
+            for (PeerLink link : links) {
+                link.close();
+            }
+        }
+    }
+
+    // Block number block from whichever peer has it, checked against the offer; null if none does
+    // within STALL_MS. Fetches start on different peers so the load spreads.
+    private byte[] fetchBlock(PeerOffer offer, int block, List<PeerLink> links) throws InterruptedException {
+        long offset = (long) block * TransferChunk.CHUNK_SIZE;
+        int length = (int) Math.min(TransferChunk.CHUNK_SIZE, offer.getTotalSize() - offset);
+        String expected = offer.getBlockHashes().get(block);
+        long deadline = System.currentTimeMillis() + STALL_MS;
+        while (System.currentTimeMillis() < deadline) {
+            boolean anyAlive = false;
+            for (int i = 0; i < links.size(); i++) {
+                PeerLink link = links.get((block + i) % links.size());
+                if (link.isFailed()) {
+                    continue;
+                }
+                anyAlive = true;
+                try {
+                    byte[] data = link.get(offer.getToken(), offer.getContentHash(), offset, length);
+                    if (data == null) {
+                        continue;
+                    }
+                    if (data.length != length || !expected.equals(ContentHash.of(data))) {
+                        rejectedBlocks.increment();
+                        System.err.println("Client [" + clientId + "]: Block " + block + " of " + offer.getRelativePath() +
+                                           " from peer " + link.peer + " failed its hash check, no longer using that peer.");
+                        link.fail();
+                        continue;
+                    }
+                    fetchedBytes.add(length);
+                    return data;
+                } catch (IOException e) {
+                    System.err.println("Client [" + clientId + "]: " + e.getMessage() + ", no longer using that peer.");
+                }
+            }
+            if (!anyAlive) {
+                return null;
+            }
+            Thread.sleep(RETRY_DELAY_MS); // The peers fetching it too may have it shortly
+        }
+        return null;
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.Serializable;
+import java.util.List;
+
+// Peer-assisted transfers (see PeerExchange):
+//   ADVERTISE  client -> server after every handshake: the port the client serves blocks on, and
+//              the large files it holds, by path and hash
+//   GRANT      server -> client, to each peer in a PeerOffer: serve the content with this hash to
+//              whoever presents this token, the one the offer carries
+//   GET        peer -> peer: a block of the content with this hash, [offset, offset + length), and
+//              the offer's token
+//   BLOCK      peer -> peer, the reply to a GET: the block, or no data if the peer doesn't hold it
+//              (or holds no grant for the token)
+public class PeerMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type { ADVERTISE, GRANT, GET, BLOCK }
+
+    public static final class Holding implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String relativePath;
+        private final String contentHash;
+
+        public Holding(String relativePath, String contentHash) {
+            this.relativePath = relativePath;
+            this.contentHash = contentHash;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+
+    private final Type type;
+    private final int port;
+    private final List<Holding> holdings;
+    private final String token;
+    private final String contentHash;
+    private final long offset;
+    private final int length;
+    private final byte[] data;
+
+    private PeerMessage(Type type, int port, List<Holding> holdings, String token, String contentHash, long offset, int length, byte[] data) {
+        this.type = type;
+        this.port = port;
+        this.holdings = holdings;
+        this.token = token;
+        this.contentHash = contentHash;
+        this.offset = offset;
+        this.length = length;
+        this.data = data;
+    }
+
+    public static PeerMessage advertise(int port, List<Holding> holdings) {
+        return new PeerMessage(Type.ADVERTISE, port, holdings, null, null, 0L, 0, null);
+    }
+
+    public static PeerMessage grant(String token, String contentHash) {
+        return new PeerMessage(Type.GRANT, 0, null, token, contentHash, 0L, 0, null);
+    }
+
+    public static PeerMessage get(String token, String contentHash, long offset, int length) {
+        return new PeerMessage(Type.GET, 0, null, token, contentHash, offset, length, null);
+    }
+
+    // data is null if the block is not held
+    public static PeerMessage block(String contentHash, long offset, byte[] data) {
+        return new PeerMessage(Type.BLOCK, 0, null, null, contentHash, offset, data != null ? data.length : 0, data);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public List<Holding> getHoldings() {
+        return holdings;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerMessage{type=" + type + (type == Type.ADVERTISE ? ", port=" + port + ", holdings=" + holdings.size()
+                : ", offset=" + offset + ", length=" + length) + '}';
+    }
+}
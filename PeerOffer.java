@@ -0,0 +1,104 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Server to client, instead of the TransferChunks of a large file, when other clients on the
+// client's network hold or are fetching the same content. It carries the hash of every
+// TransferChunk.CHUNK_SIZE block of the committed file and where to fetch the blocks (see
+// PeerExchange), with the token those peers were granted for it: they serve the content only to
+// a client that presents it. Blocks no peer can supply are asked of the server with a
+// ResumeDownloads entry for the same transferId, from the first byte missing.
+public class PeerOffer implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final class Peer implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String host;
+        private final int port;
+
+        public Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final String transferId;
+    private final String relativePath;
+    private final FileEvent.EventType eventType;
+    private final long totalSize;
+    private final String contentHash;
+    private final long version;
+    private final List<String> blockHashes;
+    private final List<Peer> peers;
+    private final String token;
+
+    public PeerOffer(String transferId, String relativePath, FileEvent.EventType eventType, long totalSize,
+                     String contentHash, long version, List<String> blockHashes, List<Peer> peers, String token) {
+        this.transferId = transferId;
+        this.relativePath = relativePath;
+        this.eventType = eventType;
+        this.totalSize = totalSize;
+        this.contentHash = contentHash;
+        this.version = version;
+        this.blockHashes = Collections.unmodifiableList(new ArrayList<>(blockHashes));
+        this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+        this.token = token;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    public FileEvent.EventType getEventType() {
+        return eventType;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<String> getBlockHashes() {
+        return blockHashes;
+    }
+
+    public List<Peer> getPeers() {
+        return peers;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerOffer{relativePath='" + relativePath + "', totalSize=" + totalSize + ", blocks=" + blockHashes.size() +
+                ", peers=" + peers + '}';
+    }
+}
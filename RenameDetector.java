@@ -0,0 +1,297 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Turns a local DELETE followed by a CREATE of the same file into a rename. A rename shows up in
+// the WatchService as a delete of the old path and a create of the new one, so deletes of synced
+// files are held here for a short window instead of being sent. A create that claims one in time
+// goes out as a MOVE with no file data; unclaimed deletes are sent once the window expires.
+//
+// A create claims a delete if it is the same file (BasicFileAttributes.fileKey(), the inode on
+// Unix) with the same size and mtime, which needs no read, or, where there is no file key or the
+// delete arrived after the create was read, if its size and content hash match.
+//
+// Directories are held the same way. A deleted directory absorbs the held deletes below it, so a
+// removed tree goes out as one DELETE_TREE, and a directory created with the same file key claims
+// the whole tree as a MOVE_TREE. Files can still be claimed out of a held tree one by one. Deletes
+// whose parent directory is already gone wait for its event rather than expiring on their own.
+public class RenameDetector {
+    public static final long DEFAULT_WINDOW_MS = 1000;
+    private static final int MAX_DEFERRALS = 30; // Windows a delete waits for its directory's event
+
+    public interface DeleteSender {
+        void sendDelete(String relativePath, boolean tree);
+    }
+
+    // A held delete: the last synced state of the file that was at path, or a directory and the
+    // held files that were under it
+    public static final class Candidate {
+        private final String path;
+        private final Object fileKey;
+        private final long size;
+        private final long lastModified;
+        private final String contentHash; // null for a directory
+        private final boolean asOneEvent; // Directory only: sent as a DELETE_TREE rather than file by file
+        private final Map<String, Candidate> files; // Directory only
+        private Candidate tree; // The held directory this file was absorbed into
+        private boolean deletedSeparately; // Held before its directory went, so it did not move with it
+        private ScheduledFuture<?> expiry;
+        private int deferrals;
+
+        Candidate(String path, Object fileKey, long size, long lastModified, String contentHash) {
+            this(path, fileKey, size, lastModified, contentHash, false, null);
+        }
+
+        private Candidate(String path, Object fileKey, long size, long lastModified, String contentHash,
+                          boolean asOneEvent, Map<String, Candidate> files) {
+            this.path = path;
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.asOneEvent = asOneEvent;
+            this.files = files;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Object getFileKey() {
+            return fileKey;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public boolean isDeletedSeparately() {
+            return deletedSeparately;
+        }
+
+        public boolean isDirectory() {
+            return files != null;
+        }
+
+        // The files still held under a directory
+        public Collection<Candidate> getFiles() {
+            return files != null ? files.values() : List.of();
+        }
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "FileSyncClient-RenameDetector");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long windowMs;
+    private final DeleteSender deleteSender;
+    private final Predicate<String> parentDeleted;
+    private final TreeMap<String, Candidate> byPath = new TreeMap<>(); // Held on their own, not absorbed into a directory
+    private final Map<Object, Candidate> byFileKey = new HashMap<>();
+    private final Map<Object, Candidate> byDirectoryKey = new HashMap<>();
+    private final Map<String, Set<Candidate>> byContent = new HashMap<>(); // "size:hash"
+
+    public RenameDetector(long windowMs, DeleteSender deleteSender, Predicate<String> parentDeleted) {
+        this.windowMs = windowMs;
+        this.deleteSender = deleteSender;
+        this.parentDeleted = parentDeleted;
+    }
+
+    // Holds the delete of a synced file
+    public synchronized void deleted(String path, Object fileKey, long size, long lastModified, String contentHash) {
+        Candidate candidate = new Candidate(path, fileKey, size, lastModified, contentHash);
+        index(candidate);
+        hold(candidate);
+    }
+
+    // Holds the delete of a directory: the synced files that were still in it (contents) and the
+    // held deletes below it, which it takes over. asOneEvent is false when the tree may not be
+    // removed as a whole on the server (the client does not sync all of it); its files are then
+    // sent one by one followed by the directory. An empty directory is held too if it has a file
+    // key (it was known to be a directory), so that a parent deleted with it covers it. Returns
+    // false if nothing was held.
+    public synchronized boolean deletedDirectory(String path, Object directoryKey, boolean asOneEvent, List<Candidate> contents) {
+        SortedMap<String, Candidate> below = byPath.subMap(path + "/", path + "0"); // '0' follows '/'
+        if (below.isEmpty() && contents.isEmpty() && directoryKey == null) {
+            return false;
+        }
+        Candidate directory = new Candidate(path, directoryKey, -1, -1, null, asOneEvent, new LinkedHashMap<>());
+        for (Candidate candidate : below.values()) {
+            candidate.expiry.cancel(false);
+            if (candidate.isDirectory()) {
+                byDirectoryKey.remove(candidate.fileKey, candidate);
+                for (Candidate file : candidate.files.values()) {
+                    file.tree = directory;
+                    file.deletedSeparately = true;
+                    directory.files.put(file.path, file);
+                }
+            } else {
+                candidate.tree = directory;
+                candidate.deletedSeparately = true;
+                directory.files.put(candidate.path, candidate);
+            }
+        }
+        below.clear();
+        for (Candidate file : contents) {
+            index(file);
+            file.tree = directory;
+            directory.files.put(file.path, file);
+        }
+        if (directoryKey != null) {
+            byDirectoryKey.put(directoryKey, directory);
+        }
+        hold(directory);
+        return true;
+    }
+
+    private void hold(Candidate candidate) {
+        Candidate previous = byPath.get(candidate.path);
+        if (previous != null) {
+            release(previous);
+        }
+        byPath.put(candidate.path, candidate);
+        candidate.expiry = executor.schedule(() -> expire(candidate), windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    // The held delete a newly created file is a rename of, which is no longer sent, or null.
+    // contentHash may be null when the file has not been read yet; then only the file key counts.
+    public synchronized Candidate claim(Object fileKey, long size, long lastModified, String contentHash) {
+        Candidate candidate = fileKey != null ? byFileKey.get(fileKey) : null;
+        if (candidate != null && (candidate.size != size || candidate.lastModified != lastModified)) {
+            candidate = null; // Same inode, but written to since; only its content can tell
+        }
+        if (candidate == null && contentHash != null) {
+            Set<Candidate> sameContent = byContent.get(contentKey(size, contentHash));
+            if (sameContent != null && !sameContent.isEmpty()) {
+                candidate = sameContent.iterator().next();
+            }
+        }
+        if (candidate != null) {
+            unindex(candidate);
+            if (candidate.tree != null) {
+                candidate.tree.files.remove(candidate.path);
+            } else {
+                byPath.remove(candidate.path, candidate);
+                candidate.expiry.cancel(false);
+            }
+        }
+        return candidate;
+    }
+
+    // The held directory a newly created one is a rename of (same file key), with the files still
+    // held under it, or null. None of it is sent any more.
+    public synchronized Candidate claimTree(Object directoryKey) {
+        Candidate directory = directoryKey != null ? byDirectoryKey.remove(directoryKey) : null;
+        if (directory == null) {
+            return null;
+        }
+        byPath.remove(directory.path, directory);
+        directory.expiry.cancel(false);
+        for (Candidate file : directory.files.values()) {
+            unindex(file);
+        }
+        return directory;
+    }
+
+    // Whether a held directory has the path below it. Events from different directories' watch keys
+    // come in any order, so the delete of a file can follow that of a directory it was in; the
+    // directory's delete covers it.
+    public synchronized boolean isBelowHeldDirectory(String path) {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            Candidate candidate = byPath.get(path.substring(0, slash));
+            if (candidate != null && candidate.isDirectory()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Held files, including those absorbed into held directories
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Candidate candidate : byPath.values()) {
+            count += candidate.isDirectory() ? candidate.files.size() : 1;
+        }
+        return count;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private synchronized void expire(Candidate candidate) {
+        if (byPath.get(candidate.path) != candidate) {
+            return;
+        }
+        if (candidate.deferrals < MAX_DEFERRALS && parentDeleted.test(candidate.path)) {
+            // Its directory was removed too; the directory's own event will take this over
+            candidate.deferrals++;
+            candidate.expiry = executor.schedule(() -> expire(candidate), windowMs, TimeUnit.MILLISECONDS);
+            return;
+        }
+        release(candidate);
+    }
+
+    private void release(Candidate candidate) {
+        byPath.remove(candidate.path, candidate);
+        candidate.expiry.cancel(false);
+        if (!candidate.isDirectory()) {
+            unindex(candidate);
+            deleteSender.sendDelete(candidate.path, false);
+            return;
+        }
+        byDirectoryKey.remove(candidate.fileKey, candidate);
+        for (Candidate file : candidate.files.values()) {
+            unindex(file);
+            if (!candidate.asOneEvent) {
+                deleteSender.sendDelete(file.path, false);
+            }
+        }
+        deleteSender.sendDelete(candidate.path, candidate.asOneEvent);
+    }
+
+    private void index(Candidate file) {
+        if (file.fileKey != null) {
+            byFileKey.put(file.fileKey, file);
+        }
+        byContent.computeIfAbsent(contentKey(file.size, file.contentHash), k -> new LinkedHashSet<>()).add(file);
+    }
+
+    private void unindex(Candidate file) {
+        if (file.fileKey != null) {
+            byFileKey.remove(file.fileKey, file);
+        }
+        String key = contentKey(file.size, file.contentHash);
+        Set<Candidate> sameContent = byContent.get(key);
+        if (sameContent != null) {
+            sameContent.remove(file);
+            if (sameContent.isEmpty()) {
+                byContent.remove(key);
+            }
+        }
+    }
+
+    private static String contentKey(long size, String contentHash) {
+        return size + ":" + contentHash;
+    }
+}
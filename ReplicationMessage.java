@@ -0,0 +1,96 @@
+import java.io.Serializable;
+import java.util.List;
+
+// Between a primary and its standby or edge relay (see StandbyReplica), next to the FileEvents,
+// FileEventBatches and TransferChunks the standby receives like any client:
+//   MANIFEST   primary -> standby, first on every (re)connect: every file with its version and hash
+//   FETCH      standby -> primary, the files whose content differs from the manifest, with the hash
+//              the standby holds (null if none); the primary sends those whose hash really differs
+//   MARK       primary -> standby after every other frame, numbered in the order they were queued
+//   ACK        standby -> primary, the last mark applied
+//   HEARTBEAT  primary -> standby when there is nothing else to send
+public class ReplicationMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type { MANIFEST, FETCH, MARK, ACK, HEARTBEAT }
+
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String relativePath;
+        private final String contentHash; // Null if the sender has not hashed the file (MANIFEST) or has no copy (FETCH)
+        private final long version;
+
+        public Entry(String relativePath, String contentHash, long version) {
+            this.relativePath = relativePath;
+            this.contentHash = contentHash;
+            this.version = version;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private final Type type;
+    private final List<Entry> entries;
+    private final long sequence;
+    private final long timeMillis; // MARK: when the primary queued the frame before it
+
+    private ReplicationMessage(Type type, List<Entry> entries, long sequence, long timeMillis) {
+        this.type = type;
+        this.entries = entries;
+        this.sequence = sequence;
+        this.timeMillis = timeMillis;
+    }
+
+    public static ReplicationMessage manifest(List<Entry> files) {
+        return new ReplicationMessage(Type.MANIFEST, files, 0L, 0L);
+    }
+
+    public static ReplicationMessage fetch(List<Entry> files) {
+        return new ReplicationMessage(Type.FETCH, files, 0L, 0L);
+    }
+
+    public static ReplicationMessage mark(long sequence, long timeMillis) {
+        return new ReplicationMessage(Type.MARK, null, sequence, timeMillis);
+    }
+
+    public static ReplicationMessage ack(long sequence) {
+        return new ReplicationMessage(Type.ACK, null, sequence, 0L);
+    }
+
+    public static ReplicationMessage heartbeat() {
+        return new ReplicationMessage(Type.HEARTBEAT, null, 0L, System.currentTimeMillis());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationMessage{type=" + type + (entries != null ? ", entries=" + entries.size() : "") +
+                (type == Type.MARK || type == Type.ACK ? ", sequence=" + sequence : "") + '}';
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Client to server, sent after every handshake: the partial downloads the client holds and how
+// far each got. The server streams the remaining chunks of each one that is still the current
+// version. Sending it (even empty) also tells the server this client accepts TransferChunks,
+// so large broadcasts to it are sent as resumable transfers.
+public class ResumeDownloads implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String transferId;
+        private final String relativePath;
+        private final String contentHash;
+        private final long offset;
+
+        public Entry(String transferId, String relativePath, String contentHash, long offset) {
+            this.transferId = transferId;
+            this.relativePath = relativePath;
+            this.contentHash = contentHash;
+            this.offset = offset;
+        }
+
+        public String getTransferId() {
+            return transferId;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    public ResumeDownloads(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return "ResumeDownloads{entries=" + entries.size() + '}';
+    }
+}
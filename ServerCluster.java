@@ -0,0 +1,675 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// One node's view of a sharded cluster of FileSyncServers. The path namespace is split between
+// the nodes by consistent hashing (HashRing) of each path's first segment, so a top-level
+// directory and everything in it live on one node and directory operations stay on one shard.
+// Clients may connect to any node. A node applies the changes for its own shard and forwards the
+// others to their owner; the owner commits them and tells every node (COMMITTED), and each node
+// passes the change on to its own subscribed clients.
+//
+// Nodes talk over peer links: node A connects to node B's client port with the client ID
+// "cluster-node:A" and sends ClusterMessages, and B answers over its own link to A. B only takes
+// the link if A is one of its configured members and proves it holds the cluster's secret or,
+// with none configured, connects from A's address (see NodeAuth). Content
+// another node needs (to serve a large file to its clients, or to commit a forwarded upload) is
+// fetched by hash on demand and kept in a cache next to server_files. Small files travel inside
+// FORWARD and COMMITTED messages, up to a limit on the data waiting on one link; past it they
+// are left in the cache and fetched the same way.
+public class ServerCluster {
+    public static final String PEER_ID_PREFIX = "cluster-node:";
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 20000;
+    private static final long FETCH_TIMEOUT_SECONDS = 120;
+    private static final int MAX_QUEUED_CONTENT = 8; // CONTENT chunks waiting on one link
+    private static final long MAX_QUEUED_DATA_BYTES = 16L * 1024 * 1024; // File data in changes waiting on one link
+    private static final long CACHE_MAX_AGE_MS = TimeUnit.HOURS.toMillis(1);
+
+    // What a node knows about a file in another node's shard
+    static final class RemoteFile {
+        final String contentHash; // null if the owner had not hashed it
+        final long size;
+
+        RemoteFile(String contentHash, long size) {
+            this.contentHash = contentHash;
+            this.size = size;
+        }
+    }
+
+    private final String nodeId;
+    private final HashRing ring;
+    private final Map<String, PeerLink> links = new LinkedHashMap<>();
+    private final Path cacheDir;
+    private final long maxQueuedDataBytes;
+    private final TreeMap<String, RemoteFile> remoteFiles = new TreeMap<>(); // Other shards' files, guarded by this
+    private final Map<String, CompletableFuture<Path>> fetchesByHash = new HashMap<>(); // Guarded by itself
+    private final Map<String, PendingFetch> pendingFetches = new ConcurrentHashMap<>(); // By request ID
+    private final Map<String, ExecutorService> appliers = new ConcurrentHashMap<>(); // One per sending node, keeps its order
+    private final ExecutorService fetchServers = Executors.newCachedThreadPool(r -> daemon(r, "ServerCluster-Fetch"));
+    private volatile FileSyncServer server;
+    private volatile boolean closed;
+    private volatile long lastPruneMillis;
+    private LongAdder deferredEvents;
+
+    private static final class PendingFetch {
+        final String contentHash;
+        final Path part;
+        final CompletableFuture<Path> future;
+
+        PendingFetch(String contentHash, Path part, CompletableFuture<Path> future) {
+            this.contentHash = contentHash;
+            this.part = part;
+            this.future = future;
+        }
+    }
+
+    // nodes are "host:port" addresses of every member, this one (nodeId) included
+    public ServerCluster(String nodeId, List<String> nodes, String serverFilesDir) {
+        this(nodeId, nodes, serverFilesDir, MAX_QUEUED_DATA_BYTES);
+    }
+
+    ServerCluster(String nodeId, List<String> nodes, String serverFilesDir, long maxQueuedDataBytes) {
+        if (!nodes.contains(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not in the cluster " + nodes);
+        }
+        this.nodeId = nodeId;
+        this.ring = new HashRing(nodes);
+        this.cacheDir = TransferStore.stateDirectoryFor(serverFilesDir).resolve("cluster");
+        this.maxQueuedDataBytes = maxQueuedDataBytes;
+        try {
+            Files.createDirectories(cacheDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create cluster cache " + cacheDir, e);
+        }
+        for (String node : nodes) {
+            if (!node.equals(nodeId)) {
+                int colon = node.lastIndexOf(':');
+                links.put(node, new PeerLink(node, node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+            }
+        }
+    }
+
+    // Parses "host:port,host:port,..."
+    public static List<String> parseNodes(String nodes) {
+        List<String> parsed = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            String trimmed = node.trim();
+            if (!trimmed.isEmpty()) {
+                if (trimmed.lastIndexOf(':') <= 0) {
+                    throw new IllegalArgumentException("Cluster node must be host:port: " + trimmed);
+                }
+                parsed.add(trimmed);
+            }
+        }
+        return parsed;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Whether node is one of the other members
+    boolean isMember(String node) {
+        return links.containsKey(node);
+    }
+
+    // Whether node is one of the other members and its host resolves to address
+    boolean isMemberAt(String node, InetAddress address) {
+        PeerLink link = links.get(node);
+        if (link == null) {
+            return false;
+        }
+        try {
+            for (InetAddress memberAddress : InetAddress.getAllByName(link.host)) {
+                if (memberAddress.equals(address)) {
+                    return true;
+                }
+            }
+        } catch (UnknownHostException e) {
+            server.log("Cannot resolve cluster node " + node + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    // Connects to the other nodes; links keep reconnecting until close()
+    void start(FileSyncServer server) {
+        this.server = server;
+        deferredEvents = server.getMetrics().counter("server.cluster.deferred.events");
+        server.getMetrics().gauge("server.cluster.queued.bytes", () -> {
+            long bytes = 0;
+            for (PeerLink link : links.values()) {
+                bytes += link.queuedDataBytes.get();
+            }
+            return bytes;
+        });
+        pruneCache();
+        for (PeerLink link : links.values()) {
+            Thread thread = new Thread(link, "ServerCluster-Link-" + link.peerId);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        for (ExecutorService applier : appliers.values()) {
+            applier.shutdownNow();
+        }
+        fetchServers.shutdownNow();
+    }
+
+    static String shardKey(String relativePath) {
+        int slash = relativePath.indexOf('/');
+        return slash < 0 ? relativePath : relativePath.substring(0, slash);
+    }
+
+    public String ownerOf(String relativePath) {
+        return ring.ownerOf(shardKey(relativePath));
+    }
+
+    public boolean owns(String relativePath) {
+        return ownerOf(relativePath).equals(nodeId);
+    }
+
+    // A move belongs to the shard it moves out of, which hands it to the target's shard if needed
+    String ownerOf(FileEvent event) {
+        FileEvent.EventType type = event.getEventType();
+        boolean move = type == FileEvent.EventType.MOVE || type == FileEvent.EventType.MOVE_TREE;
+        return ownerOf(move ? event.getSourcePath() : event.getRelativePath());
+    }
+
+    void forward(String owner, String originClientId, List<ClusterMessage.Change> changes) {
+        send(owner, ClusterMessage.forward(nodeId, originClientId, changes));
+    }
+
+    void publish(String originClientId, List<ClusterMessage.Change> changes) {
+        for (PeerLink link : links.values()) {
+            link.send(ClusterMessage.committed(nodeId, originClientId, changes));
+        }
+    }
+
+    private void send(String node, ClusterMessage message) {
+        PeerLink link = links.get(node);
+        if (link == null) {
+            throw new IllegalArgumentException("Unknown cluster node " + node);
+        }
+        link.send(message);
+    }
+
+    // Called on the reading thread of the sending node's link
+    void receive(ClusterMessage message) {
+        switch (message.getType()) {
+            case PATHS -> {
+                replacePaths(message.getNodeId(), message.getChanges());
+                server.log("Cluster node " + message.getNodeId() + " holds " + message.getChanges().size() + " files");
+            }
+            case FORWARD -> appliers.computeIfAbsent(message.getNodeId(), node ->
+                    Executors.newSingleThreadExecutor(r -> daemon(r, "ServerCluster-Apply-" + node)))
+                    .execute(() -> server.applyForwarded(message));
+            case COMMITTED -> {
+                applyToIndex(message.getChanges());
+                server.deliverCommitted(message);
+            }
+            case FETCH -> fetchServers.execute(() -> serveFetch(message));
+            case CONTENT -> receiveContent(message);
+            case FETCH_FAILED -> {
+                PendingFetch fetch = pendingFetches.get(message.getRequestId());
+                if (fetch != null) {
+                    fetch.future.completeExceptionally(new IOException("Content no longer available on " + message.getNodeId()));
+                }
+            }
+        }
+    }
+
+    // Content by hash, from the cache or else fetched from the given node. Blocks until it is here.
+    Path fetch(String fromNode, String relativePath, String contentHash) throws IOException {
+        Path cached = cacheDir.resolve(contentHash);
+        if (Files.exists(cached)) {
+            return cached;
+        }
+        CompletableFuture<Path> future;
+        String requestId = null;
+        synchronized (fetchesByHash) {
+            future = fetchesByHash.get(contentHash);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                fetchesByHash.put(contentHash, future);
+                requestId = UUID.randomUUID().toString();
+                pendingFetches.put(requestId, new PendingFetch(contentHash, cacheDir.resolve(requestId + ".part"), future));
+            }
+        }
+        if (requestId != null) {
+            send(fromNode, ClusterMessage.fetch(nodeId, requestId, relativePath, contentHash));
+        }
+        try {
+            return future.get(FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("Fetching " + relativePath + " from " + fromNode + " failed: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            throw new IOException("Fetching " + relativePath + " from " + fromNode + " timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted fetching " + relativePath);
+        } finally {
+            if (requestId != null) {
+                PendingFetch fetch = pendingFetches.remove(requestId);
+                Files.deleteIfExists(fetch.part);
+                synchronized (fetchesByHash) {
+                    fetchesByHash.remove(contentHash);
+                }
+            }
+        }
+    }
+
+    // A file of another shard, opened for sending to a client: fetched from its owner if needed.
+    // Null if the owner no longer has that content.
+    FileChannel open(String relativePath, String contentHash) {
+        RemoteFile known = remoteFile(relativePath);
+        if (contentHash == null || (known != null && known.contentHash != null && !known.contentHash.equals(contentHash))) {
+            return null; // Changed since, or never hashed by its owner so there is nothing to check against
+        }
+        try {
+            return FileChannel.open(fetch(ownerOf(relativePath), relativePath, contentHash), StandardOpenOption.READ);
+        } catch (IOException e) {
+            server.log("Cannot get " + relativePath + " from " + ownerOf(relativePath) + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Keeps a committed file's content in the cache so other nodes can fetch it by hash once it
+    // has moved on (a file moved to another shard). Linked, as committed files are never rewritten.
+    void stash(Path file, String contentHash) throws IOException {
+        Path cached = cacheDir.resolve(contentHash);
+        if (Files.exists(cached)) {
+            return;
+        }
+        Path staged = cacheDir.resolve(UUID.randomUUID() + ".part");
+        linkOrCopy(file, staged);
+        moveReplacing(staged, cached);
+    }
+
+    // Keeps file data a queued change leaves out, for the receiving node to fetch by hash
+    private void stash(byte[] data, String contentHash) throws IOException {
+        Path cached = cacheDir.resolve(contentHash);
+        if (Files.exists(cached)) {
+            return;
+        }
+        Path staged = cacheDir.resolve(UUID.randomUUID() + ".part");
+        Files.write(staged, data);
+        moveReplacing(staged, cached);
+    }
+
+    // The message with its changes' file data left in the cache; the receiving node fetches it
+    // (see Change.needsContent). A change whose data can't be cached keeps it.
+    private ClusterMessage withoutData(ClusterMessage message, String peerId) {
+        List<ClusterMessage.Change> changes = new ArrayList<>(message.getChanges().size());
+        for (ClusterMessage.Change change : message.getChanges()) {
+            FileEvent event = change.getEvent();
+            byte[] data = event.getFileData();
+            if (data != null) {
+                String contentHash = event.getContentHash() != null ? event.getContentHash() : ContentHash.of(data);
+                try {
+                    stash(data, contentHash);
+                    event = new FileEvent(event.getEventType(), event.getRelativePath(), null, contentHash, event.getVersion());
+                    deferredEvents.increment();
+                } catch (IOException e) {
+                    server.log("Error caching " + event.getRelativePath() + " for cluster node " + peerId + ", sending its data: " + e.getMessage());
+                }
+            }
+            changes.add(new ClusterMessage.Change(event, change.getSize(), change.getTreeEntries()));
+        }
+        return message.withChanges(changes);
+    }
+
+    // File data carried in a message's changes
+    private static long dataBytes(ClusterMessage message) {
+        long bytes = 0;
+        if (message.getChanges() != null) {
+            for (ClusterMessage.Change change : message.getChanges()) {
+                byte[] data = change.getEvent().getFileData();
+                bytes += data != null ? data.length : 0;
+            }
+        }
+        return bytes;
+    }
+
+    // Where content with this hash is cached, e.g. for moving a verified upload there
+    Path cachePath(String contentHash) {
+        return cacheDir.resolve(contentHash);
+    }
+
+    static void linkOrCopy(Path existing, Path link) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(existing, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void serveFetch(ClusterMessage request) {
+        String requester = request.getNodeId();
+        PeerLink link = links.get(requester);
+        FileChannel channel = null;
+        try {
+            channel = server.openForPeer(request.getRelativePath(), request.getContentHash());
+            Path cached = cacheDir.resolve(request.getContentHash());
+            if (channel == null && Files.exists(cached)) {
+                channel = FileChannel.open(cached, StandardOpenOption.READ);
+            }
+            if (channel == null) {
+                link.send(ClusterMessage.fetchFailed(nodeId, request.getRequestId()));
+                return;
+            }
+            long size = channel.size();
+            long offset = 0;
+            do {
+                int length = (int) Math.min(TransferChunk.CHUNK_SIZE, size - offset);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                    // Reads until full; a committed file doesn't shrink
+                }
+                link.sendContent(ClusterMessage.content(nodeId, request.getRequestId(), offset, buffer.array(), offset + length >= size));
+                offset += length;
+            } while (offset < size);
+        } catch (IOException e) {
+            server.log("Error serving " + request.getRelativePath() + " to " + requester + ": " + e.getMessage());
+            link.send(ClusterMessage.fetchFailed(nodeId, request.getRequestId()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Read-only
+                }
+            }
+        }
+    }
+
+    private void receiveContent(ClusterMessage message) {
+        PendingFetch fetch = pendingFetches.get(message.getRequestId());
+        if (fetch == null) {
+            return; // Timed out meanwhile
+        }
+        try {
+            try (FileChannel part = FileChannel.open(fetch.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteBuffer data = ByteBuffer.wrap(message.getData());
+                while (data.hasRemaining()) {
+                    part.write(data, message.getOffset() + data.position());
+                }
+            }
+            if (message.isLast()) {
+                if (!fetch.contentHash.equals(ContentHash.of(fetch.part))) {
+                    throw new IOException("content does not match its hash");
+                }
+                Path cached = cacheDir.resolve(fetch.contentHash);
+                moveReplacing(fetch.part, cached);
+                fetch.future.complete(cached);
+                if (System.currentTimeMillis() - lastPruneMillis > CACHE_MAX_AGE_MS) {
+                    pruneCache();
+                }
+            }
+        } catch (IOException e) {
+            fetch.future.completeExceptionally(e);
+        }
+    }
+
+    private static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Drops cached content older than an hour, unless a change still waiting on a link left it
+    // there. Run at start and then at most hourly as fetches complete; a transfer that finds its
+    // content gone is simply fetched again.
+    void pruneCache() {
+        lastPruneMillis = System.currentTimeMillis();
+        long cutoff = System.currentTimeMillis() - CACHE_MAX_AGE_MS;
+        Set<Path> queued = queuedContent();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(cacheDir)) {
+            for (Path entry : entries) {
+                if (Files.getLastModifiedTime(entry).toMillis() < cutoff && !queued.contains(entry)) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error pruning cluster cache: " + e.getMessage());
+        }
+    }
+
+    // The cached content of changes not yet sent to the other nodes
+    private Set<Path> queuedContent() {
+        Set<Path> queued = new TreeSet<>();
+        for (PeerLink link : links.values()) {
+            List<ClusterMessage> messages = new ArrayList<>(link.queue);
+            messages.add(link.inFlight);
+            for (ClusterMessage message : messages) {
+                if (message != null && message.getChanges() != null) {
+                    for (ClusterMessage.Change change : message.getChanges()) {
+                        if (change.needsContent() && change.getEvent().getContentHash() != null) {
+                            queued.add(cacheDir.resolve(change.getEvent().getContentHash()));
+                        }
+                    }
+                }
+            }
+        }
+        return queued;
+    }
+
+    // The files of other shards, for the manifest a client gets on connect
+    synchronized Set<String> remotePaths() {
+        return new TreeSet<>(remoteFiles.keySet());
+    }
+
+    synchronized RemoteFile remoteFile(String relativePath) {
+        return remoteFiles.get(relativePath);
+    }
+
+    private synchronized void replacePaths(String owner, List<ClusterMessage.Change> files) {
+        remoteFiles.keySet().removeIf(path -> ownerOf(path).equals(owner));
+        for (ClusterMessage.Change file : files) {
+            FileEvent event = file.getEvent();
+            remoteFiles.put(event.getRelativePath(), new RemoteFile(event.getContentHash(), file.getSize()));
+        }
+    }
+
+    // Keeps the index of other shards' files up to date with their committed changes
+    private synchronized void applyToIndex(List<ClusterMessage.Change> changes) {
+        for (ClusterMessage.Change change : changes) {
+            FileEvent event = change.getEvent();
+            String path = event.getRelativePath();
+            switch (event.getEventType()) {
+                case CREATE, MODIFY -> {
+                    if (!owns(path)) {
+                        remoteFiles.put(path, new RemoteFile(event.getContentHash(), change.getSize()));
+                    }
+                }
+                case DELETE, DELETE_TREE -> {
+                    remoteFiles.remove(path);
+                    below(path).clear();
+                }
+                case MOVE -> {
+                    remoteFiles.remove(event.getSourcePath());
+                    if (!owns(path)) {
+                        remoteFiles.put(path, new RemoteFile(event.getContentHash(), change.getSize()));
+                    }
+                }
+                case MOVE_TREE -> {
+                    SortedMap<String, RemoteFile> moved = below(event.getSourcePath());
+                    Map<String, RemoteFile> files = new TreeMap<>(moved);
+                    moved.clear();
+                    if (!owns(path)) {
+                        for (Map.Entry<String, RemoteFile> file : files.entrySet()) {
+                            remoteFiles.put(path + file.getKey().substring(event.getSourcePath().length()), file.getValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private SortedMap<String, RemoteFile> below(String directory) {
+        return remoteFiles.subMap(directory + "/", directory + "0"); // '0' follows '/'
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Outgoing connection to one other node. Messages queue while it is down and go out in order
+    // once it is back; every connection starts with PATHS so the other node's index is current.
+    // The file data queued changes carry is bounded by maxQueuedDataBytes, so a node that is down
+    // or slow costs this one the changes' paths and hashes in memory and their content on disk.
+    private final class PeerLink implements Runnable {
+        final String peerId;
+        final String host;
+        final int port;
+        private final BlockingQueue<ClusterMessage> queue = new LinkedBlockingQueue<>();
+        private final Semaphore contentPermits = new Semaphore(MAX_QUEUED_CONTENT);
+        private final AtomicLong queuedDataBytes = new AtomicLong();
+        private volatile ClusterMessage inFlight; // Taken from queue and not yet written
+        private volatile Socket socket;
+        private Thread thread;
+
+        PeerLink(String peerId, String host, int port) {
+            this.peerId = peerId;
+            this.host = host;
+            this.port = port;
+        }
+
+        void send(ClusterMessage message) {
+            long bytes = dataBytes(message);
+            if (bytes > 0 && queuedDataBytes.get() + bytes > maxQueuedDataBytes) {
+                message = withoutData(message, peerId);
+                bytes = dataBytes(message);
+            }
+            queuedDataBytes.addAndGet(bytes);
+            queue.add(message);
+        }
+
+        // Waits for room first, so serving a large file never holds more than a few chunks in memory
+        void sendContent(ClusterMessage message) throws InterruptedException {
+            contentPermits.acquire();
+            queue.add(message);
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            ClusterMessage pending = null;
+            boolean wasConnected = true;
+            while (!closed) {
+                try (Socket s = new Socket(host, port)) {
+                    socket = s;
+                    SocketSettings.configure(s);
+                    ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), SocketSettings.STREAM_BUFFER_SIZE));
+                    String linkId = PEER_ID_PREFIX + nodeId;
+                    out.writeObject(linkId);
+                    out.flush();
+                    // The only thing read on this link: the peer answers over its own
+                    s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(s.getInputStream()));
+                    out.writeObject(NodeAuth.answer(in.readObject(), server.getNodeSecret(), linkId));
+                    write(out, ClusterMessage.paths(nodeId, server.clusterPaths()));
+                    server.log("Connected to cluster node " + peerId);
+                    wasConnected = true;
+                    while (!closed) {
+                        if (pending == null) {
+                            pending = queue.take();
+                            inFlight = pending;
+                        }
+                        write(out, pending);
+                        if (pending.getType() == ClusterMessage.Type.CONTENT) {
+                            contentPermits.release();
+                        }
+                        queuedDataBytes.addAndGet(-dataBytes(pending));
+                        pending = null;
+                        inFlight = null;
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    if (wasConnected && !closed) {
+                        server.log("Cluster node " + peerId + " unreachable, retrying: " + e.getMessage());
+                        wasConnected = false;
+                    }
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void write(ObjectOutputStream out, ClusterMessage message) throws IOException {
+            out.writeObject(message);
+            out.reset(); // Messages are not referenced again; don't keep them in the stream's handle table
+            out.flush();
+        }
+
+        void close() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+}
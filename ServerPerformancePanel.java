@@ -0,0 +1,271 @@
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.table.DefaultTableModel;
+
+// Live view of a running FileSyncServer for FileSyncServerGUI. A Swing timer samples the server's
+// counters once per refresh on the EDT and computes rates from consecutive samples; the server
+// itself does no extra work for the dashboard beyond maintaining its counters.
+public class ServerPerformancePanel extends JPanel {
+    private static final int REFRESH_MS = 1000;
+    private static final int HISTORY_POINTS = 120; // Two minutes at one sample per second
+
+    private final ThroughputGraph eventsGraph = new ThroughputGraph("Events/s", new String[]{"received"},
+            new Color[]{new Color(0x2E7D32)});
+    private final ThroughputGraph bytesGraph = new ThroughputGraph("KB/s", new String[]{"in", "out"},
+            new Color[]{new Color(0x1565C0), new Color(0xC62828)});
+    private final DefaultTableModel clientTableModel = new DefaultTableModel(
+            new Object[]{"Client ID", "Address", "Queue depth", "Lag (events)", "In KB/s", "Out KB/s", "Connected"}, 0) {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+    private final DefaultTableModel slowTableModel = new DefaultTableModel(
+            new Object[]{"Time", "Operation", "Detail", "Duration (ms)"}, 0) {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+    private final JLabel summaryLabel = new JLabel(" ");
+    // Bandwidth limits in KB/s, 0 = unlimited
+    private final JTextField globalUploadField = new JTextField("0", 6);
+    private final JTextField globalDownloadField = new JTextField("0", 6);
+    private final JTextField clientUploadField = new JTextField("0", 6);
+    private final JTextField clientDownloadField = new JTextField("0", 6);
+    private final JButton applyLimitsButton = new JButton("Apply limits");
+    private final Timer refreshTimer = new Timer(REFRESH_MS, e -> refresh());
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+
+    private FileSyncServer server;
+    private long lastSampleNanos;
+    private long lastEvents;
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private Map<String, ClientStats> lastClientStats = new HashMap<>();
+
+    public ServerPerformancePanel() {
+        super(new BorderLayout(5, 5));
+        setBorder(new EmptyBorder(5, 5, 5, 5));
+
+        JPanel graphs = new JPanel(new GridLayout(1, 2, 5, 5));
+        graphs.add(eventsGraph);
+        graphs.add(bytesGraph);
+        graphs.setPreferredSize(new Dimension(600, 150));
+
+        JPanel limits = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        limits.add(new JLabel("Limits (KB/s, 0 = none)  Global up:"));
+        limits.add(globalUploadField);
+        limits.add(new JLabel("down:"));
+        limits.add(globalDownloadField);
+        limits.add(new JLabel("  Per client up:"));
+        limits.add(clientUploadField);
+        limits.add(new JLabel("down:"));
+        limits.add(clientDownloadField);
+        limits.add(applyLimitsButton);
+        applyLimitsButton.addActionListener(e -> applyLimits());
+        applyLimitsButton.setEnabled(false);
+
+        JPanel top = new JPanel(new BorderLayout(5, 5));
+        top.add(limits, BorderLayout.NORTH);
+        top.add(graphs, BorderLayout.CENTER);
+
+        JTable clientTable = new JTable(clientTableModel);
+        clientTable.setFillsViewportHeight(true);
+        JScrollPane clientScroll = new JScrollPane(clientTable);
+        clientScroll.setBorder(BorderFactory.createTitledBorder("Clients"));
+
+        JTable slowTable = new JTable(slowTableModel);
+        slowTable.setFillsViewportHeight(true);
+        JScrollPane slowScroll = new JScrollPane(slowTable);
+        slowScroll.setBorder(BorderFactory.createTitledBorder("Slowest recent operations"));
+
+        JSplitPane tables = new JSplitPane(JSplitPane.VERTICAL_SPLIT, clientScroll, slowScroll);
+        tables.setResizeWeight(0.5);
+
+        add(top, BorderLayout.NORTH);
+        add(tables, BorderLayout.CENTER);
+        add(summaryLabel, BorderLayout.SOUTH);
+    }
+
+    // Starts sampling the given server, or stops and clears the panel when server is null
+    public void setServer(FileSyncServer server) {
+        this.server = server;
+        eventsGraph.clear();
+        bytesGraph.clear();
+        clientTableModel.setRowCount(0);
+        slowTableModel.setRowCount(0);
+        lastClientStats = new HashMap<>();
+        applyLimitsButton.setEnabled(server != null);
+        if (server == null) {
+            refreshTimer.stop();
+            summaryLabel.setText("Server not running.");
+            return;
+        }
+        globalUploadField.setText(String.valueOf(server.getGlobalUploadLimit() / 1024));
+        globalDownloadField.setText(String.valueOf(server.getGlobalDownloadLimit() / 1024));
+        clientUploadField.setText(String.valueOf(server.getClientUploadLimit() / 1024));
+        clientDownloadField.setText(String.valueOf(server.getClientDownloadLimit() / 1024));
+        lastSampleNanos = System.nanoTime();
+        lastEvents = totalEvents(server);
+        lastBytesIn = server.getBytesReceived();
+        lastBytesOut = server.getBytesSent();
+        refreshTimer.start();
+    }
+
+    private void applyLimits() {
+        FileSyncServer current = server;
+        if (current == null) {
+            return;
+        }
+        long globalUp, globalDown, clientUp, clientDown;
+        try {
+            globalUp = Long.parseLong(globalUploadField.getText().trim()) * 1024;
+            globalDown = Long.parseLong(globalDownloadField.getText().trim()) * 1024;
+            clientUp = Long.parseLong(clientUploadField.getText().trim()) * 1024;
+            clientDown = Long.parseLong(clientDownloadField.getText().trim()) * 1024;
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Limits must be whole numbers of KB/s.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        current.setGlobalUploadLimit(globalUp);
+        current.setGlobalDownloadLimit(globalDown);
+        current.setClientLimits(clientUp, clientDown);
+    }
+
+    private static long totalEvents(FileSyncServer server) {
+        long total = 0;
+        for (FileEvent.EventType type : FileEvent.EventType.values()) {
+            total += server.getMetrics().counter("server.events." + type).sum();
+        }
+        return total;
+    }
+
+    private void refresh() {
+        FileSyncServer current = server;
+        if (current == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+        long events = totalEvents(current);
+        long bytesIn = current.getBytesReceived();
+        long bytesOut = current.getBytesSent();
+        eventsGraph.addSample((events - lastEvents) / seconds);
+        bytesGraph.addSample((bytesIn - lastBytesIn) / seconds / 1024, (bytesOut - lastBytesOut) / seconds / 1024);
+
+        Map<String, ClientStats> clientStats = new HashMap<>();
+        clientTableModel.setRowCount(0);
+        long totalLag = 0;
+        for (ClientStats stats : current.getClientStats()) {
+            if (stats.getClientId() == null) {
+                continue;
+            }
+            clientStats.put(stats.getClientId(), stats);
+            ClientStats previous = lastClientStats.get(stats.getClientId());
+            double inRate = previous != null ? (stats.getBytesReceived() - previous.getBytesReceived()) / seconds / 1024 : 0;
+            double outRate = previous != null ? (stats.getBytesSent() - previous.getBytesSent()) / seconds / 1024 : 0;
+            totalLag += stats.getLagEvents();
+            clientTableModel.addRow(new Object[]{
+                    stats.getClientId(), stats.getAddress(), stats.getPendingSends(), stats.getLagEvents(),
+                    String.format("%.1f", inRate), String.format("%.1f", outRate),
+                    timeFormat.format(new Date(stats.getConnectedAtMillis()))});
+        }
+
+        slowTableModel.setRowCount(0);
+        for (SlowOperationLog.Entry entry : current.getSlowOperations()) {
+            slowTableModel.addRow(new Object[]{
+                    timeFormat.format(new Date(entry.getTimestampMillis())), entry.getOperation(), entry.getDetail(),
+                    String.format("%.2f", entry.getNanos() / 1e6)});
+        }
+
+        LatencyHistogram handleLatency = current.getMetrics().histogram("server.handleFileEvent.nanos");
+        ContentCache cache = current.getContentCache();
+        summaryLabel.setText(String.format("Clients: %d   Lag: %d events   handleFileEvent p50 %.2f ms, p99 %.2f ms, max %.2f ms   Cache: %d%% hits, %.1f MB",
+                clientStats.size(), totalLag, handleLatency.getValueAtPercentile(50) / 1e6,
+                handleLatency.getValueAtPercentile(99) / 1e6, handleLatency.getMax() / 1e6,
+                cache.getHitRatePercent(), cache.getSizeBytes() / (1024.0 * 1024.0)));
+
+        lastSampleNanos = now;
+        lastEvents = events;
+        lastBytesIn = bytesIn;
+        lastBytesOut = bytesOut;
+        lastClientStats = clientStats;
+    }
+
+    // Line graph over the last HISTORY_POINTS samples; series share the y axis
+    private static final class ThroughputGraph extends JPanel {
+        private final String title;
+        private final String[] seriesNames;
+        private final Color[] seriesColors;
+        private final List<double[]> samples = new ArrayList<>();
+
+        ThroughputGraph(String title, String[] seriesNames, Color[] seriesColors) {
+            this.title = title;
+            this.seriesNames = seriesNames;
+            this.seriesColors = seriesColors;
+            setBackground(Color.WHITE);
+            setBorder(BorderFactory.createEtchedBorder());
+        }
+
+        void addSample(double... values) {
+            samples.add(values);
+            if (samples.size() > HISTORY_POINTS) {
+                samples.remove(0);
+            }
+            repaint();
+        }
+
+        void clear() {
+            samples.clear();
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            int width = getWidth();
+            int height = getHeight();
+            int top = 20;
+            int plotHeight = Math.max(1, height - top - 5);
+
+            double max = 1;
+            for (double[] sample : samples) {
+                for (double v : sample) {
+                    max = Math.max(max, v);
+                }
+            }
+
+            g2.setColor(Color.DARK_GRAY);
+            StringBuilder header = new StringBuilder(title).append("  (max ").append(String.format("%.1f", max)).append(")");
+            double[] latest = samples.isEmpty() ? null : samples.get(samples.size() - 1);
+            for (int s = 0; s < seriesNames.length; s++) {
+                header.append("   ").append(seriesNames[s]).append(": ")
+                        .append(latest != null ? String.format("%.1f", latest[s]) : "-");
+            }
+            g2.drawString(header.toString(), 5, 14);
+
+            double xStep = (double) width / Math.max(1, HISTORY_POINTS - 1);
+            int offset = HISTORY_POINTS - samples.size();
+            for (int s = 0; s < seriesNames.length; s++) {
+                g2.setColor(seriesColors[s]);
+                for (int i = 1; i < samples.size(); i++) {
+                    int x1 = (int) ((offset + i - 1) * xStep);
+                    int x2 = (int) ((offset + i) * xStep);
+                    int y1 = top + plotHeight - (int) (samples.get(i - 1)[s] / max * plotHeight);
+                    int y2 = top + plotHeight - (int) (samples.get(i)[s] / max * plotHeight);
+                    g2.drawLine(x1, y1, x2, y2);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the slowest operations seen over roughly the last two windows. Recording is meant for
+// hot paths: an operation faster than the current admission threshold returns after one
+// volatile read and one clock read, without locking or allocating. Only the few operations slow
+// enough to make the list take the lock, and only then is detail turned into a String.
+public class SlowOperationLog {
+    public static final class Entry {
+        private final String operation;
+        private final String detail;
+        private final long nanos;
+        private final long timestampMillis;
+
+        Entry(String operation, String detail, long nanos, long timestampMillis) {
+            this.operation = operation;
+            this.detail = detail;
+            this.nanos = nanos;
+            this.timestampMillis = timestampMillis;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+    }
+
+    private static final Comparator<Entry> BY_DURATION = Comparator.comparingLong(Entry::getNanos);
+
+    private final int capacity;
+    private final long windowNanos;
+    private final PriorityQueue<Entry> current; // Min-heap, so the fastest retained entry is evicted first
+    private List<Entry> previous = new ArrayList<>();
+    private volatile long windowEndNanos;
+    private volatile long admissionThresholdNanos = 0; // Fastest retained entry once the window is full
+
+    public SlowOperationLog(int capacity, long windowMillis) {
+        this.capacity = capacity;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.current = new PriorityQueue<>(capacity + 1, BY_DURATION);
+        this.windowEndNanos = System.nanoTime() + windowNanos;
+    }
+
+    public void record(String operation, Object detail, long nanos) {
+        if (nanos <= admissionThresholdNanos && System.nanoTime() < windowEndNanos) {
+            return;
+        }
+        synchronized (this) {
+            rotateIfExpired();
+            if (current.size() >= capacity && nanos <= current.peek().getNanos()) {
+                return;
+            }
+            current.add(new Entry(operation, String.valueOf(detail), nanos, System.currentTimeMillis()));
+            if (current.size() > capacity) {
+                current.poll();
+            }
+            admissionThresholdNanos = current.size() >= capacity ? current.peek().getNanos() : 0;
+        }
+    }
+
+    // Slowest first, from the current and the previous window
+    public synchronized List<Entry> getSlowest() {
+        rotateIfExpired();
+        List<Entry> slowest = new ArrayList<>(current);
+        slowest.addAll(previous);
+        slowest.sort(BY_DURATION.reversed());
+        return slowest.size() > capacity ? new ArrayList<>(slowest.subList(0, capacity)) : slowest;
+    }
+
+    private void rotateIfExpired() {
+        long now = System.nanoTime();
+        if (now < windowEndNanos) {
+            return;
+        }
+        // More than one window without activity leaves nothing recent worth keeping
+        previous = now - windowEndNanos < windowNanos ? new ArrayList<>(current) : new ArrayList<>();
+        current.clear();
+        admissionThresholdNanos = 0;
+        windowEndNanos = now + windowNanos;
+    }
+}
@@ -0,0 +1,19 @@
+import java.net.Socket;
+import java.net.SocketException;
+
+// Socket and stream settings shared by every connection in the system: clients to servers,
+// cluster nodes, standbys and relays to their upstream, and peers to each other.
+public final class SocketSettings {
+    static final int SOCKET_BUFFER_SIZE = 256 * 1024; // SO_SNDBUF/SO_RCVBUF, so bulk transfers keep streaming
+    static final int STREAM_BUFFER_SIZE = 64 * 1024;  // Buffered streams under each object stream
+
+    private SocketSettings() {
+    }
+
+    // Our own batching replaces Nagle, and larger socket buffers keep bulk transfers streaming
+    static void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(true);
+        socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+        socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+    }
+}
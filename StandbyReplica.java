@@ -0,0 +1,328 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+// Makes a FileSyncServer the standby of another one. The standby connects to the primary's client
+// port with the client ID "standby:<id>", proves it holds the secret both were started with (see
+// NodeAuth), and is sent, in commit order, everything the primary broadcasts, as a client
+// subscribed to everything would be. It applies that to its own server_files under the primary's
+// version numbers. Each (re)connect starts with a MANIFEST of the
+// primary's files, which the standby reconciles against its store: it deletes what the primary
+// doesn't have and FETCHes what differs, so catching up after an outage costs the changed files only.
+//
+// The primary follows every frame with a numbered MARK and the standby acknowledges the marks it
+// has applied, which is what the primary's replication lag is measured on (see Progress).
+//
+// While it is a standby the server turns clients away. It takes over (promote) when told to or,
+// with a takeover delay set, once the primary has been unreachable that long after at least one
+// full sync; clients that list it as a failover server then reconnect to it and find their files
+// and versions already there. Nothing stops a primary that comes back from serving clients
+// again, so it has to be restarted as a standby of the promoted server.
+//
+// EdgeRelay builds on the same link to keep a branch office's copy of the store.
+public class StandbyReplica {
+    public static final String STANDBY_ID_PREFIX = "standby:";
+    static final long HEARTBEAT_MS = 2000; // Primary -> standby when idle; three missed ones count as a lost primary
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int ACK_EVERY = 256; // Marks applied between acks while the primary is still sending
+
+    // The primary's record of what one standby has applied: the marks sent and not yet acknowledged.
+    // A standby is catching up from its (re)connect until it has applied the files it FETCHed;
+    // only after that is its lag held to the primary's maximum (see FileSyncServer.awaitStandbys).
+    static final class Progress {
+        private final ArrayDeque<long[]> unacked = new ArrayDeque<>(); // {sequence, queued at millis}
+        private long nextSequence = 1;
+        private long ackedSequence;
+        private long catchUpSequence = Long.MAX_VALUE;
+
+        synchronized long mark(long nowMillis) {
+            long sequence = nextSequence++;
+            unacked.add(new long[] {sequence, nowMillis});
+            return sequence;
+        }
+
+        // Called once the files the standby fetched are queued: it is in sync when it acks the last of them
+        synchronized void endCatchUp() {
+            catchUpSequence = nextSequence - 1;
+        }
+
+        synchronized boolean inSync() {
+            return ackedSequence >= catchUpSequence;
+        }
+
+        synchronized void acked(long sequence) {
+            ackedSequence = Math.max(ackedSequence, sequence);
+            while (!unacked.isEmpty() && unacked.peekFirst()[0] <= sequence) {
+                unacked.pollFirst();
+            }
+            notifyAll();
+        }
+
+        // How long the oldest frame the standby has not applied has been waiting, 0 if none
+        synchronized long lagMillis() {
+            return unacked.isEmpty() ? 0L : System.currentTimeMillis() - unacked.peekFirst()[1];
+        }
+
+        synchronized int pendingFrames() {
+            return unacked.size();
+        }
+
+        // Waits until the lag is at most maxLagMillis, for up to that long; false if it is still more
+        synchronized boolean await(long maxLagMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + maxLagMillis;
+            while (lagMillis() > maxLagMillis) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private final String primary;
+    private final String host;
+    private final int port;
+    private final long takeoverAfterMillis; // 0: only promote() takes over
+    private final String linkId; // The client ID the link logs in with
+    volatile FileSyncServer server;
+    private volatile Socket socket;
+    private volatile ObjectOutputStream out; // While connected
+    private volatile boolean connected;
+    private volatile boolean promoted;
+    private volatile boolean synced; // A manifest has been reconciled, so the store is worth taking over
+    private volatile long appliedSequence;
+    private Thread thread;
+    private LongAdder applied;
+    private LongAdder resyncs;
+    private LongAdder fetched;
+
+    // primary is the host:port of the primary's client port
+    public StandbyReplica(String primary, long takeoverAfterMillis) {
+        this(STANDBY_ID_PREFIX, primary, takeoverAfterMillis);
+    }
+
+    StandbyReplica(String idPrefix, String primary, long takeoverAfterMillis) {
+        this.linkId = idPrefix + UUID.randomUUID();
+        int colon = primary.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port, got " + primary);
+        }
+        this.primary = primary;
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.takeoverAfterMillis = takeoverAfterMillis;
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Whether the server may serve clients: a standby only once it has taken over
+    boolean acceptsClients() {
+        return promoted;
+    }
+
+    // The local client a change from the primary came from, to leave out of its broadcast (see EdgeRelay)
+    String originOf(FileEvent event) {
+        return null;
+    }
+
+    // Content the primary committed without sending it back, kept here by hash (see EdgeRelay)
+    Path takeStash(String contentHash) {
+        return null;
+    }
+
+    // Called on the reader thread when the link is up, before anything is read from it
+    void linked() {
+    }
+
+    void statusReceived(TransferStatus status) {
+        if (status.isFailed()) {
+            server.discardReplicaTransfer(status.getTransferId()); // The primary could not finish sending it
+        }
+    }
+
+    // Writes to the primary; false if the link is down
+    boolean send(Object message) throws IOException {
+        ObjectOutputStream out = this.out;
+        if (out == null) {
+            return false;
+        }
+        write(out, message);
+        return true;
+    }
+
+    private static void write(ObjectOutputStream out, Object message) throws IOException {
+        synchronized (out) {
+            out.writeObject(message);
+            out.reset();
+            out.flush();
+        }
+    }
+
+    void start(FileSyncServer server) {
+        this.server = server;
+        MetricsRegistry metrics = server.getMetrics();
+        applied = metrics.counter("server.replication.applied");
+        resyncs = metrics.counter("server.replication.resyncs");
+        fetched = metrics.counter("server.replication.fetched");
+        metrics.gauge("server.replication.primary.connected", () -> connected ? 1 : 0);
+        metrics.gauge("server.replication.sequence", () -> appliedSequence);
+        thread = new Thread(this::run, "FileSyncServer-Upstream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops following the primary; from here on the server accepts clients
+    public void promote() {
+        if (promoted) {
+            return;
+        }
+        promoted = true;
+        closeSocket();
+        server.log("Promoted to primary, no longer following " + primary +
+                (synced ? "" : " (never completed a sync with it, the store may be incomplete)"));
+    }
+
+    void close() {
+        promoted = true;
+        closeSocket();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        long lastContactMillis = System.currentTimeMillis();
+        boolean reported = false; // Unreachable logged since the last contact
+        while (!promoted) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                SocketSettings.configure(s);
+                s.connect(new InetSocketAddress(host, port), 5000);
+                s.setSoTimeout((int) (3 * HEARTBEAT_MS));
+                reported = false;
+                follow(s);
+            } catch (IOException | ClassNotFoundException e) {
+                out = null;
+                if (connected) {
+                    lastContactMillis = System.currentTimeMillis();
+                    connected = false;
+                }
+                if (promoted) {
+                    return;
+                }
+                if (!reported) {
+                    server.log("Primary " + primary + " unreachable, retrying: " + e.getMessage());
+                    reported = true;
+                }
+                if (synced && takeoverAfterMillis > 0 && System.currentTimeMillis() - lastContactMillis >= takeoverAfterMillis) {
+                    server.log("Primary " + primary + " unreachable for " + (takeoverAfterMillis / 1000) + " s, taking over.");
+                    promote();
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Reads and applies the primary's frames until the link drops
+    private void follow(Socket s) throws IOException, ClassNotFoundException {
+        ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), SocketSettings.STREAM_BUFFER_SIZE));
+        stream.flush();
+        write(stream, linkId);
+        InputStream raw = new BufferedInputStream(s.getInputStream(), SocketSettings.STREAM_BUFFER_SIZE);
+        ObjectInputStream in = new ObjectInputStream(raw);
+        write(stream, NodeAuth.answer(in.readObject(), server.getNodeSecret(), linkId)); // The primary closes the link if it's wrong
+        out = stream; // Only now, or an edge relay's forwarder could write ahead of the answer
+        connected = true;
+        server.discardReplicaTransfers(); // Partial copies from an earlier link; anything still needed is sent again
+        server.log("Following primary " + primary + " as " + linkId);
+        linked();
+        long unacked = 0;
+        while (!promoted) {
+            Object frame = in.readObject();
+            if (frame instanceof ReplicationMessage message) {
+                switch (message.getType()) {
+                    case MANIFEST -> {
+                        List<ReplicationMessage.Entry> missing = server.reconcileReplica(message.getEntries());
+                        resyncs.increment();
+                        synced = true;
+                        server.log("Reconciled with the primary's " + message.getEntries().size() + " files, fetching " + missing.size());
+                        fetched.add(missing.size());
+                        send(ReplicationMessage.fetch(missing)); // Even if empty: it tells the primary reconciling is done
+                    }
+                    case MARK -> {
+                        appliedSequence = message.getSequence();
+                        if (++unacked >= ACK_EVERY || raw.available() == 0) {
+                            send(ReplicationMessage.ack(appliedSequence));
+                            unacked = 0;
+                        }
+                    }
+                    case HEARTBEAT -> send(ReplicationMessage.ack(appliedSequence));
+                    default -> server.log("Unexpected " + message + " from primary " + primary);
+                }
+                continue;
+            }
+            boolean ok = switch (frame) {
+                case FileEvent event -> server.applyReplicated(event);
+                case FileEventBatch batch -> {
+                    boolean all = true;
+                    for (FileEvent event : batch.getEvents()) {
+                        all &= server.applyReplicated(event);
+                    }
+                    yield all;
+                }
+                case TransferChunk chunk -> server.applyReplicatedChunk(chunk);
+                case TransferStatus status -> {
+                    statusReceived(status);
+                    yield true;
+                }
+                default -> {
+                    server.log("Unexpected " + frame.getClass().getName() + " from primary " + primary);
+                    yield true;
+                }
+            };
+            applied.increment();
+            if (!ok) {
+                // This store no longer matches what the change was made to; reconnecting reconciles it
+                throw new IOException("Could not apply a change from the primary, resyncing");
+            }
+        }
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+    }
+}
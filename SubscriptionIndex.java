@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Finds the subscribers interested in a path without looking at the others. Include patterns are
+// stored in a trie of path segments: a plain prefix at its last segment, a glob at the literal
+// directory before its first wildcard (see PathSubscription.literalPrefix), where it is matched
+// in full only for paths that reach that node. A lookup walks the path's segments once, so its
+// cost depends on the path depth and the number of candidates, not on how many subscribers exist.
+// Excludes are checked on the candidates only.
+public class SubscriptionIndex<T> {
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        final Set<T> prefixSubscribers = new LinkedHashSet<>();
+        final List<GlobEntry<T>> globs = new ArrayList<>();
+    }
+
+    private static final class GlobEntry<T> {
+        final T subscriber;
+        final Pattern pattern;
+
+        GlobEntry(T subscriber, Pattern pattern) {
+            this.subscriber = subscriber;
+            this.pattern = pattern;
+        }
+    }
+
+    private final Node<T> root = new Node<>();
+    private final Map<T, PathSubscription> subscriptions = new HashMap<>();
+
+    public synchronized void add(T subscriber, PathSubscription subscription) {
+        remove(subscriber);
+        subscriptions.put(subscriber, subscription);
+        List<String> includes = subscription.getIncludes().isEmpty() ? List.of("") : subscription.getIncludes();
+        for (String include : includes) {
+            Node<T> node = nodeFor(PathSubscription.literalPrefix(include), true);
+            if (PathSubscription.isGlob(include)) {
+                node.globs.add(new GlobEntry<>(subscriber, PathSubscription.compileGlob(include)));
+            } else {
+                node.prefixSubscribers.add(subscriber);
+            }
+        }
+    }
+
+    public synchronized void remove(T subscriber) {
+        PathSubscription subscription = subscriptions.remove(subscriber);
+        if (subscription == null) {
+            return;
+        }
+        List<String> includes = subscription.getIncludes().isEmpty() ? List.of("") : subscription.getIncludes();
+        for (String include : includes) {
+            Node<T> node = nodeFor(PathSubscription.literalPrefix(include), false);
+            if (node != null) {
+                node.prefixSubscribers.remove(subscriber);
+                node.globs.removeIf(entry -> entry.subscriber.equals(subscriber));
+            }
+        }
+        // Emptied nodes are left in place; they cost a map entry and are reused if the prefix returns
+    }
+
+    public synchronized Set<T> match(String relativePath) {
+        Set<T> matched = new LinkedHashSet<>();
+        Node<T> node = root;
+        int start = 0;
+        while (node != null) {
+            collect(node, relativePath, matched);
+            if (start > relativePath.length()) {
+                break;
+            }
+            int end = relativePath.indexOf('/', start);
+            if (end < 0) {
+                end = relativePath.length();
+            }
+            node = node.children.get(relativePath.substring(start, end));
+            start = end + 1;
+        }
+        if (!matched.isEmpty()) {
+            matched.removeIf(subscriber -> subscriptions.get(subscriber).isExcluded(relativePath));
+        }
+        return matched;
+    }
+
+    // Subscribers that may include some path under the directory: those on the way down to it,
+    // globs there counted without matching, and everyone subscribed to something below it
+    public synchronized Set<T> matchTree(String directory) {
+        Set<T> matched = new LinkedHashSet<>();
+        Node<T> node = root;
+        int start = 0;
+        while (node != null) {
+            matched.addAll(node.prefixSubscribers);
+            for (GlobEntry<T> entry : node.globs) {
+                matched.add(entry.subscriber);
+            }
+            if (start > directory.length()) {
+                collectBelow(node, matched);
+                break;
+            }
+            int end = directory.indexOf('/', start);
+            if (end < 0) {
+                end = directory.length();
+            }
+            node = node.children.get(directory.substring(start, end));
+            start = end + 1;
+        }
+        if (!matched.isEmpty()) {
+            matched.removeIf(subscriber -> subscriptions.get(subscriber).excludesTree(directory));
+        }
+        return matched;
+    }
+
+    private static <T> void collectBelow(Node<T> node, Set<T> matched) {
+        for (Node<T> child : node.children.values()) {
+            matched.addAll(child.prefixSubscribers);
+            for (GlobEntry<T> entry : child.globs) {
+                matched.add(entry.subscriber);
+            }
+            collectBelow(child, matched);
+        }
+    }
+
+    public synchronized PathSubscription get(T subscriber) {
+        return subscriptions.get(subscriber);
+    }
+
+    public synchronized int size() {
+        return subscriptions.size();
+    }
+
+    public synchronized void clear() {
+        subscriptions.clear();
+        root.children.clear();
+        root.prefixSubscribers.clear();
+        root.globs.clear();
+    }
+
+    private static <T> void collect(Node<T> node, String relativePath, Set<T> matched) {
+        matched.addAll(node.prefixSubscribers);
+        for (GlobEntry<T> entry : node.globs) {
+            if (!matched.contains(entry.subscriber) && entry.pattern.matcher(relativePath).matches()) {
+                matched.add(entry.subscriber);
+            }
+        }
+    }
+
+    private Node<T> nodeFor(String prefix, boolean create) {
+        Node<T> node = root;
+        if (prefix.isEmpty()) {
+            return node;
+        }
+        for (String segment : prefix.split("/")) {
+            Node<T> child = node.children.get(segment);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node<>();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters for one run of the client's initial sync pipeline. Updated by the pipeline threads
+// and safe to read from any thread (CLI status output, GUI, metrics).
+public class SyncProgress {
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong filesScanned = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong filesQueued = new AtomicLong();
+    private final AtomicLong bytesQueued = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private long finishedNanos;              // Published by the write to finished
+    private volatile boolean finished;       // Its own flag: any long, negative ones included, is a valid nanoTime
+
+    void fileScanned() {
+        filesScanned.incrementAndGet();
+    }
+
+    void fileSkipped() {
+        filesSkipped.incrementAndGet();
+    }
+
+    void fileQueued(long bytes) {
+        filesQueued.incrementAndGet();
+        bytesQueued.addAndGet(bytes);
+    }
+
+    void fileFailed() {
+        filesFailed.incrementAndGet();
+    }
+
+    void finish() {
+        finishedNanos = System.nanoTime();
+        finished = true;
+    }
+
+    public long getFilesScanned() {
+        return filesScanned.get();
+    }
+
+    public long getFilesSkipped() {
+        return filesSkipped.get();
+    }
+
+    public long getFilesQueued() {
+        return filesQueued.get();
+    }
+
+    public long getBytesQueued() {
+        return bytesQueued.get();
+    }
+
+    public long getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public long getElapsedMillis() {
+        long end = isFinished() ? finishedNanos : System.nanoTime();
+        return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+    }
+
+    // Bytes handed to the sender per second. The send window keeps this within a few
+    // megabytes of what has actually gone out on the socket.
+    public double getBytesPerSecond() {
+        long elapsedMillis = Math.max(1, getElapsedMillis());
+        return getBytesQueued() * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncProgress{" +
+                "scanned=" + getFilesScanned() +
+                ", skipped=" + getFilesSkipped() +
+                ", queued=" + getFilesQueued() +
+                ", failed=" + getFilesFailed() +
+                ", bytesQueued=" + getBytesQueued() +
+                ", bytesPerSecond=" + String.format("%.0f", getBytesPerSecond()) +
+                ", elapsedMs=" + getElapsedMillis() +
+                (isFinished() ? ", finished" : "") +
+                '}';
+    }
+}
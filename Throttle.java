@@ -0,0 +1,5 @@
+// Blocks the caller until it may transfer the given number of bytes. Used by
+// ThrottledInputStream and ThrottledOutputStream.
+public interface Throttle {
+    void acquire(int bytes) throws InterruptedException;
+}
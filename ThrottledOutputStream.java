@@ -0,0 +1,43 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+// Charges writes against a Throttle before passing them on. Large writes go out in CHUNK_SIZE
+// pieces so a shared, fair limiter can interleave them with other connections' writes.
+public class ThrottledOutputStream extends FilterOutputStream {
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    private final Throttle throttle;
+
+    public ThrottledOutputStream(OutputStream out, Throttle throttle) {
+        super(out);
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        charge(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunk = Math.min(len, CHUNK_SIZE);
+            charge(chunk);
+            out.write(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    private void charge(int bytes) throws InterruptedIOException {
+        try {
+            throttle.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.TimeUnit;
+
+// Byte-rate limiter. Tokens refill continuously at bytesPerSecond up to a burst of 100 ms worth
+// (at least 64 KB). acquire() blocks until the requested bytes are available; a request larger
+// than the burst waits for a full bucket and then leaves it in debt, so the long-run rate holds
+// for any chunk size. A rate of 0 or less means unlimited, and the rate can be changed while
+// threads are waiting.
+public class TokenBucket {
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private volatile long bytesPerSecond;
+    private long burstBytes;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        long now = System.nanoTime();
+        boolean wasLimited = this.bytesPerSecond > 0;
+        if (wasLimited) {
+            refill(now);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = Math.max(MIN_BURST_BYTES, bytesPerSecond / 10);
+        this.tokens = wasLimited ? Math.min(tokens, burstBytes) : burstBytes; // Debt carries over a rate change
+        this.lastRefillNanos = now;
+        notifyAll(); // Waiters recompute their wait at the new rate
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        synchronized (this) {
+            long waitNanos;
+            while ((waitNanos = tryAcquire(bytes)) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+        }
+    }
+
+    // Takes the bytes and returns 0 if they are available, otherwise returns how long to wait
+    // before they will be
+    public synchronized long tryAcquire(long bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return 0;
+        }
+        refill(System.nanoTime());
+        double needed = Math.min(bytes, burstBytes);
+        if (tokens >= needed) {
+            tokens -= bytes;
+            return 0;
+        }
+        return Math.max(1, (long) ((needed - tokens) * 1e9 / rate));
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(burstBytes, tokens + elapsed * (double) bytesPerSecond / 1e9);
+            lastRefillNanos = now;
+        }
+    }
+}
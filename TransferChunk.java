@@ -0,0 +1,81 @@
+import java.io.Serializable;
+
+// One piece of a large file sent as a resumable transfer. Files above CHUNKED_TRANSFER_THRESHOLD
+// are sent as CHUNK_SIZE pieces in offset order, all carrying the same transferId, so a
+// transfer cut off by a dropped connection can continue from the last byte the receiver
+// committed instead of starting over. The receiver checks contentHash once all totalSize bytes
+// have arrived.
+public class TransferChunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final int CHUNKED_TRANSFER_THRESHOLD = 4 * 1024 * 1024;
+
+    private final String transferId;
+    private final String relativePath;
+    private final FileEvent.EventType eventType;
+    private final long totalSize;
+    private final String contentHash;
+    private final long version;     // Server-assigned version, 0 when sent by a client
+    private final long offset;
+    private final byte[] data;
+
+    public TransferChunk(String transferId, String relativePath, FileEvent.EventType eventType, long totalSize,
+                         String contentHash, long version, long offset, byte[] data) {
+        this.transferId = transferId;
+        this.relativePath = relativePath;
+        this.eventType = eventType;
+        this.totalSize = totalSize;
+        this.contentHash = contentHash;
+        this.version = version;
+        this.offset = offset;
+        this.data = data;
+    }
+
+    public static boolean isChunked(long size) {
+        return size > CHUNKED_TRANSFER_THRESHOLD;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    public FileEvent.EventType getEventType() {
+        return eventType;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferChunk{" +
+                "transferId='" + transferId + '\'' +
+                ", relativePath='" + relativePath + '\'' +
+                ", offset=" + offset +
+                ", length=" + (data != null ? data.length : 0) +
+                ", totalSize=" + totalSize +
+                '}';
+    }
+}
@@ -0,0 +1,22 @@
+import java.io.Serializable;
+
+// Client to server: how many bytes of this upload have you committed? Answered with a
+// TransferStatus before the client resumes an interrupted upload.
+public class TransferQuery implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String transferId;
+
+    public TransferQuery(String transferId) {
+        this.transferId = transferId;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferQuery{transferId='" + transferId + "'}";
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.Serializable;
+
+// Server to client: bytes committed for a transfer. Sent in reply to a TransferQuery, when an
+// upload completes (committedBytes == total size), and with FAILED when an upload failed its
+// hash check or a requested download can no longer be served.
+public class TransferStatus implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final long FAILED = -1L;
+
+    private final String transferId;
+    private final long committedBytes;
+
+    public TransferStatus(String transferId, long committedBytes) {
+        this.transferId = transferId;
+        this.committedBytes = committedBytes;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    public boolean isFailed() {
+        return committedBytes == FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferStatus{transferId='" + transferId + "', committedBytes=" + committedBytes + '}';
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Persistent state for resumable transfers. Each session is a <id>.meta properties file naming
+// the file being transferred plus, on the receiving side, a <id>.part file holding the bytes
+// committed so far; the part file's length is the resume offset. Both survive a restart, so an
+// interrupted transfer picks up where it stopped after a reconnect or a process restart.
+//
+// Stores live in a state directory next to the synced directory rather than inside it, so part
+// files are never picked up by the watcher or sent as ordinary files.
+//
+// Transfer IDs name files here and come from the other side of a connection, so only canonical
+// UUIDs are accepted. A session may be bound to an owner (the client that opened it), and is then
+// invisible to everyone else. A transfer that was committed leaves a <id>.done record behind, so
+// a sender that lost the acknowledgement can still learn that it went through.
+public class TransferStore {
+    private static final String META_SUFFIX = ".meta";
+    private static final String PART_SUFFIX = ".part";
+    private static final String DONE_SUFFIX = ".done";
+
+    private final Path directory;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Committed> committed = new ConcurrentHashMap<>();
+
+    private static final class Committed {
+        final String owner;
+        final long totalSize;
+        final long committedAtMillis;
+
+        Committed(String owner, long totalSize, long committedAtMillis) {
+            this.owner = owner;
+            this.totalSize = totalSize;
+            this.committedAtMillis = committedAtMillis;
+        }
+    }
+
+    public TransferStore(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create transfer directory " + directory, e);
+        }
+        loadSessions();
+    }
+
+    // <dir>.filesync alongside the synced directory <dir>
+    public static Path stateDirectoryFor(String syncDirectory) {
+        Path dir = Paths.get(syncDirectory).toAbsolutePath().normalize();
+        return dir.resolveSibling(dir.getFileName() + ".filesync");
+    }
+
+    // True for a UUID in its canonical form, the only thing a transfer ID may be
+    public static boolean isValidTransferId(String transferId) {
+        try {
+            return transferId != null && UUID.fromString(transferId).toString().equals(transferId);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public Session open(String transferId, String relativePath, FileEvent.EventType eventType, long totalSize,
+                        String contentHash, long version) throws IOException {
+        return open(transferId, null, relativePath, eventType, totalSize, contentHash, version);
+    }
+
+    // The session with this ID, created if there is none. An existing session is only reopened by
+    // its owner and for the same file: a different path, type, size or hash is an error rather
+    // than a way to write into someone else's part file.
+    public Session open(String transferId, String owner, String relativePath, FileEvent.EventType eventType, long totalSize,
+                        String contentHash, long version) throws IOException {
+        if (!isValidTransferId(transferId)) {
+            throw new IOException("Invalid transfer ID " + transferId);
+        }
+        Session session = sessions.get(transferId);
+        if (session == null) {
+            Session created = new Session(transferId, owner, relativePath, eventType, totalSize, contentHash, version,
+                    System.currentTimeMillis());
+            created.writeMeta();
+            Session raced = sessions.putIfAbsent(transferId, created);
+            session = raced != null ? raced : created;
+        }
+        if (!session.isOwnedBy(owner)) {
+            throw new IOException("Transfer " + transferId + " belongs to another client");
+        }
+        if (!session.relativePath.equals(relativePath) || session.eventType != eventType ||
+                session.totalSize != totalSize || !session.contentHash.equals(contentHash)) {
+            throw new IOException("Transfer " + transferId + " is of " + session.relativePath + " (" + session.totalSize +
+                    " bytes), not " + relativePath + " (" + totalSize + " bytes)");
+        }
+        return session;
+    }
+
+    public Session get(String transferId) {
+        return transferId != null ? sessions.get(transferId) : null;
+    }
+
+    // The session if owner opened it, otherwise null
+    public Session get(String transferId, String owner) {
+        Session session = get(transferId);
+        return session != null && session.isOwnedBy(owner) ? session : null;
+    }
+
+    // Remembers that owner's transfer was committed, once its session has ended
+    public void recordCommitted(Session session) {
+        Committed record = new Committed(session.owner, session.totalSize, System.currentTimeMillis());
+        Properties props = new Properties();
+        props.setProperty("id", session.transferId);
+        if (session.owner != null) {
+            props.setProperty("owner", session.owner);
+        }
+        props.setProperty("size", Long.toString(session.totalSize));
+        try {
+            writeAtomically(directory.resolve(session.transferId + DONE_SUFFIX), props);
+        } catch (IOException e) {
+            // Still answered until a restart
+            System.err.println("TransferStore: Error recording committed transfer " + session.transferId + ": " + e.getMessage());
+        }
+        committed.put(session.transferId, record);
+    }
+
+    // The size of owner's committed transfer with this ID, or -1 if there is none
+    public long committedSize(String transferId, String owner) {
+        Committed record = transferId != null ? committed.get(transferId) : null;
+        return record != null && Objects.equals(record.owner, owner) ? record.totalSize : -1;
+    }
+
+    public List<Session> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    // Session for this exact content of the path, or null. Sessions for older content of the
+    // same path are discarded since they can never complete.
+    public Session findByContent(String relativePath, String contentHash) {
+        Session match = null;
+        for (Session session : sessions.values()) {
+            if (!session.relativePath.equals(relativePath)) {
+                continue;
+            }
+            if (session.contentHash.equals(contentHash)) {
+                match = session;
+            } else {
+                session.discard();
+            }
+        }
+        return match;
+    }
+
+    // Discards every session for the path, e.g. when a newer version of the file starts arriving
+    public void discardForPath(String relativePath) {
+        for (Session session : sessions.values()) {
+            if (session.relativePath.equals(relativePath)) {
+                session.discard();
+            }
+        }
+    }
+
+    // Drops sessions that have not been touched for abandonedAgeMillis, e.g. uploads abandoned by
+    // a client that never came back, and records of transfers committed over committedAgeMillis ago
+    public void prune(long abandonedAgeMillis, long committedAgeMillis) {
+        long now = System.currentTimeMillis();
+        for (Session session : sessions.values()) {
+            if (session.lastTouchedMillis < now - abandonedAgeMillis) {
+                session.discard();
+            }
+        }
+        for (Map.Entry<String, Committed> entry : committed.entrySet()) {
+            if (entry.getValue().committedAtMillis < now - committedAgeMillis && committed.remove(entry.getKey(), entry.getValue())) {
+                try {
+                    Files.deleteIfExists(directory.resolve(entry.getKey() + DONE_SUFFIX));
+                } catch (IOException e) {
+                    System.err.println("TransferStore: Error removing committed transfer " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void loadSessions() {
+        try (DirectoryStream<Path> metas = Files.newDirectoryStream(directory, "*" + META_SUFFIX)) {
+            for (Path meta : metas) {
+                Properties props = new Properties();
+                try (InputStream in = Files.newInputStream(meta)) {
+                    props.load(in);
+                    String id = props.getProperty("id");
+                    if (!isValidTransferId(id) || !meta.getFileName().toString().equals(id + META_SUFFIX)) {
+                        throw new IOException("Transfer ID " + id + " is not a UUID or does not match the file name");
+                    }
+                    Session session = new Session(id, props.getProperty("owner"), props.getProperty("path"),
+                            FileEvent.EventType.valueOf(props.getProperty("type")),
+                            Long.parseLong(props.getProperty("size")), props.getProperty("hash"),
+                            Long.parseLong(props.getProperty("version", "0")),
+                            Files.getLastModifiedTime(meta).toMillis());
+                    sessions.put(id, session);
+                } catch (IOException | RuntimeException e) {
+                    // Unreadable or half-written meta: drop it and the part it describes
+                    System.err.println("TransferStore: Discarding unreadable transfer " + meta + ": " + e.getMessage());
+                    String name = meta.getFileName().toString();
+                    Files.deleteIfExists(meta);
+                    Files.deleteIfExists(meta.resolveSibling(
+                            name.substring(0, name.length() - META_SUFFIX.length()) + PART_SUFFIX));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("TransferStore: Error reading " + directory + ": " + e.getMessage());
+        }
+        try (DirectoryStream<Path> dones = Files.newDirectoryStream(directory, "*" + DONE_SUFFIX)) {
+            for (Path done : dones) {
+                Properties props = new Properties();
+                try (InputStream in = Files.newInputStream(done)) {
+                    props.load(in);
+                    String id = props.getProperty("id");
+                    if (!isValidTransferId(id) || !done.getFileName().toString().equals(id + DONE_SUFFIX)) {
+                        throw new IOException("Transfer ID " + id + " is not a UUID or does not match the file name");
+                    }
+                    committed.put(id, new Committed(props.getProperty("owner"), Long.parseLong(props.getProperty("size")),
+                            Files.getLastModifiedTime(done).toMillis()));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("TransferStore: Discarding unreadable committed transfer " + done + ": " + e.getMessage());
+                    Files.deleteIfExists(done);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("TransferStore: Error reading " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private void writeAtomically(Path target, Properties props) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, null);
+        }
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public final class Session {
+        private final String transferId;
+        private final String owner; // Client that opened it, or null if anyone with the ID may use it
+        private final String relativePath;
+        private final FileEvent.EventType eventType;
+        private final long totalSize;
+        private final String contentHash;
+        private final long version;
+        private final Path metaPath;
+        private final Path partPath;
+        private volatile long lastTouchedMillis;
+        private long committedBytes;
+        private boolean discarded;
+        private boolean completing; // Set by the first caller of claimCompletion
+
+        private Session(String transferId, String owner, String relativePath, FileEvent.EventType eventType, long totalSize,
+                        String contentHash, long version, long lastTouchedMillis) throws IOException {
+            this.transferId = transferId;
+            this.owner = owner;
+            this.relativePath = relativePath;
+            this.eventType = eventType;
+            this.totalSize = totalSize;
+            this.contentHash = contentHash;
+            this.version = version;
+            this.metaPath = directory.resolve(transferId + META_SUFFIX);
+            this.partPath = directory.resolve(transferId + PART_SUFFIX);
+            this.lastTouchedMillis = lastTouchedMillis;
+            this.committedBytes = Files.exists(partPath) ? Math.min(Files.size(partPath), totalSize) : 0;
+        }
+
+        public String getTransferId() {
+            return transferId;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public boolean isOwnedBy(String client) {
+            return Objects.equals(owner, client);
+        }
+
+        public FileEvent.EventType getEventType() {
+            return eventType;
+        }
+
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public synchronized long getCommittedBytes() {
+            return committedBytes;
+        }
+
+        public synchronized boolean isComplete() {
+            return committedBytes >= totalSize;
+        }
+
+        // True for the one caller that gets to verify and commit a complete session. Verifying
+        // hashes the whole file, so a sender that asks again meanwhile must not start a second.
+        public synchronized boolean claimCompletion() {
+            if (completing || discarded) {
+                return false;
+            }
+            completing = true;
+            return true;
+        }
+
+        // Appends a chunk and forces it to disk before the new offset is reported, so the offset
+        // a peer is told never runs ahead of what survives a crash. Bytes before the committed
+        // offset (a resent chunk) are skipped. Returns the new committed offset, or -1 if the
+        // chunk starts past it and the sender has to be realigned.
+        public synchronized long write(long offset, byte[] data) throws IOException {
+            lastTouchedMillis = System.currentTimeMillis();
+            if (discarded) {
+                throw new IOException("Transfer " + transferId + " was discarded"); // Don't bring the part file back
+            }
+            if (offset > committedBytes) {
+                return -1;
+            }
+            int skip = (int) Math.min(data.length, committedBytes - offset);
+            int length = (int) Math.min(data.length - skip, totalSize - committedBytes);
+            if (length > 0) {
+                try (FileChannel channel = FileChannel.open(partPath,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data, skip, length);
+                    long position = committedBytes;
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    channel.force(false);
+                }
+                committedBytes += length;
+            }
+            return committedBytes;
+        }
+
+        // [offset, offset + length) of what has been received, or null if not all of it has
+        public synchronized byte[] read(long offset, int length) throws IOException {
+            if (discarded || offset < 0 || offset + length > committedBytes) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(partPath, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        return null;
+                    }
+                }
+                return buffer.array();
+            }
+        }
+
+        // Hashes the part file; a mismatch means the bytes were corrupted somewhere on the way
+        public boolean verify() throws IOException {
+            return isComplete() && contentHash.equals(ContentHash.of(partPath));
+        }
+
+        // Moves the completed part file into place and ends the session
+        public void moveTo(Path target) throws IOException {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(partPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partPath, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            discard();
+        }
+
+        public void discard() {
+            synchronized (this) {
+                discarded = true;
+            }
+            sessions.remove(transferId, this);
+            try {
+                Files.deleteIfExists(partPath);
+                Files.deleteIfExists(metaPath);
+            } catch (IOException e) {
+                System.err.println("TransferStore: Error removing transfer " + transferId + ": " + e.getMessage());
+            }
+        }
+
+        private void writeMeta() throws IOException {
+            Properties props = new Properties();
+            props.setProperty("id", transferId);
+            if (owner != null) {
+                props.setProperty("owner", owner);
+            }
+            props.setProperty("path", relativePath);
+            props.setProperty("type", eventType.name());
+            props.setProperty("size", Long.toString(totalSize));
+            props.setProperty("hash", contentHash);
+            props.setProperty("version", Long.toString(version));
+            writeAtomically(metaPath, props);
+        }
+    }
+}
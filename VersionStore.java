@@ -0,0 +1,429 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Copy-on-write version history for server_files. Every committed version of a file is
+// hard-linked into a content-addressed object store (objects/ab/<sha-256>), which costs a
+// directory entry, not a copy. This relies on the server never writing into a committed file:
+// commits, moves and restores all put a new file in place by rename, so an object keeps its
+// bytes for as long as it is linked. Where links are not supported the object is copied.
+//
+// history.log records each commit and delete per path, and a snapshot is a list of (hash, path)
+// for the latest version of every file, so taking one is O(files), not O(bytes). Restoring links
+// an object back into place. Old versions are dropped by a RetentionPolicy; objects no longer
+// referenced by any kept version or snapshot are deleted.
+//
+// Lives in the server's state directory (see TransferStore.stateDirectoryFor), which must be on
+// the same file system as server_files for links to work.
+public class VersionStore {
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    // One entry of a path's history. contentHash is null for a delete.
+    public static final class Version {
+        private final String path;
+        private final long version;
+        private final String contentHash;
+        private final long size;
+        private final long timeMillis;
+
+        Version(String path, long version, String contentHash, long size, long timeMillis) {
+            this.path = path;
+            this.version = version;
+            this.contentHash = contentHash;
+            this.size = size;
+            this.timeMillis = timeMillis;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public boolean isDelete() {
+            return contentHash == null;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        String toLine() {
+            return timeMillis + "\t" + version + "\t" + (contentHash != null ? contentHash : "-") + "\t" + size + "\t" + path;
+        }
+
+        static Version parse(String line) {
+            String[] fields = line.split("\t", 5);
+            return new Version(fields[4], Long.parseLong(fields[1]), fields[2].equals("-") ? null : fields[2],
+                    Long.parseLong(fields[3]), Long.parseLong(fields[0]));
+        }
+
+        @Override
+        public String toString() {
+            return "v" + version + " " + (isDelete() ? "deleted" : contentHash + " (" + size + " bytes)") + " at " + timeMillis;
+        }
+    }
+
+    // Which old versions to keep: at most keepVersions per path, none older than maxAgeMillis. The
+    // latest version of a path is always kept, and so is everything a snapshot refers to.
+    public static final class RetentionPolicy {
+        public static final RetentionPolicy DEFAULT = new RetentionPolicy(10, TimeUnit.DAYS.toMillis(30));
+
+        private final int keepVersions;
+        private final long maxAgeMillis;
+
+        public RetentionPolicy(int keepVersions, long maxAgeMillis) {
+            this.keepVersions = Math.max(1, keepVersions);
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "keep " + keepVersions + " versions, up to " + TimeUnit.MILLISECONDS.toDays(maxAgeMillis) + " days";
+        }
+    }
+
+    private final Path objects;
+    private final Path snapshots;
+    private final Path historyFile;
+    private final Map<String, List<Version>> history = new TreeMap<>(); // Oldest first per path
+    private final Set<String> unrecorded = new HashSet<>(); // Stored, history entry not written yet; kept by prune
+    private BufferedWriter historyLog;
+
+    public VersionStore(Path directory) {
+        this.objects = directory.resolve("objects");
+        this.snapshots = directory.resolve("snapshots");
+        this.historyFile = directory.resolve("history.log");
+        try {
+            Files.createDirectories(objects);
+            Files.createDirectories(snapshots);
+            loadHistory();
+            historyLog = Files.newBufferedWriter(historyFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open version store " + directory, e);
+        }
+    }
+
+    private void loadHistory() throws IOException {
+        if (!Files.exists(historyFile)) {
+            return;
+        }
+        for (String line : Files.readAllLines(historyFile, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                Version version = Version.parse(line);
+                history.computeIfAbsent(version.path, p -> new ArrayList<>()).add(version);
+            } catch (RuntimeException e) {
+                // A line cut short by a crash; everything before it is intact
+                System.err.println("Skipping unreadable version history line: " + line);
+            }
+        }
+    }
+
+    // Keeps the bytes of a committed file whose hash is known, if the store doesn't have them yet
+    public synchronized void store(Path file, String contentHash) throws IOException {
+        Path object = objectPath(contentHash);
+        if (!Files.exists(object)) {
+            Files.createDirectories(object.getParent());
+            link(file, object);
+        }
+        unrecorded.add(contentHash);
+    }
+
+    // Keeps the bytes of a committed file whose hash is not known and returns the hash. The file is
+    // linked first and the link hashed, so a commit replacing the file meanwhile can't mix versions.
+    public synchronized String preserve(Path file) throws IOException {
+        Path pending = objects.resolve(UUID.randomUUID() + ".tmp");
+        link(file, pending);
+        try {
+            String contentHash = ContentHash.of(pending);
+            Path object = objectPath(contentHash);
+            if (!Files.exists(object)) {
+                Files.createDirectories(object.getParent());
+                Files.move(pending, object, StandardCopyOption.ATOMIC_MOVE);
+            }
+            unrecorded.add(contentHash);
+            return contentHash;
+        } finally {
+            Files.deleteIfExists(pending);
+        }
+    }
+
+    public synchronized void recordCommit(String path, long version, String contentHash, long size) throws IOException {
+        append(new Version(path, version, contentHash, size, System.currentTimeMillis()));
+    }
+
+    public synchronized void recordDelete(String path, long version) throws IOException {
+        append(new Version(path, version, null, 0L, System.currentTimeMillis()));
+    }
+
+    private void append(Version version) throws IOException {
+        history.computeIfAbsent(version.path, p -> new ArrayList<>()).add(version);
+        unrecorded.remove(version.contentHash);
+        historyLog.write(version.toLine());
+        historyLog.newLine();
+        historyLog.flush();
+    }
+
+    public synchronized boolean hasHistory(String path) {
+        return history.containsKey(path);
+    }
+
+    // Oldest first
+    public synchronized List<Version> getHistory(String path) {
+        List<Version> versions = history.get(path);
+        return versions != null ? new ArrayList<>(versions) : List.of();
+    }
+
+    // Hash of the path's latest version, or null if it has none or was deleted
+    public synchronized String latestContentHash(String path) {
+        List<Version> versions = history.get(path);
+        return versions != null ? versions.get(versions.size() - 1).contentHash : null;
+    }
+
+    public synchronized Version getVersion(String path, long version) {
+        for (Version entry : history.getOrDefault(path, List.of())) {
+            if (entry.version == version) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Latest recorded version number per path, deleted ones included
+    public synchronized Map<String, Long> latestVersions() {
+        Map<String, Long> latest = new TreeMap<>();
+        for (Map.Entry<String, List<Version>> entry : history.entrySet()) {
+            List<Version> versions = entry.getValue();
+            latest.put(entry.getKey(), versions.get(versions.size() - 1).version);
+        }
+        return latest;
+    }
+
+    // Records every file under root that has no history yet as it is now, with version 0. Run
+    // once over existing files so that their first overwrite or delete can be undone too.
+    // Returns the number of files recorded.
+    public int baseline(Path root) throws IOException {
+        int[] recorded = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String path = root.relativize(file).toString().replace(java.io.File.separatorChar, '/');
+                if (!attrs.isRegularFile() || hasHistory(path)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String contentHash = preserve(file);
+                synchronized (VersionStore.this) {
+                    if (!history.containsKey(path)) { // Not committed meanwhile
+                        append(new Version(path, 0L, contentHash, attrs.size(), System.currentTimeMillis()));
+                        recorded[0]++;
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return recorded[0];
+    }
+
+    // Hard-links the stored object to target (a path in the server's staging directory, to be
+    // moved into place), or copies it where links are not supported
+    public synchronized void linkTo(String contentHash, Path target) throws IOException {
+        Path object = objectPath(contentHash);
+        if (!Files.exists(object)) {
+            throw new IOException("Version " + contentHash + " is no longer stored");
+        }
+        Files.deleteIfExists(target);
+        link(object, target);
+    }
+
+    // Saves the latest version of every file that is not deleted under the given name, replacing
+    // a snapshot of the same name. Returns the number of files in it.
+    public synchronized int createSnapshot(String name) throws IOException {
+        Path file = snapshotFile(name);
+        List<String> lines = new ArrayList<>();
+        lines.add("# snapshot " + name + " " + System.currentTimeMillis());
+        for (Map.Entry<String, List<Version>> entry : history.entrySet()) {
+            List<Version> versions = entry.getValue();
+            Version latest = versions.get(versions.size() - 1);
+            if (!latest.isDelete()) {
+                lines.add(latest.contentHash + "\t" + entry.getKey());
+            }
+        }
+        Path staged = snapshots.resolve(name + ".tmp");
+        Files.write(staged, lines, StandardCharsets.UTF_8);
+        Files.move(staged, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return lines.size() - 1;
+    }
+
+    // Content hash per path
+    public synchronized Map<String, String> readSnapshot(String name) throws IOException {
+        Path file = snapshotFile(name);
+        if (!Files.exists(file)) {
+            throw new IOException("No snapshot named " + name);
+        }
+        Map<String, String> manifest = new TreeMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int tab = line.indexOf('\t');
+            manifest.put(line.substring(tab + 1), line.substring(0, tab));
+        }
+        return manifest;
+    }
+
+    public synchronized List<String> listSnapshots() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(snapshots)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.endsWith(".tmp")) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    public synchronized boolean deleteSnapshot(String name) throws IOException {
+        return Files.deleteIfExists(snapshotFile(name));
+    }
+
+    // Drops the versions the policy doesn't keep, rewrites history.log without them and deletes
+    // the objects nothing refers to any more. Returns the number of objects deleted.
+    public synchronized int prune(RetentionPolicy policy) throws IOException {
+        long now = System.currentTimeMillis();
+        Set<String> referenced = new HashSet<>(unrecorded);
+        List<String> kept = new ArrayList<>();
+        for (Map.Entry<String, List<Version>> entry : history.entrySet()) {
+            List<Version> versions = entry.getValue();
+            Version latest = versions.get(versions.size() - 1);
+            List<Version> keep = new ArrayList<>();
+            for (int i = 0; i < versions.size(); i++) {
+                Version version = versions.get(i);
+                boolean young = now - version.timeMillis < policy.maxAgeMillis;
+                boolean recent = versions.size() - i <= policy.keepVersions;
+                // The latest version stays, unless it is a delete that has aged out
+                if (version == latest ? !latest.isDelete() || young : young && recent) {
+                    keep.add(version);
+                }
+            }
+            versions.retainAll(keep);
+            for (Version version : keep) {
+                kept.add(version.toLine());
+                if (!version.isDelete()) {
+                    referenced.add(version.contentHash);
+                }
+            }
+        }
+        history.values().removeIf(List::isEmpty);
+        for (String name : listSnapshots()) {
+            referenced.addAll(readSnapshot(name).values());
+        }
+
+        historyLog.close();
+        Path staged = historyFile.resolveSibling("history.log.tmp");
+        Files.write(staged, kept, StandardCharsets.UTF_8);
+        Files.move(staged, historyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        historyLog = Files.newBufferedWriter(historyFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        int[] deleted = {0};
+        Files.walkFileTree(objects, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".tmp") && !referenced.contains(name)) {
+                    Files.delete(file);
+                    deleted[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deleted[0];
+    }
+
+    public synchronized void close() {
+        try {
+            historyLog.close();
+        } catch (IOException e) {
+            System.err.println("Error closing version history: " + e.getMessage());
+        }
+    }
+
+    Path objectPath(String contentHash) {
+        return objects.resolve(contentHash.substring(0, 2)).resolve(contentHash);
+    }
+
+    private Path snapshotFile(String name) throws IOException {
+        if (!SNAPSHOT_NAME.matcher(name).matches()) {
+            throw new IOException("Invalid snapshot name: " + name + " (letters, digits, '.', '_' and '-' only)");
+        }
+        return snapshots.resolve(name);
+    }
+
+    private static void link(Path existing, Path link) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(existing, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Read-only inspection of a server's history, safe while the server runs:
+    //   java VersionStore <server_files> snapshots | snapshot <name> | history <path>
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java VersionStore <server_files> snapshots | snapshot <name> | history <path>");
+            return;
+        }
+        VersionStore store = new VersionStore(TransferStore.stateDirectoryFor(args[0]).resolve("versions"));
+        try {
+            switch (args[1]) {
+                case "snapshots" -> store.listSnapshots().forEach(System.out::println);
+                case "snapshot" -> store.readSnapshot(args[2]).forEach((path, hash) -> System.out.println(hash + "  " + path));
+                case "history" -> store.getHistory(args[2]).forEach(System.out::println);
+                default -> System.err.println("Unknown command: " + args[1]);
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Waits for files to stop changing before they are read and sent. Each pending path has its own
+// timer on one shared scheduled executor, so the watch and poll loops hand a path off and return
+// immediately instead of sleeping while a writer finishes.
+//
+// A path is considered settled once its size and mtime are unchanged between two samples and a
+// shared lock can be taken on it. Paths that keep changing are re-sampled with a growing
+// interval and released after maxWaitMs regardless, so a constantly appended log still syncs.
+public class WriteSettleScheduler {
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 100;
+    public static final long DEFAULT_MAX_CHECK_INTERVAL_MS = 1000;
+    public static final long DEFAULT_MAX_WAIT_MS = 30000;
+    private static final int MAX_CALLBACK_ATTEMPTS = 5;
+
+    // Invoked on the scheduler thread once the file has settled. Returning false means the file
+    // could not be processed yet (e.g. a read failed) and should be checked again later.
+    public interface SettledCallback {
+        boolean onSettled(Path fullPath, String relativePath);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final long checkIntervalMs;
+    private final long maxCheckIntervalMs;
+    private final long maxWaitMs;
+
+    private final class Pending {
+        final String relativePath;
+        final long firstSeenNanos;
+        volatile Path fullPath;
+        volatile SettledCallback callback;
+        final AtomicBoolean dirty = new AtomicBoolean(); // A new event arrived since the last sample
+        long lastSize = -1;
+        long lastModified = -1;
+        long intervalMs;
+        int callbackAttempts;
+
+        Pending(String relativePath, Path fullPath, SettledCallback callback) {
+            this.relativePath = relativePath;
+            this.fullPath = fullPath;
+            this.callback = callback;
+            this.firstSeenNanos = System.nanoTime();
+            this.intervalMs = checkIntervalMs;
+        }
+    }
+
+    public WriteSettleScheduler() {
+        this(DEFAULT_CHECK_INTERVAL_MS, DEFAULT_MAX_CHECK_INTERVAL_MS, DEFAULT_MAX_WAIT_MS);
+    }
+
+    public WriteSettleScheduler(long checkIntervalMs, long maxCheckIntervalMs, long maxWaitMs) {
+        this.checkIntervalMs = checkIntervalMs;
+        this.maxCheckIntervalMs = maxCheckIntervalMs;
+        this.maxWaitMs = maxWaitMs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "FileSync-SettleScheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Registers (or re-arms) a path. If the path is already pending, the earlier callback is kept
+    // so a CREATE followed by MODIFYs is still reported as a CREATE; only the settle timer resets.
+    // Marking an entry dirty is atomic with check() deciding to drop it (both run in compute on the
+    // path's key), so an event is never recorded on an entry that has just been dropped.
+    public void schedule(String relativePath, Path fullPath, SettledCallback callback) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        Pending[] created = new Pending[1];
+        pending.compute(relativePath, (key, existing) -> {
+            if (existing != null) {
+                existing.fullPath = fullPath;
+                existing.dirty.set(true);
+                return existing;
+            }
+            created[0] = new Pending(relativePath, fullPath, callback);
+            return created[0];
+        });
+        if (created[0] != null) {
+            start(created[0]);
+        }
+    }
+
+    // Drops a pending path, e.g. when the file was deleted before it settled
+    public void cancel(String relativePath) {
+        pending.remove(relativePath);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        pending.clear();
+    }
+
+    private void check(Pending p) {
+        if (pending.get(p.relativePath) != p) {
+            return; // Cancelled
+        }
+        // Cleared before sampling, so an event that arrives during the sample marks it again
+        boolean changed = p.dirty.getAndSet(false);
+        long size;
+        long lastModified;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p.fullPath, BasicFileAttributes.class);
+            size = attrs.size();
+            lastModified = attrs.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException e) {
+            pending.remove(p.relativePath, p); // Deleted before it settled; the delete event covers it
+            return;
+        } catch (IOException e) {
+            reschedule(p);
+            return;
+        }
+
+        boolean unchanged = !changed && size == p.lastSize && lastModified == p.lastModified;
+        boolean timedOut = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - p.firstSeenNanos) >= maxWaitMs;
+        p.lastSize = size;
+        p.lastModified = lastModified;
+
+        if ((unchanged && canLock(p.fullPath)) || timedOut) {
+            boolean handled;
+            try {
+                handled = p.callback.onSettled(p.fullPath, p.relativePath);
+            } catch (RuntimeException e) {
+                System.err.println("Settle callback failed for " + p.relativePath + ": " + e.getMessage());
+                handled = true;
+            }
+            if (handled || ++p.callbackAttempts >= MAX_CALLBACK_ATTEMPTS) {
+                if (!handled) {
+                    System.err.println("Giving up on " + p.relativePath + " after " + p.callbackAttempts + " attempts.");
+                }
+                finish(p);
+                return;
+            }
+        }
+        reschedule(p);
+    }
+
+    // Drops p, or replaces it with a fresh settle cycle if it changed again while the callback ran
+    private void finish(Pending p) {
+        Pending[] next = new Pending[1];
+        pending.computeIfPresent(p.relativePath, (key, current) -> {
+            if (current != p) {
+                return current; // Cancelled and scheduled anew meanwhile
+            }
+            if (p.dirty.get()) {
+                next[0] = new Pending(p.relativePath, p.fullPath, p.callback);
+                return next[0];
+            }
+            return null;
+        });
+        if (next[0] != null) {
+            start(next[0]);
+        }
+    }
+
+    private void start(Pending p) {
+        if (!executor.isShutdown()) {
+            executor.schedule(() -> check(p), checkIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reschedule(Pending p) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        long delay = p.intervalMs;
+        p.intervalMs = Math.min(p.intervalMs * 2, maxCheckIntervalMs);
+        executor.schedule(() -> check(p), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // A shared lock succeeds unless a writer holds an exclusive lock (mandatory on Windows,
+    // advisory elsewhere), which is the best non-blocking signal that the writer is done.
+    private static boolean canLock(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            FileLock lock = channel.tryLock(0L, Long.MAX_VALUE, true);
+            if (lock == null) {
+                return false;
+            }
+            lock.release();
+            return true;
+        } catch (OverlappingFileLockException e) {
+            return true; // Held by this JVM, not by an external writer
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end propagation harness: an in-process FileSyncServer on an ephemeral loopback port and M
+// FileSyncClients, each watching its own scratch directory. The harness writes files into one
+// client's directory and measures the time until every other client has applied the change
+// ("local save to file landing on peer N"), together with bytes on the wire and server CPU/heap.
+//
+//   javac -d out *.java bench/*.java
+//   java -cp out SyncLoadHarness --clients 4 --small 500 --huge 2 --huge-size 67108864 \
+//        --churn 5 --deletes 100 --out bench-results/e2e.json
+//
+// Phases run one after another (small files, huge files, churn, deletes); each waits for its
+// deliveries before the next starts, so latencies are not skewed by an earlier backlog.
+public class SyncLoadHarness {
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private final PrintStream report = System.out;
+
+    private FileSyncServer server;
+    private final List<FileSyncClient> clients = new ArrayList<>();
+    private Path scratch;
+
+    // Key "path#hash" (or "path#DELETE") -> expected delivery
+    private final Map<String, Expectation> expectations = new ConcurrentHashMap<>();
+
+    private static final class Expectation {
+        final String phase;
+        final long writtenNanos;
+        final int sourceClient;
+        final long[] landedNanos;   // Per client, 0 until applied
+        volatile boolean superseded;
+
+        Expectation(String phase, long writtenNanos, int sourceClient, int clientCount) {
+            this.phase = phase;
+            this.writtenNanos = writtenNanos;
+            this.sourceClient = sourceClient;
+            this.landedNanos = new long[clientCount];
+        }
+
+        synchronized void landed(int client, long nanos) {
+            if (landedNanos[client] == 0) {
+                landedNanos[client] = nanos;
+            }
+        }
+
+        synchronized int pendingPeers() {
+            int pending = 0;
+            for (int i = 0; i < landedNanos.length; i++) {
+                if (i != sourceClient && landedNanos[i] == 0) pending++;
+            }
+            return pending;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SyncLoadHarness harness = new SyncLoadHarness();
+        harness.options.putAll(Map.of(
+                "clients", "4", "small", "200", "small-size", "4096", "huge", "1",
+                "huge-size", String.valueOf(32 * 1024 * 1024), "churn", "3", "churn-files", "20",
+                "deletes", "50", "timeout", "120"));
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Unexpected argument: " + args[i]);
+                System.exit(2);
+            }
+            harness.options.put(args[i].substring(2), args[i + 1]);
+        }
+        harness.run();
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    void run() throws Exception {
+        int clientCount = intOption("clients");
+        scratch = Files.createTempDirectory("filesync-e2e");
+        report.println("Scratch directory: " + scratch + ", options: " + options);
+
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(java.io.OutputStream.nullOutputStream())); // Server and clients log every event
+        Map<String, Object> results = new LinkedHashMap<>();
+        try {
+            startCluster(clientCount);
+            long cpuBefore = serverCpuNanos();
+            long inBefore = server.getBytesReceived();
+            long outBefore = server.getBytesSent();
+            long start = System.nanoTime();
+
+            List<String> smallFiles = phaseSmall(clientCount);
+            phaseHuge(clientCount);
+            phaseChurn(clientCount, smallFiles);
+            phaseDeletes(clientCount, smallFiles);
+
+            long wallNanos = System.nanoTime() - start;
+            results.put("options", options);
+            results.put("phases", phaseStats());
+            results.put("wallMillis", TimeUnit.NANOSECONDS.toMillis(wallNanos));
+            results.put("serverBytesIn", server.getBytesReceived() - inBefore);
+            results.put("serverBytesOut", server.getBytesSent() - outBefore);
+            results.put("serverCacheHitRatePercent", server.getContentCache().getHitRatePercent());
+            results.put("serverCpuMillis", TimeUnit.NANOSECONDS.toMillis(serverCpuNanos() - cpuBefore));
+            results.put("processCpuMillis", TimeUnit.NANOSECONDS.toMillis(processCpuNanos()));
+            results.put("peakHeapBytes", peakHeapBytes());
+        } finally {
+            stopCluster();
+            System.setOut(originalOut);
+            deleteTree(scratch);
+        }
+
+        String json = toJson(results, "");
+        report.println(json);
+        String out = options.get("out");
+        if (out != null) {
+            Path outPath = Paths.get(out);
+            if (outPath.getParent() != null) Files.createDirectories(outPath.getParent());
+            Files.writeString(outPath, json + "\n");
+            report.println("Results written to " + outPath.toAbsolutePath());
+        }
+    }
+
+    private void startCluster(int clientCount) throws Exception {
+        server = new FileSyncServer(0, scratch.resolve("server").toString());
+        Thread serverThread = new Thread(server::start, "SyncLoadHarness-Server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.getLocalPort() <= 0) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Server did not start");
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < clientCount; i++) {
+            FileSyncClient client = new FileSyncClient("127.0.0.1", server.getLocalPort(), scratch.resolve("client" + i).toString());
+            final int index = i;
+            client.setRemoteEventListener(event -> onLanded(index, event));
+            client.connect();
+            Thread watcher = new Thread(client::startWatching, "SyncLoadHarness-Watch-" + i);
+            watcher.setDaemon(true);
+            watcher.start();
+            clients.add(client);
+        }
+        Thread.sleep(500); // Let the watch services register
+    }
+
+    private void stopCluster() {
+        for (FileSyncClient client : clients) {
+            client.shutdown();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private void onLanded(int client, FileEvent event) {
+        long now = System.nanoTime();
+        String key = event.getRelativePath() + "#" +
+                (event.getEventType() == FileEvent.EventType.DELETE ? "DELETE" : event.getContentHash());
+        Expectation expectation = expectations.get(key);
+        if (expectation != null) {
+            expectation.landed(client, now);
+        }
+    }
+
+    // Writes content into the source client's directory and registers the expected deliveries
+    private void write(String phase, int source, String relativePath, byte[] data) throws Exception {
+        Path file = Paths.get(clients.get(source).getDirectory(), relativePath);
+        Files.createDirectories(file.getParent());
+        String hash = ContentHash.of(data);
+        for (Map.Entry<String, Expectation> e : expectations.entrySet()) {
+            if (e.getKey().startsWith(relativePath + "#") && e.getValue().pendingPeers() > 0) {
+                e.getValue().superseded = true; // A newer version replaces it; only the latest must land
+            }
+        }
+        expectations.put(relativePath + "#" + hash, new Expectation(phase, System.nanoTime(), source, clients.size()));
+        Files.write(file, data);
+    }
+
+    private List<String> phaseSmall(int clientCount) throws Exception {
+        int count = intOption("small");
+        int size = intOption("small-size");
+        Random random = new Random(1);
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            String path = "small/d" + (i % 20) + "/f" + i + ".bin";
+            write("small", i % clientCount, path, data);
+            paths.add(path);
+        }
+        awaitDeliveries("small");
+        return paths;
+    }
+
+    private void phaseHuge(int clientCount) throws Exception {
+        int count = intOption("huge");
+        int size = intOption("huge-size");
+        Random random = new Random(2);
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            write("huge", i % clientCount, "huge/h" + i + ".bin", data);
+        }
+        awaitDeliveries("huge");
+    }
+
+    // Repeatedly re-saves the same files from the client that created them (one editor saving
+    // often); superseded versions are not required to land. Rewriting from different clients
+    // faster than delivery would be a conflicting concurrent edit, which the sync does not resolve.
+    private void phaseChurn(int clientCount, List<String> smallFiles) throws Exception {
+        int rounds = intOption("churn");
+        int files = Math.min(intOption("churn-files"), smallFiles.size());
+        int size = intOption("small-size");
+        Random random = new Random(3);
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < files; i++) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                write("churn", i % clientCount, smallFiles.get(i), data);
+            }
+            Thread.sleep(300);
+        }
+        awaitDeliveries("churn");
+    }
+
+    private void phaseDeletes(int clientCount, List<String> smallFiles) throws Exception {
+        int count = Math.min(intOption("deletes"), smallFiles.size());
+        for (int i = smallFiles.size() - count; i < smallFiles.size(); i++) {
+            int source = i % clientCount;
+            String path = smallFiles.get(i);
+            expectations.put(path + "#DELETE", new Expectation("deletes", System.nanoTime(), source, clients.size()));
+            Files.deleteIfExists(Paths.get(clients.get(source).getDirectory(), path));
+        }
+        awaitDeliveries("deletes");
+    }
+
+    private void awaitDeliveries(String phase) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(intOption("timeout"));
+        while (System.nanoTime() < deadline) {
+            int pending = 0;
+            for (Expectation e : expectations.values()) {
+                if (e.phase.equals(phase) && !e.superseded) pending += e.pendingPeers();
+            }
+            if (pending == 0) return;
+            Thread.sleep(20);
+        }
+        report.println("Phase " + phase + " timed out with deliveries still pending");
+    }
+
+    private Map<String, Object> phaseStats() {
+        Map<String, List<Long>> latencies = new LinkedHashMap<>();
+        Map<String, Integer> missing = new LinkedHashMap<>();
+        for (Expectation e : expectations.values()) {
+            latencies.computeIfAbsent(e.phase, k -> new ArrayList<>());
+            missing.putIfAbsent(e.phase, 0);
+            for (int i = 0; i < e.landedNanos.length; i++) {
+                if (i == e.sourceClient) continue;
+                if (e.landedNanos[i] != 0) {
+                    latencies.get(e.phase).add(e.landedNanos[i] - e.writtenNanos);
+                } else if (!e.superseded) {
+                    missing.merge(e.phase, 1, Integer::sum);
+                }
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+            long[] sorted = entry.getValue().stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            Map<String, Object> phase = new LinkedHashMap<>();
+            phase.put("deliveries", sorted.length);
+            phase.put("missing", missing.get(entry.getKey()));
+            phase.put("p50Millis", percentileMillis(sorted, 0.50));
+            phase.put("p99Millis", percentileMillis(sorted, 0.99));
+            phase.put("p999Millis", percentileMillis(sorted, 0.999));
+            phase.put("maxMillis", sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0.0);
+            stats.put(entry.getKey(), phase);
+        }
+        return stats;
+    }
+
+    private static double percentileMillis(long[] sorted, double p) {
+        if (sorted.length == 0) return 0.0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    // CPU of live server threads (accept loop and client handlers); clients run in the same JVM
+    private static long serverCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && (info.getThreadName().startsWith("FileSyncServer-") || info.getThreadName().equals("SyncLoadHarness-Server"))) {
+                long cpu = threads.getThreadCpuTime(info.getThreadId());
+                if (cpu > 0) total += cpu;
+            }
+        }
+        return total;
+    }
+
+    private static long processCpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // Recursively deletes the scratch directory the servers and clients ran in
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (var paths = Files.walk(root)) {
+            List<Path> all = new ArrayList<>(paths.toList());
+            for (int i = all.size() - 1; i >= 0; i--) {
+                Files.deleteIfExists(all.get(i));
+            }
+        }
+    }
+
+    private static String toJson(Object value, String indent) {
+        if (value instanceof Map<?, ?> map) {
+            StringBuilder sb = new StringBuilder("{\n");
+            int i = 0;
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                sb.append(indent).append("  \"").append(e.getKey()).append("\": ")
+                  .append(toJson(e.getValue(), indent + "  "))
+                  .append(++i < map.size() ? ",\n" : "\n");
+            }
+            return sb.append(indent).append("}").toString();
+        }
+        if (value instanceof Double d) {
+            return String.format(Locale.ROOT, "%.3f", d);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return String.valueOf(value);
+        }
+        return "\"" + String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
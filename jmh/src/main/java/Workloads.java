@@ -0,0 +1,396 @@
+import filesync.jmh.Workload;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+// The workloads behind the JMH benchmarks in filesync.jmh, one per benchmark and parameter set
+// (see Workload for why they are built here). Setup happens in create, outside the measured
+// time; run is one operation. Each workload gets a scratch directory of its own, deleted when it
+// is closed.
+public final class Workloads {
+    private static final int RESCAN_FILES = 1_000;
+    private static final int HASH_FILE_SIZE = 256 * 1024 * 1024;
+
+    private Workloads() {
+    }
+
+    public static Workload create(String benchmark, Map<String, String> params) throws Exception {
+        // The code under test logs every event to stdout, and a benchmark fork has no use for it
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Path scratch = Files.createTempDirectory("filesync-jmh");
+        Workload workload = switch (benchmark) {
+            case "fileEventRoundTrip" -> fileEventRoundTrip(intParam(params, "bytes"));
+            case "serverHandleFileEvent" -> serverHandleFileEvent(scratch, intParam(params, "bytes"));
+            case "collectFilePaths" -> collectFilePaths(scratch, intParam(params, "files"));
+            case "clientInitializeFileMap" -> clientInitializeFileMap(scratch, intParam(params, "files"));
+            case "clientPoll" -> clientPoll(scratch, intParam(params, "files"));
+            case "clientRescan" -> clientRescan(scratch, intParam(params, "bytes"), params.get("mode"));
+            case "treeHash" -> treeHash(scratch, intParam(params, "threads"));
+            case "streamHash" -> streamHash(scratch);
+            case "outgoingRead" -> outgoingRead(scratch, intParam(params, "bytes"), params.get("mode"));
+            case "tokenBucketRate" -> tokenBucketRate(Long.parseLong(params.get("rate")));
+            case "fairShareLimiterRate" -> fairShareLimiterRate();
+            case "broadcastFanOut" -> broadcastFanOut(intParam(params, "clients"), params.get("mode"));
+            case "subscriptionMatch" -> subscriptionMatch(intParam(params, "subscribers"), params.get("mode"));
+            default -> throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+        };
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                return workload.run();
+            }
+
+            @Override
+            public void close() throws Exception {
+                try {
+                    workload.close();
+                } finally {
+                    deleteTree(scratch);
+                }
+            }
+        };
+    }
+
+    static Workload fileEventRoundTrip(int size) {
+        byte[] data = randomBytes(size);
+        FileEvent event = new FileEvent(FileEvent.EventType.MODIFY, "dir/file.bin", data, ContentHash.of(data), 1L);
+        return () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 512);
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(event);
+            }
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return ois.readObject();
+            }
+        };
+    }
+
+    static Workload serverHandleFileEvent(Path scratch, int size) {
+        FileSyncServer server = new FileSyncServer(0, scratch.resolve("server").toString());
+        byte[] data = randomBytes(size);
+        int[] counter = {0};
+        return () -> {
+            int n = counter[0]++;
+            data[0] = (byte) n;
+            data[data.length - 1] = (byte) (n >> 8);
+            FileEvent event = new FileEvent(FileEvent.EventType.MODIFY, "d" + (n % 16) + "/f" + (n % 1000), data);
+            server.handleFileEvent(event, null);
+            return event;
+        };
+    }
+
+    static Workload collectFilePaths(Path scratch, int files) throws Exception {
+        Path root = syntheticTree(scratch, files);
+        return () -> {
+            Set<String> paths = new HashSet<>();
+            FileSyncServer.collectFilePathsRecursively(root.toFile(), "", paths);
+            if (paths.size() != files) {
+                throw new IllegalStateException("expected " + files + " got " + paths.size());
+            }
+            return paths;
+        };
+    }
+
+    static Workload clientInitializeFileMap(Path scratch, int files) throws Exception {
+        FileSyncClient client = offlineClient(syntheticTree(scratch, files));
+        return new Workload() {
+            @Override
+            public Object run() {
+                client.initializeFileMap();
+                return client;
+            }
+
+            @Override
+            public void close() {
+                client.shutdown();
+            }
+        };
+    }
+
+    static Workload clientPoll(Path scratch, int files) throws Exception {
+        FileSyncClient client = offlineClient(syntheticTree(scratch, files));
+        return new Workload() {
+            @Override
+            public Object run() {
+                return client.pollOnce();
+            }
+
+            @Override
+            public void close() {
+                client.shutdown();
+            }
+        };
+    }
+
+    static Workload clientRescan(Path scratch, int size, String mode) throws Exception {
+        Path root = scratch.resolve("tree");
+        byte[] content = randomBytes(size);
+        String[] paths = new String[RESCAN_FILES];
+        FileTime hourAgo = FileTime.fromMillis(System.currentTimeMillis() - 3_600_000L); // Past the racy window
+        for (int i = 0; i < RESCAN_FILES; i++) {
+            paths[i] = "d" + (i / 100) + "/file" + i + ".dat";
+            Path file = root.resolve(paths[i]);
+            Files.createDirectories(file.getParent());
+            content[0] = (byte) i;
+            Files.write(file, content);
+            Files.setLastModifiedTime(file, hourAgo);
+        }
+        HashCache warm = new HashCache(scratch.resolve("hashes"), new MetricsRegistry());
+        for (String path : paths) {
+            warm.hash(root.resolve(path), path);
+        }
+        Path none = scratch.resolve("none");
+        int[] counter = {0};
+        return () -> {
+            int n = counter[0]++ % RESCAN_FILES;
+            HashCache cache = mode.equals("warm") ? warm : new HashCache(none, new MetricsRegistry());
+            return cache.hash(root.resolve(paths[n]), paths[n]);
+        };
+    }
+
+    static Workload treeHash(Path scratch, int threads) throws Exception {
+        Path file = hashFile(scratch);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                return ContentHash.of(file, pool);
+            }
+
+            @Override
+            public void close() {
+                pool.shutdown();
+            }
+        };
+    }
+
+    static Workload streamHash(Path scratch) throws Exception {
+        Path file = hashFile(scratch);
+        return () -> {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return digest.digest();
+        };
+    }
+
+    static Workload outgoingRead(Path scratch, int size, String mode) throws Exception {
+        Path file = scratch.resolve("outgoing.bin");
+        Files.write(file, randomBytes(size));
+        int chunk = TransferChunk.CHUNK_SIZE;
+        byte[] buffer = new byte[chunk];
+        return switch (mode) {
+            case "readAllBytes" -> () -> {
+                byte[] data = Files.readAllBytes(file);
+                byte[] last = null;
+                for (int offset = 0; offset < size; offset += chunk) {
+                    last = Arrays.copyOfRange(data, offset, Math.min(size, offset + chunk));
+                }
+                return last;
+            };
+            case "channelRead" -> () -> {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    for (long offset = 0; offset < size; offset += chunk) {
+                        ByteBuffer target = ByteBuffer.wrap(buffer, 0, (int) Math.min(chunk, size - offset));
+                        while (target.hasRemaining()) {
+                            channel.read(target, offset + target.position());
+                        }
+                    }
+                }
+                return buffer;
+            };
+            case "mapped" -> () -> {
+                try (MappedFileReader reader = new MappedFileReader(file, size)) {
+                    for (long offset = 0; offset < size; offset += chunk) {
+                        reader.read(offset, buffer, (int) Math.min(chunk, size - offset));
+                    }
+                }
+                return buffer;
+            };
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        };
+    }
+
+    static Workload tokenBucketRate(long rate) {
+        TokenBucket bucket = new TokenBucket(rate);
+        return () -> {
+            bucket.acquire(ThrottledOutputStream.CHUNK_SIZE);
+            return bucket;
+        };
+    }
+
+    static Workload fairShareLimiterRate() {
+        FairShareLimiter limiter = new FairShareLimiter(8L * 1024 * 1024);
+        Object light = new Object();
+        Object heavy = new Object();
+        Thread competitor = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    limiter.acquire(light, 1, ThrottledOutputStream.CHUNK_SIZE);
+                }
+            } catch (InterruptedException e) {
+                // Done
+            }
+        });
+        competitor.setDaemon(true);
+        competitor.start();
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                limiter.acquire(heavy, 3, ThrottledOutputStream.CHUNK_SIZE);
+                return limiter;
+            }
+
+            @Override
+            public void close() throws Exception {
+                competitor.interrupt();
+                competitor.join();
+            }
+        };
+    }
+
+    static Workload broadcastFanOut(int clients, String mode) throws Exception {
+        byte[] data = randomBytes(1024 * 1024);
+        FileEvent event = new FileEvent(FileEvent.EventType.MODIFY, "dir/file.bin", data, ContentHash.of(data), 1L);
+        OutputStream[] raw = new OutputStream[clients];
+        ObjectOutputStream[] streams = new ObjectOutputStream[clients];
+        for (int i = 0; i < clients; i++) {
+            raw[i] = new BufferedOutputStream(OutputStream.nullOutputStream(), SocketSettings.STREAM_BUFFER_SIZE);
+            streams[i] = new ObjectOutputStream(raw[i]);
+        }
+        return switch (mode) {
+            case "perClient" -> () -> {
+                for (ObjectOutputStream out : streams) {
+                    out.writeObject(event);
+                    out.flush();
+                    out.reset();
+                }
+                return streams;
+            };
+            case "encodedOnce" -> () -> {
+                byte[] encoded = EncodedFrame.encode(event);
+                for (int i = 0; i < clients; i++) {
+                    EncodedFrame.writeTo(streams[i], raw[i], encoded);
+                }
+                return encoded;
+            };
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        };
+    }
+
+    static Workload subscriptionMatch(int subscribers, String mode) {
+        SubscriptionIndex<Integer> index = new SubscriptionIndex<>();
+        PathSubscription[] all = new PathSubscription[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            all[i] = i < 10
+                    ? new PathSubscription(List.of("projects/p" + i, "shared/**/*.md"), List.of("projects/p" + i + "/build"))
+                    : new PathSubscription(List.of("projects/p" + i), List.of());
+            index.add(i, all[i]);
+        }
+        String[] paths = new String[256];
+        Random random = new Random(subscribers);
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = i % 8 == 0 ? "shared/docs/notes" + i + ".md" : "projects/p" + random.nextInt(subscribers) + "/src/File" + i + ".java";
+        }
+        int[] counter = {0};
+        return switch (mode) {
+            case "index" -> () -> {
+                String path = paths[counter[0]++ & (paths.length - 1)];
+                Set<Integer> matched = index.match(path);
+                if (matched.isEmpty()) {
+                    throw new IllegalStateException("no subscriber for " + path);
+                }
+                return matched;
+            };
+            case "linearScan" -> () -> {
+                String path = paths[counter[0]++ & (paths.length - 1)];
+                int matched = 0;
+                for (PathSubscription subscription : all) {
+                    if (subscription.matches(path)) {
+                        matched++;
+                    }
+                }
+                if (matched == 0) {
+                    throw new IllegalStateException("no subscriber for " + path);
+                }
+                return matched;
+            };
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        };
+    }
+
+    // A client that never connects, for its scans and polls alone
+    private static FileSyncClient offlineClient(Path root) {
+        return new FileSyncClient("localhost", 1, root.toString());
+    }
+
+    // files spread over a three-level tree, 100 files per leaf directory, 1 KB each
+    private static Path syntheticTree(Path scratch, int files) throws Exception {
+        Path root = scratch.resolve("tree");
+        byte[] content = randomBytes(1024);
+        for (int i = 0; i < files; i++) {
+            int leaf = i / 100;
+            Path dir = root.resolve("a" + (leaf / 100)).resolve("b" + (leaf % 100 / 10)).resolve("c" + (leaf % 10));
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("file" + i + ".dat"), content);
+        }
+        return root;
+    }
+
+    // HASH_FILE_SIZE bytes written a leaf at a time, no two leaves alike
+    private static Path hashFile(Path scratch) throws Exception {
+        Path file = scratch.resolve("hash.bin");
+        byte[] block = randomBytes(ContentHash.LEAF_SIZE);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int written = 0; written < HASH_FILE_SIZE; written += block.length) {
+                out.write(block);
+                block[0]++;
+            }
+        }
+        return file;
+    }
+
+    private static int intParam(Map<String, String> params, String name) {
+        return Integer.parseInt(params.get(name));
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static void deleteTree(Path root) throws Exception {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (var paths = Files.walk(root)) {
+            List<Path> all = new ArrayList<>(paths.toList());
+            for (int i = all.size() - 1; i >= 0; i--) {
+                Files.deleteIfExists(all.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// One 1 MB event written to N client streams, serialized per client (the old writeObject per
+// recipient) or once as an EncodedFrame. The streams discard what they are given, so this is the
+// serialization and copy cost alone. Run with -prof gc for the allocation per broadcast.
+public class BroadcastFanOut extends SyncBenchmark {
+    @Param({"1", "8", "64"})
+    public int clients;
+
+    @Param({"perClient", "encodedOnce"})
+    public String mode;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("broadcastFanOut", "clients", clients, "mode", mode);
+    }
+
+    @Benchmark
+    public Object broadcast() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,21 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Client startup scan that populates the modification-time map
+public class ClientInitializeFileMap extends SyncBenchmark {
+    @Param({"1000", "10000"})
+    public int files;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("clientInitializeFileMap", "files", files);
+    }
+
+    @Benchmark
+    public Object scan() throws Exception {
+        return workload.run();
+    }
+}
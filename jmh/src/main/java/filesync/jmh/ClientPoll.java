@@ -0,0 +1,21 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// One poller pass over every tracked file. Divide the time per op by files for the cost per file.
+public class ClientPoll extends SyncBenchmark {
+    @Param({"1000", "10000"})
+    public int files;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("clientPoll", "files", files);
+    }
+
+    @Benchmark
+    public Object poll() throws Exception {
+        return workload.run();
+    }
+}
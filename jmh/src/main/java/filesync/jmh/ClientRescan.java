@@ -0,0 +1,26 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Hashing one file of an unchanged 1,000-file tree, as a rescan does: cold with an empty HashCache,
+// so the file is read and hashed, and warm with the cache from an earlier scan, where it costs a
+// stat. Each op is one file.
+public class ClientRescan extends SyncBenchmark {
+    @Param({"4096", "262144"})
+    public int bytes;
+
+    @Param({"cold", "warm"})
+    public String mode;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("clientRescan", "bytes", bytes, "mode", mode);
+    }
+
+    @Benchmark
+    public Object hash() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,21 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Manifest construction on the server during every handshake, over a synthetic tree
+public class CollectFilePaths extends SyncBenchmark {
+    @Param({"1000", "10000"})
+    public int files;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("collectFilePaths", "files", files);
+    }
+
+    @Benchmark
+    public Object scan() throws Exception {
+        return workload.run();
+    }
+}
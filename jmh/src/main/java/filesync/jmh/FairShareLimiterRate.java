@@ -0,0 +1,18 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+// The weight-3 flow of two competing for one 8 MB/s FairShareLimiter with weights 1 and 3. Each op
+// is one 16 KB chunk granted to it; a fair split gives it three quarters of the limit, 384 chunks/s.
+public class FairShareLimiterRate extends SyncBenchmark {
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("fairShareLimiterRate");
+    }
+
+    @Benchmark
+    public Object acquire() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,21 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Java-serialization round trip of one FileEvent, as sent on the wire
+public class FileEventRoundTrip extends SyncBenchmark {
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int bytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("fileEventRoundTrip", "bytes", bytes);
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,28 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Reading a large file in TransferChunk-sized pieces as an upload does: the whole file read onto
+// the heap and each chunk copied out of it (readAllBytes, the old path), positional channel reads
+// into one reused array (channelRead), and mapped windows copied into one reused array (mapped,
+// the MappedFileReader path). Each op is one file. Run with -prof gc for the heap allocated per
+// file; mapped windows are off-heap and not counted.
+public class OutgoingRead extends SyncBenchmark {
+    @Param({"8388608", "67108864", "268435456"})
+    public int bytes;
+
+    @Param({"readAllBytes", "channelRead", "mapped"})
+    public String mode;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("outgoingRead", "bytes", bytes, "mode", mode);
+    }
+
+    @Benchmark
+    public Object read() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,22 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Server commit path: hash check, write to server_files, version bump. No clients are connected,
+// so broadcast cost is excluded. Content changes every op so echo suppression never short-circuits.
+public class ServerHandleFileEvent extends SyncBenchmark {
+    @Param({"4096", "1048576"})
+    public int bytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("serverHandleFileEvent", "bytes", bytes);
+    }
+
+    @Benchmark
+    public Object write() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,18 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+// Plain SHA-256 of one 256 MB file streamed on one thread, the content hash before it was a tree.
+// Each op is one file; compare with TreeHash.
+public class StreamHash extends SyncBenchmark {
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("streamHash");
+    }
+
+    @Benchmark
+    public Object hash() throws Exception {
+        return workload.run();
+    }
+}
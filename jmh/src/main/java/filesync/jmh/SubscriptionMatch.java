@@ -0,0 +1,27 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Finding the recipients of one changed path among N clients that each subscribe to their own
+// project directory, ten of them also taking "shared/**/*.md", so each path has the same number
+// of recipients whatever N is. The index should stay flat as N grows; the linear scan (every
+// subscription checked, as a plain loop over clients would) is there for comparison.
+public class SubscriptionMatch extends SyncBenchmark {
+    @Param({"100", "10000"})
+    public int subscribers;
+
+    @Param({"index", "linearScan"})
+    public String mode;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("subscriptionMatch", "subscribers", subscribers, "mode", mode);
+    }
+
+    @Benchmark
+    public Object match() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,22 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Bytes granted by a TokenBucket, in the 16 KB chunks the throttled streams request. Each op is
+// one chunk, so ops/s times 16384 should be the configured rate.
+public class TokenBucketRate extends SyncBenchmark {
+    @Param({"1048576", "16777216", "134217728"})
+    public long rate;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("tokenBucketRate", "rate", rate);
+    }
+
+    @Benchmark
+    public Object acquire() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,22 @@
+package filesync.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// Hashing one 256 MB file with the tree hash on a pool of this many threads. Each op is one file;
+// StreamHash is the same file hashed the way it was before the tree hash.
+public class TreeHash extends SyncBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.create("treeHash", "threads", threads);
+    }
+
+    @Benchmark
+    public Object hash() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,35 @@
+package filesync.jmh;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// One operation of the sync code under test, as a benchmark method runs it.
+//
+// The sync code is in the unnamed package. JMH refuses benchmark classes there, and code in a
+// named package cannot refer to it, so the benchmarks in this package hold Workloads built by the
+// unnamed-package Workloads class, looked up by name once per trial. A benchmark method returns
+// what run() returns, which JMH consumes so the work is never eliminated as dead code.
+public interface Workload {
+    Object run() throws Exception;
+
+    // Releases what the workload set up: scratch files, clients, threads
+    default void close() throws Exception {
+    }
+
+    // params are name/value pairs, e.g. create("fileEventRoundTrip", "bytes", 1024)
+    static Workload create(String benchmark, Object... params) throws Exception {
+        Map<String, String> named = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            named.put(params[i].toString(), params[i + 1].toString());
+        }
+        try {
+            return (Workload) Class.forName("Workloads").getMethod("create", String.class, Map.class).invoke(null, benchmark, named);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A client that stops reading is disconnected once its queue passes the backlog limit, without
+// holding up the others, and is sent what it missed when it comes back
+class ClientBacklogTest {
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final int FILES_PER_BATCH = 16; // 4 MB a batch
+    private static final long MAX_BACKLOG = 8L * 1024 * 1024;
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void laggingClientIsDroppedAndResentWhatItMissed() throws Exception {
+        Path serverDir = scratch.resolve("server");
+        FileSyncServer server = new FileSyncServer(0, serverDir.toString());
+        server.setMaxClientBacklog(MAX_BACKLOG);
+        SyncTestSupport.start(server);
+        int port = server.getLocalPort();
+        Path healthyDir = scratch.resolve("healthy");
+        FileSyncClient healthy = SyncTestSupport.connectedClient(port, healthyDir);
+        SyncTestSupport.Connection stuck = new SyncTestSupport.Connection(port, "stuck", 4096);
+        SyncTestSupport.Connection writer = new SyncTestSupport.Connection(port, "writer", 0);
+        try {
+            SyncTestSupport.await("both connections to register", () -> server.getMetrics().snapshot().get("server.clients.connected") == 3);
+            // The first batch fills the stuck client's socket, the second waits behind it within
+            // the limit, and the third would take its backlog to 12 MB
+            Random random = new Random(42);
+            Map<String, byte[]> written = new HashMap<>();
+            for (int batch = 0; batch < 3; batch++) {
+                List<FileEvent> events = new ArrayList<>();
+                for (int i = 0; i < FILES_PER_BATCH; i++) {
+                    byte[] data = new byte[FILE_SIZE];
+                    random.nextBytes(data);
+                    String path = "batch" + batch + "/file" + i + ".bin";
+                    written.put(path, data);
+                    events.add(new FileEvent(FileEvent.EventType.CREATE, path, data));
+                }
+                writer.send(new FileEventBatch(events));
+            }
+
+            SyncTestSupport.await("the stuck client to be dropped", () -> metric(server, "server.clients.dropped.lagging") == 1);
+            SyncTestSupport.await("the healthy client to get every file", () -> written.keySet().stream()
+                    .allMatch(path -> Files.isRegularFile(healthyDir.resolve(path)) && healthyDir.resolve(path).toFile().length() == FILE_SIZE));
+            assertEquals(1, metric(server, "server.clients.dropped.lagging"), "Only the stuck client is dropped");
+
+            // Back under the same ID, it is sent the current content of every file it missed: those
+            // queued for it when it was dropped, and those committed since
+            stuck.close();
+            try (SyncTestSupport.Connection back = new SyncTestSupport.Connection(port, "stuck", 0)) {
+                back.socket.setSoTimeout((int) SyncTestSupport.TIMEOUT_MS);
+                Map<String, byte[]> received = new HashMap<>();
+                while (received.size() < written.size()) {
+                    Object frame;
+                    try {
+                        frame = back.read();
+                    } catch (SocketTimeoutException e) {
+                        throw new AssertionError("Resent " + received.size() + " of " + written.size() + " missed files", e);
+                    }
+                    if (frame instanceof FileEvent event) {
+                        received.put(event.getRelativePath(), event.getFileData());
+                    }
+                }
+                for (Map.Entry<String, byte[]> entry : written.entrySet()) {
+                    assertArrayEquals(entry.getValue(), received.get(entry.getKey()), entry.getKey());
+                }
+            }
+        } finally {
+            writer.close();
+            stuck.close();
+            healthy.shutdown();
+            server.stop();
+        }
+    }
+
+    private static long metric(FileSyncServer server, String name) {
+        Long value = server.getMetrics().snapshot().get(name);
+        return value != null ? value : 0;
+    }
+}
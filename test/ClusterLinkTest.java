@@ -0,0 +1,69 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// What a cluster node keeps for another node that is down: past a limit on the file data waiting
+// on the link, changes wait without their data, which stays in the cache for the other node to
+// fetch once it is back.
+class ClusterLinkTest {
+    private static final long MAX_QUEUED_DATA_BYTES = 64 * 1024;
+    private static final int FILES = 24;
+    private static final int FILE_SIZE = 16 * 1024;
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void changesForADownNodeWaitWithoutTheirData() throws Exception {
+        List<String> members = List.of("127.0.0.1:" + SyncTestSupport.freePort(), "127.0.0.1:" + SyncTestSupport.freePort());
+        ServerCluster cluster = new ServerCluster(members.get(0), members, scratch.resolve("node0").toString(), MAX_QUEUED_DATA_BYTES);
+        FileSyncServer node0 = newNode(members.get(0), scratch.resolve("node0"));
+        node0.setCluster(cluster);
+        SyncTestSupport.start(node0);
+        FileSyncServer node1 = null;
+        try {
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; paths.size() < FILES; i++) {
+                if (cluster.ownerOf("top" + i).equals(members.get(1))) {
+                    paths.add("top" + i + "/file.bin");
+                }
+            }
+            try (SyncTestSupport.Connection client = new SyncTestSupport.Connection(node0.getLocalPort(), "writer", 0)) {
+                for (String path : paths) {
+                    client.send(new FileEvent(FileEvent.EventType.CREATE, path, content(path)));
+                }
+                SyncTestSupport.await("changes to be forwarded", () -> node0.getMetrics().snapshot().get("server.cluster.forwarded") == FILES);
+            }
+            long queued = node0.getMetrics().snapshot().get("server.cluster.queued.bytes");
+            assertTrue(queued <= MAX_QUEUED_DATA_BYTES, queued + " bytes of file data wait for the down node");
+            assertTrue(node0.getMetrics().snapshot().get("server.cluster.deferred.events") > 0, "No change was left without its data");
+
+            node1 = newNode(members.get(1), scratch.resolve("node1"));
+            node1.setCluster(new ServerCluster(members.get(1), members, scratch.resolve("node1").toString()));
+            SyncTestSupport.start(node1);
+            for (String path : paths) {
+                Path file = scratch.resolve("node1").resolve(path);
+                String expected = new String(content(path), StandardCharsets.UTF_8);
+                SyncTestSupport.await(file.toString(), () -> expected.equals(SyncTestSupport.read(file)));
+            }
+        } finally {
+            node0.stop();
+            if (node1 != null) {
+                node1.stop();
+            }
+        }
+    }
+
+    private static FileSyncServer newNode(String member, Path dir) {
+        return new FileSyncServer(Integer.parseInt(member.substring(member.lastIndexOf(':') + 1)), dir.toString());
+    }
+
+    private static byte[] content(String path) {
+        return (path + " ").repeat(FILE_SIZE / (path.length() + 1)).getBytes(StandardCharsets.UTF_8);
+    }
+}
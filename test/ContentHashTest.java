@@ -0,0 +1,53 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A file hashes to the hash of its bytes, whichever side of LEAF_SIZE it is on, and a file that
+// changes size while it is read gets no hash at all.
+class ContentHashTest {
+    @TempDir
+    Path scratch;
+
+    @Test
+    void fileHashesAsItsBytes() throws IOException {
+        Random random = new Random(49);
+        for (int size : new int[] {0, 1, ContentHash.LEAF_SIZE - 1, ContentHash.LEAF_SIZE, ContentHash.LEAF_SIZE + 1, 3 * ContentHash.LEAF_SIZE}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            Path file = scratch.resolve("file" + size);
+            Files.write(file, data);
+            assertEquals(ContentHash.of(data), ContentHash.of(file), size + " bytes");
+        }
+    }
+
+    @Test
+    void fileThatGrowsWhileHashedFails() throws Exception {
+        Path file = scratch.resolve("growing.bin");
+        Files.write(file, new byte[2 * ContentHash.LEAF_SIZE]);
+        // The pool starts its workers once the file is open and its size taken; each appends to it first
+        ForkJoinPool pool = new ForkJoinPool(2, p -> {
+            try {
+                Files.write(file, new byte[ContentHash.LEAF_SIZE], StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        }, null, false);
+        try {
+            IOException failure = assertThrows(IOException.class, () -> ContentHash.of(file, pool));
+            assertTrue(failure.getMessage().contains("changed size"), failure.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The client's event sender while the server is unreachable: events queued meanwhile must reach
+// the server in the order they happened, and the sender must sleep rather than spin.
+class EventSenderTest {
+    private static final long IDLE_WINDOW_MS = 6_000;
+    // Thread CPU the sender may use in IDLE_WINDOW_MS. Parked, it uses next to none; the old
+    // re-queue loop woke every 200 ms and a spinning one would use the whole window.
+    private static final long MAX_IDLE_CPU_MS = 150;
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void eventsQueuedWhileDisconnectedReachTheServerInOrder() throws Exception {
+        Path dir = scratch.resolve("client");
+        RecordingServer server = new RecordingServer(0);
+        FileSyncClient client = SyncTestSupport.connectedClient(server.port(), dir);
+        try {
+            server.close();
+            SyncTestSupport.await("the client to notice the server is gone", () -> SyncTestSupport.metric(client, "client.connected") == 0);
+
+            // Each change is queued before the next is made, so the queue holds them in this order
+            SyncTestSupport.write(dir.resolve("a.txt"), "a");
+            awaitQueued(client, 1);
+            SyncTestSupport.write(dir.resolve("b.txt"), "v1");
+            awaitQueued(client, 2);
+            Files.delete(dir.resolve("a.txt"));
+            awaitQueued(client, 3);
+            SyncTestSupport.write(dir.resolve("b.txt"), "v2");
+            awaitQueued(client, 4);
+
+            server = new RecordingServer(server.port());
+            RecordingServer restarted = server;
+            SyncTestSupport.await("the backlog to drain", () -> restarted.received().size() >= 4);
+            assertEquals(List.of("CREATE a.txt", "CREATE b.txt", "DELETE a.txt", "MODIFY b.txt"), server.received());
+        } finally {
+            client.shutdown();
+            server.close();
+        }
+    }
+
+    @Test
+    void senderSleepsWhileTheServerIsDown() throws Exception {
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, scratch.resolve("server").toString()));
+        FileSyncClient client = SyncTestSupport.connectedClient(server.getLocalPort(), scratch.resolve("client"));
+        try {
+            SyncTestSupport.write(scratch.resolve("client/pending.txt"), "queued while the server is down");
+            server.stop();
+            SyncTestSupport.await("the client to notice the server is gone", () -> SyncTestSupport.metric(client, "client.connected") == 0);
+
+            long attemptsBefore = SyncTestSupport.metric(client, "client.reconnect.attempts");
+            long cpuMs = senderCpuMillis(client, IDLE_WINDOW_MS);
+            long attempts = SyncTestSupport.metric(client, "client.reconnect.attempts") - attemptsBefore;
+
+            assertTrue(cpuMs <= MAX_IDLE_CPU_MS, "Sender used " + cpuMs + " ms of CPU in " + IDLE_WINDOW_MS + " ms while disconnected");
+            // Back-off doubles from 1 s: at most attempts at about 1, 3 and 7 s into the outage
+            assertTrue(attempts <= 3, attempts + " reconnect attempts in " + IDLE_WINDOW_MS + " ms");
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    void senderSleepsBeforeTheFirstConnect() throws Exception {
+        // Never connected: the sender parks until a handshake completes and makes no attempts of its own
+        FileSyncClient client = new FileSyncClient("127.0.0.1", 1, scratch.resolve("client").toString());
+        try {
+            long cpuMs = senderCpuMillis(client, IDLE_WINDOW_MS);
+            assertTrue(cpuMs <= MAX_IDLE_CPU_MS, "Sender used " + cpuMs + " ms of CPU in " + IDLE_WINDOW_MS + " ms before connecting");
+            assertEquals(0, SyncTestSupport.metric(client, "client.reconnect.attempts"));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private static void awaitQueued(FileSyncClient client, long depth) throws InterruptedException {
+        SyncTestSupport.await(depth + " queued event(s)", () -> SyncTestSupport.metric(client, "client.sendQueue.depth") >= depth);
+    }
+
+    // CPU time the client's event sender thread uses over the next windowMs
+    private static long senderCpuMillis(FileSyncClient client, long windowMs) throws InterruptedException {
+        Thread sender = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("FileSyncClient-EventSender-" + client.getClientId())) {
+                sender = thread;
+            }
+        }
+        assertNotNull(sender, "No event sender thread");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long before = threads.getThreadCpuTime(sender.threadId());
+        Thread.sleep(windowMs);
+        return TimeUnit.NANOSECONDS.toMillis(threads.getThreadCpuTime(sender.threadId()) - before);
+    }
+
+    // Stands in for the server: completes the handshake with an empty manifest and records every
+    // event it is sent, as "<type> <path>", in the order they arrive. A real server's files only
+    // show the last event per path, which a reordered backlog can still get right.
+    private static final class RecordingServer implements AutoCloseable {
+        private final ServerSocket listener;
+        private final List<String> received = new CopyOnWriteArrayList<>();
+        private final List<Socket> connections = new CopyOnWriteArrayList<>();
+
+        RecordingServer(int port) throws IOException {
+            listener = new ServerSocket();
+            listener.setReuseAddress(true);
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            Thread acceptor = new Thread(this::acceptLoop, "Test-RecordingServer");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        List<String> received() {
+            return List.copyOf(received);
+        }
+
+        private void acceptLoop() {
+            try {
+                while (true) {
+                    Socket socket = listener.accept();
+                    connections.add(socket);
+                    Thread reader = new Thread(() -> serve(socket), "Test-RecordingServer-Reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                in.readObject(); // ClientHello
+                out.writeObject(new HashSet<String>());
+                out.flush();
+                while (true) {
+                    Object message = in.readObject();
+                    if (message instanceof FileEventBatch batch) {
+                        batch.getEvents().forEach(this::record);
+                    } else if (message instanceof FileEvent event) {
+                        record(event);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // Client went away, or the server was closed
+            }
+        }
+
+        private void record(FileEvent event) {
+            received.add(event.getEventType() + " " + event.getRelativePath());
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            for (Socket socket : connections) {
+                socket.close();
+            }
+        }
+    }
+}
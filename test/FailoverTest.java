@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A primary and its standby as server processes of their own on loopback. When the primary dies,
+// the standby takes over and the clients move to it with their files already there: nothing is
+// uploaded again, and syncing carries on through the new primary.
+class FailoverTest {
+    private static final String SECRET = "failover test secret";
+    private static final int SMALL_FILES = 20;
+    private static final int BIG_FILE_SIZE = 6 * 1024 * 1024; // Sent as a chunked transfer
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void clientsMoveToThePromotedStandbyWithoutUploadingAgain() throws Exception {
+        Path secretFile = scratch.resolve("secret");
+        Files.writeString(secretFile, SECRET);
+        int primaryPort = SyncTestSupport.freePort();
+        int standbyPort = SyncTestSupport.freePort();
+        Path standbyDir = scratch.resolve("standby");
+        Process primary = SyncTestSupport.launchServer(scratch.resolve("primary.log"), primaryPort,
+                "--dir", scratch.resolve("primary").toString(), "--secret-file", secretFile.toString());
+        Process standby = SyncTestSupport.launchServer(scratch.resolve("standby.log"), standbyPort,
+                "--dir", standbyDir.toString(), "--secret-file", secretFile.toString(),
+                "--standby-of", "127.0.0.1:" + primaryPort, "--takeover-after", "3");
+        List<FileSyncClient> clients = new ArrayList<>();
+        try {
+            Path writerDir = scratch.resolve("writer");
+            Path readerDir = scratch.resolve("reader");
+            FileSyncClient writer = SyncTestSupport.connectedClient(primaryPort, writerDir, standbyPort);
+            clients.add(writer);
+            FileSyncClient reader = SyncTestSupport.connectedClient(primaryPort, readerDir, standbyPort);
+            clients.add(reader);
+
+            for (int i = 0; i < SMALL_FILES; i++) {
+                SyncTestSupport.write(writerDir.resolve("docs/file" + i + ".txt"), "content " + i);
+            }
+            byte[] big = new byte[BIG_FILE_SIZE];
+            new Random(45).nextBytes(big);
+            Files.write(writerDir.resolve("big.bin"), big);
+            for (Path dir : List.of(readerDir, standbyDir)) {
+                awaitFiles(dir, big);
+            }
+
+            long sentBefore = SyncTestSupport.metric(writer, "client.events.sent") + SyncTestSupport.metric(reader, "client.events.sent");
+            primary.destroyForcibly().waitFor();
+            for (FileSyncClient client : clients) {
+                SyncTestSupport.await("the client to lose the primary", () -> SyncTestSupport.metric(client, "client.connected") == 0);
+            }
+            for (FileSyncClient client : clients) {
+                SyncTestSupport.await("the client to reach the promoted standby", () -> SyncTestSupport.metric(client, "client.connected") == 1);
+            }
+            String standbyLog = SyncTestSupport.read(scratch.resolve("standby.log"));
+            assertTrue(standbyLog.contains("taking over"), standbyLog);
+            assertEquals(sentBefore, SyncTestSupport.metric(writer, "client.events.sent") + SyncTestSupport.metric(reader, "client.events.sent"),
+                    "Files the standby already had were uploaded again");
+
+            SyncTestSupport.write(writerDir.resolve("after-failover.txt"), "written after failover");
+            Path received = readerDir.resolve("after-failover.txt");
+            SyncTestSupport.await("the change to reach the other client", () -> "written after failover".equals(SyncTestSupport.read(received)));
+            assertEquals("written after failover", SyncTestSupport.read(standbyDir.resolve("after-failover.txt")));
+        } finally {
+            for (FileSyncClient client : clients) {
+                client.shutdown();
+            }
+            SyncTestSupport.destroy(List.of(primary, standby));
+        }
+    }
+
+    private static void awaitFiles(Path dir, byte[] big) throws Exception {
+        for (int i = 0; i < SMALL_FILES; i++) {
+            Path file = dir.resolve("docs/file" + i + ".txt");
+            String expected = "content " + i;
+            SyncTestSupport.await(file.toString(), () -> expected.equals(SyncTestSupport.read(file)));
+        }
+        Path copy = dir.resolve("big.bin");
+        SyncTestSupport.await(copy.toString(), () -> copy.toFile().length() == big.length);
+        assertArrayEquals(big, Files.readAllBytes(copy));
+    }
+}
@@ -0,0 +1,140 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+// How a FairShareLimiter splits its rate between busy flows. Shares are counted over a fixed
+// number of grants with every flow always waiting, so they don't depend on how promptly threads
+// are scheduled; the idle-flow case is measured over a few seconds.
+class FairShareLimiterTest {
+    private static final long RATE = 4 * 1024 * 1024;
+    private static final long WINDOW_MS = 3_000;
+    private static final int BURST_GRANTS = 64; // More than the bucket's initial burst, granted in arrival order
+    private static final int COUNTED_GRANTS = 640;
+    private static final int THREADS_PER_FLOW = 3;
+
+    @Test
+    void weightedFlowsShareTheRateByWeight() throws InterruptedException {
+        FairShareLimiter limiter = new FairShareLimiter(RATE);
+        long[] nanos = new long[1];
+        long[] granted = countGrants(limiter, nanos, 1, 3);
+        TokenBucketTest.assertWithin(RATE, (COUNTED_GRANTS - 1) * (double) ThrottledOutputStream.CHUNK_SIZE / TokenBucketTest.seconds(nanos[0]),
+                "bytes per second across both flows");
+        double share = granted[1] / (double) (granted[0] + granted[1]);
+        assertTrue(Math.abs(share - 0.75) <= 0.05, "Weight-3 flow got " + Math.round(share * 100) + "% of the rate, expected 75%");
+    }
+
+    @Test
+    void equalFlowsShareEqually() throws InterruptedException {
+        long[] granted = countGrants(new FairShareLimiter(RATE), new long[1], 1, 1, 1, 1);
+        for (long grants : granted) {
+            double share = grants / (double) COUNTED_GRANTS;
+            assertTrue(Math.abs(share - 0.25) <= 0.03, "A flow of four equal ones got " + Math.round(share * 100) + "% of the rate");
+        }
+    }
+
+    @Test
+    void anIdleFlowDoesNotBankCredit() throws InterruptedException {
+        FairShareLimiter limiter = new FairShareLimiter(RATE);
+        Object returning = new Object();
+        Object busy = new Object();
+        limiter.acquire(returning, 1, ThrottledOutputStream.CHUNK_SIZE);
+        run(limiter, new Object[] {busy}, new int[] {1}); // The busy flow has the limiter to itself for a while
+        // Back, the idle flow competes from now on rather than from where it left off
+        long[] granted = run(limiter, new Object[] {returning, busy}, new int[] {1, 1});
+        double share = granted[0] / (double) (granted[0] + granted[1]);
+        assertTrue(Math.abs(share - 0.5) <= 0.05, "Returning flow got " + Math.round(share * 100) + "% of the rate");
+    }
+
+    // Grants of 16 KB to each of one new flow per weight, among COUNTED_GRANTS in a row after the
+    // first BURST_GRANTS. Each flow acquires from THREADS_PER_FLOW threads, so it still has requests
+    // waiting while a thread that was just granted comes back. nanos[0] gets the time the counted
+    // grants took.
+    private static long[] countGrants(FairShareLimiter limiter, long[] nanos, int... weights) throws InterruptedException {
+        AtomicInteger sequence = new AtomicInteger();
+        AtomicLong[] granted = new AtomicLong[weights.length];
+        AtomicLong firstCounted = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < weights.length; i++) {
+            AtomicLong grants = granted[i] = new AtomicLong();
+            Object flow = new Object();
+            int weight = weights[i];
+            for (int t = 0; t < THREADS_PER_FLOW; t++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        while (true) {
+                            limiter.acquire(flow, weight, ThrottledOutputStream.CHUNK_SIZE);
+                            int n = sequence.getAndIncrement() - BURST_GRANTS;
+                            if (n >= COUNTED_GRANTS) {
+                                return;
+                            }
+                            if (n >= 0) {
+                                grants.incrementAndGet();
+                            }
+                            if (n == 0) {
+                                firstCounted.set(System.nanoTime());
+                            } else if (n == COUNTED_GRANTS - 1) {
+                                nanos[0] = System.nanoTime() - firstCounted.get();
+                                done.countDown();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    }
+                }, "Test-Flow-" + i + "-" + t));
+            }
+        }
+        threads.forEach(Thread::start);
+        done.await();
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join();
+        }
+        long[] result = new long[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            result[i] = granted[i].get();
+        }
+        return result;
+    }
+
+    // Bytes granted to each flow, each acquiring 16 KB chunks flat out from one thread for WINDOW_MS
+    private static long[] run(FairShareLimiter limiter, Object[] flows, int[] weights) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong[] granted = new AtomicLong[flows.length];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < flows.length; i++) {
+            AtomicLong bytes = granted[i] = new AtomicLong();
+            Object flow = flows[i];
+            int weight = weights[i];
+            Thread thread = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        limiter.acquire(flow, weight, ThrottledOutputStream.CHUNK_SIZE);
+                        bytes.addAndGet(ThrottledOutputStream.CHUNK_SIZE);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+            }, "Test-Flow-" + i);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+        Thread.sleep(WINDOW_MS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join();
+        }
+        long[] result = new long[flows.length];
+        for (int i = 0; i < flows.length; i++) {
+            result[i] = granted[i].get();
+        }
+        return result;
+    }
+}
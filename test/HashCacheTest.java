@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// When a cached hash is trusted for a file: not while a write could still hide in the mtime tick it
+// was hashed in, still after a rename (found by file key), and never from a cache file written
+// before ContentHash changed.
+class HashCacheTest {
+    private static final long HALF_SECOND_MS = 500;
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void editInTheSameMtimeTickIsNotTrusted() throws IOException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        HashCache cache = new HashCache(scratch.resolve("hashes"), metrics);
+        Path file = scratch.resolve("a.txt");
+        SyncTestSupport.write(file, "first");
+        // Half way into the next second: never old enough to be outside the racy window, whatever the clock
+        FileTime tick = FileTime.fromMillis((System.currentTimeMillis() / 1000 + 1) * 1000 + HALF_SECOND_MS);
+        Files.setLastModifiedTime(file, tick);
+        assertEquals(ContentHash.of(file), cache.hash(file, "a.txt"));
+
+        // Same size and mtime, as an edit right after the read leaves them on a coarse clock
+        SyncTestSupport.write(file, "later");
+        Files.setLastModifiedTime(file, tick);
+        assertEquals(ContentHash.of(file), cache.hash(file, "a.txt"), "A hash read in the file's mtime tick was trusted");
+        assertEquals(0, cache.size());
+        assertEquals(0L, metrics.snapshot().get("client.hashCache.hits"));
+    }
+
+    @Test
+    void fileUnchangedSinceAnOlderTickIsTrusted() throws IOException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        HashCache cache = new HashCache(scratch.resolve("hashes"), metrics);
+        Path file = scratch.resolve("a.txt");
+        SyncTestSupport.write(file, "first");
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(10) + HALF_SECOND_MS);
+        Files.setLastModifiedTime(file, old);
+        String first = cache.hash(file, "a.txt");
+
+        // Content the cache can't tell apart; returning the old hash shows it wasn't read
+        SyncTestSupport.write(file, "later");
+        Files.setLastModifiedTime(file, old);
+        assertEquals(first, cache.hash(file, "a.txt"));
+        assertEquals(1L, metrics.snapshot().get("client.hashCache.hits"));
+    }
+
+    @Test
+    void renamedFileIsFoundByItsFileKey() throws IOException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        HashCache cache = new HashCache(scratch.resolve("hashes"), metrics);
+        Path file = oldFile("a.txt", "content");
+        assumeTrue(HashCache.stat(file).fileKey != null, "No file keys on this filesystem");
+        String contentHash = cache.hash(file, "a.txt");
+
+        Path renamed = Files.move(file, scratch.resolve("b.txt"));
+        assertEquals(contentHash, cache.lookup("b.txt", HashCache.stat(renamed)));
+        assertEquals(1L, metrics.snapshot().get("client.hashCache.hits"));
+
+        // Another file under the old path is not mistaken for it
+        Path other = oldFile("a.txt", "other!!");
+        assertEquals(null, cache.lookup("a.txt", HashCache.stat(other)));
+    }
+
+    @Test
+    void cacheFileFromBeforeTheTreeHashIsDiscarded() throws IOException {
+        Path file = oldFile("a.txt", "content");
+        String line = "stale-hash\t" + cacheFields(file) + "\ta.txt";
+        Path hashes = scratch.resolve("hashes");
+
+        Files.write(hashes, List.of("# filesync hash cache v1: hash, size, mtime ns, hashed at ns, file key, path", line), StandardCharsets.UTF_8);
+        HashCache v1 = new HashCache(hashes, new MetricsRegistry());
+        assertEquals(0, v1.size());
+        assertEquals(ContentHash.of(file), v1.hash(file, "a.txt"));
+
+        // The same entry under the current header is used, so it was the version that mattered
+        Files.write(hashes, List.of("# filesync hash cache v2: hash, size, mtime ns, hashed at ns, file key, path", line), StandardCharsets.UTF_8);
+        assertEquals("stale-hash", new HashCache(hashes, new MetricsRegistry()).hash(file, "a.txt"));
+    }
+
+    @Test
+    void savedEntriesAreTrustedAfterARestart() throws IOException {
+        Path hashes = scratch.resolve("hashes");
+        Path file = oldFile("a.txt", "content");
+        HashCache cache = new HashCache(hashes, new MetricsRegistry());
+        String contentHash = cache.hash(file, "a.txt");
+        cache.save();
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        assertEquals(contentHash, new HashCache(hashes, metrics).lookup("a.txt", HashCache.stat(file)));
+        assertEquals(1L, metrics.snapshot().get("client.hashCache.hits"));
+    }
+
+    // A file last written well before any hash of it is taken, so the cache trusts its entry
+    private Path oldFile(String name, String content) throws IOException {
+        Path file = scratch.resolve(name);
+        SyncTestSupport.write(file, content);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(10) + HALF_SECOND_MS));
+        return file;
+    }
+
+    // size, mtime ns, hashed at ns and file key as a cache line has them, hashed now
+    private static String cacheFields(Path file) throws IOException {
+        HashCache.Stat stat = HashCache.stat(file);
+        return stat.size + "\t" + stat.mtimeNanos + "\t" + stat.takenAtNanos + "\t" + (stat.fileKey != null ? stat.fileKey : "-");
+    }
+}
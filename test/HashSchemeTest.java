@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A client that hashes content differently from the server is turned away at the handshake with a
+// reason, instead of having every large file it sends rejected as corrupt.
+class HashSchemeTest {
+    @TempDir
+    Path scratch;
+
+    @Test
+    void clientsOnAnotherHashSchemeAreTurnedAway() throws Exception {
+        SyncTestSupport.write(scratch.resolve("server/a.txt"), "a");
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, scratch.resolve("server").toString()));
+        try {
+            try (SyncTestSupport.Connection old = new SyncTestSupport.Connection(server.getLocalPort(),
+                    new ClientHello("old", PathSubscription.ALL, 1), 0)) {
+                String reason = assertInstanceOf(String.class, old.read(), "No refusal in place of the manifest");
+                assertTrue(reason.contains("scheme 1"), reason);
+                assertThrows(EOFException.class, old::read, "The connection was kept open");
+            }
+            try (SyncTestSupport.Connection current = new SyncTestSupport.Connection(server.getLocalPort(), "current", 0)) {
+                assertEquals(Set.of("a.txt"), assertInstanceOf(Set.class, current.read()));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void helloWithoutASchemeIsTheOriginalOne() {
+        // What a ClientHello serialized before the field existed deserializes to
+        assertEquals(1, new ClientHello("old", PathSubscription.ALL, 0).getHashScheme());
+        assertEquals(ContentHash.SCHEME, new ClientHello("new", PathSubscription.ALL).getHashScheme());
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+// .syncignore follows .gitignore; each case here is what git does with the same pattern.
+class IgnoreRulesTest {
+    @Test
+    void laterNegationReincludes() {
+        IgnoreRules rules = rules("*.log", "!keep.log");
+        assertIgnored(rules, true, "a.log", "dir/a.log");
+        assertIgnored(rules, false, "keep.log", "dir/keep.log", "a.txt");
+        // The last matching pattern decides
+        assertIgnored(rules("!keep.log", "*.log"), true, "keep.log");
+    }
+
+    @Test
+    void nothingBelowAnIgnoredDirectoryIsReincluded() {
+        IgnoreRules rules = rules("build/", "!build/keep.txt", "!keep.txt");
+        assertIgnored(rules, true, "build/keep.txt", "build/out/keep.txt");
+        assertIgnored(rules, false, "keep.txt", "src/keep.txt");
+    }
+
+    @Test
+    void trailingSlashMatchesDirectoriesOnly() {
+        IgnoreRules rules = rules("tmp/");
+        assertEquals(true, rules.isIgnored("tmp", true));
+        assertEquals(true, rules.isIgnored("src/tmp", true), "Without another slash it matches at any depth");
+        assertEquals(true, rules.isIgnored("tmp/file.txt", false));
+        assertEquals(false, rules.isIgnored("tmp", false), "A file named like the directory");
+        assertEquals(false, rules.isIgnored("src/tmp", false));
+    }
+
+    @Test
+    void leadingOrMiddleSlashAnchorsAtTheRoot() {
+        assertIgnored(rules("/todo.txt"), true, "todo.txt");
+        assertIgnored(rules("/todo.txt"), false, "docs/todo.txt");
+        assertIgnored(rules("todo.txt"), true, "todo.txt", "docs/todo.txt");
+        assertIgnored(rules("docs/*.txt"), true, "docs/a.txt");
+        assertIgnored(rules("docs/*.txt"), false, "docs/sub/a.txt", "other/docs/a.txt");
+    }
+
+    @Test
+    void doubleStarMatchesAnyNumberOfDirectories() {
+        IgnoreRules leading = rules("**/logs");
+        assertIgnored(leading, true, "logs", "a/logs", "a/b/logs/today.txt");
+        IgnoreRules middle = rules("a/**/b");
+        assertIgnored(middle, true, "a/b", "a/x/b", "a/x/y/b");
+        assertIgnored(middle, false, "x/a/b", "a/xb");
+        IgnoreRules trailing = rules("abc/**");
+        assertIgnored(trailing, true, "abc/file", "abc/x/y");
+        assertIgnored(trailing, false, "abc", "xabc/file");
+    }
+
+    @Test
+    void wildcardsStayWithinOneSegment() {
+        assertIgnored(rules("/*.txt"), true, "a.txt");
+        assertIgnored(rules("/*.txt"), false, "docs/a.txt");
+        assertIgnored(rules("file?.txt"), true, "file1.txt");
+        assertIgnored(rules("file?.txt"), false, "file10.txt", "file/.txt");
+        assertIgnored(rules("data[0-9].csv"), true, "data7.csv");
+        assertIgnored(rules("data[!0-9].csv"), true, "datax.csv");
+        assertIgnored(rules("data[!0-9].csv"), false, "data7.csv");
+    }
+
+    @Test
+    void commentsBlanksAndEscapes() {
+        IgnoreRules rules = rules("# a comment", "", "\\#hash", "\\!bang", "star\\*", "q\\?", "trailing\\ ", "spaces   ");
+        assertIgnored(rules, true, "#hash", "!bang", "star*", "q?", "trailing ", "spaces");
+        assertIgnored(rules, false, "# a comment", "starry", "qx", "trailing", "spaces   ");
+        assertEquals(true, rules("# only a comment", "   ").isEmpty());
+    }
+
+    private static IgnoreRules rules(String... lines) {
+        return IgnoreRules.parse(List.of(lines));
+    }
+
+    private static void assertIgnored(IgnoreRules rules, boolean ignored, String... files) {
+        for (String file : files) {
+            assertEquals(ignored, rules.isIgnored(file, false), file);
+        }
+    }
+}
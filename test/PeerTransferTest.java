@@ -0,0 +1,170 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Peer-assisted transfers between FileSyncClient processes of their own on loopback: a large file
+// crosses the server's link about once and the clients pass it on to each other, while a peer
+// port serves nothing to a connection the server didn't grant it for.
+class PeerTransferTest {
+    private static final int PEER_CLIENTS = 4;
+    private static final int BIG_FILE_SIZE = 6 * 1024 * 1024; // Over TransferChunk's threshold, so peers are offered it
+    private static final Pattern PEER_ADDRESS = Pattern.compile("Serving peers on ([0-9.]+):(\\d+)");
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void clientProcessesFetchFromEachOtherAndServeOnlyGrantedContent() throws Exception {
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, scratch.resolve("server").toString()));
+        List<Process> peers = new ArrayList<>();
+        FileSyncClient writer = null;
+        try {
+            List<Path> peerDirs = new ArrayList<>();
+            List<Integer> metricsPorts = new ArrayList<>();
+            List<Path> logs = new ArrayList<>();
+            for (int i = 0; i < PEER_CLIENTS; i++) {
+                peerDirs.add(scratch.resolve("peer" + i));
+                metricsPorts.add(SyncTestSupport.freePort());
+                logs.add(scratch.resolve("peer" + i + ".log"));
+                peers.add(SyncTestSupport.launch(logs.get(i), "FileSyncClient", "--peer-port=0", "--peer-bind=127.0.0.1",
+                        "127.0.0.1", Integer.toString(server.getLocalPort()), peerDirs.get(i).toString(), Integer.toString(metricsPorts.get(i))));
+            }
+            for (int i = 0; i < PEER_CLIENTS; i++) {
+                int metricsPort = metricsPorts.get(i);
+                SyncTestSupport.await("peer client " + i + " to connect", () -> connected(metricsPort));
+            }
+            writer = SyncTestSupport.connectedClient(server.getLocalPort(), scratch.resolve("writer"));
+
+            long sentBefore = server.getMetrics().snapshot().get("server.bytes.sent");
+            byte[] big = new byte[BIG_FILE_SIZE];
+            new Random(47).nextBytes(big);
+            Files.write(scratch.resolve("writer/big.bin"), big);
+            for (Path dir : peerDirs) {
+                Path copy = dir.resolve("big.bin");
+                SyncTestSupport.await(copy.toString(), () -> copy.toFile().length() == big.length);
+                assertArrayEquals(big, Files.readAllBytes(copy));
+            }
+            long fetched = 0;
+            for (int metricsPort : metricsPorts) {
+                fetched += SyncTestSupport.metric(metricsPort, "client.peer.fetched.bytes");
+            }
+            assertTrue(fetched >= big.length, "Only " + fetched + " bytes came from peers");
+            long sent = server.getMetrics().snapshot().get("server.bytes.sent") - sentBefore;
+            // Once to the first client; each client downloading it from the server would be PEER_CLIENTS times
+            assertTrue(sent < 2L * big.length, "The server sent " + sent + " bytes for a " + big.length + " byte file");
+
+            Matcher address = PEER_ADDRESS.matcher(SyncTestSupport.read(logs.get(0)));
+            assertTrue(address.find(), "No peer port in the client's output");
+            assertEquals("127.0.0.1", address.group(1));
+            int peerPort = Integer.parseInt(address.group(2));
+            String contentHash = ContentHash.of(big);
+            try (Socket socket = connect(InetAddress.getLoopbackAddress(), peerPort)) {
+                ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+                for (String token : new String[] {null, "a guessed token"}) {
+                    out.writeObject(PeerMessage.get(token, contentHash, 0, TransferChunk.CHUNK_SIZE));
+                    out.flush();
+                    assertNull(((PeerMessage) in.readObject()).getData(), "A block was served for token " + token);
+                }
+                out.writeObject(new HashMap<String, String>());
+                out.flush(); // One write, so the peer hanging up can't fail it half way
+                // Closed (EOF, or a reset if it hung up before reading all of it), not left to time out
+                IOException closed = assertThrows(IOException.class, in::readObject, "A stream carrying something else than PeerMessages was kept open");
+                assertFalse(closed instanceof SocketTimeoutException, "A stream carrying something else than PeerMessages was kept open");
+            }
+            assertTrue(SyncTestSupport.metric(metricsPorts.get(0), "client.peer.refused") >= 2);
+
+            InetAddress otherInterface = nonLoopbackAddress();
+            if (otherInterface != null) {
+                assertThrows(IOException.class, () -> connect(otherInterface, peerPort).close(),
+                        "The peer port bound to loopback is reachable at " + otherInterface);
+            }
+        } finally {
+            if (writer != null) {
+                writer.shutdown();
+            }
+            SyncTestSupport.destroy(peers);
+            server.stop();
+        }
+    }
+
+    @Test
+    void peerStreamsRejectEverythingButPeerMessages() throws Exception {
+        assertEquals(PeerMessage.Type.GET, readFiltered(PeerMessage.get("token", "hash", 0, 10)).getType());
+        assertEquals(TransferChunk.CHUNK_SIZE, readFiltered(PeerMessage.block("hash", 0, new byte[TransferChunk.CHUNK_SIZE])).getLength());
+        assertThrows(InvalidClassException.class, () -> readFiltered(new HashMap<String, String>()));
+        assertThrows(InvalidClassException.class, () -> readFiltered(new FileEvent(FileEvent.EventType.CREATE, "a.txt", null, null, 0L)));
+        assertThrows(InvalidClassException.class, () -> readFiltered(PeerMessage.block("hash", 0, new byte[TransferChunk.CHUNK_SIZE + 1])));
+    }
+
+    private static PeerMessage readFiltered(Object message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        in.setObjectInputFilter(PeerExchange.PEER_FILTER);
+        return (PeerMessage) in.readObject();
+    }
+
+    private static boolean connected(int metricsPort) {
+        try {
+            return SyncTestSupport.metric(metricsPort, "client.connected") == 1;
+        } catch (IOException e) {
+            return false; // Not listening yet
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static Socket connect(InetAddress address, int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(address, port), 2000);
+        socket.setSoTimeout((int) SyncTestSupport.TIMEOUT_MS);
+        return socket;
+    }
+
+    // An IPv4 address of this machine other than loopback, or null if it has none
+    private static InetAddress nonLoopbackAddress() throws IOException {
+        for (NetworkInterface network : NetworkInterface.networkInterfaces().toList()) {
+            if (network.isUp() && !network.isLoopback()) {
+                for (InetAddress address : network.inetAddresses().toList()) {
+                    if (address instanceof Inet4Address) {
+                        return address;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
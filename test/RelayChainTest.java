@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The chain a branch office runs: a headquarters client, the central server and the site's edge
+// relay as processes of their own on loopback, and several site clients behind the relay. A
+// change from headquarters crosses the central server's link once for the whole site, and a
+// change made at the site reaches headquarters and the site's other clients, after an outage of
+// the central server too.
+class RelayChainTest {
+    private static final String SECRET = "relay chain secret";
+    private static final int SITE_CLIENTS = 3;
+    private static final int SMALL_FILES = 10;
+    private static final int BIG_FILE_SIZE = 6 * 1024 * 1024; // Sent as a chunked transfer
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void changesCrossTheCentralLinkOncePerSite() throws Exception {
+        Path secretFile = scratch.resolve("secret");
+        Files.writeString(secretFile, SECRET);
+        int centralPort = SyncTestSupport.freePort();
+        int centralMetricsPort = SyncTestSupport.freePort();
+        int relayPort = SyncTestSupport.freePort();
+        List<Process> servers = new ArrayList<>();
+        List<FileSyncClient> clients = new ArrayList<>();
+        try {
+            servers.add(SyncTestSupport.launchServer(scratch.resolve("central.log"), centralPort, Integer.toString(centralMetricsPort),
+                    "--dir", scratch.resolve("central").toString(), "--secret-file", secretFile.toString()));
+            servers.add(SyncTestSupport.launchServer(scratch.resolve("relay.log"), relayPort,
+                    "--dir", scratch.resolve("relay").toString(), "--secret-file", secretFile.toString(),
+                    "--relay-for", "127.0.0.1:" + centralPort));
+            SyncTestSupport.await("the relay to link to the central server",
+                    () -> SyncTestSupport.read(scratch.resolve("relay.log")).contains("Following primary"));
+
+            Path hqDir = scratch.resolve("hq");
+            clients.add(SyncTestSupport.connectedClient(centralPort, hqDir));
+            List<Path> siteDirs = new ArrayList<>();
+            for (int i = 0; i < SITE_CLIENTS; i++) {
+                siteDirs.add(scratch.resolve("site" + i));
+                clients.add(SyncTestSupport.connectedClient(relayPort, siteDirs.get(i)));
+            }
+
+            long sentBefore = SyncTestSupport.metric(centralMetricsPort, "server.bytes.sent");
+            long payload = 0;
+            for (int i = 0; i < SMALL_FILES; i++) {
+                String content = "from headquarters " + i;
+                SyncTestSupport.write(hqDir.resolve("docs/file" + i + ".txt"), content);
+                payload += content.length();
+            }
+            byte[] big = new byte[BIG_FILE_SIZE];
+            new Random(46).nextBytes(big);
+            Files.write(hqDir.resolve("big.bin"), big);
+            payload += big.length;
+            for (Path siteDir : siteDirs) {
+                for (int i = 0; i < SMALL_FILES; i++) {
+                    Path file = siteDir.resolve("docs/file" + i + ".txt");
+                    String expected = "from headquarters " + i;
+                    SyncTestSupport.await(file.toString(), () -> expected.equals(SyncTestSupport.read(file)));
+                }
+                Path copy = siteDir.resolve("big.bin");
+                SyncTestSupport.await(copy.toString(), () -> copy.toFile().length() == big.length);
+                assertArrayEquals(big, Files.readAllBytes(copy));
+            }
+            long sent = SyncTestSupport.metric(centralMetricsPort, "server.bytes.sent") - sentBefore;
+            // Once for the relay; each site client fetching it from the central server would be SITE_CLIENTS times
+            assertTrue(sent < 2 * payload, "The central server sent " + sent + " bytes for a " + payload + " byte change");
+
+            SyncTestSupport.write(siteDirs.get(0).resolve("from-site.txt"), "written at the branch");
+            for (Path dir : List.of(hqDir, siteDirs.get(1), siteDirs.get(2), scratch.resolve("central"))) {
+                Path file = dir.resolve("from-site.txt");
+                SyncTestSupport.await(file.toString(), () -> "written at the branch".equals(SyncTestSupport.read(file)));
+            }
+        } finally {
+            for (FileSyncClient client : clients) {
+                client.shutdown();
+            }
+            SyncTestSupport.destroy(servers);
+        }
+    }
+
+    @Test
+    void siteChangesWaitInTheStashWhileTheCentralServerIsDown() throws Exception {
+        Path secretFile = scratch.resolve("secret");
+        Files.writeString(secretFile, SECRET);
+        int centralPort = SyncTestSupport.freePort();
+        int relayPort = SyncTestSupport.freePort();
+        String[] centralArgs = {"--dir", scratch.resolve("central").toString(), "--secret-file", secretFile.toString()};
+        List<Process> servers = new ArrayList<>();
+        FileSyncClient client = null;
+        try {
+            Process central = SyncTestSupport.launchServer(scratch.resolve("central.log"), centralPort, centralArgs);
+            servers.add(central);
+            servers.add(SyncTestSupport.launchServer(scratch.resolve("relay.log"), relayPort,
+                    "--dir", scratch.resolve("relay").toString(), "--secret-file", secretFile.toString(),
+                    "--relay-for", "127.0.0.1:" + centralPort));
+            SyncTestSupport.await("the relay to link to the central server",
+                    () -> SyncTestSupport.read(scratch.resolve("relay.log")).contains("Following primary"));
+            Path siteDir = scratch.resolve("site");
+            client = SyncTestSupport.connectedClient(relayPort, siteDir);
+
+            SyncTestSupport.destroy(List.of(central));
+            servers.remove(central);
+            // A change written to the link before the relay sees it drop would be lost with it
+            Path stash = TransferStore.stateDirectoryFor(scratch.resolve("relay").toString()).resolve("relay");
+            for (int i = 0; i < SMALL_FILES; i++) {
+                SyncTestSupport.write(siteDir.resolve("offline" + i + ".txt"), "written during the outage " + i);
+            }
+            // Queued upstream by reference; the content itself waits on disk
+            SyncTestSupport.await("the site's changes in the relay's stash", () -> stashed(stash) >= SMALL_FILES);
+
+            servers.add(SyncTestSupport.launchServer(scratch.resolve("central-again.log"), centralPort, centralArgs));
+            for (int i = 0; i < SMALL_FILES; i++) {
+                Path file = scratch.resolve("central/offline" + i + ".txt");
+                String expected = "written during the outage " + i;
+                SyncTestSupport.await(file.toString(), () -> expected.equals(SyncTestSupport.read(file)));
+            }
+            Path relayCopy = scratch.resolve("relay/offline0.txt"); // Committed at the relay from the stash once confirmed
+            SyncTestSupport.await(relayCopy.toString(), () -> "written during the outage 0".equals(SyncTestSupport.read(relayCopy)));
+        } finally {
+            if (client != null) {
+                client.shutdown();
+            }
+            SyncTestSupport.destroy(servers);
+            for (String log : new String[] {"relay.log", "central.log", "central-again.log"}) {
+                if (Files.exists(scratch.resolve(log))) {
+                    Files.copy(scratch.resolve(log), Path.of("/root/bak/exp-" + log), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private static long stashed(Path stash) {
+        try (Stream<Path> entries = Files.list(stash)) {
+            return entries.filter(entry -> !entry.getFileName().toString().endsWith(".part")).count();
+        } catch (IOException e) {
+            return 0; // Not created yet
+        }
+    }
+}
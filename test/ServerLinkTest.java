@@ -0,0 +1,169 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Cluster nodes, standbys and relays each run as a FileSyncServer process of their own on
+// loopback, as they would be deployed. Links between them must prove they share the secret, and
+// a connection that only claims a server's client ID is turned away.
+class ServerLinkTest {
+    private static final String SECRET = "correct horse battery staple";
+    private static final int TOP_LEVEL_DIRS = 12;
+    private static final int TURN_AWAY_TIMEOUT_MS = 5000;
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void clusterOfProcessesSyncsAndTurnsAwayImpostors() throws Exception {
+        Path secretFile = writeSecret("cluster.secret", SECRET);
+        int[] ports = {SyncTestSupport.freePort(), SyncTestSupport.freePort(), SyncTestSupport.freePort()};
+        String members = "127.0.0.1:" + ports[0] + ",127.0.0.1:" + ports[1] + ",127.0.0.1:" + ports[2];
+        List<Process> nodes = new ArrayList<>();
+        List<FileSyncClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < ports.length; i++) {
+                nodes.add(SyncTestSupport.launchServer(scratch.resolve("node" + i + ".log"), ports[i],
+                        "--dir", scratch.resolve("node" + i).toString(), "--cluster", members, "--secret-file", secretFile.toString()));
+            }
+            Path writerDir = scratch.resolve("writer");
+            Path readerDir = scratch.resolve("reader");
+            clients.add(SyncTestSupport.connectedClient(ports[0], writerDir));
+            clients.add(SyncTestSupport.connectedClient(ports[2], readerDir));
+
+            for (int i = 0; i < TOP_LEVEL_DIRS; i++) {
+                SyncTestSupport.write(writerDir.resolve("top" + i + "/file.txt"), "content " + i);
+            }
+            for (int i = 0; i < TOP_LEVEL_DIRS; i++) {
+                Path file = readerDir.resolve("top" + i + "/file.txt");
+                String expected = "content " + i;
+                SyncTestSupport.await(file + " on a client of another node", () -> expected.equals(SyncTestSupport.read(file)));
+            }
+            int shardsUsed = 0;
+            for (int i = 0; i < ports.length; i++) {
+                shardsUsed += countFiles(scratch.resolve("node" + i)) > 0 ? 1 : 0;
+            }
+            assertTrue(shardsUsed > 1, "Every top-level directory was stored on one node");
+
+            // Claiming another member's ID without the secret
+            assertTurnedAway(ports[0], "cluster-node:127.0.0.1:" + ports[1], "wrong answer");
+            // Not a member at all: turned away before any challenge
+            assertClosed(new SyncTestSupport.Connection(ports[0], "cluster-node:127.0.0.1:9", 0));
+        } finally {
+            for (FileSyncClient client : clients) {
+                client.shutdown();
+            }
+            SyncTestSupport.destroy(nodes);
+        }
+    }
+
+    @Test
+    void standbyProcessNeedsTheSecretToFollow() throws Exception {
+        int primaryPort = SyncTestSupport.freePort();
+        List<Process> servers = new ArrayList<>();
+        FileSyncClient client = null;
+        try {
+            servers.add(SyncTestSupport.launchServer(scratch.resolve("primary.log"), primaryPort,
+                    "--dir", scratch.resolve("primary").toString(), "--secret-file", writeSecret("primary.secret", SECRET).toString()));
+            servers.add(SyncTestSupport.launchServer(scratch.resolve("standby.log"), SyncTestSupport.freePort(),
+                    "--dir", scratch.resolve("standby").toString(), "--secret-file", writeSecret("standby.secret", SECRET).toString(),
+                    "--standby-of", "127.0.0.1:" + primaryPort, "--takeover-after", "0"));
+            servers.add(SyncTestSupport.launchServer(scratch.resolve("impostor.log"), SyncTestSupport.freePort(),
+                    "--dir", scratch.resolve("impostor").toString(), "--secret-file", writeSecret("impostor.secret", "guess").toString(),
+                    "--standby-of", "127.0.0.1:" + primaryPort, "--takeover-after", "0"));
+
+            client = SyncTestSupport.connectedClient(primaryPort, scratch.resolve("client"));
+            SyncTestSupport.write(scratch.resolve("client/replicated.txt"), "replicated");
+            Path replica = scratch.resolve("standby/replicated.txt");
+            SyncTestSupport.await("the file on the standby", () -> "replicated".equals(SyncTestSupport.read(replica)));
+
+            assertFalse(Files.exists(scratch.resolve("impostor/replicated.txt")), "A standby with the wrong secret was sent the file");
+            String primaryLog = SyncTestSupport.read(scratch.resolve("primary.log"));
+            assertTrue(primaryLog.contains("failed to prove it holds this server's secret"), primaryLog);
+        } finally {
+            if (client != null) {
+                client.shutdown();
+            }
+            SyncTestSupport.destroy(servers);
+        }
+    }
+
+    @Test
+    void withoutASecretOnlyMembersAtTheirAddressLink() throws Exception {
+        int port = SyncTestSupport.freePort();
+        int loopbackMember = SyncTestSupport.freePort();
+        // 192.0.2.0/24 is reserved for documentation: that member can never connect from loopback
+        List<String> members = List.of("127.0.0.1:" + port, "127.0.0.1:" + loopbackMember, "192.0.2.1:" + loopbackMember);
+        FileSyncServer server = new FileSyncServer(port, scratch.resolve("server").toString());
+        server.setCluster(new ServerCluster(members.get(0), members, scratch.resolve("server").toString()));
+        SyncTestSupport.start(server);
+        try {
+            try (SyncTestSupport.Connection member = new SyncTestSupport.Connection(port, "cluster-node:" + members.get(1), 0)) {
+                member.socket.setSoTimeout(2000);
+                assertInstanceOf(String.class, member.read(), "Expected a challenge");
+                member.send("");
+                assertThrows(SocketTimeoutException.class, member::read, "A member's link is kept open and sent nothing");
+            }
+            assertClosed(new SyncTestSupport.Connection(port, "cluster-node:" + members.get(2), 0));
+            assertClosed(new SyncTestSupport.Connection(port, "cluster-node:" + members.get(0), 0));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void withoutASecretFollowersAreTurnedAway() throws Exception {
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, scratch.resolve("server").toString()));
+        try {
+            assertTurnedAway(server.getLocalPort(), "standby:anyone", "");
+            assertTurnedAway(server.getLocalPort(), "relay:anyone", NodeAuth.respond("a guess", "", "relay:anyone"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Answers the challenge with answer and expects the connection to be closed
+    private static void assertTurnedAway(int port, String clientId, String answer) throws Exception {
+        try (SyncTestSupport.Connection connection = new SyncTestSupport.Connection(port, clientId, 0)) {
+            connection.socket.setSoTimeout(TURN_AWAY_TIMEOUT_MS);
+            assertInstanceOf(String.class, connection.read(), "Expected a challenge for " + clientId);
+            connection.send(answer);
+            assertClosedByServer(connection, clientId + " was let in");
+        }
+    }
+
+    private static void assertClosed(SyncTestSupport.Connection connection) throws Exception {
+        try (connection) {
+            connection.socket.setSoTimeout(TURN_AWAY_TIMEOUT_MS);
+            assertClosedByServer(connection, "The connection was kept open");
+        }
+    }
+
+    // A link that is let in is sent nothing, so only the server closing it ends the read early
+    private static void assertClosedByServer(SyncTestSupport.Connection connection, String message) {
+        IOException e = assertThrows(IOException.class, connection::read, message);
+        assertFalse(e instanceof SocketTimeoutException, message);
+    }
+
+    private Path writeSecret(String name, String secret) throws IOException {
+        Path file = scratch.resolve(name);
+        Files.writeString(file, secret + "\n");
+        return file;
+    }
+
+    private static long countFiles(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).filter(file -> file.toString().contains("top")).count();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Paths in client events name files below server_files and nothing else: an event whose path (or
+// source path, for moves) leads outside is dropped before it touches the file system.
+class ServerPathTest {
+    @TempDir
+    Path scratch;
+
+    @Test
+    void treeEventsCannotReachOutsideServerFiles() throws Exception {
+        Path serverDir = scratch.resolve("server");
+        Path outside = scratch.resolve("outside");
+        SyncTestSupport.write(outside.resolve("secret.txt"), "not for clients");
+        SyncTestSupport.write(serverDir.resolve("docs/kept.txt"), "kept");
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, serverDir.toString()));
+        try (SyncTestSupport.Connection client = new SyncTestSupport.Connection(server.getLocalPort(), "intruder", 0)) {
+            // All inside scratch, so even a server that followed them could not reach further
+            for (String path : new String[] {"..", ".", "", "../outside", "docs/../..", outside.toAbsolutePath().toString(), "docs/"}) {
+                client.send(FileEvent.deleteTree(path, 0L));
+            }
+            client.send(FileEvent.moveTree("../outside", "stolen", 0L));
+            client.send(FileEvent.moveTree("docs", "../moved-out", 0L));
+            awaitApplied(client, serverDir);
+        } finally {
+            server.stop();
+        }
+        assertEquals("not for clients", SyncTestSupport.read(outside.resolve("secret.txt")));
+        assertEquals("kept", SyncTestSupport.read(serverDir.resolve("docs/kept.txt")));
+        assertFalse(Files.exists(serverDir.resolve("stolen")), "A directory outside server_files was moved in");
+        assertFalse(Files.exists(scratch.resolve("moved-out")), "A directory was moved out of server_files");
+        assertTrue(Files.isDirectory(scratch.resolve("server.filesync")), "The server's state directory was deleted");
+    }
+
+    @Test
+    void movesCannotTakeFilesInOrOut() throws Exception {
+        Path serverDir = scratch.resolve("server");
+        Path outside = scratch.resolve("outside.txt");
+        SyncTestSupport.write(outside, "not for clients");
+        SyncTestSupport.write(serverDir.resolve("inside.txt"), "inside");
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, serverDir.toString()));
+        try (SyncTestSupport.Connection client = new SyncTestSupport.Connection(server.getLocalPort(), "intruder", 0)) {
+            client.send(FileEvent.move("../outside.txt", "stolen.txt", null, 0L));
+            client.send(FileEvent.move(outside.toAbsolutePath().toString(), "stolen-absolute.txt", null, 0L));
+            client.send(FileEvent.move("inside.txt", "../moved-out.txt", null, 0L));
+            awaitApplied(client, serverDir);
+        } finally {
+            server.stop();
+        }
+        assertEquals("not for clients", SyncTestSupport.read(outside));
+        assertFalse(Files.exists(serverDir.resolve("stolen.txt")), "A file outside server_files was moved in");
+        assertFalse(Files.exists(serverDir.resolve("stolen-absolute.txt")), "A file outside server_files was moved in");
+        assertEquals("inside", SyncTestSupport.read(serverDir.resolve("inside.txt")));
+        assertFalse(Files.exists(scratch.resolve("moved-out.txt")), "A file was moved out of server_files");
+    }
+
+    @Test
+    void onlyPlainRelativePathsAreSafe() {
+        for (String path : new String[] {"a.txt", "docs/a.txt", "docs/.hidden", "a..b/c", "..a"}) {
+            assertTrue(FileSyncServer.isSafeRelativePath(path), path);
+        }
+        for (String path : new String[] {null, "", ".", "..", "../a", "a/../../b", "a/./b", "a//b", "a/", "/absolute/path", "a\\..\\..\\b", "a\0b"}) {
+            assertFalse(FileSyncServer.isSafeRelativePath(path), String.valueOf(path));
+        }
+    }
+
+    // Events from one connection are applied in order, so once a later file lands the earlier ones are done
+    static void awaitApplied(SyncTestSupport.Connection client, Path serverDir) throws Exception {
+        client.send(new FileEvent(FileEvent.EventType.CREATE, "marker.txt", "marker".getBytes(StandardCharsets.UTF_8)));
+        SyncTestSupport.await("the marker file", () -> "marker".equals(SyncTestSupport.read(serverDir.resolve("marker.txt"))));
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Shared by the loopback tests: servers and clients in one JVM on ephemeral ports, or in JVMs of
+// their own on free ports, each in its own scratch directory, and waiting for the sync to reach a
+// state.
+final class SyncTestSupport {
+    static final long TIMEOUT_MS = 30_000;
+
+    private SyncTestSupport() {
+    }
+
+    // Runs server on its own thread and returns once it is accepting connections
+    static FileSyncServer start(FileSyncServer server) throws InterruptedException {
+        Thread thread = new Thread(server::start, "Test-Server");
+        thread.setDaemon(true);
+        thread.start();
+        await("server to listen", () -> server.getLocalPort() > 0);
+        return server;
+    }
+
+    // A client of the server at port that is connected and watching directory, and tries the
+    // servers at failoverPorts in turn when it loses that one
+    static FileSyncClient connectedClient(int port, Path directory, int... failoverPorts) throws IOException, InterruptedException {
+        FileSyncClient client = new FileSyncClient("127.0.0.1", port, directory.toString());
+        for (int failoverPort : failoverPorts) {
+            client.addFailoverServer("127.0.0.1", failoverPort);
+        }
+        client.connect();
+        Thread watcher = new Thread(client::startWatching, "Test-Watch-" + client.getClientId());
+        watcher.setDaemon(true);
+        watcher.start();
+        Thread.sleep(500); // Let the watch service register the tree
+        return client;
+    }
+
+    // A port nothing listens on at the moment, for a process that can't report the one it picked
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Runs mainClass from this build in a JVM of its own, with its output in log
+    static Process launch(Path log, String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), mainClass));
+        command.addAll(List.of(args));
+        Files.createDirectories(log.getParent());
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+    }
+
+    // A FileSyncServer in a process of its own, returned once it is accepting connections
+    static Process launchServer(Path log, int port, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(Integer.toString(port)));
+        command.addAll(List.of(args));
+        Process process = launch(log, "FileSyncServer", command.toArray(new String[0]));
+        await("the server on port " + port + " to listen", () -> {
+            if (!process.isAlive()) {
+                throw new AssertionError("Server on port " + port + " exited: " + read(log));
+            }
+            String output = read(log);
+            return output != null && output.contains("Server started on port: " + port);
+        });
+        return process;
+    }
+
+    static void destroy(List<Process> processes) throws InterruptedException {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    // A metric of a server process started with metricsPort, read from its HTTP endpoint
+    static long metric(int metricsPort, String name) throws IOException, InterruptedException {
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + metricsPort + "/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        for (String line : response.body().split("\n")) {
+            String[] fields = line.split(" ");
+            if (fields.length == 2 && fields[0].equals(name)) {
+                return Long.parseLong(fields[1]);
+            }
+        }
+        return 0;
+    }
+
+    static long metric(FileSyncClient client, String name) {
+        Long value = client.getMetrics().snapshot().get(name);
+        return value != null ? value : 0;
+    }
+
+    static String read(Path file) {
+        try {
+            return Files.readString(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+    }
+
+    // Polls condition until it holds, failing the test after TIMEOUT_MS
+    static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out waiting for " + what);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // A bare protocol connection to a server, for tests that need to send or withhold frames a
+    // FileSyncClient never would: it says hello as clientId and reads nothing unless asked to
+    static final class Connection implements AutoCloseable {
+        final Socket socket;
+        final ObjectOutputStream out;
+        private ObjectInputStream in;
+
+        // receiveBuffer > 0 sets SO_RCVBUF, so a connection that stops reading backs up quickly
+        Connection(int port, String clientId, int receiveBuffer) throws IOException {
+            this(port, new ClientHello(clientId, PathSubscription.ALL), receiveBuffer);
+        }
+
+        // Opens with the given handshake object in place of a current ClientHello
+        Connection(int port, Object hello, int receiveBuffer) throws IOException {
+            socket = new Socket();
+            if (receiveBuffer > 0) {
+                socket.setReceiveBufferSize(receiveBuffer);
+            }
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            send(hello);
+        }
+
+        void send(Object frame) throws IOException {
+            out.writeObject(frame);
+            out.flush();
+            out.reset();
+        }
+
+        Object read() throws IOException, ClassNotFoundException {
+            if (in == null) {
+                in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+            }
+            return in.readObject();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
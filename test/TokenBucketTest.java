@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+// Rates a TokenBucket actually grants, measured over a couple of seconds of wall clock
+class TokenBucketTest {
+    static final double TOLERANCE = 0.10; // Scheduling and timer slack on a shared machine
+
+    @Test
+    void grantsTheConfiguredRateInSmallChunks() throws InterruptedException {
+        assertRate(2 * 1024 * 1024, ThrottledOutputStream.CHUNK_SIZE, 4 * 1024 * 1024);
+    }
+
+    @Test
+    void holdsTheRateForChunksLargerThanTheBurst() throws InterruptedException {
+        // The burst at 2 MB/s is 200 KB; each 1 MB chunk leaves the bucket in debt
+        assertRate(2 * 1024 * 1024, 1024 * 1024, 4 * 1024 * 1024);
+    }
+
+    @Test
+    void followsARateChangeMidStream() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(4 * 1024 * 1024);
+        drainBurst(bucket);
+        long start = System.nanoTime();
+        acquireInChunks(bucket, 2 * 1024 * 1024, ThrottledOutputStream.CHUNK_SIZE); // 0.5 s
+        bucket.setRate(1024 * 1024);
+        acquireInChunks(bucket, 1024 * 1024, ThrottledOutputStream.CHUNK_SIZE);     // 1 s
+        assertWithin(1.5, seconds(System.nanoTime() - start), "seconds for 2 MB at 4 MB/s then 1 MB at 1 MB/s");
+    }
+
+    @Test
+    void unlimitedNeverWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0);
+        long start = System.nanoTime();
+        acquireInChunks(bucket, 1024L * 1024 * 1024, ThrottledOutputStream.CHUNK_SIZE);
+        assertTrue(seconds(System.nanoTime() - start) < 0.5, "Unlimited bucket made acquire wait");
+        assertEquals(0, bucket.tryAcquire(Long.MAX_VALUE));
+    }
+
+    // Each grant pays for the chunk before it (a chunk over the burst is granted first and paid
+    // for in debt), so the rate is the chunks after the first over the time from the first grant
+    // to the last
+    private static void assertRate(long rate, int chunk, long bytes) throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(rate);
+        drainBurst(bucket);
+        bucket.acquire(chunk);
+        long start = System.nanoTime();
+        acquireInChunks(bucket, bytes - chunk, chunk);
+        double measured = (bytes - chunk) / seconds(System.nanoTime() - start);
+        assertWithin(rate, measured, "bytes per second in " + chunk + "-byte chunks");
+    }
+
+    // A full bucket grants its burst at once, which would inflate a short measurement
+    private static void drainBurst(TokenBucket bucket) throws InterruptedException {
+        bucket.acquire(Math.max(64 * 1024, bucket.getRate() / 10));
+    }
+
+    static void acquireInChunks(TokenBucket bucket, long bytes, int chunk) throws InterruptedException {
+        for (long done = 0; done < bytes; done += chunk) {
+            bucket.acquire(Math.min(chunk, bytes - done));
+        }
+    }
+
+    static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    static void assertWithin(double expected, double measured, String what) {
+        assertTrue(Math.abs(measured - expected) <= expected * TOLERANCE,
+                String.format("Expected %.0f %s, within %.0f%%, measured %.0f", expected, what, TOLERANCE * 100, measured));
+    }
+}
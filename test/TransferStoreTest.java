@@ -0,0 +1,114 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Transfer IDs and owners come from the other end of a connection: the store must keep them from
+// naming files outside it or reaching into another client's session.
+class TransferStoreTest {
+    private static final String HASH = ContentHash.of(new byte[2048]);
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void onlyCanonicalUuidsAreTransferIds() throws IOException {
+        TransferStore store = new TransferStore(scratch.resolve("store"));
+        String uuid = UUID.randomUUID().toString();
+        for (String id : new String[] {"../../escape", "..", "not-a-uuid", uuid.toUpperCase(), uuid + "/../x", ""}) {
+            assertThrows(IOException.class, () -> open(store, id, "alice", "a.bin", 2048, HASH), id);
+        }
+        assertTrue(open(store, uuid, "alice", "a.bin", 2048, HASH) != null);
+        assertFalse(Files.exists(scratch.resolve("escape.meta")));
+    }
+
+    @Test
+    void sessionsOnlyReopenForTheirOwnerAndFile() throws IOException {
+        TransferStore store = new TransferStore(scratch.resolve("store"));
+        String id = UUID.randomUUID().toString();
+        TransferStore.Session session = open(store, id, "alice", "a.bin", 2048, HASH);
+
+        assertSame(session, open(store, id, "alice", "a.bin", 2048, HASH));
+        assertThrows(IOException.class, () -> open(store, id, "mallory", "a.bin", 2048, HASH));
+        assertThrows(IOException.class, () -> open(store, id, null, "a.bin", 2048, HASH));
+        assertThrows(IOException.class, () -> open(store, id, "alice", "b.bin", 2048, HASH));
+        assertThrows(IOException.class, () -> open(store, id, "alice", "a.bin", 4096, HASH));
+        assertThrows(IOException.class, () -> open(store, id, "alice", "a.bin", 2048, ContentHash.of(new byte[1])));
+        assertSame(session, store.get(id, "alice"));
+        assertNull(store.get(id, "mallory"));
+    }
+
+    @Test
+    void ownersSurviveARestart() throws IOException {
+        Path directory = scratch.resolve("store");
+        String id = UUID.randomUUID().toString();
+        open(new TransferStore(directory), id, "alice", "a.bin", 2048, HASH);
+
+        TransferStore reloaded = new TransferStore(directory);
+        assertNull(reloaded.get(id, "mallory"));
+        assertEquals("a.bin", reloaded.get(id, "alice").getRelativePath());
+    }
+
+    @Test
+    void metaFilesWithForeignIdsAreDiscardedOnLoad() throws IOException {
+        Path directory = scratch.resolve("store");
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve("planted.meta"), "id=../../escape\npath=a.bin\ntype=CREATE\nsize=2048\nhash=" + HASH + "\n");
+
+        TransferStore store = new TransferStore(directory);
+        assertTrue(store.getSessions().isEmpty());
+        assertFalse(Files.exists(directory.resolve("planted.meta")));
+    }
+
+    @Test
+    void committedTransfersCanBeAskedAboutUntilPruned() throws Exception {
+        Path directory = scratch.resolve("store");
+        String id = UUID.randomUUID().toString();
+        TransferStore store = new TransferStore(directory);
+        TransferStore.Session session = open(store, id, "alice", "a.bin", 2048, HASH);
+        session.write(0, new byte[2048]);
+        assertTrue(session.claimCompletion());
+        assertFalse(session.claimCompletion(), "A second caller must not verify it again");
+        session.moveTo(scratch.resolve("a.bin"));
+        store.recordCommitted(session);
+
+        assertEquals(2048, store.committedSize(id, "alice"));
+        assertEquals(-1, store.committedSize(id, "mallory"));
+        TransferStore reloaded = new TransferStore(directory);
+        assertEquals(2048, reloaded.committedSize(id, "alice"));
+
+        reloaded.prune(Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(2048, reloaded.committedSize(id, "alice"));
+        Thread.sleep(20);
+        reloaded.prune(Long.MAX_VALUE, 0);
+        assertEquals(-1, reloaded.committedSize(id, "alice"));
+        assertEquals(-1, new TransferStore(directory).committedSize(id, "alice"));
+    }
+
+    @Test
+    void abandonedSessionsArePruned() throws Exception {
+        TransferStore store = new TransferStore(scratch.resolve("store"));
+        String id = UUID.randomUUID().toString();
+        open(store, id, "alice", "a.bin", 2048, HASH);
+
+        store.prune(Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(1, store.getSessions().size());
+        Thread.sleep(20);
+        store.prune(0, Long.MAX_VALUE);
+        assertTrue(store.getSessions().isEmpty());
+    }
+
+    private static TransferStore.Session open(TransferStore store, String id, String owner, String path, long size, String hash)
+            throws IOException {
+        return store.open(id, owner, path, FileEvent.EventType.CREATE, size, hash, 0L);
+    }
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Chunked uploads on the server: a session answers only to the client that opened it, a transfer
+// ID can't name a file, and a finished upload can still be asked about
+class UploadSessionTest {
+    private static final int CHUNK = 1024;
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void otherClientsCannotTouchAnUploadAndItsOwnerCanAskAfterCommit() throws Exception {
+        Path serverDir = scratch.resolve("server");
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, serverDir.toString()));
+        byte[] data = new byte[2 * CHUNK];
+        new Random(7).nextBytes(data);
+        String id = UUID.randomUUID().toString();
+        try (SyncTestSupport.Connection alice = connect(server, "alice");
+             SyncTestSupport.Connection mallory = connect(server, "mallory")) {
+            alice.send(chunk(id, data, 0));
+            assertEquals(CHUNK, status(alice, new TransferQuery(id), id));
+
+            assertEquals(TransferStatus.FAILED, status(mallory, chunk(id, data, CHUNK), id));
+            assertEquals(TransferStatus.FAILED, status(mallory, new TransferQuery(id), id));
+            assertEquals(CHUNK, status(alice, new TransferQuery(id), id), "The owner's session must be left alone");
+
+            assertEquals(data.length, status(alice, chunk(id, data, CHUNK), id));
+            assertArrayEquals(data, Files.readAllBytes(serverDir.resolve("big.bin")));
+            // The acknowledgement was lost: asking again, or resending the last chunk, still says it's done
+            assertEquals(data.length, status(alice, new TransferQuery(id), id));
+            assertEquals(data.length, status(alice, chunk(id, data, CHUNK), id));
+            assertEquals(0, status(mallory, new TransferQuery(id), id));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void transferIdsThatAreNotUuidsAreRefused() throws Exception {
+        Path serverDir = scratch.resolve("server");
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, serverDir.toString()));
+        byte[] data = new byte[2 * CHUNK];
+        try (SyncTestSupport.Connection client = connect(server, "client")) {
+            String id = "../../../escape";
+            assertEquals(TransferStatus.FAILED, status(client, chunk(id, data, 0), id));
+        } finally {
+            server.stop();
+        }
+        try (Stream<Path> files = Files.walk(scratch)) {
+            assertFalse(files.anyMatch(file -> file.getFileName().toString().startsWith("escape")), "A file was created outside the store");
+        }
+    }
+
+    private static SyncTestSupport.Connection connect(FileSyncServer server, String clientId) throws Exception {
+        SyncTestSupport.Connection connection = new SyncTestSupport.Connection(server.getLocalPort(), clientId, 0);
+        connection.socket.setSoTimeout((int) SyncTestSupport.TIMEOUT_MS);
+        return connection;
+    }
+
+    private static TransferChunk chunk(String id, byte[] data, int offset) {
+        return new TransferChunk(id, "big.bin", FileEvent.EventType.CREATE, data.length, ContentHash.of(data), 0L,
+                offset, Arrays.copyOfRange(data, offset, offset + CHUNK));
+    }
+
+    // Sends request and returns the committed bytes of the TransferStatus the server replies with
+    private static long status(SyncTestSupport.Connection connection, Object request, String id) throws Exception {
+        connection.send(request);
+        while (true) {
+            if (connection.read() instanceof TransferStatus status && status.getTransferId().equals(id)) {
+                return status.getCommittedBytes();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Which versions a RetentionPolicy keeps and which stored objects go with the rest, and putting
+// files back from the history through a running server.
+class VersionStoreTest {
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final VersionStore.RetentionPolicy KEEP_TWO = new VersionStore.RetentionPolicy(2, 30 * DAY_MS);
+
+    @TempDir
+    Path scratch;
+
+    @Test
+    void pruneKeepsTheLatestVersionsOfEachPath() throws IOException {
+        VersionStore store = new VersionStore(scratch.resolve("versions"));
+        List<String> hashes = new ArrayList<>();
+        for (int version = 1; version <= 5; version++) {
+            hashes.add(commit(store, "a.txt", version, "a " + version));
+        }
+        commit(store, "b.txt", 1, "b 1");
+
+        assertEquals(3, store.prune(KEEP_TWO));
+        assertEquals(List.of(4L, 5L), versionNumbers(store, "a.txt"));
+        assertEquals(List.of(1L), versionNumbers(store, "b.txt"));
+        for (int i = 0; i < hashes.size(); i++) {
+            assertEquals(i >= 3, Files.exists(store.objectPath(hashes.get(i))), "Object of version " + (i + 1));
+        }
+        store.close();
+        assertEquals(List.of(4L, 5L), versionNumbers(reopen(), "a.txt"), "history.log was not rewritten");
+    }
+
+    @Test
+    void pruneDropsVersionsPastTheMaxAgeButNotALatestFile() throws IOException {
+        VersionStore store = new VersionStore(scratch.resolve("versions"));
+        String oldA = commit(store, "a.txt", 1, "a 1");
+        String latestA = commit(store, "a.txt", 2, "a 2");
+        String deletedB = commit(store, "b.txt", 1, "b 1");
+        store.recordDelete("b.txt", 2);
+        String deletedC = commit(store, "c.txt", 1, "c 1");
+        store.recordDelete("c.txt", 2);
+        store.close();
+        age("a.txt", 1, 40 * DAY_MS);
+        age("a.txt", 2, 40 * DAY_MS);
+        age("b.txt", 1, 40 * DAY_MS);
+        age("b.txt", 2, 40 * DAY_MS);
+        age("c.txt", 1, 40 * DAY_MS);
+        age("c.txt", 2, DAY_MS);
+        store = reopen();
+
+        store.prune(KEEP_TWO);
+        assertEquals(List.of(2L), versionNumbers(store, "a.txt"), "The latest version went with the old ones");
+        assertFalse(store.hasHistory("b.txt"), "A delete past the max age was kept");
+        assertEquals(List.of(2L), versionNumbers(store, "c.txt"), "A recent delete was dropped");
+        assertFalse(Files.exists(store.objectPath(oldA)));
+        assertTrue(Files.exists(store.objectPath(latestA)));
+        assertFalse(Files.exists(store.objectPath(deletedB)));
+        assertFalse(Files.exists(store.objectPath(deletedC)));
+        store.close();
+    }
+
+    @Test
+    void pruneKeepsObjectsASnapshotRefersTo() throws IOException {
+        VersionStore store = new VersionStore(scratch.resolve("versions"));
+        String inSnapshot = commit(store, "a.txt", 1, "a 1");
+        store.createSnapshot("before");
+        String dropped = commit(store, "a.txt", 2, "a 2");
+        commit(store, "a.txt", 3, "a 3");
+
+        store.prune(new VersionStore.RetentionPolicy(1, 30 * DAY_MS));
+        assertEquals(List.of(3L), versionNumbers(store, "a.txt"));
+        assertTrue(Files.exists(store.objectPath(inSnapshot)), "An object in a snapshot was deleted");
+        assertFalse(Files.exists(store.objectPath(dropped)));
+        store.deleteSnapshot("before");
+        store.prune(new VersionStore.RetentionPolicy(1, 30 * DAY_MS));
+        assertFalse(Files.exists(store.objectPath(inSnapshot)), "Kept after its snapshot was deleted");
+        store.close();
+    }
+
+    @Test
+    void deletedFileIsRestoredFromItsHistory() throws Exception {
+        Path serverDir = scratch.resolve("server");
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, serverDir.toString()));
+        try (SyncTestSupport.Connection client = new SyncTestSupport.Connection(server.getLocalPort(), "writer", 0)) {
+            client.send(new FileEvent(FileEvent.EventType.CREATE, "docs/a.txt", bytes("first")));
+            client.send(new FileEvent(FileEvent.EventType.DELETE, "docs/a.txt", null));
+            ServerPathTest.awaitApplied(client, serverDir);
+            assertFalse(Files.exists(serverDir.resolve("docs/a.txt")));
+
+            List<VersionStore.Version> history = server.getHistory("docs/a.txt");
+            assertTrue(history.get(history.size() - 1).isDelete());
+            assertTrue(server.restoreVersion("docs/a.txt", history.get(0).getVersion()));
+            assertEquals("first", SyncTestSupport.read(serverDir.resolve("docs/a.txt")));
+            assertFalse(server.getHistory("docs/a.txt").get(history.size()).isDelete(), "The restore was not recorded as a version");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void snapshotIsRestoredUnderAPrefixOnly() throws Exception {
+        Path serverDir = scratch.resolve("server");
+        FileSyncServer server = SyncTestSupport.start(new FileSyncServer(0, serverDir.toString()));
+        try (SyncTestSupport.Connection client = new SyncTestSupport.Connection(server.getLocalPort(), "writer", 0)) {
+            client.send(new FileEvent(FileEvent.EventType.CREATE, "docs/a.txt", bytes("a before")));
+            client.send(new FileEvent(FileEvent.EventType.CREATE, "docs/b.txt", bytes("b before")));
+            client.send(new FileEvent(FileEvent.EventType.CREATE, "other/c.txt", bytes("c before")));
+            ServerPathTest.awaitApplied(client, serverDir);
+            server.createSnapshot("before");
+
+            client.send(new FileEvent(FileEvent.EventType.MODIFY, "docs/a.txt", bytes("a after")));
+            client.send(new FileEvent(FileEvent.EventType.DELETE, "docs/b.txt", null));
+            client.send(new FileEvent(FileEvent.EventType.CREATE, "docs/new.txt", bytes("new")));
+            client.send(new FileEvent(FileEvent.EventType.MODIFY, "other/c.txt", bytes("c after")));
+            client.send(new FileEvent(FileEvent.EventType.MODIFY, "marker.txt", bytes("changed")));
+            SyncTestSupport.await("the changes", () -> "changed".equals(SyncTestSupport.read(serverDir.resolve("marker.txt"))));
+
+            assertEquals(3, server.restoreSnapshot("before", "docs"));
+            assertEquals("a before", SyncTestSupport.read(serverDir.resolve("docs/a.txt")));
+            assertEquals("b before", SyncTestSupport.read(serverDir.resolve("docs/b.txt")));
+            assertFalse(Files.exists(serverDir.resolve("docs/new.txt")), "A file added since the snapshot was kept");
+            assertEquals("c after", SyncTestSupport.read(serverDir.resolve("other/c.txt")), "A file outside the prefix was restored");
+        } finally {
+            server.stop();
+        }
+    }
+
+    private String commit(VersionStore store, String path, long version, String content) throws IOException {
+        Path file = scratch.resolve("committed").resolve(path + "." + version);
+        SyncTestSupport.write(file, content);
+        String contentHash = ContentHash.of(file);
+        store.store(file, contentHash);
+        store.recordCommit(path, version, contentHash, Files.size(file));
+        return contentHash;
+    }
+
+    // Backdates one history entry of a closed store
+    private void age(String path, long version, long ageMillis) throws IOException {
+        Path historyFile = scratch.resolve("versions/history.log");
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(historyFile, StandardCharsets.UTF_8)) {
+            VersionStore.Version entry = VersionStore.Version.parse(line);
+            if (entry.getPath().equals(path) && entry.getVersion() == version) {
+                entry = new VersionStore.Version(path, version, entry.getContentHash(), entry.getSize(), System.currentTimeMillis() - ageMillis);
+            }
+            lines.add(entry.toLine());
+        }
+        Files.write(historyFile, lines, StandardCharsets.UTF_8);
+    }
+
+    private VersionStore reopen() {
+        return new VersionStore(scratch.resolve("versions"));
+    }
+
+    private static List<Long> versionNumbers(VersionStore store, String path) {
+        List<Long> numbers = new ArrayList<>();
+        for (VersionStore.Version version : store.getHistory(path)) {
+            numbers.add(version.getVersion());
+        }
+        return numbers;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}